@@ -15,14 +15,19 @@
 
 package com.vmware.vhadoop.api.vhm;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.CompletionEventHistory;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterConstantData;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterVariableData;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMConstantData;
@@ -62,6 +67,10 @@ public interface ClusterMap {
 
    ClusterScaleCompletionEvent getLastClusterScaleCompletionEvent(String clusterId);
 
+   /* Returns the completion events recorded for the cluster at or after timeMillis, most recent first
+    * Only a bounded number of recent events are kept for each cluster */
+   List<ClusterScaleCompletionEvent> getClusterScaleCompletionEventsSince(String clusterId, long timeMillis);
+
    Boolean checkPowerStateOfVms(Set<String> vmIds, boolean expectedPowerState);
    
    Boolean checkPowerStateOfVm(String vmId, boolean expectedPowerState);
@@ -98,21 +107,58 @@ public interface ClusterMap {
 
    /* Returns NIC name as key and IpAddresses for NIC as value */
    Map<String, Set<String>> getNicAndIpAddressesForVm(String vmId);
+
+   /* Returns an immutable projection of the cluster, its master and its compute VMs, or null if the cluster is not known */
+   ClusterView getClusterView(String clusterId);
+
+   /* A condition on the state of a set of VMs, which can be waited for using watch() */
+   interface VMStateCondition<T> {
+      Set<String> getVmIds();
+
+      /* Returns null while the condition is not met, otherwise the result to complete the watch with
+       * Called with a ClusterMap that must not be held on to, so should be quick and must not block */
+      T evaluate(ClusterMap clusterMap);
+   }
+
+   /* The Future returned by watch(), which can also call back once it is done, so that nothing needs to block waiting for it */
+   interface VMStateWatch<T> extends Future<T> {
+      /* Runs the listener once the watch completes, fails or is cancelled, or straight away if it already has
+       * Listeners are run by whichever thread finishes the watch, which may be the ClusterMap writer, so must be quick and must not block */
+      void whenDone(Runnable listener);
+   }
+
+   /* Returns a Future that completes with the condition's result once it is met. The condition is evaluated immediately,
+    *   then again each time any of its VMs changes, once the change is visible to readers
+    * The Future may be waited on after the ClusterMap is unlocked, and should be cancelled if it is no longer needed */
+   <T> VMStateWatch<T> watch(VMStateCondition<T> condition);
    
    interface VMUpdateListener {
       void updatingVM(String moRef);
    }
    
    interface VMCollectionUpdateListener {
-      void updatingVMCollection();
+      void updatingVMCollection(String moRef);
    }
 
-   /* This data type is here to prevent direct access to internal members in any of the implementation classes */
+   /* This data type is here to prevent direct access to internal members in any of the implementation classes
+    * Variable data is held unpacked, rather than as a VMVariableData, and the NIC table as arrays rather than as a map of sets,
+    *   to keep the per-VM footprint small on large inventories */
    class VMInfo {
+      private static final byte POWER_STATE_UNKNOWN = 0;
+      private static final byte POWER_STATE_OFF = 1;
+      private static final byte POWER_STATE_ON = 2;
+      private static final int VCPUS_UNKNOWN = -1;
+
       private final String _moRef;
       private final VMConstantData _constantData;
-      private final VMVariableData _variableData;
       private final String _clusterId;
+      private String _myName;
+      private String _hostMoRef;
+      private String _dnsName;
+      private byte _powerState = POWER_STATE_UNKNOWN;
+      private int _vCPUs = VCPUS_UNKNOWN;
+      private String[] _nicNames;            /* Null if there is no NIC table. Parallel with _ipAddresses */
+      private String[][] _ipAddresses;
       private long _powerOnTime; // most recent timestamp when VHM learned VM is on
       private long _powerOffTime; // most recent timestamp when VHM learned VM is off
       private VMUpdateListener _updateListener;
@@ -123,27 +169,80 @@ public interface ClusterMap {
             VMVariableData variableData, String clusterId) {
          _moRef = moRef;
          _constantData = constantData;
-         /* Provide an empty variableData if a null one is passed in */
-         _variableData = (variableData != null) ? variableData : new VMVariableData();
          _clusterId = clusterId;
-         if (_variableData._powerState != null) {
-            if (_variableData._powerState) {
-               _powerOnTime = System.currentTimeMillis();      /* Initialize to a reasonable value, even if this isn't the actual power-on time */
-            } else {
-               _variableData._dnsName = null;         /* VC may give us stale values for a powered-off VM on init */
-            }
+         if (variableData != null) {
+            _myName = variableData._myName;
+            _hostMoRef = variableData._hostMoRef;
+            _dnsName = variableData._dnsName;
+            _powerState = packPowerState(variableData._powerState);
+            _vCPUs = packVCPUs(variableData._vCPUs);
+            packNicAndIpAddressMap(variableData._nicAndIpAddressMap);
+         }
+         if (_powerState == POWER_STATE_ON) {
+            _powerOnTime = System.currentTimeMillis();      /* Initialize to a reasonable value, even if this isn't the actual power-on time */
+         } else if (_powerState == POWER_STATE_OFF) {
+            _dnsName = null;         /* VC may give us stale values for a powered-off VM on init */
          }
       }
-      
+
+      private VMInfo(VMInfo toCopy) {
+         _moRef = toCopy._moRef;
+         _constantData = toCopy._constantData;
+         _clusterId = toCopy._clusterId;
+         _myName = toCopy._myName;
+         _hostMoRef = toCopy._hostMoRef;
+         _dnsName = toCopy._dnsName;
+         _powerState = toCopy._powerState;
+         _vCPUs = toCopy._vCPUs;
+         _nicNames = toCopy._nicNames;
+         _ipAddresses = toCopy._ipAddresses;
+         _powerOnTime = toCopy._powerOnTime;
+         _powerOffTime = toCopy._powerOffTime;
+      }
+
+      private static byte packPowerState(Boolean powerState) {
+         if (powerState == null) {
+            return POWER_STATE_UNKNOWN;
+         }
+         return powerState ? POWER_STATE_ON : POWER_STATE_OFF;
+      }
+
+      private static int packVCPUs(Integer vCPUs) {
+         return (vCPUs == null) ? VCPUS_UNKNOWN : vCPUs;
+      }
+
+      /* The arrays are replaced, never modified, so they can be shared with snapshots */
+      private void packNicAndIpAddressMap(Map<String, Set<String>> nicAndIpAddressMap) {
+         if (nicAndIpAddressMap == null) {
+            _nicNames = null;
+            _ipAddresses = null;
+            return;
+         }
+         String[] nicNames = new String[nicAndIpAddressMap.size()];
+         String[][] ipAddresses = new String[nicNames.length][];
+         int i = 0;
+         for (Entry<String, Set<String>> entry : nicAndIpAddressMap.entrySet()) {
+            nicNames[i] = entry.getKey();
+            ipAddresses[i] = (entry.getValue() == null) ? null : entry.getValue().toArray(new String[entry.getValue().size()]);
+            i++;
+         }
+         _nicNames = nicNames;
+         _ipAddresses = ipAddresses;
+      }
+
       public void setUpdateListener(VMUpdateListener listener) {
          _updateListener = listener;
       }
-      
-      private VMVariableData assignVariableData() {
+
+      /* Returns a copy that later changes to this VMInfo won't be visible in. Constant data and NIC tables are never modified, so are shared */
+      public VMInfo snapshot() {
+         return new VMInfo(this);
+      }
+
+      private void notifyUpdate() {
          if (_updateListener != null) {
             _updateListener.updatingVM(_moRef);
          }
-         return _variableData;
       }
 
       public String getClusterId() {
@@ -155,23 +254,26 @@ public interface ClusterMap {
       }
 
       public String getHostMoRef() {
-         return _variableData._hostMoRef;
+         return _hostMoRef;
       }
 
       public String getMyName() {
-         return _variableData._myName;
+         return _myName;
       }
 
       public Boolean getPowerState() {
-         return _variableData._powerState;
+         if (_powerState == POWER_STATE_UNKNOWN) {
+            return null;
+         }
+         return Boolean.valueOf(_powerState == POWER_STATE_ON);
       }
 
       public String getDnsName() {
-         return _variableData._dnsName;
+         return _dnsName;
       }
 
       public Integer getvCPUs() {
-         return _variableData._vCPUs;
+         return (_vCPUs == VCPUS_UNKNOWN) ? null : Integer.valueOf(_vCPUs);
       }
       
       public String getMoRef() {
@@ -190,41 +292,55 @@ public interface ClusterMap {
          return _constantData._myUUID;
       }
 
+      /* Returns a new map each time, built from the packed NIC table */
       public Map<String, Set<String>> getNicAndIpAddressMap() {
-         return _variableData._nicAndIpAddressMap;
+         if (_nicNames == null) {
+            return null;
+         }
+         Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+         for (int i=0; i<_nicNames.length; i++) {
+            result.put(_nicNames[i], (_ipAddresses[i] == null) ? null : new HashSet<String>(Arrays.asList(_ipAddresses[i])));
+         }
+         return result;
       }
 
       public void setMyName(String myName) {
-         assignVariableData()._myName = myName;
+         notifyUpdate();
+         _myName = myName;
       }
 
       public void setHostMoRef(String hostMoRef) {
-         assignVariableData()._hostMoRef = hostMoRef;
+         notifyUpdate();
+         _hostMoRef = hostMoRef;
       }
 
       public void setPowerState(Boolean powerState) {
-         assignVariableData()._powerState = powerState;
+         notifyUpdate();
+         _powerState = packPowerState(powerState);
       }
 
       public void setDnsName(String dnsName) {
-         assignVariableData()._dnsName = dnsName;
+         notifyUpdate();
+         _dnsName = dnsName;
       }
 
       public void setNicAndIpAddressMap(Map<String, Set<String>> nicAndIpAddressMap) {
-         assignVariableData()._nicAndIpAddressMap = nicAndIpAddressMap;
+         notifyUpdate();
+         packNicAndIpAddressMap(nicAndIpAddressMap);
       }
 
       public void setvCPUs(Integer vCPUs) {
-         assignVariableData()._vCPUs = vCPUs;
+         notifyUpdate();
+         _vCPUs = packVCPUs(vCPUs);
       }
 
       public void setPowerOnTime(long currentTimeMillis) {
-         assignVariableData();
+         notifyUpdate();
          _powerOnTime = currentTimeMillis;
       }
 
       public void setPowerOffTime(long currentTimeMillis) {
-         assignVariableData();
+         notifyUpdate();
          _powerOffTime = currentTimeMillis;
       }
    }
@@ -234,7 +350,7 @@ public interface ClusterMap {
    }
 
    interface ClusterCollectionUpdateListener {
-      void updatingClusterCollection();
+      void updatingClusterCollection(String clusterId);
    }
    
    class ClusterInfo {
@@ -246,20 +362,30 @@ public interface ClusterMap {
       private Map<String, String> _extraInfo;
 
       /* These fields don't represent cluster state */
-      private LinkedList<ClusterScaleCompletionEvent> _completionEvents;
+      private final CompletionEventHistory _completionEvents;
       private Long _incompleteSince;
       private ClusterUpdateListener _updateListener;
 
-      public ClusterInfo(String clusterId, SerengetiClusterConstantData constantData) {
+      public ClusterInfo(String clusterId, SerengetiClusterConstantData constantData, CompletionEventHistory completionEvents) {
          this._masterUUID = clusterId;
          this._constantData = constantData;
-         _completionEvents = new LinkedList<ClusterScaleCompletionEvent>();
+         _completionEvents = completionEvents;
       }
 
       public void setUpdateListener(ClusterUpdateListener listener) {
          _updateListener = listener;
       }
       
+      /* Returns a copy that later changes to this ClusterInfo won't be visible in */
+      public ClusterInfo snapshot() {
+         ClusterInfo result = new ClusterInfo(_masterUUID, _constantData, _completionEvents.copy());
+         result._jobTrackerPort = _jobTrackerPort;
+         result._scaleStrategyKey = _scaleStrategyKey;
+         result._extraInfo = (_extraInfo == null) ? null : new HashMap<String, String>(_extraInfo);
+         result._incompleteSince = _incompleteSince;
+         return result;
+      }
+
       private void notifyUpdate() {
          if (_updateListener != null) {
             _updateListener.updatingCluster(_masterUUID);
@@ -305,10 +431,12 @@ public interface ClusterMap {
       }
 
       public ClusterScaleCompletionEvent getMostRecentCompletionEvent() {
-         if (_completionEvents.size() > 0) {
-            return _completionEvents.getFirst();
-         }
-         return null;
+         return _completionEvents.getLatest();
+      }
+
+      /* Most recent first */
+      public List<ClusterScaleCompletionEvent> getCompletionEventsSince(long timeMillis) {
+         return _completionEvents.getSince(timeMillis);
       }
       
       public void setScaleStrategyKey(String scaleStrategyKey) {
@@ -346,7 +474,7 @@ public interface ClusterMap {
 
       public void addCompletionEvent(ClusterScaleCompletionEvent event) {
          /* This isn't a cluster state change */
-         _completionEvents.addFirst(event);
+         _completionEvents.add(event, System.currentTimeMillis());
       }
 
       public boolean testAndSetIsComplete(long currentTime, long graceTimeMillis) {
@@ -0,0 +1,203 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.api.vhm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
+
+/* An immutable projection of a single cluster, materialized by ClusterMap in one call
+ * Decision-making code can take one of these under a single read lock and then reason against it without going back to ClusterMap
+ * Unlike the ClusterMap methods, queries on a ClusterView return empty collections rather than null */
+public class ClusterView {
+   private final String _clusterId;
+   private final String _clusterName;
+   private final String _scaleStrategyKey;
+   private final Integer _jobTrackerPort;
+   private final VMView _master;
+   private final Map<String, VMView> _computeVMs;
+
+   /* The state of one VM at the time the view was created */
+   public static class VMView {
+      private final String _vmId;
+      private final String _hostId;
+      private final Boolean _powerState;
+      private final Long _powerOnTime;
+      private final Long _powerOffTime;
+      private final String _dnsName;
+      private final Integer _vCPUs;
+      private final Map<String, Set<String>> _nicAndIpAddressMap;
+
+      /* dnsName should be null if the VM has no valid DNS name. nicAndIpAddressMap is copied */
+      public VMView(String vmId, String hostId, Boolean powerState, Long powerOnTime, Long powerOffTime,
+            String dnsName, Integer vCPUs, Map<String, Set<String>> nicAndIpAddressMap) {
+         _vmId = vmId;
+         _hostId = hostId;
+         _powerState = powerState;
+         _powerOnTime = powerOnTime;
+         _powerOffTime = powerOffTime;
+         _dnsName = dnsName;
+         _vCPUs = vCPUs;
+         if (nicAndIpAddressMap == null) {
+            _nicAndIpAddressMap = null;
+         } else {
+            Map<String, Set<String>> copy = new HashMap<String, Set<String>>();
+            for (Map.Entry<String, Set<String>> entry : nicAndIpAddressMap.entrySet()) {
+               copy.put(entry.getKey(), (entry.getValue() == null) ? null : Collections.unmodifiableSet(new HashSet<String>(entry.getValue())));
+            }
+            _nicAndIpAddressMap = Collections.unmodifiableMap(copy);
+         }
+      }
+
+      public String getVmId() {
+         return _vmId;
+      }
+
+      public String getHostId() {
+         return _hostId;
+      }
+
+      /* Null if the power state is not yet known */
+      public Boolean getPowerState() {
+         return _powerState;
+      }
+
+      public boolean isPoweredOn() {
+         return Boolean.TRUE.equals(_powerState);
+      }
+
+      /* Null if the power-on time is not known */
+      public Long getPowerOnTime() {
+         return _powerOnTime;
+      }
+
+      /* Null if the power-off time is not known */
+      public Long getPowerOffTime() {
+         return _powerOffTime;
+      }
+
+      public String getDnsName() {
+         return _dnsName;
+      }
+
+      public Integer getNumVCPUs() {
+         return _vCPUs;
+      }
+
+      /* Returns NIC name as key and IpAddresses for NIC as value */
+      public Map<String, Set<String>> getNicAndIpAddressMap() {
+         return _nicAndIpAddressMap;
+      }
+   }
+
+   public ClusterView(String clusterId, String clusterName, String scaleStrategyKey, Integer jobTrackerPort,
+         VMView master, Collection<VMView> computeVMs) {
+      _clusterId = clusterId;
+      _clusterName = clusterName;
+      _scaleStrategyKey = scaleStrategyKey;
+      _jobTrackerPort = jobTrackerPort;
+      _master = master;
+      Map<String, VMView> vms = new HashMap<String, VMView>();
+      if (computeVMs != null) {
+         for (VMView vm : computeVMs) {
+            vms.put(vm.getVmId(), vm);
+         }
+      }
+      _computeVMs = Collections.unmodifiableMap(vms);
+   }
+
+   public String getClusterId() {
+      return _clusterId;
+   }
+
+   public String getClusterName() {
+      return _clusterName;
+   }
+
+   public String getScaleStrategyKey() {
+      return _scaleStrategyKey;
+   }
+
+   public Integer getJobTrackerPort() {
+      return _jobTrackerPort;
+   }
+
+   /* Null if the master VM is not known */
+   public VMView getMaster() {
+      return _master;
+   }
+
+   /* Equivalent to ClusterMap.getHadoopInfoForCluster - returns null if the JobTracker is not powered on */
+   public HadoopClusterInfo getHadoopClusterInfo() {
+      if ((_master != null) && _master.isPoweredOn()) {
+         return new HadoopClusterInfo(_clusterId, _master.getDnsName(), _jobTrackerPort);
+      }
+      return null;
+   }
+
+   public Set<String> getComputeVMIds() {
+      return _computeVMs.keySet();
+   }
+
+   /* Null if the VM is not a compute VM in this cluster */
+   public VMView getComputeVM(String vmId) {
+      return _computeVMs.get(vmId);
+   }
+
+   public Set<String> listComputeVMsForPowerState(boolean powerState) {
+      return listComputeVMsForHostAndPowerState(null, powerState);
+   }
+
+   /* A null hostId matches VMs on any host */
+   public Set<String> listComputeVMsForHostAndPowerState(String hostId, boolean powerState) {
+      Set<String> result = new HashSet<String>();
+      for (VMView vm : _computeVMs.values()) {
+         if ((vm.getPowerState() != null) && (vm.getPowerState() == powerState) &&
+               ((hostId == null) || hostId.equals(vm.getHostId()))) {
+            result.add(vm.getVmId());
+         }
+      }
+      return Collections.unmodifiableSet(result);
+   }
+
+   /* Returns every compute VM in vmIds, mapped to its DNS name, which may be null */
+   public Map<String, String> getDnsNamesForVMs(Set<String> vmIds) {
+      Map<String, String> result = new HashMap<String, String>();
+      for (String vmId : vmIds) {
+         VMView vm = _computeVMs.get(vmId);
+         if (vm != null) {
+            result.put(vmId, vm.getDnsName());
+         }
+      }
+      return Collections.unmodifiableMap(result);
+   }
+
+   /* Returns the IDs of the compute VMs with any of the given DNS names */
+   public Set<String> getVmIdsForDnsNames(Set<String> dnsNames) {
+      Set<String> result = new HashSet<String>();
+      for (VMView vm : _computeVMs.values()) {
+         if ((vm.getDnsName() != null) && dnsNames.contains(vm.getDnsName())) {
+            result.add(vm.getVmId());
+         }
+      }
+      return Collections.unmodifiableSet(result);
+   }
+}
@@ -74,11 +74,16 @@ public interface VCActions {
 
    public Map<String, Future<Boolean>> changeVMPowerState(Set<String> vmMoRefs, boolean b);
 
+   /* As above, but the host of each VM is given so that the number of power transitions in flight on a host can be limited
+    * Hosts may be null where they are not known. May block until the transitions are admitted */
+   public Map<String, Future<Boolean>> changeVMPowerState(Map<String, String> vmMoRefsToHostIds, boolean b);
+
    public void interruptWait();
 
    public PerformanceManager getPerformanceManager();
    
-   /* Should only ever be called by the ClusterStateChangeListener Thread */
+   /* Should only ever be called by the ClusterStateChangeListener Thread
+    * Returns null if vCenter couldn't be waited on. The first non-null result, even if empty, has every VM in the folder */
    public List<VMEventData> waitForPropertyChange(String folderName) throws InterruptedException;
 
    public List<String> listVMsInFolder(String folderName);
@@ -52,6 +52,18 @@ public interface ClusterStateChangeEvent extends NotificationEvent {
       public Boolean _powerState;
       public String _hostMoRef;
 
+      /* Fields are deltas where null means no change, so newer non-null values take precedence */
+      public VMVariableData mergeWith(VMVariableData newer) {
+         VMVariableData result = new VMVariableData();
+         result._myName = (newer._myName != null) ? newer._myName : _myName;
+         result._vCPUs = (newer._vCPUs != null) ? newer._vCPUs : _vCPUs;
+         result._nicAndIpAddressMap = (newer._nicAndIpAddressMap != null) ? newer._nicAndIpAddressMap : _nicAndIpAddressMap;
+         result._dnsName = (newer._dnsName != null) ? newer._dnsName : _dnsName;
+         result._powerState = (newer._powerState != null) ? newer._powerState : _powerState;
+         result._hostMoRef = (newer._hostMoRef != null) ? newer._hostMoRef : _hostMoRef;
+         return result;
+      }
+
       protected String getVariableValues() {
          return "name="+_myName+", vCPUs="+_vCPUs+", nicAndIpAddressMap="+_nicAndIpAddressMap+
                ", dnsName="+_dnsName+", powerState="+_powerState+", hostMoRef="+_hostMoRef;
@@ -84,6 +96,16 @@ public interface ClusterStateChangeEvent extends NotificationEvent {
       public Integer _maxInstances;
       public Integer _jobTrackerPort;
 
+      /* Fields are deltas where null means no change, so newer non-null values take precedence */
+      public SerengetiClusterVariableData mergeWith(SerengetiClusterVariableData newer) {
+         SerengetiClusterVariableData result = new SerengetiClusterVariableData();
+         result._enableAutomation = (newer._enableAutomation != null) ? newer._enableAutomation : _enableAutomation;
+         result._minInstances = (newer._minInstances != null) ? newer._minInstances : _minInstances;
+         result._maxInstances = (newer._maxInstances != null) ? newer._maxInstances : _maxInstances;
+         result._jobTrackerPort = (newer._jobTrackerPort != null) ? newer._jobTrackerPort : _jobTrackerPort;
+         return result;
+      }
+
       public boolean isComplete() {
          return ((_enableAutomation != null) && (_minInstances != null) && (_maxInstances != null) && (_jobTrackerPort != null));
       }
@@ -0,0 +1,111 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.api.vhm.events;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* A bounded history of the scale operations completed for a cluster, held in a ring buffer indexed by the time each was recorded
+ * Once the buffer is full, recording an event drops the oldest. Events older than the retention time are also dropped as new ones are
+ *   recorded, but the most recent event is always kept, however old it is
+ * Times are forced to be non-decreasing, so "since" queries can binary search them */
+public class CompletionEventHistory {
+   private final ClusterScaleCompletionEvent[] _events;
+   private final long[] _times;
+   private final long _retentionMillis;
+   private int _oldest;           /* Index of the oldest event */
+   private int _size;
+
+   /* A retentionMillis of 0 or less keeps events until the buffer is full */
+   public CompletionEventHistory(int capacity, long retentionMillis) {
+      if (capacity < 1) {
+         throw new IllegalArgumentException("Completion event history must hold at least one event");
+      }
+      _events = new ClusterScaleCompletionEvent[capacity];
+      _times = new long[capacity];
+      _retentionMillis = retentionMillis;
+   }
+
+   private CompletionEventHistory(CompletionEventHistory toCopy) {
+      _events = toCopy._events.clone();
+      _times = toCopy._times.clone();
+      _retentionMillis = toCopy._retentionMillis;
+      _oldest = toCopy._oldest;
+      _size = toCopy._size;
+   }
+
+   /* Returns a copy that later additions to this history won't be visible in */
+   public CompletionEventHistory copy() {
+      return new CompletionEventHistory(this);
+   }
+
+   private int indexOf(int position) {
+      return (_oldest + position) % _events.length;
+   }
+
+   public void add(ClusterScaleCompletionEvent event, long timeMillis) {
+      if (_size > 0) {
+         timeMillis = Math.max(timeMillis, _times[indexOf(_size - 1)]);
+      }
+      if (_size == _events.length) {
+         _events[_oldest] = null;
+         _oldest = indexOf(1);
+         _size--;
+      }
+      int index = indexOf(_size);
+      _events[index] = event;
+      _times[index] = timeMillis;
+      _size++;
+      if (_retentionMillis > 0) {
+         while ((_size > 1) && (_times[_oldest] < (timeMillis - _retentionMillis))) {
+            _events[_oldest] = null;
+            _oldest = indexOf(1);
+            _size--;
+         }
+      }
+   }
+
+   /* Null if no events have been recorded */
+   public ClusterScaleCompletionEvent getLatest() {
+      if (_size == 0) {
+         return null;
+      }
+      return _events[indexOf(_size - 1)];
+   }
+
+   /* Returns the events recorded at or after timeMillis, most recent first */
+   public List<ClusterScaleCompletionEvent> getSince(long timeMillis) {
+      int low = 0;
+      int high = _size;
+      while (low < high) {         /* Find the first position recorded at or after timeMillis */
+         int mid = (low + high) >>> 1;
+         if (_times[indexOf(mid)] < timeMillis) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      List<ClusterScaleCompletionEvent> result = new ArrayList<ClusterScaleCompletionEvent>(_size - low);
+      for (int position = _size - 1; position >= low; position--) {
+         result.add(_events[indexOf(position)]);
+      }
+      return result;
+   }
+
+   public int size() {
+      return _size;
+   }
+}
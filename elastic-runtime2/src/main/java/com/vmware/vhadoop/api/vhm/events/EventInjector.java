@@ -27,6 +27,10 @@ import com.vmware.vhadoop.api.vhm.VHMCollaborator;
  *   any other events have been processed. Any EventInjectors that are also ClusterMapReaders therefore get to see the
  *   net effect the event(s) have had on ClusterMap by the time they are being processed.
  * 
+ * An EventInjector is shown every event, unless it is a SubscribingEventInjector. EventInjectors run concurrently with each other,
+ *   but any one EventInjector is always invoked by the same thread and sees the events of a batch in order.
+ *   An EventInjector that is slow to respond doesn't hold up VHM - the events it injects are put on the event queue instead
+ * 
  * @author bcorrie
  *
  */
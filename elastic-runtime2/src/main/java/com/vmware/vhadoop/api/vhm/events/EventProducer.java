@@ -27,6 +27,19 @@ public interface EventProducer {
       public void notifyStarted(EventProducer thisProducer);
    }
    
+   /* How a producer's events are admitted when the VHM event queue is at capacity
+    *  - BLOCK: the producing thread waits for space, unless the event can be merged with one already pending
+    *  - ADMIT: the event is always admitted immediately, even if this takes the queue beyond its capacity
+    * Events are never dropped under either policy */
+   public enum QueueFullPolicy {
+      BLOCK, ADMIT
+   }
+
+   /* Optionally implemented by an EventProducer to choose its QueueFullPolicy. Producers which don't are admitted */
+   public interface QueueFullPolicyAware {
+      public QueueFullPolicy getQueueFullPolicy();
+   }
+
    public void registerEventConsumer(EventConsumer vhm);
 
    public void start(EventProducerStartStopCallback callback);
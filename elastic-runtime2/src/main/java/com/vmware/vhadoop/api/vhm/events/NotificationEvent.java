@@ -24,4 +24,67 @@ public interface NotificationEvent {
    public boolean isSameEventTypeAs(NotificationEvent next);
    
    public long getTimestamp();
+
+   /* Identifies the entity an event is about and the type of the event
+    * Events with equal keys that are pending on the event queue at the same time may be merged into one */
+   public class EventKey {
+      private final String _entityId;
+      private final Class<? extends NotificationEvent> _eventType;
+
+      public EventKey(String entityId, Class<? extends NotificationEvent> eventType) {
+         _entityId = entityId;
+         _eventType = eventType;
+      }
+
+      public String getEntityId() {
+         return _entityId;
+      }
+
+      public Class<? extends NotificationEvent> getEventType() {
+         return _eventType;
+      }
+
+      @Override
+      public int hashCode() {
+         final int prime = 31;
+         int result = 1;
+         result = prime * result + ((_entityId == null) ? 0 : _entityId.hashCode());
+         result = prime * result + ((_eventType == null) ? 0 : _eventType.hashCode());
+         return result;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj)
+            return true;
+         if (obj == null)
+            return false;
+         if (getClass() != obj.getClass())
+            return false;
+         EventKey other = (EventKey) obj;
+         if (_entityId == null) {
+            if (other._entityId != null)
+               return false;
+         } else if (!_entityId.equals(other._entityId))
+            return false;
+         if (_eventType == null) {
+            if (other._eventType != null)
+               return false;
+         } else if (!_eventType.equals(other._eventType))
+            return false;
+         return true;
+      }
+
+      @Override
+      public String toString() {
+         return "EventKey{entityId="+_entityId+", eventType="+((_eventType == null) ? null : _eventType.getSimpleName())+"}";
+      }
+   }
+
+   /* A null key means that the event is never merged with any other event */
+   public EventKey getEventKey();
+
+   /* Returns a single event with the combined effect of this event followed by the newer event, or null if they cannot be merged
+    * Will only be called for events with equal keys and with no other event for the same entity queued in between */
+   public NotificationEvent mergeWith(NotificationEvent newerEvent);
 }
@@ -0,0 +1,33 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+package com.vmware.vhadoop.api.vhm.events;
+
+import java.util.Set;
+
+/**
+ * An EventInjector that is only interested in some types of event
+ *
+ * A plain EventInjector is shown every event. An injector that implements this interface is only shown the
+ *   event types it subscribes to, which saves VHM handing it events it would just ignore
+ *
+ */
+public interface SubscribingEventInjector extends EventInjector {
+
+   /**
+    * The event types this injector should be shown. An event is passed to processEvent if it is an instance of any of them
+    * Returning null subscribes the injector to all events. This is only called once, when the injector is registered
+    */
+   public Set<Class<? extends NotificationEvent>> getSubscribedEventTypes();
+}
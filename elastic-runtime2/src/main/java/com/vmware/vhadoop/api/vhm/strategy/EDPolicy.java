@@ -17,11 +17,13 @@ package com.vmware.vhadoop.api.vhm.strategy;
 
 import java.util.*;
 
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 
 /**
  * Component that manages the end-to-end enabling or disabling of one or more Task Tracker VMs
- * All methods are synchronous and block until the enabling or disabling is completed
+ * All methods are synchronous and block until the enabling or disabling is completed, except for beginEnableTTs and completeEnableTTs
+ *   which allow a staged @ClusterScaleOperation to release its thread while the VMs power on
  * The set returned by the enable/disable methods be a subset of the set passed in and this doesn't necessarily indicate an error
  * All methods may return null in the case of an error, or if there is no action to take
  */
@@ -50,6 +52,36 @@ public interface EDPolicy extends ClusterMapReader {
     */
    Set<String> enableTTs(Map<String, Object> toEnable, int totalTargetEnabled, String clusterId) throws Exception;
 
+   /**
+    * The first half of enableTTs, which starts enabling a candidate set of VMs but doesn't wait for them to come up
+    * The caller should wait for the returned watch, up to getEnableTimeoutMillis(), and then call completeEnableTTs
+    * 
+    * @param toEnable A set of VM ids that must belong to the same cluster
+    * @param totalTargetEnabled The total target number of Task Tracker VMs that should be enabled for the cluster on completion
+    * @param clusterId The cluster that the VM ids belong to
+    * @return A watch that completes once the VMs are ready for enabling to be verified, or null if there is nothing to wait for
+    * @throws Exception
+    */
+   VMStateWatch<?> beginEnableTTs(Set<String> toEnable, int totalTargetEnabled, String clusterId) throws Exception;
+
+   /**
+    * The second half of enableTTs, which verifies that the VMs passed to beginEnableTTs were enabled
+    * 
+    * @param toEnable The set of VM ids passed to beginEnableTTs
+    * @param totalTargetEnabled The total target number of Task Tracker VMs that should be enabled for the cluster on completion
+    * @param clusterId The cluster that the VM ids belong to
+    * @param awaited The watch returned by beginEnableTTs, which may not be done if the wait timed out
+    * @param timeoutMillis What is left of getEnableTimeoutMillis() after the wait for the watch, which verification may block for
+    * @return The Set of VM ids that was actually enabled, or null
+    * @throws Exception
+    */
+   Set<String> completeEnableTTs(Set<String> toEnable, int totalTargetEnabled, String clusterId, VMStateWatch<?> awaited, long timeoutMillis) throws Exception;
+
+   /**
+    * @return The longest time that a caller of beginEnableTTs should wait for the watch it returns
+    */
+   long getEnableTimeoutMillis();
+
    /**
     * Disable a candidate set of VMs for a target cluster
     * 
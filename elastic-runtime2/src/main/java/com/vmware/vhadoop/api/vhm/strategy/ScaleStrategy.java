@@ -17,12 +17,18 @@ package com.vmware.vhadoop.api.vhm.strategy;
 
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.util.CompoundStatus;
 import com.vmware.vhadoop.vhm.AbstractClusterMapReader;
 
 /**
@@ -87,26 +93,254 @@ public interface ScaleStrategy extends ClusterMapReader {
     * As such, @ClusterScaleOperation is stateless. Persistent state can be stored in the @ScaleStrategyContext passed in
     * @ClusterScaleOperation is also a @ClusterMapReader to allow it access to cluster state
     * A @ClusterScaleOperation should return a @ClusterScaleCompletionEvent representing the result of the scale operation
+    * A @ClusterScaleOperation may be asked to cancel, for example when a newer instruction supersedes the one it is handling
+    *   Cancellation is cooperative: the operation checks for it at points where stopping leaves the cluster in a sane state
+    *   and returns a completion event describing what it did get done
+    *   Once the operation has called beginChanges(), it is no longer cancelled. It sees its changes through, so that whatever
+    *   superseded it is handled against the state those changes leave the cluster in
+    * A @ClusterScaleOperation may be split into @Stages, so that it doesn't hold a thread while it waits for VC or the VMs
+    *   localCall() is the first stage. A stage that needs to wait calls awaitThen() with a @ClusterMap watch and the stage to run next
+    *   An @ExecutionStrategy can drive the stages with runStage(), running each one as its watch completes. call() runs them all in turn,
+    *   blocking through each wait
     */
    abstract class ClusterScaleOperation extends AbstractClusterMapReader implements Callable<ClusterScaleCompletionEvent> {
       private static final Logger _log = Logger.getLogger(ClusterScaleOperation.class.getName());
 
+      /* Allows collaborators such as an @EDPolicy, which are called on the operation's thread, to check for cancellation */
+      private static final ThreadLocal<ClusterScaleOperation> _currentOperation = new ThreadLocal<ClusterScaleOperation>();
+
+      private volatile boolean _cancelRequested;
+      private boolean _changesStarted;       /* THREADING: Guarded by this. Once set, requests to cancel are ignored */
+      private Thread _waitingThread;         /* THREADING: Guarded by this. Set only while in a cancellable wait */
+
+      /* The stage to run next and what it is waiting for. Only one stage of an operation runs at a time */
+      private Stage _nextStage;
+      private VMStateWatch<?> _awaited;      /* THREADING: Guarded by this, as requestCancel() cancels it */
+      private String _awaitDescription;
+      private long _awaitTimeoutMillis;
+      private long _awaitStartTime;
+      private CompoundStatus _status;        /* The operation's root status, carried from one stage to the next */
+
+      /**
+       * A later stage of a @ClusterScaleOperation, run once the watch the previous stage was waiting on is done, or has timed out
+       * A stage either finishes the operation by returning its completion event, or calls awaitThen() again and returns null
+       */
+      public interface Stage {
+         /**
+          * @param awaited The watch the previous stage waited on, or null if there was none. If it isn't done, the wait timed out
+          *   If it's cancelled, the operation has been asked to cancel
+          * @return The completion event for the operation, which is ignored if awaitThen() has been called
+          */
+         ClusterScaleCompletionEvent run(VMStateWatch<?> awaited) throws Exception;
+      }
+
+      /* Runs every stage of the operation, blocking the calling thread while each one waits */
       @Override
       public ClusterScaleCompletionEvent call() {
+         ClusterScaleCompletionEvent result = runStage();
+         while (isAwaiting()) {
+            try {
+               getAwaited().get(getAwaitTimeoutMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+               /* The next stage finds that the watch isn't done */
+            } catch (CancellationException e) {
+               /* The next stage finds that the watch has been cancelled */
+            } catch (ExecutionException e) {
+               /* The next stage can get the failure from the watch */
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            result = runStage();
+         }
+         return result;
+      }
+
+      /**
+       * Runs the next stage of the operation, which is localCall() the first time it is called
+       * If isAwaiting() is then true, runStage() should be called again once getAwaited() is done or getAwaitTimeoutMillis() has passed
+       *   Otherwise the operation is finished and the result is its completion event
+       */
+      public ClusterScaleCompletionEvent runStage() {
          ClusterScaleCompletionEvent result = null;
          /* It is critical that this initialize call is matched by the remove() call below in order to avoid memory leaks */
-         getThreadLocalCompoundStatus().initialize();
+         if (_status == null) {
+            getThreadLocalCompoundStatus().initialize();
+         } else {
+            getThreadLocalCompoundStatus().initialize(_status);
+         }
+         _currentOperation.set(this);
          try {
-            result = localCall();
+            do {
+               Stage stage = _nextStage;
+               VMStateWatch<?> awaited;
+               synchronized(this) {
+                  awaited = _awaited;
+                  _nextStage = null;
+                  _awaited = null;
+               }
+               if (stage == null) {
+                  result = localCall();
+               } else {
+                  if (awaited != null) {
+                     _log.info("TIMING: Waited "+(System.currentTimeMillis() - _awaitStartTime)+"ms for "+_awaitDescription+
+                           (awaited.isDone() ? "" : " before timing out"));
+                  }
+                  try {
+                     result = stage.run(awaited);
+                  } finally {
+                     if (awaited != null) {
+                        awaited.cancel(false);
+                     }
+                  }
+               }
+               /* A stage that has nothing to wait for runs straight away */
+            } while ((_nextStage != null) && (_awaited == null));
          } catch (Throwable t) {
             _log.log(Level.SEVERE, "VHM: unexpected exception while scaling - "+ t.getMessage());
             _log.log(Level.INFO, "VHM: unexpected exception while scaling", t);
+            synchronized(this) {
+               if (_awaited != null) {
+                  _awaited.cancel(false);
+               }
+               _nextStage = null;
+               _awaited = null;
+            }
+            result = null;
+         }
+         _currentOperation.remove();
+         if (isAwaiting()) {
+            _status = getThreadLocalCompoundStatus().get();
+         } else {
+            /* Operations may be reused, so a cancellation only ever applies to the invocation it was requested for */
+            synchronized(this) {
+               _cancelRequested = false;
+               _changesStarted = false;
+            }
+            _status = null;
          }
          getThreadLocalCompoundStatus().remove();
          return result;
       }
 
       public abstract ClusterScaleCompletionEvent localCall() throws Exception;
+
+      /**
+       * Ends the current stage once it returns, with nextStage to run once the watch is done or timeoutMillis has passed
+       * The thread is free in the meantime. If the watch is null, nextStage runs straight away. The watch is cancelled once nextStage has run
+       * @param description What is being waited for, so that the time spent waiting can be logged
+       */
+      protected void awaitThen(String description, VMStateWatch<?> awaited, long timeoutMillis, Stage nextStage) {
+         synchronized(this) {
+            _nextStage = nextStage;
+            _awaited = awaited;
+            _awaitDescription = description;
+            _awaitTimeoutMillis = timeoutMillis;
+            _awaitStartTime = System.currentTimeMillis();
+            if ((awaited != null) && _cancelRequested) {
+               awaited.cancel(false);
+            }
+         }
+      }
+
+      /**
+       * @return true if the last stage to run is waiting for getAwaited() before the next stage can run
+       */
+      public boolean isAwaiting() {
+         return _nextStage != null;
+      }
+
+      public synchronized VMStateWatch<?> getAwaited() {
+         return _awaited;
+      }
+
+      public long getAwaitTimeoutMillis() {
+         return _awaitTimeoutMillis;
+      }
+
+      /**
+       * Called before the operation makes its first change that can't safely be abandoned part way, such as issuing power tasks to VC
+       * From then on, requests to cancel are ignored, and the operation waits for its changes to take effect as it would otherwise
+       * @return false if the operation has already been asked to cancel, in which case no change should be made
+       */
+      protected synchronized boolean beginChanges() {
+         if (_cancelRequested) {
+            return false;
+         }
+         _changesStarted = true;
+         return true;
+      }
+
+      /**
+       * Asks the operation to stop at its next checkpoint. This may be called before the operation has started
+       * If the operation is blocked in a cancellable wait, it is woken. If it is waiting between stages, the watch is cancelled
+       *   so that the next stage runs straight away
+       * Ignored once the operation has called beginChanges()
+       */
+      public void requestCancel() {
+         VMStateWatch<?> awaited;
+         synchronized(this) {
+            if (_changesStarted) {
+               _log.fine("Scale operation has already started making changes, so will see them through");
+               return;
+            }
+            _cancelRequested = true;
+            if (_waitingThread != null) {
+               _waitingThread.interrupt();
+            }
+            awaited = _awaited;
+         }
+         /* Outside the lock, as cancelling runs the watch's listeners */
+         if (awaited != null) {
+            awaited.cancel(false);
+         }
+      }
+
+      public boolean isCancelRequested() {
+         return _cancelRequested;
+      }
+
+      /**
+       * @return true if the current thread is running a @ClusterScaleOperation that has been asked to cancel
+       */
+      public static boolean isCurrentOperationCancelled() {
+         ClusterScaleOperation current = _currentOperation.get();
+         return (current != null) && current._cancelRequested;
+      }
+
+      /**
+       * Marks the start of a blocking wait that requestCancel() may interrupt. Only waits that can safely be abandoned should do this
+       * Every call must be matched by a call to endCancellableWait(), whatever the outcome of the wait
+       * @return false if the current operation has already been asked to cancel, in which case the wait should be skipped
+       */
+      public static boolean beginCancellableWait() {
+         ClusterScaleOperation current = _currentOperation.get();
+         if (current == null) {
+            return true;
+         }
+         synchronized(current) {
+            current._waitingThread = Thread.currentThread();
+            return !current._cancelRequested;
+         }
+      }
+
+      /**
+       * Marks the end of a cancellable wait. The interrupt used to wake the wait is cleared so it can't affect later, non-cancellable work
+       * @return true if the current operation has been asked to cancel
+       */
+      public static boolean endCancellableWait() {
+         ClusterScaleOperation current = _currentOperation.get();
+         if (current == null) {
+            return false;
+         }
+         synchronized(current) {
+            current._waitingThread = null;
+            if (current._cancelRequested) {
+               Thread.interrupted();
+               return true;
+            }
+            return false;
+         }
+      }
    }
 
    /**
@@ -48,6 +48,15 @@ public class ThreadLocalCompoundStatus extends ThreadLocal<CompoundStatus> {
       return super.get();     /* Returns the result of initialValue() and then that same object, until remove() is called */
    }
 
+   /* As initialize(), but continues with a root CompoundStatus built up by an earlier part of the same operation, possibly on another thread
+    * The same rules apply: the calling thread must call remove() once its part of the operation is done */
+   public CompoundStatus initialize(CompoundStatus root) {
+      InitializedState threadLocalIS = _initializedState.get();
+      threadLocalIS._initialized = true;
+      super.set(root);
+      return root;
+   }
+
    @Override
    protected CompoundStatus initialValue() {
       /* Return the root CompoundStatus for a thread operation. Any number of compound statuses can be added to this one */
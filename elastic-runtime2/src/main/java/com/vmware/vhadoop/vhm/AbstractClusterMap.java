@@ -15,6 +15,9 @@
 
 package com.vmware.vhadoop.vhm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,12 +31,14 @@ import com.vmware.vhadoop.api.vhm.ClusterMap;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.CompletionEventHistory;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterConstantData;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterVariableData;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMConstantData;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VmType;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.util.ExternalizedParameters;
 import com.vmware.vhadoop.util.VhmLevel;
 import com.vmware.vhadoop.vhm.events.ClusterUpdateEvent;
 import com.vmware.vhadoop.vhm.events.MasterVmUpdateEvent;
@@ -51,16 +56,25 @@ import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
  * Due to the introduction of CachingClusterMapImpl, there are some simple rules that must be adhered to in ClusterMap code
  * 1) _vms and _clusters should never be accessed directly. Only through the get/update methods
  * 2) Any call to getClusterInfoMap or getVMInfoMap must be preceded somewhere in the call stack
- *      by a call to clusterInfoMapHasData or vmInfoMapHasData which should gate access to the get methods. This is checked.
+ *      by a call to clusterInfoMapHasData or vmInfoMapHasData which should gate access to the get methods. This is checked when enableDataChecks has been called.
  * 3) _vms and _clusters have been sub-classed to intercept access to methods which mutate the maps - if removeAll, putAll or other
  *      methods need to be used in future, ensure that these are also intercepted
  * 4) Any changes to VMInfo or ClusterInfo that could modify their state must call the appropriate listener
  * 5) It any fields are added beyond _clusters and _vms containing state required for the computation of any public ClusterMap methods,
  *    the design of CachingClusterMapImpl must be revisited.
+ * 6) Reads of _vms and _clusters are also intercepted, so that CachingClusterMapImpl can track which VMs and clusters a result depends on.
+ *      If other read methods of the maps need to be used in future, ensure that these are also intercepted
+ * 7) The secondary indexes are maintained in the put and remove hooks of _vms and _clusters and in updateVMVariableData.
+ *      Any new way of changing a VM's type, cluster, host, power state or DNS name, or a cluster's name, must also update them
+ * 8) When changes are tracked for snapshots, any new way of changing a VMInfo or ClusterInfo must record the change with vmChanged or clusterChanged
+ * 9) vmChanged also reports the change to any watches registered through watch(). They are evaluated by the ClusterMapAccess, once the change is visible to readers
  */
 public abstract class AbstractClusterMap implements ClusterMap {
    private static final Logger _log = Logger.getLogger(AbstractClusterMap.class.getName());
 
+   private static final int COMPLETION_EVENT_HISTORY_SIZE = ExternalizedParameters.get().getInt("COMPLETION_EVENT_HISTORY_SIZE");
+   private static final long COMPLETION_EVENT_RETENTION_MILLIS = ExternalizedParameters.get().getLong("COMPLETION_EVENT_RETENTION_MILLIS");
+
    private final Map<String, ClusterInfo> _clusters;
    private final Map<String, VMInfo> _vms;
 
@@ -72,70 +86,172 @@ public abstract class AbstractClusterMap implements ClusterMap {
 //   private final Random _random = new Random();     /* Uncomment to do random failure testing */
 //   private final int FAILURE_FACTOR = 20;
 
-   final Map<String, DataCheck> _dataCheckMap = Collections.synchronizedMap(new HashMap<String, DataCheck>());
+   /* Strings repeated across VMs are stored once. Only used by the writer */
+   private final SymbolTable _symbols = new SymbolTable();
+
+   /* Null unless enableDataChecks has been called */
+   private ClusterMapDataCheck _dataCheck;
+
+   /* IDs of the VMs and clusters changed since the last snapshot was taken. Null unless trackChanges has been called */
+   private Set<String> _changedVmIds;
+   private Set<String> _changedClusterIds;
+
+   /* Shared with snapshots, so that a reader can register a watch through whichever map it has locked */
+   private ClusterMapWatches _watches = new ClusterMapWatches();
+
+   /* Secondary indexes, so that queries run in time proportional to the size of their result rather than the inventory */
+   private static final String ALL_COMPUTE_VMS = "ALL";
+   final SecondaryIndex _computeVms = new SecondaryIndex("computeVms");
+   final SecondaryIndex _computeVmsByCluster = new SecondaryIndex("computeVmsByCluster");
+   final SecondaryIndex _computeVmsByHost = new SecondaryIndex("computeVmsByHost");
+   final SecondaryIndex _computeVmsByPowerState = new SecondaryIndex("computeVmsByPowerState");
+   final SecondaryIndex _computeVmsByClusterAndPowerState = new SecondaryIndex("computeVmsByClusterAndPowerState");
+   final SecondaryIndex _vmsByDnsName = new SecondaryIndex("vmsByDnsName");
+   final SecondaryIndex _masterVmsByCluster = new SecondaryIndex("masterVmsByCluster");
+   final SecondaryIndex _clustersByName = new SecondaryIndex("clustersByName");
+
+   /* Maps a key to the IDs of the VMs or clusters that have it. Sets returned are views, so must be copied before leaving ClusterMap */
+   class SecondaryIndex {
+      private final String _name;
+      private final Map<Object, Set<String>> _entries = new HashMap<Object, Set<String>>();
+
+      SecondaryIndex(String name) {
+         _name = name;
+      }
+
+      /* Identifies the membership of a key, so that a cached result can depend on it */
+      private Object getIndexKey(Object key) {
+         return Arrays.asList(_name, key);
+      }
+
+      /* Returns null if there are no entries for the key */
+      Set<String> get(Object key) {
+         readingIndex(getIndexKey(key));
+         Set<String> ids = _entries.get(key);
+         return (ids == null) ? null : Collections.unmodifiableSet(ids);
+      }
+
+      String getAny(Object key) {
+         Set<String> ids = get(key);
+         return (ids == null) ? null : ids.iterator().next();
+      }
+
+      void add(Object key, String id) {
+         Set<String> ids = _entries.get(key);
+         if (ids == null) {
+            ids = new HashSet<String>();
+            _entries.put(key, ids);
+         }
+         if (ids.add(id)) {
+            updatingIndex(getIndexKey(key));
+         }
+      }
 
-   class DataCheck {
-      boolean _vmInfoMapChecked;
-      int _vmInfoMapAccessCount;
-      boolean _clusterInfoMapChecked;
-      int _clusterInfoMapAccessCount;
+      void remove(Object key, String id) {
+         Set<String> ids = _entries.get(key);
+         if ((ids != null) && ids.remove(id)) {
+            if (ids.isEmpty()) {
+               _entries.remove(key);
+            }
+            updatingIndex(getIndexKey(key));
+         }
+      }
+
+      void update(Object oldKey, Object newKey, String id) {
+         if ((oldKey == null) ? (newKey != null) : !oldKey.equals(newKey)) {
+            remove(oldKey, id);
+            add(newKey, id);
+         }
+      }
    }
 
-   Map<String, ClusterInfo> getClusterInfoMap() {
-      DataCheck dataCheck = _dataCheckMap.get(Thread.currentThread().getName());
-      if ((dataCheck == null) || !dataCheck._clusterInfoMapChecked) {
-         _log.severe("ClusterMap is accessing clusterInfoMap without checking for valid data");
+   private void indexVM(VMInfo vmInfo, boolean add) {
+      String vmId = vmInfo.getMoRef();
+      VmType vmType = vmInfo.getVmType();
+      if (VmType.COMPUTE.equals(vmType)) {
+         addOrRemove(_computeVms, ALL_COMPUTE_VMS, vmId, add);
+         addOrRemove(_computeVmsByCluster, vmInfo.getClusterId(), vmId, add);
+         addOrRemove(_computeVmsByHost, vmInfo.getHostMoRef(), vmId, add);
+         addOrRemove(_computeVmsByPowerState, vmInfo.getPowerState(), vmId, add);
+         addOrRemove(_computeVmsByClusterAndPowerState, Arrays.asList(vmInfo.getClusterId(), vmInfo.getPowerState()), vmId, add);
+      } else if (VmType.MASTER.equals(vmType)) {
+         addOrRemove(_masterVmsByCluster, vmInfo.getClusterId(), vmId, add);
       }
-      if (dataCheck != null) {
-         dataCheck._clusterInfoMapChecked = false;
-         dataCheck._clusterInfoMapAccessCount++;
+      if (assertHasData(vmInfo.getDnsName())) {
+         addOrRemove(_vmsByDnsName, vmInfo.getDnsName(), vmId, add);
       }
-      return _clusters;
    }
 
-   Map<String, VMInfo> getVMInfoMap() {
-      DataCheck dataCheck = _dataCheckMap.get(Thread.currentThread().getName());
-      if ((dataCheck == null) || !dataCheck._vmInfoMapChecked) {
-         _log.severe("ClusterMap is accessing vmInfoMap without checking for valid data");
+   private void addOrRemove(SecondaryIndex index, Object key, String id, boolean add) {
+      if (add) {
+         index.add(key, id);
+      } else {
+         index.remove(key, id);
       }
-      if (dataCheck != null) {
-         dataCheck._vmInfoMapChecked = false;
-         dataCheck._vmInfoMapAccessCount++;
+   }
+
+   /* Only the indexes whose keys have actually changed are updated */
+   private void reindexVM(VMInfo vmInfo, String oldHostMoRef, Boolean oldPowerState, String oldDnsName) {
+      String vmId = vmInfo.getMoRef();
+      if (VmType.COMPUTE.equals(vmInfo.getVmType())) {
+         _computeVmsByHost.update(oldHostMoRef, vmInfo.getHostMoRef(), vmId);
+         _computeVmsByPowerState.update(oldPowerState, vmInfo.getPowerState(), vmId);
+         _computeVmsByClusterAndPowerState.update(Arrays.asList(vmInfo.getClusterId(), oldPowerState),
+               Arrays.asList(vmInfo.getClusterId(), vmInfo.getPowerState()), vmId);
       }
-      return _vms;
+      String newDnsName = vmInfo.getDnsName();
+      if ((oldDnsName == null) ? (newDnsName != null) : !oldDnsName.equals(newDnsName)) {
+         if (assertHasData(oldDnsName)) {
+            _vmsByDnsName.remove(oldDnsName, vmId);
+         }
+         if (assertHasData(newDnsName)) {
+            _vmsByDnsName.add(newDnsName, vmId);
+         }
+      }
+   }
+
+   private void indexCluster(ClusterInfo clusterInfo, boolean add) {
+      String clusterName = clusterInfo.getClusterName();
+      if (clusterName != null) {
+         addOrRemove(_clustersByName, clusterName, clusterInfo.getClusterId(), add);
+      }
+   }
+
+   /* For debugging and tests. Must be called before the map is shared with other threads */
+   void enableDataChecks() {
+      _dataCheck = new ClusterMapDataCheck();
+   }
+
+   ClusterMapDataCheck getDataCheck() {
+      return _dataCheck;
+   }
+
+   Map<String, ClusterInfo> getClusterInfoMap() {
+      if (_dataCheck != null) {
+         _dataCheck.clusterInfoMapAccessed();
+      }
+      return _clusters;
    }
 
-   private DataCheck getDataCheck(String threadName) {
-      DataCheck dataCheck = _dataCheckMap.get(threadName);
-      if (dataCheck == null) {
-         dataCheck = new DataCheck();
-         _dataCheckMap.put(threadName, dataCheck);
+   Map<String, VMInfo> getVMInfoMap() {
+      if (_dataCheck != null) {
+         _dataCheck.vmInfoMapAccessed();
       }
-      return dataCheck;
+      return _vms;
    }
 
    boolean clusterInfoMapHasData() {
       boolean result = assertHasData(_clusters);
-      if (result) {
-         DataCheck dataCheck = getDataCheck(Thread.currentThread().getName());
-         if (dataCheck._clusterInfoMapChecked) {
-            _log.severe("ClusterMap previously checked for clusterInfoMap without actually accessing it");
-         } else {
-            dataCheck._clusterInfoMapChecked = true;
-         }
+      if (result && (_dataCheck != null)) {
+         _dataCheck.clusterInfoMapChecked();
       }
       return result;
    }
 
    boolean vmInfoMapHasData() {
       boolean result = assertHasData(_vms);
-      if (result) {
-         DataCheck dataCheck = getDataCheck(Thread.currentThread().getName());
-         if (dataCheck._vmInfoMapChecked) {
-            _log.severe("ClusterMap previously checked for vmInfoMap without actually accessing it");
-         } else {
-            dataCheck._vmInfoMapChecked = true;
-         }
+      if (result && (_dataCheck != null)) {
+         _dataCheck.vmInfoMapChecked();
       }
       return result;
    }
@@ -156,45 +272,129 @@ public abstract class AbstractClusterMap implements ClusterMap {
    AbstractClusterMap(ExtraInfoToClusterMapper mapper) {
       _extraInfoMapper = mapper;
       _clusters = new HashMap<String, ClusterInfo>() {
+         @Override
+         public ClusterInfo get(Object key) {
+            readingCluster(key);
+            return super.get(key);
+         }
+         @Override
+         public boolean containsKey(Object key) {
+            readingCluster(key);
+            return super.containsKey(key);
+         }
+         @Override
+         public Collection<ClusterInfo> values() {
+            readingAllClusters();
+            return super.values();
+         }
+         @Override
+         public Set<String> keySet() {
+            readingAllClusters();
+            return super.keySet();
+         }
+         @Override
+         public Set<Map.Entry<String, ClusterInfo>> entrySet() {
+            readingAllClusters();
+            return super.entrySet();
+         }
          @Override
          public ClusterInfo put(String clusterId, ClusterInfo clusterInfo) {
             ClusterInfo result = super.put(clusterId, clusterInfo);
-            notifyClusterCollectionUpdateListener();
+            if (result != null) {
+               indexCluster(result, false);
+            }
+            indexCluster(clusterInfo, true);
+            clusterChanged(clusterId);
+            notifyClusterCollectionUpdateListener(clusterId);
             return result;
          }
          @Override
          public ClusterInfo remove(Object key) {
             ClusterInfo result = super.remove(key);
-            notifyClusterCollectionUpdateListener();
+            if (result != null) {
+               indexCluster(result, false);
+            }
+            clusterChanged((String)key);
+            notifyClusterCollectionUpdateListener((String)key);
             return result;
          }
       };
       _vms = new HashMap<String, VMInfo>() {
+         @Override
+         public VMInfo get(Object key) {
+            readingVM(key);
+            return super.get(key);
+         }
+         @Override
+         public boolean containsKey(Object key) {
+            readingVM(key);
+            return super.containsKey(key);
+         }
+         @Override
+         public Collection<VMInfo> values() {
+            readingAllVMs();
+            return super.values();
+         }
+         @Override
+         public Set<String> keySet() {
+            readingAllVMs();
+            return super.keySet();
+         }
+         @Override
+         public Set<Map.Entry<String, VMInfo>> entrySet() {
+            readingAllVMs();
+            return super.entrySet();
+         }
          @Override
          public VMInfo put(String vmId, VMInfo vmInfo) {
             VMInfo result = super.put(vmId, vmInfo);
-            notifyVMCollectionUpdateListener();
+            if (result != null) {
+               indexVM(result, false);
+            }
+            indexVM(vmInfo, true);
+            vmChanged(vmId);
+            notifyVMCollectionUpdateListener(vmId);
             return result;
          }
          @Override
          public VMInfo remove(Object key) {
             VMInfo result = super.remove(key);
-            notifyVMCollectionUpdateListener();
+            if (result != null) {
+               indexVM(result, false);
+            }
+            vmChanged((String)key);
+            notifyVMCollectionUpdateListener((String)key);
             return result;
          }
       };
    }
 
+   /* Only the fields that VMInfo keeps are copied */
+   private VMVariableData internVariableData(VMVariableData variableData) {
+      if (variableData == null) {
+         return null;
+      }
+      VMVariableData result = new VMVariableData();
+      result._myName = variableData._myName;
+      result._vCPUs = variableData._vCPUs;
+      result._nicAndIpAddressMap = _symbols.internNicNames(variableData._nicAndIpAddressMap);
+      result._dnsName = variableData._dnsName;
+      result._powerState = variableData._powerState;
+      result._hostMoRef = _symbols.intern(variableData._hostMoRef);
+      return result;
+   }
+
    VMInfo createVMInfo(String moRef, VMConstantData constantData,
          VMVariableData variableData, String clusterId) {
-      VMInfo vmInfo = new VMInfo(moRef, constantData, variableData, clusterId);
+      VMInfo vmInfo = new VMInfo(moRef, constantData, internVariableData(variableData), _symbols.intern(clusterId));
       _log.log(Level.FINE, "Creating new VMInfo <%%V%s%%V>(%s) for cluster <%%C%s%%C>. %s. %s",
             new String[]{moRef, moRef, clusterId, constantData.toString(), variableData.toString()});
       return vmInfo;
    }
 
    ClusterInfo createClusterInfo(String clusterId, SerengetiClusterConstantData constantData) {
-      ClusterInfo clusterInfo = new ClusterInfo(clusterId, constantData);
+      ClusterInfo clusterInfo = new ClusterInfo(_symbols.intern(clusterId), constantData,
+            new CompletionEventHistory(COMPLETION_EVENT_HISTORY_SIZE, COMPLETION_EVENT_RETENTION_MILLIS));
       _log.log(Level.FINE, "Creating new ClusterInfo <%%C%s%%C>(%s). %s",
             new String[]{clusterId, clusterId, constantData.toString()});
       return clusterInfo;
@@ -208,24 +408,115 @@ public abstract class AbstractClusterMap implements ClusterMap {
       _clusterCollectionUpdateListener = listener;
    }
 
-   private void notifyVMCollectionUpdateListener() {
+   private void notifyVMCollectionUpdateListener(String vmId) {
       if (_vmCollectionUpdateListener != null) {
-         _vmCollectionUpdateListener.updatingVMCollection();
+         _vmCollectionUpdateListener.updatingVMCollection(vmId);
       }
    }
 
-   private void notifyClusterCollectionUpdateListener() {
+   private void notifyClusterCollectionUpdateListener(String clusterId) {
       if (_clusterCollectionUpdateListener != null) {
-         _clusterCollectionUpdateListener.updatingClusterCollection();
+         _clusterCollectionUpdateListener.updatingClusterCollection(clusterId);
+      }
+   }
+
+   private void vmChanged(String vmId) {
+      if (_changedVmIds != null) {
+         _changedVmIds.add(vmId);
+      }
+      if (_watches != null) {
+         _watches.vmChanged(vmId);
+      }
+   }
+
+   private void clusterChanged(String clusterId) {
+      if (_changedClusterIds != null) {
+         _changedClusterIds.add(clusterId);
+      }
+   }
+
+   /* Called by the writer before the first snapshot is taken */
+   void trackChanges() {
+      _changedVmIds = new HashSet<String>();
+      _changedClusterIds = new HashSet<String>();
+   }
+
+   /* Fills this empty map with an immutable copy of source, sharing the entries that haven't changed since previous was taken
+    * Must be called by the writer, so that source doesn't change while it is copied. Resets the changes tracked by source */
+   void populateSnapshot(AbstractClusterMap source, AbstractClusterMap previous) {
+      Set<String> changedVmIds = source._changedVmIds;
+      Set<String> changedClusterIds = source._changedClusterIds;
+      source.trackChanges();
+      if ((previous == null) || (changedVmIds == null)) {
+         changedVmIds = new HashSet<String>(source._vms.keySet());
+         changedClusterIds = new HashSet<String>(source._clusters.keySet());
+      }
+      _scaleStrategies.putAll(source._scaleStrategies);
+      _dataCheck = source._dataCheck;
+      _watches = null;        /* Copying entries into the snapshot isn't a change to report */
+      if (previous != null) {
+         for (Map.Entry<String, ClusterInfo> entry : previous._clusters.entrySet()) {
+            if (!changedClusterIds.contains(entry.getKey())) {
+               _clusters.put(entry.getKey(), entry.getValue());
+            }
+         }
+         for (Map.Entry<String, VMInfo> entry : previous._vms.entrySet()) {
+            if (!changedVmIds.contains(entry.getKey())) {
+               _vms.put(entry.getKey(), entry.getValue());
+            }
+         }
+      }
+      for (String clusterId : changedClusterIds) {
+         ClusterInfo clusterInfo = source._clusters.get(clusterId);
+         if (clusterInfo != null) {
+            _clusters.put(clusterId, clusterInfo.snapshot());
+         }
       }
+      for (String vmId : changedVmIds) {
+         VMInfo vmInfo = source._vms.get(vmId);
+         if (vmInfo != null) {
+            _vms.put(vmId, vmInfo.snapshot());
+         }
+      }
+      _watches = source._watches;
+   }
+
+   /* Called by the ClusterMapAccess once the changes made by the writer are visible to readers in visibleClusterMap
+    * Returns the listeners of the watches that completed, for the caller to run with runWatchListeners() once it holds no lock */
+   List<Runnable> evaluateWatches(ClusterMap visibleClusterMap) {
+      return _watches.evaluate(visibleClusterMap);
+   }
+
+   void runWatchListeners(List<Runnable> listeners) {
+      ClusterMapWatches.runListeners(listeners);
    }
 
+   @Override
+   public <T> VMStateWatch<T> watch(VMStateCondition<T> condition) {
+      return _watches.register(condition, this);
+   }
+
+   /* Called whenever a VM or cluster is looked up, whether or not it exists, or when a whole collection is read
+    * These do nothing here, but allow a subclass to record what the current computation depends on */
+   void readingVM(Object vmId) {}
+
+   void readingAllVMs() {}
+
+   void readingCluster(Object clusterId) {}
+
+   void readingAllClusters() {}
+
+   /* As above, for a lookup of a key in a secondary index and for a change to the entries with that key */
+   void readingIndex(Object indexKey) {}
+
+   void updatingIndex(Object indexKey) {}
+
    boolean assertHasData(Set<? extends Object> toTest) {
       return (toTest != null && (toTest.size() > 0));
    }
 
    private boolean assertHasData(Map<? extends Object, ? extends Object> toTest) {
-      return (toTest != null && (toTest.keySet().size() > 0));
+      return (toTest != null && !toTest.isEmpty());         /* Not keySet(), which would count as reading every entry */
    }
 
    boolean assertHasData(String data) {
@@ -372,9 +663,13 @@ public abstract class AbstractClusterMap implements ClusterMap {
          Boolean powerState = variableData._powerState;
          Integer vCPUs = variableData._vCPUs;
 
+         String oldHostMoRef = vi.getHostMoRef();
+         Boolean oldPowerState = vi.getPowerState();
+         String oldDnsName = vi.getDnsName();
+
          clusterId = vi.getClusterId();
          if (testForVMUpdate(vi.getHostMoRef(), hostMoRef, vmId, "hostMoRef")) {
-            vi.setHostMoRef(hostMoRef);
+            vi.setHostMoRef(_symbols.intern(hostMoRef));
          }
          if (testForVMUpdate(vi.getMyName(), myName, vmId, "myName")) {
             vi.setMyName(myName);
@@ -401,11 +696,13 @@ public abstract class AbstractClusterMap implements ClusterMap {
             vi.setDnsName(dnsName);
          }
          if (testForVMUpdate(vi.getNicAndIpAddressMap(), nicAndIpAddressMap, vmId, "nicAndIpAddressMap")) {
-            vi.setNicAndIpAddressMap(nicAndIpAddressMap);
+            vi.setNicAndIpAddressMap(_symbols.internNicNames(nicAndIpAddressMap));
          }
          if (testForVMUpdate(vi.getvCPUs(), vCPUs, vmId, "vCPUs")) {
             vi.setvCPUs(vCPUs);
          }
+         reindexVM(vi, oldHostMoRef, oldPowerState, oldDnsName);
+         vmChanged(vmId);
       }
       return clusterId;
    }
@@ -416,6 +713,7 @@ public abstract class AbstractClusterMap implements ClusterMap {
       boolean variableDataChanged = false;
       ClusterInfo ci = getCluster(clusterId);
       if (ci != null) {
+         clusterChanged(clusterId);
          Boolean enableAutomation = variableData._enableAutomation;
          Integer jobTrackerPort = variableData._jobTrackerPort;
          if (enableAutomation != null) {
@@ -469,13 +767,9 @@ public abstract class AbstractClusterMap implements ClusterMap {
    }
 
    private VMInfo getMasterVmForCluster(String clusterId) {
-      if (vmInfoMapHasData()) {
-         for (VMInfo vmInfo : getVMInfoMap().values()) {
-            if (vmInfo.getVmType().equals(VmType.MASTER)
-                  && vmInfo.getClusterId().equals(clusterId)) {
-               return vmInfo;
-            }
-         }
+      String masterVmId = _masterVmsByCluster.getAny(clusterId);
+      if ((masterVmId != null) && vmInfoMapHasData()) {
+         return getVMInfoMap().get(masterVmId);
       }
       return null;
    }
@@ -504,6 +798,7 @@ public abstract class AbstractClusterMap implements ClusterMap {
          }
 
          cluster.addCompletionEvent(event);
+         clusterChanged(event.getClusterId());
       }
    }
 
@@ -519,40 +814,41 @@ public abstract class AbstractClusterMap implements ClusterMap {
       _scaleStrategies.put(strategy.getKey(), strategy);
    }
 
+   /* Every filter is indexed, so the result is found by intersecting at most two index entries */
    Set<String> generateComputeVMList(final String clusterId, String hostId, Boolean powerState) {
-      if (vmInfoMapHasData()) {
-         Set<String> result = new HashSet<String>();
-         for (VMInfo vminfo : getVMInfoMap().values()) {
-            try {
-               boolean hostTest = (hostId == null) ? true : (hostId.equals(vminfo.getHostMoRef()));
-               boolean clusterTest = (clusterId == null) ? true : (vminfo.getClusterId().equals(clusterId));
-               boolean powerStateTest = (powerState == null) ? true : (vminfo.getPowerState().equals(powerState));
-               _log.finest("Inputs: clusterId: "+clusterId+", hostId: "+hostId+", powerState: "+powerState);
-               _log.finest("Testing "+vminfo.getMyName()+" h="+hostTest+", c="+clusterTest+", p="+powerStateTest);
-               if ((vminfo.getVmType().equals(VmType.COMPUTE)) && hostTest && clusterTest && powerStateTest) {
-                  result.add(vminfo.getMoRef());
+      Set<String> candidates;
+      if ((clusterId != null) && (powerState != null)) {
+         candidates = _computeVmsByClusterAndPowerState.get(Arrays.asList(clusterId, powerState));
+      } else if (clusterId != null) {
+         candidates = _computeVmsByCluster.get(clusterId);
+      } else if (powerState != null) {
+         candidates = _computeVmsByPowerState.get(powerState);
+      } else {
+         candidates = _computeVms.get(ALL_COMPUTE_VMS);
+      }
+      if ((candidates != null) && (hostId != null)) {
+         Set<String> onHost = _computeVmsByHost.get(hostId);
+         if (onHost == null) {
+            candidates = null;
+         } else {
+            Set<String> smaller = (onHost.size() < candidates.size()) ? onHost : candidates;
+            Set<String> larger = (smaller == onHost) ? candidates : onHost;
+            Set<String> intersection = new HashSet<String>();
+            for (String vmId : smaller) {
+               if (larger.contains(vmId)) {
+                  intersection.add(vmId);
                }
-            } catch (NullPointerException e) {
-               /* vmInfo._constantData should never be null or have null values.
-                * vmInfo.getClusterId() and vmInfo.getMoRef() should never be null
-                * vmInfo._variableData should never be null, but may have null values */
-               _log.fine("Null pointer checking for matching vm (name: "+vminfo.getMyName()+
-                                                             ", uuid: "+vminfo.getMyUUID()+
-                                                             ", vmType: "+vminfo.getVmType()+
-                                                             ", host: "+vminfo.getHostMoRef()+
-                                                             ". powerState: "+vminfo.getPowerState()+
-                                                             ", cluster: <%C"+vminfo.getClusterId()+
-                                                          "%C>, moRef: "+vminfo.getMoRef()+")");
             }
+            candidates = intersection;
          }
-         if (result.size() > 0) {
-            _log.finest("generateComputeVMList returning set with hashCode: "+result.hashCode()+", and identity hashcode: "+System.identityHashCode(result));
-         } else if (result.size() == 0) {
-            _log.finest("generateComputeVMList returning null");
-         }
-         return (result.size() == 0) ? null : Collections.unmodifiableSet(result);            /* Immutable wrapper */
       }
-      return null;
+      if ((candidates == null) || candidates.isEmpty()) {
+         _log.finest("generateComputeVMList returning null");
+         return null;
+      }
+      Set<String> result = new HashSet<String>(candidates);
+      _log.finest("generateComputeVMList returning set with hashCode: "+result.hashCode()+", and identity hashcode: "+System.identityHashCode(result));
+      return Collections.unmodifiableSet(result);            /* Immutable wrapper */
    }
 
    public void dumpState(Level logLevel) {
@@ -603,19 +899,12 @@ public abstract class AbstractClusterMap implements ClusterMap {
     * If graceTimeMillis == 0 this implies infinite time
     */
    Boolean validateClusterCompleteness(String clusterId, long graceTimeMillis) {
-      boolean isComplete = true;
       Boolean result = null;
       ClusterInfo ci = getCluster(clusterId);
-      if (ci == null) {
+      Boolean isComplete = isClusterComplete(clusterId);
+      if (isComplete == null) {
          return null;
       }
-      if ((ci.getJobTrackerPort() == null) || (ci.getClusterId() == null) || (ci.getScaleStrategyKey() == null)) {
-         isComplete = false;
-      }
-      if (isComplete) {
-         Set<String> computeVMs = listComputeVMsForCluster(clusterId);
-         isComplete = ((computeVMs != null) && (computeVMs.size() > 0));
-      }
       if (isComplete) {
          ci.resetIsCompleteTime();
          result = true;
@@ -625,6 +914,20 @@ public abstract class AbstractClusterMap implements ClusterMap {
       return result;
    }
 
+   /* Returns null if clusterId is not found
+    * Unlike validateClusterCompleteness, this doesn't record anything in ClusterMap, so only needs a read lock */
+   Boolean isClusterComplete(String clusterId) {
+      ClusterInfo ci = getCluster(clusterId);
+      if (ci == null) {
+         return null;
+      }
+      if ((ci.getJobTrackerPort() == null) || (ci.getClusterId() == null) || (ci.getScaleStrategyKey() == null)) {
+         return false;
+      }
+      Set<String> computeVMs = listComputeVMsForCluster(clusterId);
+      return ((computeVMs != null) && (computeVMs.size() > 0));
+   }
+
    @Override
    public String getHostIdForVm(String vmId) {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
@@ -662,6 +965,19 @@ public abstract class AbstractClusterMap implements ClusterMap {
       return null;
    }
 
+   @Override
+   public List<ClusterScaleCompletionEvent> getClusterScaleCompletionEventsSince(String clusterId, long timeMillis) {
+      ClusterInfo ci = getCluster(clusterId);
+      if (ci != null) {
+         List<ClusterScaleCompletionEvent> result = new ArrayList<ClusterScaleCompletionEvent>();
+         for (ClusterScaleCompletionEvent event : ci.getCompletionEventsSince(timeMillis)) {
+            result.add(event.immutableCopy());       /* Make immutable copy */
+         }
+         return Collections.unmodifiableList(result);           /* Immutable wrapper */
+      }
+      return null;
+   }
+
    @Override
    public Set<String> getAllKnownClusterIds() {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
@@ -15,10 +15,18 @@
 
 package com.vmware.vhadoop.vhm;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateCondition;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.util.CompoundStatus;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
@@ -90,50 +98,115 @@ public abstract class AbstractClusterMapReader implements ClusterMapReader {
       _clusterMapAccess.unlockClusterMap(clusterMap);
    }
 
-   public void blockOnPowerStateChange(final Set<String> vmIds, final boolean expectedPowerState, final long timeout) {
-      CompoundStatus status = new CompoundStatus(POWER_STATE_CHANGE_STATUS_KEY);
-      long timeoutTime = System.currentTimeMillis() + timeout;
-      long pollSleepTime = 500;
-      boolean timedOut = false;
+   /* Registers the condition with ClusterMap, returning null if it could not be registered */
+   private <T> VMStateWatch<T> watchClusterMap(VMStateCondition<T> condition) {
       ClusterMap clusterMap = null;
-
-      if (vmIds == null || vmIds.isEmpty()) {
-         return;
+      try {
+         clusterMap = getAndReadLockClusterMap();     /* Initialization check here */
+         return clusterMap.watch(condition);
+      } finally {
+         unlockClusterMap(clusterMap);
       }
+   }
 
-      do {
-         boolean completed = true;
-         
-         try {
-            clusterMap = getAndReadLockClusterMap();     /* Initialization check here */
-            
+   /* Returns a Future that completes once each of the VMs is in the expected power state. VMs ClusterMap doesn't know about are ignored */
+   public VMStateWatch<Boolean> watchPowerState(final Set<String> vmIds, final boolean expectedPowerState) {
+      return watchClusterMap(new VMStateCondition<Boolean>() {
+         @Override
+         public Set<String> getVmIds() {
+            return vmIds;
+         }
+
+         @Override
+         public Boolean evaluate(ClusterMap clusterMap) {
             for (String vmId : vmIds) {
                Boolean result = clusterMap.checkPowerStateOfVm(vmId, expectedPowerState);
                if (result == null) {
                   _log.fine("checkPowerState cannot find VM <%V"+vmId);
                } else if (!result) {
-                  completed = false;
-                  break;
+                  return null;
                }
             }
-         } finally {
-            unlockClusterMap(clusterMap);
+            return true;
+         }
+      });
+   }
+
+   /* Returns a Future that completes with the DNS names of the VMs once each of them has one
+    * VMs ClusterMap doesn't know about are left out, so the map is empty if none of the VMs are known */
+   public VMStateWatch<Map<String, String>> watchDnsNames(final Set<String> vmIds) {
+      return watchClusterMap(new VMStateCondition<Map<String, String>>() {
+         @Override
+         public Set<String> getVmIds() {
+            return vmIds;
          }
 
-         if (completed) {
-            status.registerTaskSucceeded();
-            break;
+         @Override
+         public Map<String, String> evaluate(ClusterMap clusterMap) {
+            Map<String, String> dnsNames = clusterMap.getDnsNamesForVMs(vmIds);
+            if (dnsNames == null) {
+               return Collections.emptyMap();
+            }
+            for (String dnsName : dnsNames.values()) {
+               if ((dnsName == null) || (dnsName.trim().length() == 0)) {
+                  return null;
+               }
+            }
+            return dnsNames;
          }
+      });
+   }
+
+   /* Waits until the VMs are in the expected power state, without polling ClusterMap */
+   public void blockOnPowerStateChange(final Set<String> vmIds, final boolean expectedPowerState, final long timeout) {
+      CompoundStatus status = new CompoundStatus(POWER_STATE_CHANGE_STATUS_KEY);
 
+      if (vmIds == null || vmIds.isEmpty()) {
+         return;
+      }
+
+      VMStateWatch<Boolean> watch = watchPowerState(vmIds, expectedPowerState);
+      if (watch == null) {
+         status.registerTaskFailed(false, "Unable to watch for powerStateChange");
+      } else {
          try {
-            Thread.sleep(Math.min(pollSleepTime, timeout));
+            watch.get(timeout, TimeUnit.MILLISECONDS);
+            status.registerTaskSucceeded();
+         } catch (TimeoutException e) {
+            status.registerTaskFailed(false, "Timeout waiting for powerStateChange");
          } catch (InterruptedException e) {
             status.registerTaskIncomplete(false, "blockOnPowerStateChange was interrupted unexpectedly");
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException e) {
+            status.registerTaskFailed(false, "Unexpected error waiting for powerStateChange: "+e.getCause());
+         } finally {
+            watch.cancel(false);
          }
-         timedOut = System.currentTimeMillis() > timeoutTime;
-      } while (!timedOut);
-      if (timedOut) {
+      }
+      getCompoundStatus().addStatus(status);
+   }
+
+   /* The non-blocking counterpart to blockOnPowerStateChange, for a watch from watchPowerState that has already been waited for
+    * Records the same status that blockOnPowerStateChange would have done */
+   public void recordPowerStateChange(VMStateWatch<?> watch) {
+      CompoundStatus status = new CompoundStatus(POWER_STATE_CHANGE_STATUS_KEY);
+
+      if (watch == null) {
+         status.registerTaskFailed(false, "Unable to watch for powerStateChange");
+      } else if (!watch.isDone()) {
          status.registerTaskFailed(false, "Timeout waiting for powerStateChange");
+      } else {
+         try {
+            watch.get();
+            status.registerTaskSucceeded();
+         } catch (CancellationException e) {
+            status.registerTaskIncomplete(false, "Wait for powerStateChange was cancelled");
+         } catch (InterruptedException e) {
+            /* Can't happen, as the watch is done */
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException e) {
+            status.registerTaskFailed(false, "Unexpected error waiting for powerStateChange: "+e.getCause());
+         }
       }
       getCompoundStatus().addStatus(status);
    }
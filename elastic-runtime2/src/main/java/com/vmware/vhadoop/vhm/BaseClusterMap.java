@@ -1,26 +1,27 @@
 package com.vmware.vhadoop.vhm;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.ClusterView.VMView;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
-import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VmType;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
 
 /* BaseClusterMap has code for all of the methods exposed in ClusterMapImpl and CachingClusterMapImpl
  * 
- * Each method corresponds to a public method in ClusterMap with "Base" added as a post-fix to facilitate lookup using reflection
+ * Each method corresponds to a public method in ClusterMap with "Base" added as a post-fix
  * 
  * 
  */
 public abstract class BaseClusterMap extends AbstractClusterMap {
 
-   static final String BASE_METHOD_POSTIFX = "Base";
-   
    BaseClusterMap(ExtraInfoToClusterMapper mapper) {
       super(mapper);
    }
@@ -55,14 +56,14 @@ public abstract class BaseClusterMap extends AbstractClusterMap {
 
    Set<String> listHostsWithComputeVMsForClusterBase(String clusterId) {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
-      if (vmInfoMapHasData()) {
+      Set<String> computeVMs = _computeVmsByCluster.get(clusterId);
+      if ((computeVMs != null) && vmInfoMapHasData()) {
+         Map<String, VMInfo> vmInfoMap = getVMInfoMap();
          Set<String> result = new HashSet<String>();
-         for (VMInfo vminfo : getVMInfoMap().values()) {
-            if ((vminfo.getVmType().equals(VmType.COMPUTE)) && vminfo.getClusterId().equals(clusterId)) {
-               String hostMoRef = vminfo.getHostMoRef();
-               if (assertHasData(hostMoRef)) {
-                  result.add(hostMoRef);
-               }
+         for (String vmId : computeVMs) {
+            String hostMoRef = vmInfoMap.get(vmId).getHostMoRef();
+            if (assertHasData(hostMoRef)) {
+               result.add(hostMoRef);
             }
          }
          return (result.size() == 0) ? null : Collections.unmodifiableSet(result);   /* Immutable wrapper */
@@ -80,13 +81,8 @@ public abstract class BaseClusterMap extends AbstractClusterMap {
 
    String getClusterIdForNameBase(String clusterName) {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
-      if ((clusterName != null) && clusterInfoMapHasData()) {
-         for (ClusterInfo ci : getClusterInfoMap().values()) {
-            String nameTest = ci.getClusterName();
-            if ((nameTest != null) && (nameTest.equals(clusterName))) {
-               return ci.getClusterId();           /* Immutable result */
-            }
-         }
+      if (clusterName != null) {
+         return _clustersByName.getAny(clusterName);           /* Immutable result */
       }
       return null;
    }
@@ -192,12 +188,12 @@ public abstract class BaseClusterMap extends AbstractClusterMap {
 
    Map<String, String> getVmIdsForDnsNamesBase(Set<String> dnsNames) {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
-      if (assertHasData(dnsNames) && vmInfoMapHasData()) {
+      if (assertHasData(dnsNames)) {
          Map<String, String> results = new HashMap<String, String>();
-         for (VMInfo vminfo : getVMInfoMap().values()) {
-            String dnsNameToTest = vminfo.getDnsName();
-            if (assertHasData(dnsNameToTest) && dnsNames.contains(dnsNameToTest)) {
-               results.put(dnsNameToTest, vminfo.getMoRef());
+         for (String dnsName : dnsNames) {
+            String vmId = _vmsByDnsName.getAny(dnsName);
+            if (vmId != null) {
+               results.put(dnsName, vmId);
             }
          }
          if (results.size() > 0) {
@@ -209,13 +205,8 @@ public abstract class BaseClusterMap extends AbstractClusterMap {
 
    String getVmIdForDnsNameBase(String dnsName) {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
-      if (vmInfoMapHasData()) {
-         for (VMInfo vminfo : getVMInfoMap().values()) {
-            String dnsNameToTest = vminfo.getDnsName();
-            if (assertHasData(dnsNameToTest) && (dnsName != null) && dnsNameToTest.equals(dnsName)) {
-               return vminfo.getMoRef();           /* Immutable result */
-            }
-         }
+      if (assertHasData(dnsName)) {
+         return _vmsByDnsName.getAny(dnsName);           /* Immutable result */
       }
       return null;
    }
@@ -264,4 +255,37 @@ public abstract class BaseClusterMap extends AbstractClusterMap {
       return null;
    }
 
+   ClusterView getClusterViewBase(String clusterId) {
+      //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
+      ClusterInfo ci = getCluster(clusterId);
+      if (ci == null) {
+         return null;
+      }
+      VMView master = null;
+      List<VMView> computeVMs = new ArrayList<VMView>();
+      if (vmInfoMapHasData()) {
+         Map<String, VMInfo> vmInfoMap = getVMInfoMap();
+         VMInfo masterInfo = vmInfoMap.get(ci.getMasterMoRef());
+         if (masterInfo != null) {
+            master = createVMView(masterInfo);
+         }
+         Set<String> computeVmIds = _computeVmsByCluster.get(clusterId);
+         if (computeVmIds != null) {
+            for (String vmId : computeVmIds) {
+               VMInfo vmInfo = vmInfoMap.get(vmId);
+               if (vmInfo != null) {
+                  computeVMs.add(createVMView(vmInfo));
+               }
+            }
+         }
+      }
+      return new ClusterView(clusterId, ci.getClusterName(), ci.getScaleStrategyKey(), ci.getJobTrackerPort(), master, computeVMs);     /* Immutable object */
+   }
+
+   private VMView createVMView(VMInfo vmInfo) {
+      String dnsName = vmInfo.getDnsName();
+      return new VMView(vmInfo.getMoRef(), vmInfo.getHostMoRef(), vmInfo.getPowerState(), vmInfo.getPowerOnTime(), vmInfo.getPowerOffTime(),
+            assertHasData(dnsName) ? dnsName : null, vmInfo.getvCPUs(), vmInfo.getNicAndIpAddressMap());
+   }
+
 }
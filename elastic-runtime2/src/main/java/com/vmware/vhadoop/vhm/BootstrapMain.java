@@ -335,9 +335,19 @@ public class BootstrapMain
 
       MQClient mqClient = getRabbitInterface();
 
-      vhm = new VHM(getVCInterface(tlcs), getScaleStrategies(tlcs), getStrategyMapper(), tlcs);
+      boolean publishClusterMapSnapshots = Boolean.parseBoolean(_properties.getProperty("publishClusterMapSnapshots"));
+      boolean checkClusterMapAccess = Boolean.parseBoolean(_properties.getProperty("checkClusterMapAccess"));
+      vhm = new VHM(getVCInterface(tlcs), getScaleStrategies(tlcs), getStrategyMapper(), tlcs, publishClusterMapSnapshots, checkClusterMapAccess);
       ClusterStateChangeListenerImpl cscl = new ClusterStateChangeListenerImpl(getVCInterface(tlcs), _properties.getProperty("uuid"));
 
+      String journalDirectory = _properties.getProperty("eventJournalDirectory");
+      if ((journalDirectory != null) && (journalDirectory.trim().length() > 0)) {
+         Set<String> recoveredVmIds = vhm.openEventJournal(journalDirectory.trim());
+         if (recoveredVmIds != null) {
+            cscl.seedRecoveredVms(recoveredVmIds);
+         }
+      }
+
       if (!vhm.registerEventProducer(cscl)) {
          _log.severe("Fatal error registering ClusterStateChangeListenerImpl as an event producer");
          return null;
@@ -1,16 +1,18 @@
 package com.vmware.vhadoop.vhm;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.vmware.vhadoop.api.vhm.ClusterView;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterConstantData;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMConstantData;
@@ -26,139 +28,383 @@ import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
  *   AbstractClusterMap has two maps: One with information about clusters (ClusterInfo map) and one with information about vms (VMInfo map)
  *   The public methods implemented here will access one or both of these maps and other than input parameters to the method,
  *     this is their only other input.
- *   Therefore, any time a change is made to one of these maps or an entry within it, all of the cached data for methods that use that map
- *     as input data should be flushed. Changes to the maps are tracked using the VMCollectionUpdateListener and ClusterCollectionUpdateListener
+ *   Each cached method has a CachedQuery, created with the map, which is bound directly to the equivalent method in BaseClusterMap
+ *     and which holds the results for that method keyed by its input parameters
+ *   While a result is being computed, AbstractClusterMap reports every VM and cluster that is looked up, as well as any read of a
+ *     whole collection. These are recorded as the dependencies of the cached result. A cached method that calls another cached method
+ *     inherits that method's dependencies, whether or not its result was already cached.
+ *   Lookups in AbstractClusterMap's secondary indexes are recorded in the same way, so a result found through an index is only
+ *     evicted when the entries for the keys it looked up change.
+ *   Any time a VM or cluster is added, removed or modified, only the cached results that depend on it are evicted, along with results
+ *     that read the whole collection. Changes to the maps are tracked using the VMCollectionUpdateListener and ClusterCollectionUpdateListener
  *     Changes to entries within the maps are tracked using VMUpdateListener and ClusterUpdateListener.
  *   Note ClusterMap code MUST use get/set methods to modify the state of ClusterInfo and VMInfo objects in order for the tracking to work
  *     so these types are declared in the ClusterMap interface to prevent direct access to internal fields.
- *   Most methods access either the VMInfo map or ClusterInfo map, but some methods access both. To avoid unnecessary flushing,
- *     there are therefore 3 cache maps that correspond to these 3 types of access pattern.
- *   The caches use the method name and its input parameters as the key and the object returned as the value
- *   The caching works by looking first in the appropriate map. If a cached entry is not found, the equivalent method in BaseClusterMap
- *     is invoked using reflection. The method has the same name as the calling method, with a postfix tag to identify it.
- *   Since each method needs to know which of the 3 cache maps to use, this should not be left up to trial and error. As such, there are
- *     checks performed every time a non-cached method is invoked to ensure that the correct cache map is being used. This is done by tracking
- *     the number of times a VMInfo or ClusterInfo map is accessed during the invocation of the method.
- *   The cache maps are synchronized because ClusterMap has a concurrent read model
+ *   Most methods access either the VMInfo map or ClusterInfo map, but some methods access both. Each CachedQuery declares which of these
+ *     3 types of access pattern it has and, when data checks are enabled, there are checks performed every time a non-cached method is
+ *     invoked to ensure that this is correct. This is done by tracking the number of times a VMInfo or ClusterInfo map is accessed during the invocation of the method.
+ *   ClusterMap has a concurrent read model, so results are held in ConcurrentHashMaps and a cache hit never takes a lock.
+ *     Cache entries are only ever evicted by the single writer, while no readers are active
  */
 public class CachingClusterMapImpl extends BaseClusterMap {
    private static final Logger _log = Logger.getLogger(CachingClusterMapImpl.class.getName());
 
-   /* The 3 cache maps */
-   private Map<InputParams, Object> _resultFromVmList = Collections.synchronizedMap(new HashMap<InputParams, Object>());
-   private Map<InputParams, Object> _resultFromClusterList = Collections.synchronizedMap(new HashMap<InputParams, Object>());
-   private Map<InputParams, Object> _resultFromVmAndClusterList = Collections.synchronizedMap(new HashMap<InputParams, Object>());
+   /* ConcurrentHashMap doesn't allow null keys */
+   private static final Object NULL_KEY = new Object();
 
-   /* Methods are cached to avoid multiple reflection lookups */
-   private Map<String, Method> _methods = Collections.synchronizedMap(new HashMap<String, Method>());
+   /* Dependency on every entry in a collection */
+   private static final Object ALL = new Object();
+
+   private enum CacheGroup {VM, CLUSTER, VM_AND_CLUSTER}
+
+   private final List<CachedQuery> _cachedQueries = new ArrayList<CachedQuery>();
+
+   /* Reverse indexes from a VM or cluster ID (or ALL) to the cached results that depend on it */
+   private final ConcurrentMap<Object, Set<CacheEntry>> _vmDependents = new ConcurrentHashMap<Object, Set<CacheEntry>>();
+   private final ConcurrentMap<Object, Set<CacheEntry>> _clusterDependents = new ConcurrentHashMap<Object, Set<CacheEntry>>();
+   private final ConcurrentMap<Object, Set<CacheEntry>> _indexDependents = new ConcurrentHashMap<Object, Set<CacheEntry>>();
+
+   /* The dependencies of the computation in progress on the current thread. Nested computations form a stack */
+   private final ThreadLocal<Dependencies> _currentDependencies = new ThreadLocal<Dependencies>();
+
+   private class Dependencies {
+      private final Dependencies _parent;
+      private final Set<Object> _vmIds = new HashSet<Object>();
+      private final Set<Object> _clusterIds = new HashSet<Object>();
+      private final Set<Object> _indexKeys = new HashSet<Object>();
+
+      Dependencies(Dependencies parent) {
+         _parent = parent;
+      }
+
+      void addAll(Dependencies other) {
+         _vmIds.addAll(other._vmIds);
+         _clusterIds.addAll(other._clusterIds);
+         _indexKeys.addAll(other._indexKeys);
+      }
+   }
+
+   private class CacheEntry {
+      private final CachedQuery _query;
+      private final Object _key;
+      private final Object _result;
+      private final Dependencies _dependencies;
+
+      CacheEntry(CachedQuery query, Object key, Object result, Dependencies dependencies) {
+         _query = query;
+         _key = key;
+         _result = result;
+         _dependencies = dependencies;
+      }
+   }
+
+   /* A cached ClusterMap method, bound to its Base method when the map is constructed */
+   private abstract class CachedQuery {
+      private final String _methodName;
+      private final CacheGroup _cacheGroup;
+      private final ConcurrentMap<Object, CacheEntry> _results = new ConcurrentHashMap<Object, CacheEntry>();
+
+      CachedQuery(String methodName, CacheGroup cacheGroup) {
+         _methodName = methodName;
+         _cacheGroup = cacheGroup;
+         _cachedQueries.add(this);
+      }
+
+      abstract Object invokeBase(Object[] args);
+
+      private Object getKey(Object[] args) {
+         if (args.length == 1) {
+            return (args[0] == null) ? NULL_KEY : args[0];
+         }
+         return Arrays.asList(args);
+      }
+
+      /* Either return the cached result, or invoke the Base method */
+      Object get(Object... args) {
+         Object key = getKey(args);
+         Dependencies caller = _currentDependencies.get();
+         CacheEntry entry = _results.get(key);
+         if (entry != null) {
+            if (_log.isLoggable(Level.FINER)) {
+               _log.finer("Returning cached result from "+_methodName+"; hashcode="+entry._result.hashCode()+", identity hashcode="+System.identityHashCode(entry._result));
+            }
+            if (caller != null) {
+               caller.addAll(entry._dependencies);
+            }
+            return entry._result;
+         }
+
+         Dependencies dependencies = new Dependencies(caller);
+         _currentDependencies.set(dependencies);
+         Object result;
+         try {
+            result = invokeAndCheck(args);
+         } finally {
+            _currentDependencies.set(caller);
+         }
+         if (caller != null) {
+            caller.addAll(dependencies);
+         }
+         if (result != null) {
+            if (_log.isLoggable(Level.FINER)) {
+               _log.finer("Caching new result from "+_methodName+"; hashcode="+result.hashCode()+", identity hashcode="+System.identityHashCode(result)+
+                     ", vm dependencies="+dependencies._vmIds.size()+", cluster dependencies="+dependencies._clusterIds.size()+
+                     ", index dependencies="+dependencies._indexKeys.size());
+            }
+            entry = new CacheEntry(this, key, result, dependencies);
+            if (_results.putIfAbsent(key, entry) == null) {
+               addDependents(_vmDependents, dependencies._vmIds, entry);
+               addDependents(_clusterDependents, dependencies._clusterIds, entry);
+               addDependents(_indexDependents, dependencies._indexKeys, entry);
+            }
+         }
+         return result;
+      }
+
+      /* Double-check that a method purporting to only access one of the maps doesn't read the other */
+      private Object invokeAndCheck(Object[] args) {
+         ClusterMapDataCheck dataCheck = getDataCheck();
+         if (dataCheck == null) {
+            return invokeBase(args);
+         }
+         int vmAccessCount = dataCheck.getVMInfoMapAccessCount();
+         int clusterAccessCount = dataCheck.getClusterInfoMapAccessCount();
+         Object result = invokeBase(args);
+         if ((_cacheGroup == CacheGroup.VM) && (clusterAccessCount != dataCheck.getClusterInfoMapAccessCount())) {
+            _log.severe("Cached method claiming to only access vm data attempted to access ClusterInfo map!");
+         } else if ((_cacheGroup == CacheGroup.CLUSTER) && (vmAccessCount != dataCheck.getVMInfoMapAccessCount())) {
+            _log.severe("Cached method claiming to only access cluster data attempted to access VMInfo map!");
+         }
+         return result;
+      }
+   }
+
+   private final CachedQuery _listComputeVMsForCluster = new CachedQuery("listComputeVMsForCluster", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return listComputeVMsForClusterBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _listComputeVMsForClusterAndPowerState = new CachedQuery("listComputeVMsForClusterAndPowerState", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return listComputeVMsForClusterAndPowerStateBase((String)args[0], (Boolean)args[1]);
+      }
+   };
+
+   private final CachedQuery _listComputeVMsForClusterHostAndPowerState = new CachedQuery("listComputeVMsForClusterHostAndPowerState", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return listComputeVMsForClusterHostAndPowerStateBase((String)args[0], (String)args[1], (Boolean)args[2]);
+      }
+   };
+
+   private final CachedQuery _listComputeVMsForPowerState = new CachedQuery("listComputeVMsForPowerState", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return listComputeVMsForPowerStateBase((Boolean)args[0]);
+      }
+   };
+
+   private final CachedQuery _listHostsWithComputeVMsForCluster = new CachedQuery("listHostsWithComputeVMsForCluster", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return listHostsWithComputeVMsForClusterBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getHostIdsForVMs = new CachedQuery("getHostIdsForVMs", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getHostIdsForVMsBase((Set<String>)args[0]);
+      }
+   };
+
+   private final CachedQuery _checkPowerStateOfVms = new CachedQuery("checkPowerStateOfVms", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return checkPowerStateOfVmsBase((Set<String>)args[0], (Boolean)args[1]);
+      }
+   };
+
+   private final CachedQuery _checkPowerStateOfVm = new CachedQuery("checkPowerStateOfVm", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return checkPowerStateOfVmBase((String)args[0], (Boolean)args[1]);
+      }
+   };
+
+   private final CachedQuery _getDnsNamesForVMs = new CachedQuery("getDnsNamesForVMs", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getDnsNamesForVMsBase((Set<String>)args[0]);
+      }
+   };
+
+   private final CachedQuery _getDnsNameForVM = new CachedQuery("getDnsNameForVM", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getDnsNameForVMBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getVmIdsForDnsNames = new CachedQuery("getVmIdsForDnsNames", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getVmIdsForDnsNamesBase((Set<String>)args[0]);
+      }
+   };
+
+   private final CachedQuery _getVmIdForDnsName = new CachedQuery("getVmIdForDnsName", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getVmIdForDnsNameBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getClusterIdForName = new CachedQuery("getClusterIdForName", CacheGroup.CLUSTER) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getClusterIdForNameBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getAllClusterIdsForScaleStrategyKey = new CachedQuery("getAllClusterIdsForScaleStrategyKey", CacheGroup.VM_AND_CLUSTER) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getAllClusterIdsForScaleStrategyKeyBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getScaleStrategyKey = new CachedQuery("getScaleStrategyKey", CacheGroup.VM_AND_CLUSTER) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getScaleStrategyKeyBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getHadoopInfoForCluster = new CachedQuery("getHadoopInfoForCluster", CacheGroup.VM_AND_CLUSTER) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getHadoopInfoForClusterBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getMasterVmIdForCluster = new CachedQuery("getMasterVmIdForCluster", CacheGroup.CLUSTER) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getMasterVmIdForClusterBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getNicAndIpAddressesForVm = new CachedQuery("getNicAndIpAddressesForVm", CacheGroup.VM) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getNicAndIpAddressesForVmBase((String)args[0]);
+      }
+   };
+
+   private final CachedQuery _getClusterView = new CachedQuery("getClusterView", CacheGroup.VM_AND_CLUSTER) {
+      @Override
+      Object invokeBase(Object[] args) {
+         return getClusterViewBase((String)args[0]);
+      }
+   };
 
    @Override
    public Set<String> listComputeVMsForCluster(String clusterId) {
-      /* The MethodAccessor is a simple trick to allow us to use class.getEnclosingMethod() to avoid hard-coding method names */
-      class MethodAccessor {};
-      return (Set<String>)getCachedObjectFromVmList(MethodAccessor.class, clusterId);
+      return (Set<String>)_listComputeVMsForCluster.get(clusterId);
    }
 
    @Override
    public Set<String> listComputeVMsForClusterAndPowerState(String clusterId, boolean powerState) {
-      class MethodAccessor {};
-      return (Set<String>)getCachedObjectFromVmList(MethodAccessor.class, clusterId, powerState);
+      return (Set<String>)_listComputeVMsForClusterAndPowerState.get(clusterId, powerState);
    }
 
    @Override
    public Set<String> listComputeVMsForClusterHostAndPowerState(String clusterId, String hostId, boolean powerState) {
-      class MethodAccessor {};
-      return (Set<String>)getCachedObjectFromVmList(MethodAccessor.class, clusterId, hostId, powerState);
+      return (Set<String>)_listComputeVMsForClusterHostAndPowerState.get(clusterId, hostId, powerState);
    }
 
    @Override
    public Set<String> listComputeVMsForPowerState(boolean powerState) {
-      class MethodAccessor {};
-      return (Set<String>)getCachedObjectFromVmList(MethodAccessor.class, powerState);
+      return (Set<String>)_listComputeVMsForPowerState.get(powerState);
    }
 
    @Override
    public Set<String> listHostsWithComputeVMsForCluster(String clusterId) {
-      class MethodAccessor {};
-      return (Set<String>)getCachedObjectFromVmList(MethodAccessor.class, clusterId);
+      return (Set<String>)_listHostsWithComputeVMsForCluster.get(clusterId);
    }
 
    @Override
    public Map<String, String> getHostIdsForVMs(Set<String> vmsToED) {
-      class MethodAccessor {};
-      return (Map<String, String>)getCachedObjectFromVmList(MethodAccessor.class, vmsToED);
+      return (Map<String, String>)_getHostIdsForVMs.get(vmsToED);
    }
 
    @Override
    public Boolean checkPowerStateOfVms(Set<String> vmIds, boolean expectedPowerState) {
-      class MethodAccessor {};
-      return (Boolean)getCachedObjectFromVmList(MethodAccessor.class, vmIds, expectedPowerState);
+      return (Boolean)_checkPowerStateOfVms.get(vmIds, expectedPowerState);
    }
 
    @Override
    public Boolean checkPowerStateOfVm(String vmId, boolean expectedPowerState) {
-      class MethodAccessor {};
-      return (Boolean)getCachedObjectFromVmList(MethodAccessor.class, vmId, expectedPowerState);
+      return (Boolean)_checkPowerStateOfVm.get(vmId, expectedPowerState);
    }
 
    @Override
    public Map<String, String> getDnsNamesForVMs(Set<String> vmIds) {
-      class MethodAccessor {};
-      return (Map<String, String>)getCachedObjectFromVmList(MethodAccessor.class, vmIds);
+      return (Map<String, String>)_getDnsNamesForVMs.get(vmIds);
    }
 
    @Override
    public String getDnsNameForVM(String vmId) {
-      class MethodAccessor {};
-      return (String)getCachedObjectFromVmList(MethodAccessor.class, vmId);
+      return (String)_getDnsNameForVM.get(vmId);
    }
 
    @Override
    public Map<String, String> getVmIdsForDnsNames(Set<String> dnsNames) {
-      class MethodAccessor {};
-      return (Map<String, String>)getCachedObjectFromVmList(MethodAccessor.class, dnsNames);
+      return (Map<String, String>)_getVmIdsForDnsNames.get(dnsNames);
    }
 
    @Override
    public String getVmIdForDnsName(String dnsName) {
-      class MethodAccessor {};
-      return (String)getCachedObjectFromVmList(MethodAccessor.class, dnsName);
+      return (String)_getVmIdForDnsName.get(dnsName);
    }
 
    @Override
    public String getClusterIdForName(String clusterFolderName) {
-      class MethodAccessor {};
-      return (String)getCachedObjectFromClusterList(MethodAccessor.class, clusterFolderName);
+      return (String)_getClusterIdForName.get(clusterFolderName);
    }
 
    @Override
    public Set<String> getAllClusterIdsForScaleStrategyKey(String key) {
-      class MethodAccessor {};
-      return (Set<String>)getCachedObjectFromVmAndClusterList(MethodAccessor.class, key);
+      return (Set<String>)_getAllClusterIdsForScaleStrategyKey.get(key);
    }
 
    @Override
    public String getScaleStrategyKey(String clusterId) {
-      class MethodAccessor {};
-      return (String)getCachedObjectFromVmAndClusterList(MethodAccessor.class, clusterId);
+      return (String)_getScaleStrategyKey.get(clusterId);
    }
 
    @Override
    public HadoopClusterInfo getHadoopInfoForCluster(String clusterId) {
-      class MethodAccessor {};
-      return (HadoopClusterInfo)getCachedObjectFromVmAndClusterList(MethodAccessor.class, clusterId);
+      return (HadoopClusterInfo)_getHadoopInfoForCluster.get(clusterId);
    }
 
    @Override
    public String getMasterVmIdForCluster(String clusterId) {
-      class MethodAccessor {};
-      return (String)getCachedObjectFromClusterList(MethodAccessor.class, clusterId);
+      return (String)_getMasterVmIdForCluster.get(clusterId);
    }
 
    @Override
    public Map<String, Set<String>> getNicAndIpAddressesForVm(String vmId) {
-      class MethodAccessor {};
-      return (Map<String, Set<String>>)getCachedObjectFromVmList(MethodAccessor.class, vmId);
+      return (Map<String, Set<String>>)_getNicAndIpAddressesForVm.get(vmId);
+   }
+
+   @Override
+   public ClusterView getClusterView(String clusterId) {
+      return (ClusterView)_getClusterView.get(clusterId);
    }
 
    @Override
@@ -169,7 +415,7 @@ public class CachingClusterMapImpl extends BaseClusterMap {
       result.setUpdateListener(new VMUpdateListener() {
          @Override
          public void updatingVM(String moRef) {
-            resetVMCache(false);
+            evictVMDependents(moRef);
          }
       });
       return result;
@@ -182,163 +428,120 @@ public class CachingClusterMapImpl extends BaseClusterMap {
       result.setUpdateListener(new ClusterUpdateListener() {
          @Override
          public void updatingCluster(String clusterId) {
-            resetClusterCache(false);
+            evictClusterDependents(clusterId);
          }
       });
       return result;
    }
 
-   /* Simple key type used for indexing cache entries */
-   private class InputParams {
-      List<Object> _params = new ArrayList<Object>();
-      String _methodName;
-
-      InputParams(String methodName, Object... objects) {
-         _params = Arrays.asList(objects);
-         _methodName = methodName;
-      }
-
-      @Override
-      public int hashCode() {
-         final int prime = 31;
-         int result = 1;
-         result = prime * result + getOuterType().hashCode();
-         result = prime * result + ((_methodName == null) ? 0 : _methodName.hashCode());
-         result = prime * result + ((_params == null) ? 0 : _params.hashCode());
-         return result;
-      }
-
-      @Override
-      public boolean equals(Object obj) {
-         if (this == obj)
-            return true;
-         if (obj == null)
-            return false;
-         if (getClass() != obj.getClass())
-            return false;
-         InputParams other = (InputParams) obj;
-         if (!getOuterType().equals(other.getOuterType()))
-            return false;
-         if (_methodName == null) {
-            if (other._methodName != null)
-               return false;
-         } else if (!_methodName.equals(other._methodName))
-            return false;
-         if (_params == null) {
-            if (other._params != null)
-               return false;
-         } else if (!_params.equals(other._params))
-            return false;
-         return true;
-      }
-
-      private CachingClusterMapImpl getOuterType() {
-         return CachingClusterMapImpl.this;
-      }
-
-   }
-
    /* Here's where we add the VMCollectionUpdateListener and ClusterCollectionUpdateListener */
    public CachingClusterMapImpl(ExtraInfoToClusterMapper mapper) {
       super(mapper);
       setVMCollectionUpdateListener(new VMCollectionUpdateListener() {
          @Override
-         public void updatingVMCollection() {
-            resetVMCache(true);
+         public void updatingVMCollection(String moRef) {
+            evictVMDependents(moRef);
          }
       });
       setClusterCollectionUpdateListener(new ClusterCollectionUpdateListener() {
          @Override
-         public void updatingClusterCollection() {
-            resetClusterCache(true);
+         public void updatingClusterCollection(String clusterId) {
+            evictClusterDependents(clusterId);
          }
       });
    }
 
-   private void resetVMCache(boolean updatingCollection) {
-      _log.finer("Resetting VM cache");
-      _resultFromVmList.clear();
-      _resultFromVmAndClusterList.clear();
+   private void recordDependency(Set<Object> dependencies, Object id) {
+      dependencies.add((id == null) ? NULL_KEY : id);
    }
 
-   private void resetClusterCache(boolean updatingCollection) {
-      _log.finer("Resetting Cluster cache");
-      _resultFromClusterList.clear();
-      _resultFromVmAndClusterList.clear();
+   @Override
+   void readingVM(Object vmId) {
+      Dependencies dependencies = _currentDependencies.get();
+      if (dependencies != null) {
+         recordDependency(dependencies._vmIds, vmId);
+      }
    }
 
-   /* Either return the cached result, or invoke the Base method from the superclass */
-   private Object getCachedObjectFromList(Map<InputParams, Object> inputMap, Class<?> methodAccessor, Object... args) {
-      String methodName = methodAccessor.getEnclosingMethod().getName();
-      InputParams params = new InputParams(methodAccessor.getEnclosingMethod().getName(), args);
-      Object result = inputMap.get(params);
-      if (result == null) {
-         try {
-            Method method = getSuperclassMethod(methodAccessor);
-            result = method.invoke(this, args);
-         } catch (Exception e) {
-            _log.log(Level.SEVERE, "VHM: unexpected exception invoking cached method - " + e.getMessage());
-            _log.log(Level.INFO, "Unexpected exception invoking cached method", e);
-         }
-         if (result != null) {
-            _log.finer("Caching new result from "+methodName+"; hashcode="+result.hashCode()+", identity hashcode="+System.identityHashCode(result));
-            inputMap.put(params, result);
-         }
-      } else {
-         _log.finer("Returning cached result from "+methodName+"; hashcode="+result.hashCode()+", identity hashcode="+System.identityHashCode(result));
+   @Override
+   void readingAllVMs() {
+      readingVM(ALL);
+   }
+
+   @Override
+   void readingCluster(Object clusterId) {
+      Dependencies dependencies = _currentDependencies.get();
+      if (dependencies != null) {
+         recordDependency(dependencies._clusterIds, clusterId);
       }
+   }
 
-      return result;
+   @Override
+   void readingAllClusters() {
+      readingCluster(ALL);
    }
 
-   private Object getCachedObjectFromVmList(Class<?> methodAccessor, Object... args) {
-      DataCheck dataCheck = _dataCheckMap.get(Thread.currentThread().getName());
-      int clusterAccessCount = 0;
-      if (dataCheck != null) {
-         clusterAccessCount = dataCheck._clusterInfoMapAccessCount;
+   @Override
+   void readingIndex(Object indexKey) {
+      Dependencies dependencies = _currentDependencies.get();
+      if (dependencies != null) {
+         recordDependency(dependencies._indexKeys, indexKey);
       }
-      Object result = getCachedObjectFromList(_resultFromVmList, methodAccessor, args);
-      /* Double-check that a method purporting to only access the VMInfo map doesn't read the ClusterInfo map */
-      if ((dataCheck != null) && (clusterAccessCount != dataCheck._clusterInfoMapAccessCount)) {
-         _log.severe("Cached method claiming to only access vm data attempted to access ClusterInfo map!");
+   }
+
+   @Override
+   void updatingIndex(Object indexKey) {
+      evict(_indexDependents.get(indexKey));
+   }
+
+   private void addDependents(ConcurrentMap<Object, Set<CacheEntry>> dependents, Set<Object> ids, CacheEntry entry) {
+      for (Object id : ids) {
+         Set<CacheEntry> entries = dependents.get(id);
+         if (entries == null) {
+            Set<CacheEntry> newEntries = Collections.newSetFromMap(new ConcurrentHashMap<CacheEntry, Boolean>());
+            entries = dependents.putIfAbsent(id, newEntries);
+            if (entries == null) {
+               entries = newEntries;
+            }
+         }
+         entries.add(entry);
       }
-      return result;
    }
 
-   private Object getCachedObjectFromClusterList(Class<?> methodAccessor, Object... args) {
-      DataCheck dataCheck = _dataCheckMap.get(Thread.currentThread().getName());
-      int vmAccessCount = 0;
-      if (dataCheck != null) {
-         vmAccessCount = dataCheck._vmInfoMapAccessCount;
+   private void removeDependents(ConcurrentMap<Object, Set<CacheEntry>> dependents, Set<Object> ids, CacheEntry entry) {
+      for (Object id : ids) {
+         Set<CacheEntry> entries = dependents.get(id);
+         if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+               dependents.remove(id);
+            }
+         }
       }
-      Object result = getCachedObjectFromList(_resultFromClusterList, methodAccessor, args);
-      /* Double-check that a method purporting to only access the ClusterInfo map doesn't access the VMInfo map */
-      if ((dataCheck != null) && (vmAccessCount != dataCheck._vmInfoMapAccessCount)) {
-         _log.severe("Cached method claiming to only access cluster data attempted to access VMInfo map!");
+   }
+
+   /* Only called by the writer, so there are no readers adding entries concurrently */
+   private void evict(Set<CacheEntry> entries) {
+      if (entries == null) {
+         return;
+      }
+      for (CacheEntry entry : new ArrayList<CacheEntry>(entries)) {
+         entry._query._results.remove(entry._key, entry);
+         removeDependents(_vmDependents, entry._dependencies._vmIds, entry);
+         removeDependents(_clusterDependents, entry._dependencies._clusterIds, entry);
+         removeDependents(_indexDependents, entry._dependencies._indexKeys, entry);
       }
-      return result;
    }
 
-   /* Objects that access vm and cluster data have their own cache which is cleared whenever either changes */
-   private Object getCachedObjectFromVmAndClusterList(Class<?> methodAccessor, Object... args) {
-      return getCachedObjectFromList(_resultFromVmAndClusterList, methodAccessor, args);
+   private void evictVMDependents(String vmId) {
+      _log.finest("Evicting cached results that depend on VM <%V"+vmId);
+      evict(_vmDependents.get((vmId == null) ? NULL_KEY : vmId));
+      evict(_vmDependents.get(ALL));
    }
 
-   /* Caches a Method object representing the base method in the superclass, indexed by method signature */
-   private Method getSuperclassMethod(Class<?> methodAccessor) {
-      Method method = methodAccessor.getEnclosingMethod();
-      Method result = _methods.get(method.toString());
-      if (result == null) {
-         try {
-            Class<?>[] argsList = methodAccessor.getEnclosingMethod().getParameterTypes();
-            result = getClass().getSuperclass().getDeclaredMethod(method.getName()+BASE_METHOD_POSTIFX, argsList);
-            result.setAccessible(true);
-            _methods.put(method.toString(), result);
-         } catch (Exception e) {
-            _log.log(Level.SEVERE, "VHM: unexpected exception getting cached method - " + e.getMessage());
-            _log.log(Level.INFO, "Unexpected exception getting cached method", e);
-         }
-      }
-      return result;
+   private void evictClusterDependents(String clusterId) {
+      _log.finest("Evicting cached results that depend on cluster <%C"+clusterId);
+      evict(_clusterDependents.get((clusterId == null) ? NULL_KEY : clusterId));
+      evict(_clusterDependents.get(ALL));
    }
 }
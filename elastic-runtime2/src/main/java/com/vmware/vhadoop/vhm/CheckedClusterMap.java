@@ -0,0 +1,224 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+
+/* Handed out by CheckedClusterMapAccess in place of the locked ClusterMap, so that any use of it by a thread that doesn't hold a lock
+ *   on it is reported. This is a debugging aid, so production VHMs don't use it */
+class CheckedClusterMap implements ClusterMap {
+   private static final Logger _log = Logger.getLogger(CheckedClusterMap.class.getName());
+
+   private final ClusterMap _clusterMap;
+   private final CheckedClusterMapAccess _clusterMapAccess;
+
+   CheckedClusterMap(ClusterMap clusterMap, CheckedClusterMapAccess clusterMapAccess) {
+      _clusterMap = clusterMap;
+      _clusterMapAccess = clusterMapAccess;
+   }
+
+   ClusterMap getClusterMap() {
+      return _clusterMap;
+   }
+
+   private void checkLocked(String methodName) {
+      if (!_clusterMapAccess.isLockedByCurrentThread(this)) {
+         _log.severe("VHM: ClusterMap."+methodName+" called by "+Thread.currentThread().getName()+" without holding a lock on it");
+      }
+   }
+
+   @Override
+   public Set<String> listComputeVMsForCluster(String clusterId) {
+      checkLocked("listComputeVMsForCluster");
+      return _clusterMap.listComputeVMsForCluster(clusterId);
+   }
+
+   @Override
+   public Set<String> listComputeVMsForClusterAndPowerState(String clusterId, boolean powerState) {
+      checkLocked("listComputeVMsForClusterAndPowerState");
+      return _clusterMap.listComputeVMsForClusterAndPowerState(clusterId, powerState);
+   }
+
+   @Override
+   public Set<String> listComputeVMsForClusterHostAndPowerState(String clusterId, String hostId, boolean powerState) {
+      checkLocked("listComputeVMsForClusterHostAndPowerState");
+      return _clusterMap.listComputeVMsForClusterHostAndPowerState(clusterId, hostId, powerState);
+   }
+
+   @Override
+   public Set<String> listComputeVMsForPowerState(boolean powerState) {
+      checkLocked("listComputeVMsForPowerState");
+      return _clusterMap.listComputeVMsForPowerState(powerState);
+   }
+
+   @Override
+   public Set<String> listHostsWithComputeVMsForCluster(String clusterId) {
+      checkLocked("listHostsWithComputeVMsForCluster");
+      return _clusterMap.listHostsWithComputeVMsForCluster(clusterId);
+   }
+
+   @Override
+   public String getClusterIdForName(String clusterFolderName) {
+      checkLocked("getClusterIdForName");
+      return _clusterMap.getClusterIdForName(clusterFolderName);
+   }
+
+   @Override
+   public Map<String, String> getHostIdsForVMs(Set<String> vmsToED) {
+      checkLocked("getHostIdsForVMs");
+      return _clusterMap.getHostIdsForVMs(vmsToED);
+   }
+
+   @Override
+   public ClusterScaleCompletionEvent getLastClusterScaleCompletionEvent(String clusterId) {
+      checkLocked("getLastClusterScaleCompletionEvent");
+      return _clusterMap.getLastClusterScaleCompletionEvent(clusterId);
+   }
+
+   @Override
+   public List<ClusterScaleCompletionEvent> getClusterScaleCompletionEventsSince(String clusterId, long timeMillis) {
+      checkLocked("getClusterScaleCompletionEventsSince");
+      return _clusterMap.getClusterScaleCompletionEventsSince(clusterId, timeMillis);
+   }
+
+   @Override
+   public Boolean checkPowerStateOfVms(Set<String> vmIds, boolean expectedPowerState) {
+      checkLocked("checkPowerStateOfVms");
+      return _clusterMap.checkPowerStateOfVms(vmIds, expectedPowerState);
+   }
+
+   @Override
+   public Boolean checkPowerStateOfVm(String vmId, boolean expectedPowerState) {
+      checkLocked("checkPowerStateOfVm");
+      return _clusterMap.checkPowerStateOfVm(vmId, expectedPowerState);
+   }
+
+   @Override
+   public Set<String> getAllKnownClusterIds() {
+      checkLocked("getAllKnownClusterIds");
+      return _clusterMap.getAllKnownClusterIds();
+   }
+
+   @Override
+   public Set<String> getAllClusterIdsForScaleStrategyKey(String key) {
+      checkLocked("getAllClusterIdsForScaleStrategyKey");
+      return _clusterMap.getAllClusterIdsForScaleStrategyKey(key);
+   }
+
+   @Override
+   public HadoopClusterInfo getHadoopInfoForCluster(String clusterId) {
+      checkLocked("getHadoopInfoForCluster");
+      return _clusterMap.getHadoopInfoForCluster(clusterId);
+   }
+
+   @Override
+   public Map<String, String> getDnsNamesForVMs(Set<String> vmIds) {
+      checkLocked("getDnsNamesForVMs");
+      return _clusterMap.getDnsNamesForVMs(vmIds);
+   }
+
+   @Override
+   public String getDnsNameForVM(String vmId) {
+      checkLocked("getDnsNameForVM");
+      return _clusterMap.getDnsNameForVM(vmId);
+   }
+
+   @Override
+   public Map<String, String> getVmIdsForDnsNames(Set<String> dnsNames) {
+      checkLocked("getVmIdsForDnsNames");
+      return _clusterMap.getVmIdsForDnsNames(dnsNames);
+   }
+
+   @Override
+   public String getVmIdForDnsName(String dnsName) {
+      checkLocked("getVmIdForDnsName");
+      return _clusterMap.getVmIdForDnsName(dnsName);
+   }
+
+   @Override
+   public String getHostIdForVm(String vmId) {
+      checkLocked("getHostIdForVm");
+      return _clusterMap.getHostIdForVm(vmId);
+   }
+
+   @Override
+   public String getClusterIdForVm(String vmIds) {
+      checkLocked("getClusterIdForVm");
+      return _clusterMap.getClusterIdForVm(vmIds);
+   }
+
+   @Override
+   public String getScaleStrategyKey(String clusterId) {
+      checkLocked("getScaleStrategyKey");
+      return _clusterMap.getScaleStrategyKey(clusterId);
+   }
+
+   @Override
+   public Integer getNumVCPUsForVm(String vmId) {
+      checkLocked("getNumVCPUsForVm");
+      return _clusterMap.getNumVCPUsForVm(vmId);
+   }
+
+   @Override
+   public Long getPowerOnTimeForVm(String vmId) {
+      checkLocked("getPowerOnTimeForVm");
+      return _clusterMap.getPowerOnTimeForVm(vmId);
+   }
+
+   @Override
+   public Long getPowerOffTimeForVm(String vmId) {
+      checkLocked("getPowerOffTimeForVm");
+      return _clusterMap.getPowerOffTimeForVm(vmId);
+   }
+
+   @Override
+   public String getExtraInfo(String clusterId, String key) {
+      checkLocked("getExtraInfo");
+      return _clusterMap.getExtraInfo(clusterId, key);
+   }
+
+   @Override
+   public String getMasterVmIdForCluster(String clusterId) {
+      checkLocked("getMasterVmIdForCluster");
+      return _clusterMap.getMasterVmIdForCluster(clusterId);
+   }
+
+   @Override
+   public Map<String, Set<String>> getNicAndIpAddressesForVm(String vmId) {
+      checkLocked("getNicAndIpAddressesForVm");
+      return _clusterMap.getNicAndIpAddressesForVm(vmId);
+   }
+
+   @Override
+   public ClusterView getClusterView(String clusterId) {
+      checkLocked("getClusterView");
+      return _clusterMap.getClusterView(clusterId);
+   }
+
+   @Override
+   public <T> VMStateWatch<T> watch(VMStateCondition<T> condition) {
+      checkLocked("watch");
+      return _clusterMap.watch(condition);
+   }
+}
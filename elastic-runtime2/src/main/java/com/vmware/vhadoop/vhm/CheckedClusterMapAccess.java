@@ -0,0 +1,87 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+
+/* Debugging decorator for a WritableClusterMapAccess, selected with checkClusterMapAccess in vhm.properties and used by the tests
+ * Readers are given a CheckedClusterMap, which reports any use of it by a thread that doesn't currently hold the lock it came from */
+class CheckedClusterMapAccess implements WritableClusterMapAccess {
+   private final WritableClusterMapAccess _clusterMapAccess;
+   private final Map<Thread, CheckedClusterMap> _lockedBy = new ConcurrentHashMap<Thread, CheckedClusterMap>();
+   private final ThreadLocal<Integer> _writeDepth = new ThreadLocal<Integer>();
+
+   CheckedClusterMapAccess(WritableClusterMapAccess clusterMapAccess) {
+      _clusterMapAccess = clusterMapAccess;
+   }
+
+   /* The writer may use any ClusterMap, as nothing else can change it while it writes */
+   boolean isLockedByCurrentThread(CheckedClusterMap clusterMap) {
+      return (_writeDepth.get() != null) || (_lockedBy.get(Thread.currentThread()) == clusterMap);
+   }
+
+   /* Returns the ClusterMap wrapped by a CheckedClusterMap, or the ClusterMap itself if it isn't wrapped */
+   static ClusterMap unwrap(ClusterMap clusterMap) {
+      if (clusterMap instanceof CheckedClusterMap) {
+         return ((CheckedClusterMap)clusterMap).getClusterMap();
+      }
+      return clusterMap;
+   }
+
+   @Override
+   public ClusterMap lockClusterMap() {
+      ClusterMap clusterMap = _clusterMapAccess.lockClusterMap();
+      if (clusterMap == null) {
+         return null;
+      }
+      CheckedClusterMap result = new CheckedClusterMap(clusterMap, this);
+      _lockedBy.put(Thread.currentThread(), result);
+      return result;
+   }
+
+   @Override
+   public boolean unlockClusterMap(ClusterMap clusterMap) {
+      boolean result = _clusterMapAccess.unlockClusterMap(unwrap(clusterMap));
+      if (result) {
+         _lockedBy.remove(Thread.currentThread());
+      }
+      return result;
+   }
+
+   @Override
+   public Object runCodeInWriteLock(final Callable<Object> callable) throws Exception {
+      return _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            Integer depth = _writeDepth.get();
+            _writeDepth.set((depth == null) ? 1 : depth + 1);
+            try {
+               return callable.call();
+            } finally {
+               if (depth == null) {
+                  _writeDepth.remove();
+               } else {
+                  _writeDepth.set(depth);
+               }
+            }
+         }
+      });
+   }
+}
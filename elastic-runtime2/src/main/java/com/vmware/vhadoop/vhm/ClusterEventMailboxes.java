@@ -0,0 +1,143 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+
+/* Each cluster has its own mailbox of pending ClusterScaleEvents which is drained by a bounded pool of worker threads
+ * Events for one cluster are always handled by one thread at a time and in the order in which they were posted
+ *   but events for different clusters are handled concurrently, so a backlog for one cluster doesn't delay the others
+ * Events posted to a cluster whose mailbox is already waiting to be drained are added to the same batch
+ * A mailbox only handles one batch before going to the back of the pool's queue, so busy clusters can't starve quiet ones */
+class ClusterEventMailboxes {
+   private static final Logger _log = Logger.getLogger(ClusterEventMailboxes.class.getName());
+
+   interface ClusterEventHandler {
+      void handleClusterScaleEvents(String clusterId, Set<ClusterScaleEvent> events);
+   }
+
+   private class Mailbox implements Runnable {
+      private final String _clusterId;
+      private Set<ClusterScaleEvent> _pending;     /* Guarded by _mailboxes */
+
+      Mailbox(String clusterId) {
+         _clusterId = clusterId;
+      }
+
+      @Override
+      public void run() {
+         Set<ClusterScaleEvent> events;
+         synchronized(_mailboxes) {
+            events = _pending;
+            _pending = null;
+         }
+         try {
+            if (events != null) {
+               _handler.handleClusterScaleEvents(_clusterId, events);
+            }
+         } catch (Throwable t) {
+            _log.log(Level.SEVERE, "<%C"+_clusterId+"%C>: unexpected exception handling cluster scale events - "+t.getMessage());
+            _log.log(Level.INFO, "<%C"+_clusterId+"%C>: unexpected exception handling cluster scale events", t);
+         } finally {
+            synchronized(_mailboxes) {
+               if ((_pending == null) || !submit(this)) {
+                  /* Don't remove a different mailbox that may have been created after a stop() */
+                  if (_mailboxes.get(_clusterId) == this) {
+                     _mailboxes.remove(_clusterId);
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   private final ClusterEventHandler _handler;
+   private final int _numThreads;
+   private final Map<String, Mailbox> _mailboxes = new HashMap<String, Mailbox>();  /* Only contains mailboxes that are scheduled */
+   private ExecutorService _threadPool;                                             /* Guarded by _mailboxes */
+   private final AtomicInteger _threadCounter = new AtomicInteger();
+
+   ClusterEventMailboxes(int numThreads, ClusterEventHandler handler) {
+      _numThreads = numThreads;
+      _handler = handler;
+   }
+
+   void start() {
+      synchronized(_mailboxes) {
+         if (_threadPool == null) {
+            _threadPool = Executors.newFixedThreadPool(_numThreads, new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "Cluster_Triage_Thread_"+_threadCounter.getAndIncrement());
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+         }
+      }
+   }
+
+   /* Pending events are discarded */
+   void stop() {
+      synchronized(_mailboxes) {
+         if (_threadPool != null) {
+            _threadPool.shutdownNow();
+            _threadPool = null;
+         }
+         _mailboxes.clear();
+      }
+   }
+
+   /* Must be called with the _mailboxes lock held */
+   private boolean submit(Mailbox mailbox) {
+      if (_threadPool == null) {
+         _log.warning("<%C"+mailbox._clusterId+"%C>: discarding cluster scale events as cluster event handling has stopped");
+         return false;
+      }
+      _threadPool.execute(mailbox);
+      return true;
+   }
+
+   void post(String clusterId, Set<ClusterScaleEvent> events) {
+      synchronized(_mailboxes) {
+         Mailbox mailbox = _mailboxes.get(clusterId);
+         if (mailbox == null) {
+            mailbox = new Mailbox(clusterId);
+            mailbox._pending = new LinkedHashSet<ClusterScaleEvent>(events);    /* Preserve order */
+            if (submit(mailbox)) {
+               _mailboxes.put(clusterId, mailbox);
+            }
+         } else if (mailbox._pending == null) {
+            /* The mailbox is currently being drained and will be resubmitted once the current batch is done */
+            mailbox._pending = new LinkedHashSet<ClusterScaleEvent>(events);
+         } else {
+            _log.finer("Adding "+events.size()+" events to pending batch for cluster <%C"+clusterId);
+            mailbox._pending.addAll(events);
+         }
+      }
+   }
+}
@@ -0,0 +1,83 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.logging.Logger;
+
+/* Debug checking that ClusterMap code tests for data before each access to the VMInfo and ClusterInfo maps, and that cached methods
+ *   only access the maps they claim to. Enabled with AbstractClusterMap.enableDataChecks, so production VHMs pay nothing for it */
+class ClusterMapDataCheck {
+   private static final Logger _log = Logger.getLogger(ClusterMapDataCheck.class.getName());
+
+   /* ClusterMap has concurrent readers, so the state is kept per thread */
+   private static class ThreadState {
+      boolean _vmInfoMapChecked;
+      int _vmInfoMapAccessCount;
+      boolean _clusterInfoMapChecked;
+      int _clusterInfoMapAccessCount;
+   }
+
+   private final ThreadLocal<ThreadState> _threadState = new ThreadLocal<ThreadState>() {
+      @Override
+      protected ThreadState initialValue() {
+         return new ThreadState();
+      }
+   };
+
+   void clusterInfoMapChecked() {
+      ThreadState state = _threadState.get();
+      if (state._clusterInfoMapChecked) {
+         _log.severe("ClusterMap previously checked for clusterInfoMap without actually accessing it");
+      } else {
+         state._clusterInfoMapChecked = true;
+      }
+   }
+
+   void vmInfoMapChecked() {
+      ThreadState state = _threadState.get();
+      if (state._vmInfoMapChecked) {
+         _log.severe("ClusterMap previously checked for vmInfoMap without actually accessing it");
+      } else {
+         state._vmInfoMapChecked = true;
+      }
+   }
+
+   void clusterInfoMapAccessed() {
+      ThreadState state = _threadState.get();
+      if (!state._clusterInfoMapChecked) {
+         _log.severe("ClusterMap is accessing clusterInfoMap without checking for valid data");
+      }
+      state._clusterInfoMapChecked = false;
+      state._clusterInfoMapAccessCount++;
+   }
+
+   void vmInfoMapAccessed() {
+      ThreadState state = _threadState.get();
+      if (!state._vmInfoMapChecked) {
+         _log.severe("ClusterMap is accessing vmInfoMap without checking for valid data");
+      }
+      state._vmInfoMapChecked = false;
+      state._vmInfoMapAccessCount++;
+   }
+
+   int getClusterInfoMapAccessCount() {
+      return _threadState.get()._clusterInfoMapAccessCount;
+   }
+
+   int getVMInfoMapAccessCount() {
+      return _threadState.get()._vmInfoMapAccessCount;
+   }
+}
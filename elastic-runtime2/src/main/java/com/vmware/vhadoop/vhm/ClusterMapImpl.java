@@ -3,12 +3,12 @@ package com.vmware.vhadoop.vhm;
 import java.util.Map;
 import java.util.Set;
 
+import com.vmware.vhadoop.api.vhm.ClusterView;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 
 /* This is a non-caching implementation of ClusterMap which simply delegates directly to the base methods in BaseClusterMap
  * 
- * The reason for this delegation is that CachingClusterMapImpl invokes these Base methods using reflection, by taking the method
- * name of the currently executing method and post-fixing "Base" to them. 
+ * The reason for this delegation is that CachingClusterMapImpl wraps each of these Base methods in a cached query
  */
 public class ClusterMapImpl extends BaseClusterMap {
 
@@ -106,4 +106,9 @@ public class ClusterMapImpl extends BaseClusterMap {
       return getNicAndIpAddressesForVmBase(vmId);
    }
 
+   @Override
+   public ClusterView getClusterView(String clusterId) {
+      return getClusterViewBase(clusterId);
+   }
+
 }
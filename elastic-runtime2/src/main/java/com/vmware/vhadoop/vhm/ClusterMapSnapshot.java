@@ -0,0 +1,54 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.Set;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+
+/* An immutable copy of ClusterMap, published by SnapshotClusterMapAccess once per batch of events
+ * As nothing in it can change, results are cached for the life of the snapshot and readers never need to lock it */
+class ClusterMapSnapshot extends CachingClusterMapImpl {
+   private final long _epoch;
+
+   ClusterMapSnapshot(AbstractClusterMap source, ClusterMapSnapshot previous, long epoch) {
+      super(null);
+      _epoch = epoch;
+      populateSnapshot(source, previous);
+   }
+
+   long getEpoch() {
+      return _epoch;
+   }
+
+   @Override
+   public String handleClusterEvent(ClusterStateChangeEvent event, Set<ClusterScaleEvent> impliedScaleEventsResultSet) {
+      throw new UnsupportedOperationException("ClusterMap snapshot "+_epoch+" cannot be changed");
+   }
+
+   @Override
+   public void handleCompletionEvent(ClusterScaleCompletionEvent event) {
+      throw new UnsupportedOperationException("ClusterMap snapshot "+_epoch+" cannot be changed");
+   }
+
+   @Override
+   protected void registerScaleStrategy(ScaleStrategy strategy) {
+      throw new UnsupportedOperationException("ClusterMap snapshot "+_epoch+" cannot be changed");
+   }
+}
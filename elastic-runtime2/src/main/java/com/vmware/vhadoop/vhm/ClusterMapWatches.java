@@ -0,0 +1,234 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateCondition;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
+
+/* The watches registered on a ClusterMap through ClusterMap.watch()
+ * AbstractClusterMap reports every VM it changes. Once a batch of changes is visible to readers, the ClusterMapAccess calls evaluate()
+ *   and only the watches on the VMs that changed are re-evaluated, against the map the readers now see. A watch whose condition is met
+ *   is completed and dropped, which wakes anything waiting on it
+ * A new watch is evaluated straight away against the most recently evaluated map, so a change made before it was registered isn't missed
+ * Listeners added with whenDone() are run once the watch is done, by the thread that finished it. A watch completed by evaluate()
+ *   hands its listeners back to the ClusterMapAccess, which runs them with runListeners() once it has released its own lock
+ * THREADING: Readers register watches while the writer reports changes and evaluates them, so all access is synchronized */
+class ClusterMapWatches {
+   private static final Logger _log = Logger.getLogger(ClusterMapWatches.class.getName());
+
+   private final Map<String, Set<Watch<?>>> _watchesByVm = new HashMap<String, Set<Watch<?>>>();
+   private Set<String> _changedVmIds = new HashSet<String>();
+   private ClusterMap _lastEvaluated;
+
+   class Watch<T> implements VMStateWatch<T> {
+      private final VMStateCondition<T> _condition;
+      private final CountDownLatch _done = new CountDownLatch(1);
+      private T _result;
+      private Throwable _failure;
+      private boolean _cancelled;
+      private List<Runnable> _listeners;        /* THREADING: Guarded by this. Null once the watch is done */
+
+      Watch(VMStateCondition<T> condition) {
+         _condition = condition;
+      }
+
+      /* If the condition was met, or failed, the watch is completed and the listeners that are now due to run are returned
+       * Returns null if the watch is still waiting */
+      private List<Runnable> evaluate(ClusterMap clusterMap) {
+         try {
+            T result = _condition.evaluate(clusterMap);
+            if (result != null) {
+               return complete(result, null, false);
+            }
+            return null;
+         } catch (RuntimeException e) {
+            _log.log(Level.WARNING, "VHM: exception evaluating ClusterMap watch", e);
+            return complete(null, e, false);
+         }
+      }
+
+      /* Returns the listeners the caller must run, or null if the watch was already done */
+      private synchronized List<Runnable> complete(T result, Throwable failure, boolean cancelled) {
+         if (isDone()) {
+            return null;
+         }
+         _result = result;
+         _failure = failure;
+         _cancelled = cancelled;
+         _done.countDown();
+         List<Runnable> listeners = (_listeners != null) ? _listeners : new ArrayList<Runnable>();
+         _listeners = null;
+         return listeners;
+      }
+
+      @Override
+      public void whenDone(Runnable listener) {
+         synchronized(this) {
+            if (!isDone()) {
+               if (_listeners == null) {
+                  _listeners = new ArrayList<Runnable>();
+               }
+               _listeners.add(listener);
+               return;
+            }
+         }
+         runListener(listener);
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         List<Runnable> listeners = complete(null, null, true);
+         if (listeners != null) {
+            remove(this);
+            runListeners(listeners);
+            return true;
+         }
+         return false;
+      }
+
+      @Override
+      public synchronized boolean isCancelled() {
+         return _cancelled;
+      }
+
+      @Override
+      public boolean isDone() {
+         return _done.getCount() == 0;
+      }
+
+      @Override
+      public T get() throws InterruptedException, ExecutionException {
+         _done.await();
+         return getResult();
+      }
+
+      @Override
+      public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+         if (!_done.await(timeout, unit)) {
+            throw new TimeoutException("Condition on "+_condition.getVmIds().size()+" VMs not met in "+unit.toMillis(timeout)+"ms");
+         }
+         return getResult();
+      }
+
+      private synchronized T getResult() throws ExecutionException {
+         if (_cancelled) {
+            throw new CancellationException();
+         }
+         if (_failure != null) {
+            throw new ExecutionException(_failure);
+         }
+         return _result;
+      }
+   }
+
+   /* Called with the ClusterMap the caller has locked, which is used if nothing has yet been evaluated */
+   synchronized <T> VMStateWatch<T> register(VMStateCondition<T> condition, ClusterMap lockedClusterMap) {
+      Watch<T> watch = new Watch<T>(condition);
+      /* Nobody else has seen the watch yet, so it has no listeners to run */
+      if (watch.evaluate((_lastEvaluated != null) ? _lastEvaluated : lockedClusterMap) == null) {
+         for (String vmId : condition.getVmIds()) {
+            Set<Watch<?>> watches = _watchesByVm.get(vmId);
+            if (watches == null) {
+               watches = new HashSet<Watch<?>>();
+               _watchesByVm.put(vmId, watches);
+            }
+            watches.add(watch);
+         }
+      }
+      return watch;
+   }
+
+   private synchronized void remove(Watch<?> watch) {
+      for (String vmId : watch._condition.getVmIds()) {
+         Set<Watch<?>> watches = _watchesByVm.get(vmId);
+         if (watches != null) {
+            watches.remove(watch);
+            if (watches.isEmpty()) {
+               _watchesByVm.remove(vmId);
+            }
+         }
+      }
+   }
+
+   /* Called by the writer for every change to a VM */
+   synchronized void vmChanged(String vmId) {
+      _changedVmIds.add(vmId);
+   }
+
+   /* Called by the writer once the changes reported since the last call are visible to readers in visibleClusterMap
+    * Returns the listeners of the watches this completed. They must be passed to runListeners() once the caller holds no lock */
+   synchronized List<Runnable> evaluate(ClusterMap visibleClusterMap) {
+      _lastEvaluated = visibleClusterMap;
+      List<Runnable> listeners = new ArrayList<Runnable>();
+      Set<Watch<?>> toEvaluate = new LinkedHashSet<Watch<?>>();
+      for (String vmId : _changedVmIds) {
+         Set<Watch<?>> watches = _watchesByVm.get(vmId);
+         if (watches != null) {
+            toEvaluate.addAll(watches);
+         }
+      }
+      _changedVmIds = new HashSet<String>();
+      for (Watch<?> watch : toEvaluate) {
+         List<Runnable> completed = watch.evaluate(visibleClusterMap);
+         if (completed != null) {
+            remove(watch);
+            listeners.addAll(completed);
+         }
+      }
+      if (!toEvaluate.isEmpty()) {
+         _log.finest("Evaluated "+toEvaluate.size()+" ClusterMap watches");
+      }
+      return listeners;
+   }
+
+   static void runListeners(List<Runnable> listeners) {
+      for (Runnable listener : listeners) {
+         runListener(listener);
+      }
+   }
+
+   private static void runListener(Runnable listener) {
+      try {
+         listener.run();
+      } catch (RuntimeException e) {
+         _log.log(Level.WARNING, "VHM: exception running ClusterMap watch listener", e);
+      }
+   }
+
+   synchronized int size() {
+      Set<Watch<?>> all = new HashSet<Watch<?>>();
+      for (Set<Watch<?>> watches : _watchesByVm.values()) {
+         all.addAll(watches);
+      }
+      return all.size();
+   }
+}
@@ -16,7 +16,9 @@
 package com.vmware.vhadoop.vhm;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,7 +43,7 @@ import com.vmware.vhadoop.vhm.events.VmRemovedFromClusterEvent;
 import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
 import com.vmware.vhadoop.vhm.vc.VcVlsi;
 
-public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader implements EventProducer {
+public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader implements EventProducer, EventProducer.QueueFullPolicyAware {
    private static final Logger _log = Logger.getLogger(ClusterStateChangeListenerImpl.class.getName());
 
    private final int backoffPeriodMS = 5000;
@@ -50,7 +52,9 @@ public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader imp
    private final VCActions _vcActions;
    private final String _serengetiFolderName;
    private volatile boolean _started;
+   private final Object _backoffLock = new Object();     /* Allows stop() to cut short the backoff after a lost connection */
    private final HashMap<String, VmCreatedData> _interimVMData;
+   private Set<String> _recoveredVmIds;      /* VMs recovered from the event journal which vCenter has yet to confirm */
    private Thread _mainThread;
 
    private final long _startTime = System.currentTimeMillis();
@@ -108,11 +112,42 @@ public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader imp
       _interimVMData = new HashMap<String, VmCreatedData>();
    }
 
+   /* VMs recovered from the event journal are already in ClusterMap, so any data vCenter sends about them is an update
+    * Must be called before the listener is started */
+   public void seedRecoveredVms(Set<String> vmIds) {
+      _recoveredVmIds = new HashSet<String>(vmIds);
+      for (String vmId : vmIds) {
+         _interimVMData.put(vmId, new VmCreatedData());
+      }
+   }
+
+   /* The first update from vCenter contains every VM in the folder, so any recovered VM it doesn't mention has gone
+    * The update may be empty if the folder is empty or doesn't exist, in which case all of them have gone */
+   private void reconcileRecoveredVms(List<VMEventData> vmDataList) {
+      for (VMEventData vmData : vmDataList) {
+         if (!vmData._isLeaving) {
+            _recoveredVmIds.remove(vmData._vmMoRef);
+         }
+      }
+      for (String vmId : _recoveredVmIds) {
+         _log.info("VM <%V"+vmId+"%V> recovered from the event journal no longer exists in vCenter");
+         _interimVMData.remove(vmId);
+         _eventConsumer.placeEventOnQueue(new VmRemovedFromClusterEvent(vmId));
+      }
+      _recoveredVmIds = null;
+   }
+
    @Override
    public void registerEventConsumer(EventConsumer consumer) {
       _eventConsumer = consumer;
    }
 
+   /* Updates are merged into pending events where possible. Otherwise, holding back vCenter is better than exhausting the heap */
+   @Override
+   public QueueFullPolicy getQueueFullPolicy() {
+      return QueueFullPolicy.BLOCK;
+   }
+
    @Override
    public void start(final EventProducerStartStopCallback startStopCallback) {
       _started = true;
@@ -149,7 +184,11 @@ public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader imp
          if (_started) {
             try {
                _log.log(VhmLevel.USER, "VHM: temporarily lost connection to vCenter");
-               Thread.sleep(backoffPeriodMS);
+               synchronized(_backoffLock) {
+                  if (_started) {
+                     _backoffLock.wait(backoffPeriodMS);
+                  }
+               }
             } catch (InterruptedException e) {
                _log.warning("VHM: unexpectedly interrupted waiting for updates from vCenter");
             }
@@ -163,6 +202,9 @@ public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader imp
                _eventConsumer.placeEventOnQueue(csce);
             }
          }
+         if (_recoveredVmIds != null) {
+            reconcileRecoveredVms(vmDataList);
+         }
       }
    }
 
@@ -426,6 +468,9 @@ public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader imp
    @Override
    public void stop() {
       _started = false;
+      synchronized(_backoffLock) {
+         _backoffLock.notifyAll();
+      }
       _vcActions.interruptWait();
       /* TODO: Need to implement a cleanup on the PropertyFilter being used in waitForUpdates */
    }
@@ -0,0 +1,313 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+
+/* Holds scale events for a cluster that can't be handled yet, rather than putting them straight back on the event queue
+ * Deferred events are put back on the queue as soon as the condition blocking them may have changed, or failing that
+ *   once their not-before time expires. The delay doubles for each consecutive deferral for the same cluster, up to a
+ *   maximum, and is reset once events for the cluster are successfully handled
+ * A release sequence number is kept for each cluster so that a release which races with a deferral isn't missed
+ *   A cluster's state is only kept while there's something to remember, so the sequence numbers are taken from a count
+ *   of all releases, which ensures that a release can't be missed by a state being dropped and then recreated
+ * The time since which a cluster has been found incomplete is also kept here rather than in ClusterMap,
+ *   as it is tested by the triage threads, which may only read ClusterMap */
+class DeferredEventQueue {
+   private static final Logger _log = Logger.getLogger(DeferredEventQueue.class.getName());
+
+   enum BlockingCondition {
+      CLUSTER_INCOMPLETE,        /* Released by a change to the cluster's state */
+      SCALE_IN_PROGRESS,         /* Released by a scale completion event for the cluster */
+      WAITING_FOR_MANUAL         /* Released by either */
+   }
+
+   private static final Set<BlockingCondition> RELEASED_BY_STATE_CHANGE =
+         EnumSet.of(BlockingCondition.CLUSTER_INCOMPLETE, BlockingCondition.WAITING_FOR_MANUAL);
+   private static final Set<BlockingCondition> RELEASED_BY_COMPLETION =
+         EnumSet.of(BlockingCondition.SCALE_IN_PROGRESS, BlockingCondition.WAITING_FOR_MANUAL);
+
+   private class DeferredBatch implements Delayed {
+      private final String _clusterId;
+      private final long _notBeforeNanos;
+      private final Set<ClusterScaleEvent> _events = new LinkedHashSet<ClusterScaleEvent>();     /* Preserve order */
+      private final Set<BlockingCondition> _conditions = EnumSet.noneOf(BlockingCondition.class);
+
+      DeferredBatch(String clusterId, long delayMillis) {
+         _clusterId = clusterId;
+         _notBeforeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+      }
+
+      @Override
+      public long getDelay(TimeUnit unit) {
+         return unit.convert(_notBeforeNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+
+      @Override
+      public int compareTo(Delayed other) {
+         long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+         return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+      }
+   }
+
+   private class ClusterDeferralState {
+      private long _releaseSequence;
+      private long _nextDelayMillis;
+      private DeferredBatch _batch;
+      private Long _incompleteSince;
+   }
+
+   private final EventConsumer _consumer;
+   private final long _initialDelayMillis;
+   private final long _maxDelayMillis;
+   private final DelayQueue<DeferredBatch> _delayQueue = new DelayQueue<DeferredBatch>();
+   private final Map<String, ClusterDeferralState> _clusterStates = new HashMap<String, ClusterDeferralState>();
+   private long _releaseCount;                  /* Guarded by _clusterStates */
+   private Thread _releaseThread;
+   private volatile boolean _started;
+
+   DeferredEventQueue(EventConsumer consumer, long initialDelayMillis, long maxDelayMillis) {
+      _consumer = consumer;
+      _initialDelayMillis = initialDelayMillis;
+      _maxDelayMillis = maxDelayMillis;
+   }
+
+   /* Must be called with the _clusterStates lock held */
+   private ClusterDeferralState getClusterState(String clusterId) {
+      ClusterDeferralState result = _clusterStates.get(clusterId);
+      if (result == null) {
+         result = new ClusterDeferralState();
+         result._releaseSequence = _releaseCount;
+         result._nextDelayMillis = _initialDelayMillis;
+         _clusterStates.put(clusterId, result);
+      }
+      return result;
+   }
+
+   /* Must be called with the _clusterStates lock held */
+   private void removeIfIdle(String clusterId, ClusterDeferralState state) {
+      if ((state._batch == null) && (state._incompleteSince == null) && (state._nextDelayMillis == _initialDelayMillis)) {
+         _clusterStates.remove(clusterId);
+      }
+   }
+
+   /* Should be read before testing the blocking condition and then passed to defer() */
+   long getReleaseSequence(String clusterId) {
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = _clusterStates.get(clusterId);
+         return (state == null) ? _releaseCount : state._releaseSequence;
+      }
+   }
+
+   void defer(String clusterId, BlockingCondition condition, Collection<? extends ClusterScaleEvent> events, long releaseSequence) {
+      if (events.isEmpty()) {
+         return;
+      }
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = getClusterState(clusterId);
+         if (state._releaseSequence != releaseSequence) {
+            /* The blocking condition may have changed since it was tested */
+            _log.fine("Blocking condition changed for cluster <%C"+clusterId+"%C>. Putting events straight back on queue");
+            removeIfIdle(clusterId, state);
+            _consumer.placeEventCollectionOnQueue(new ArrayList<ClusterScaleEvent>(events));
+            return;
+         }
+         if (state._batch == null) {
+            state._batch = new DeferredBatch(clusterId, state._nextDelayMillis);
+            _log.fine("Deferring "+events.size()+" event(s) for cluster <%C"+clusterId+"%C> for up to "+state._nextDelayMillis+"ms");
+            state._nextDelayMillis = Math.min(state._nextDelayMillis * 2, _maxDelayMillis);
+            _delayQueue.add(state._batch);
+         }
+         state._batch._events.addAll(events);
+         state._batch._conditions.add(condition);
+      }
+   }
+
+   /* Records that the cluster has been found incomplete. Returns false once it has been incomplete for longer than graceTimeMillis */
+   boolean isWithinIncompleteGracePeriod(String clusterId, long graceTimeMillis) {
+      long currentTime = System.currentTimeMillis();
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = getClusterState(clusterId);
+         if (state._incompleteSince == null) {
+            state._incompleteSince = currentTime;
+         }
+         return (state._incompleteSince > (currentTime - graceTimeMillis));
+      }
+   }
+
+   /* Records that the cluster has been found complete */
+   void resetIncompleteTime(String clusterId) {
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = _clusterStates.get(clusterId);
+         if (state != null) {
+            state._incompleteSince = null;
+            removeIfIdle(clusterId, state);
+         }
+      }
+   }
+
+   /* The delay that the next batch deferred for the cluster will be given */
+   long getNextDelayMillis(String clusterId) {
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = _clusterStates.get(clusterId);
+         return (state == null) ? _initialDelayMillis : state._nextDelayMillis;
+      }
+   }
+
+   /* Called once events for a cluster have been successfully handled */
+   void resetBackoff(String clusterId) {
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = _clusterStates.get(clusterId);
+         if (state != null) {
+            state._nextDelayMillis = _initialDelayMillis;
+            removeIfIdle(clusterId, state);
+         }
+      }
+   }
+
+   private void release(String clusterId, Set<BlockingCondition> conditions, String reason) {
+      List<ClusterScaleEvent> toRelease = null;
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = _clusterStates.get(clusterId);
+         _releaseCount++;
+         if (state != null) {
+            state._releaseSequence = _releaseCount;
+            if ((state._batch != null) && containsAny(state._batch._conditions, conditions)) {
+               toRelease = takeBatch(state);
+            }
+            removeIfIdle(clusterId, state);
+         }
+      }
+      if (toRelease != null) {
+         _log.fine("Releasing "+toRelease.size()+" deferred event(s) for cluster <%C"+clusterId+"%C> due to "+reason);
+         _consumer.placeEventCollectionOnQueue(toRelease);
+      }
+   }
+
+   private boolean containsAny(Set<BlockingCondition> set, Set<BlockingCondition> toFind) {
+      for (BlockingCondition condition : toFind) {
+         if (set.contains(condition)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /* Must be called with the _clusterStates lock held */
+   private List<ClusterScaleEvent> takeBatch(ClusterDeferralState state) {
+      DeferredBatch batch = state._batch;
+      state._batch = null;
+      _delayQueue.remove(batch);
+      return new ArrayList<ClusterScaleEvent>(batch._events);
+   }
+
+   /* Removes and returns any events currently deferred for the cluster, so that they can be handled along with new events */
+   List<ClusterScaleEvent> takeDeferred(String clusterId) {
+      synchronized(_clusterStates) {
+         ClusterDeferralState state = _clusterStates.get(clusterId);
+         if ((state == null) || (state._batch == null)) {
+            return null;
+         }
+         List<ClusterScaleEvent> result = takeBatch(state);
+         removeIfIdle(clusterId, state);
+         return result;
+      }
+   }
+
+   void releaseOnClusterStateChange(String clusterId) {
+      release(clusterId, RELEASED_BY_STATE_CHANGE, "cluster state change");
+   }
+
+   void releaseOnScaleCompletion(String clusterId) {
+      release(clusterId, RELEASED_BY_COMPLETION, "scale completion");
+   }
+
+   /* Anything still deferred for a cluster that has been removed from ClusterMap is put back on the queue for triage to drop */
+   void releaseOnClusterRemoval(String clusterId) {
+      release(clusterId, EnumSet.allOf(BlockingCondition.class), "cluster removal");
+      synchronized(_clusterStates) {
+         _clusterStates.remove(clusterId);
+      }
+   }
+
+   int getNumClusterStates() {
+      synchronized(_clusterStates) {
+         return _clusterStates.size();
+      }
+   }
+
+   void start() {
+      _started = true;
+      _releaseThread = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            while (_started) {
+               try {
+                  DeferredBatch expired = _delayQueue.take();
+                  List<ClusterScaleEvent> toRelease = null;
+                  synchronized(_clusterStates) {
+                     ClusterDeferralState state = _clusterStates.get(expired._clusterId);
+                     if ((state != null) && (state._batch == expired)) {
+                        toRelease = takeBatch(state);
+                        removeIfIdle(expired._clusterId, state);
+                     }
+                  }
+                  if (toRelease != null) {
+                     _log.fine("Releasing "+toRelease.size()+" deferred event(s) for cluster <%C"+expired._clusterId+"%C> after delay");
+                     _consumer.placeEventCollectionOnQueue(toRelease);
+                  }
+               } catch (InterruptedException e) {
+                  if (_started) {
+                     _log.warning("VHM: deferred event release thread interrupted unexpectedly");
+                  }
+               } catch (Throwable t) {
+                  _log.log(Level.SEVERE, "VHM: unexpected exception releasing deferred events - "+t.getMessage());
+                  _log.log(Level.INFO, "VHM: unexpected exception releasing deferred events", t);
+               }
+            }
+         }
+      }, "Deferred_Event_Release_Thread");
+      _releaseThread.setDaemon(true);
+      _releaseThread.start();
+   }
+
+   /* Deferred events are discarded */
+   void stop() {
+      _started = false;
+      if (_releaseThread != null) {
+         _releaseThread.interrupt();
+      }
+      synchronized(_clusterStates) {
+         _clusterStates.clear();
+         _delayQueue.clear();
+      }
+   }
+}
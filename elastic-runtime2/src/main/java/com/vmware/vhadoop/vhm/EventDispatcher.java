@@ -0,0 +1,188 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+
+/* Dispatches a batch of events through a fixed sequence of stages
+ * Each event is classified exactly once into every EventBuffer registered for its type. The buffers are retained and
+ *   cleared between batches, so dispatching allocates very little. Stages run in the order in which they are registered
+ *   and may classify further events (eg. requeued or injected events) which will then be visible to later stages
+ * Events are de-duplicated across the whole batch, so an event equal to one already seen is ignored
+ * A RuntimeException thrown by a stage is logged and the remaining stages still run, so one faulty stage can't stop
+ *   the others from seeing the batch
+ * This class is not thread-safe and is expected to be driven by the VHM main thread */
+class EventDispatcher {
+   private static final Logger _log = Logger.getLogger(EventDispatcher.class.getName());
+
+   /* A reusable buffer of events which are instances of any of the accepted types */
+   static class EventBuffer<T extends NotificationEvent> {
+      private final Class<T> _bufferType;
+      private final Class<?>[] _acceptedTypes;
+      private final List<T> _events = new ArrayList<T>();
+
+      private EventBuffer(Class<T> bufferType, Class<?>[] acceptedTypes) {
+         _bufferType = bufferType;
+         _acceptedTypes = acceptedTypes;
+      }
+
+      private boolean accepts(Class<?> eventType) {
+         for (Class<?> acceptedType : _acceptedTypes) {
+            if (acceptedType.isAssignableFrom(eventType)) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      private void add(NotificationEvent event) {
+         _events.add(_bufferType.cast(event));
+      }
+
+      /* The returned list is only valid for the duration of the current dispatch */
+      List<T> getEvents() {
+         return _events;
+      }
+
+      int size() {
+         return _events.size();
+      }
+   }
+
+   interface EventStage {
+      void handleEvents(EventDispatcher dispatcher);
+   }
+
+   private static class StageTiming {
+      private long _totalNanos;
+      private long _maxNanos;
+      private long _invocations;
+   }
+
+   private final List<EventBuffer<?>> _buffers = new ArrayList<EventBuffer<?>>();
+   private final Map<String, EventStage> _stages = new LinkedHashMap<String, EventStage>();
+   private final Map<String, StageTiming> _stageTimings = new HashMap<String, StageTiming>();
+
+   /* Resolved once per concrete event class to avoid repeated type checks */
+   private final Map<Class<?>, EventBuffer<?>[]> _buffersForEventType = new HashMap<Class<?>, EventBuffer<?>[]>();
+   private final Set<NotificationEvent> _eventsSeen = new HashSet<NotificationEvent>();
+
+   /* Buffers must all be registered before the first dispatch */
+   <T extends NotificationEvent> EventBuffer<T> registerBuffer(Class<T> bufferType, Class<?>... acceptedTypes) {
+      for (Class<?> acceptedType : acceptedTypes) {
+         if (!bufferType.isAssignableFrom(acceptedType)) {
+            throw new IllegalArgumentException(acceptedType.getName()+" is not a "+bufferType.getName());
+         }
+      }
+      EventBuffer<T> result = new EventBuffer<T>(bufferType, acceptedTypes);
+      _buffers.add(result);
+      _buffersForEventType.clear();
+      return result;
+   }
+
+   void registerStage(String name, EventStage stage) {
+      _stages.put(name, stage);
+      _stageTimings.put(name, new StageTiming());
+   }
+
+   private EventBuffer<?>[] getBuffersForEventType(Class<?> eventType) {
+      EventBuffer<?>[] result = _buffersForEventType.get(eventType);
+      if (result == null) {
+         List<EventBuffer<?>> matching = new ArrayList<EventBuffer<?>>();
+         for (EventBuffer<?> buffer : _buffers) {
+            if (buffer.accepts(eventType)) {
+               matching.add(buffer);
+            }
+         }
+         result = matching.toArray(new EventBuffer<?>[matching.size()]);
+         _buffersForEventType.put(eventType, result);
+      }
+      return result;
+   }
+
+   /* Returns false if the event has already been classified in this batch */
+   boolean classify(NotificationEvent event) {
+      if ((event == null) || !_eventsSeen.add(event)) {
+         return false;
+      }
+      for (EventBuffer<?> buffer : getBuffersForEventType(event.getClass())) {
+         buffer.add(event);
+      }
+      return true;
+   }
+
+   void classifyAll(Collection<? extends NotificationEvent> events) {
+      for (NotificationEvent event : events) {
+         classify(event);
+      }
+   }
+
+   void dispatch(Collection<? extends NotificationEvent> events) {
+      try {
+         classifyAll(events);
+         StringBuilder timings = _log.isLoggable(Level.FINE) ? new StringBuilder() : null;
+         for (Map.Entry<String, EventStage> stage : _stages.entrySet()) {
+            long startTime = System.nanoTime();
+            try {
+               stage.getValue().handleEvents(this);
+            } catch (RuntimeException e) {
+               _log.log(Level.WARNING, "VHM: exception in event stage "+stage.getKey()+" - "+e.getMessage(), e);
+            } finally {
+               long elapsed = System.nanoTime() - startTime;
+               StageTiming timing = _stageTimings.get(stage.getKey());
+               timing._totalNanos += elapsed;
+               timing._maxNanos = Math.max(timing._maxNanos, elapsed);
+               timing._invocations++;
+               if (timings != null) {
+                  timings.append(" ").append(stage.getKey()).append("=").append(elapsed / 1000).append("us");
+               }
+            }
+         }
+         if (timings != null) {
+            _log.fine("Dispatched batch of "+events.size()+" events:"+timings);
+         }
+      } finally {
+         for (EventBuffer<?> buffer : _buffers) {
+            buffer._events.clear();
+         }
+         _eventsSeen.clear();
+      }
+   }
+
+   /* Cumulative timings for each stage since this dispatcher was created */
+   String getStageStatistics() {
+      StringBuilder result = new StringBuilder();
+      for (String stageName : _stages.keySet()) {
+         StageTiming timing = _stageTimings.get(stageName);
+         long averageMicros = (timing._invocations == 0) ? 0 : (timing._totalNanos / timing._invocations) / 1000;
+         result.append(stageName).append("{invocations=").append(timing._invocations)
+               .append(", averageMicros=").append(averageMicros)
+               .append(", maxMicros=").append(timing._maxNanos / 1000).append("} ");
+      }
+      return result.toString().trim();
+   }
+}
@@ -0,0 +1,246 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.EventInjector;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.events.SubscribingEventInjector;
+
+/* Fans a batch of events out to the registered EventInjectors, each of which only sees the event types it subscribes to
+ * Each injector has its own thread, so injectors run concurrently with each other but an individual injector is
+ *   only ever invoked by one thread and sees events in batch order
+ * The events injected are merged and returned in injector registration order. An injector that takes longer than the
+ *   maximum wait doesn't hold up the batch - its events are placed on the event queue whenever it does finish */
+class EventInjectorFanout {
+   private static final Logger _log = Logger.getLogger(EventInjectorFanout.class.getName());
+
+   private class Subscriber {
+      private final EventInjector _injector;
+      private final Class<?>[] _subscribedTypes;      /* Null if subscribed to all events */
+      private ExecutorService _executor;              /* Guarded by EventInjectorFanout.this */
+
+      Subscriber(EventInjector injector) {
+         _injector = injector;
+         Set<Class<? extends NotificationEvent>> subscribedTypes = null;
+         if (injector instanceof SubscribingEventInjector) {
+            subscribedTypes = ((SubscribingEventInjector)injector).getSubscribedEventTypes();
+         }
+         _subscribedTypes = (subscribedTypes == null) ? null : subscribedTypes.toArray(new Class<?>[subscribedTypes.size()]);
+      }
+
+      private boolean isSubscribedTo(Class<?> eventType) {
+         if (_subscribedTypes == null) {
+            return true;
+         }
+         for (Class<?> subscribedType : _subscribedTypes) {
+            if (subscribedType.isAssignableFrom(eventType)) {
+               return true;
+            }
+         }
+         return false;
+      }
+   }
+
+   private class InjectionTask implements Runnable {
+      private final Subscriber _subscriber;
+      private final List<NotificationEvent> _events = new ArrayList<NotificationEvent>();
+      private final List<NotificationEvent> _injectedEvents = new ArrayList<NotificationEvent>();
+      private boolean _done;              /* Guarded by this */
+      private boolean _abandoned;         /* Guarded by this */
+
+      InjectionTask(Subscriber subscriber) {
+         _subscriber = subscriber;
+      }
+
+      @Override
+      public void run() {
+         EventInjector injector = _subscriber._injector;
+         for (NotificationEvent event : _events) {
+            try {
+               Set<? extends NotificationEvent> newEvents = injector.processEvent(event);
+               if (newEvents != null) {
+                  for (NotificationEvent injectedEvent : newEvents) {
+                     _log.info(injector.getName()+" injecting new event "+injectedEvent+" in response to event "+event);
+                  }
+                  _injectedEvents.addAll(newEvents);
+               }
+            } catch (Throwable t) {
+               _log.log(Level.SEVERE, "VHM: unexpected exception in event injector "+injector.getName()+" - "+t.getMessage());
+               _log.log(Level.INFO, "VHM: unexpected exception in event injector "+injector.getName(), t);
+            }
+         }
+         boolean late;
+         synchronized(this) {
+            _done = true;
+            late = _abandoned;
+            notifyAll();
+         }
+         if (late && !_injectedEvents.isEmpty()) {
+            _log.info(injector.getName()+" finished late. Placing "+_injectedEvents.size()+" injected event(s) on queue");
+            _lateEventConsumer.placeEventCollectionOnQueue(_injectedEvents);
+         }
+      }
+
+      /* Returns false and abandons the task if it is not done by the deadline */
+      synchronized boolean awaitDone(long deadline) {
+         long timeLeft;
+         while (!_done && ((timeLeft = deadline - System.currentTimeMillis()) > 0)) {
+            try {
+               wait(timeLeft);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+         if (!_done) {
+            _abandoned = true;
+         }
+         return _done;
+      }
+   }
+
+   private final EventConsumer _lateEventConsumer;
+   private final long _maxWaitMillis;
+   private final List<Subscriber> _subscribers = new ArrayList<Subscriber>();
+   private final Map<Class<?>, List<Subscriber>> _subscribersForEventType = new HashMap<Class<?>, List<Subscriber>>();
+   private boolean _stopped;
+   private static int _threadCounter = 0;
+
+   EventInjectorFanout(EventConsumer lateEventConsumer, long maxWaitMillis) {
+      _lateEventConsumer = lateEventConsumer;
+      _maxWaitMillis = maxWaitMillis;
+   }
+
+   synchronized void register(EventInjector injector) {
+      for (Subscriber subscriber : _subscribers) {
+         if (subscriber._injector.equals(injector)) {
+            return;
+         }
+      }
+      _subscribers.add(new Subscriber(injector));
+      _subscribersForEventType.clear();
+   }
+
+   synchronized boolean isEmpty() {
+      return _subscribers.isEmpty();
+   }
+
+   /* Must be called with the lock held */
+   private List<Subscriber> getSubscribersForEventType(Class<?> eventType) {
+      List<Subscriber> result = _subscribersForEventType.get(eventType);
+      if (result == null) {
+         result = new ArrayList<Subscriber>();
+         for (Subscriber subscriber : _subscribers) {
+            if (subscriber.isSubscribedTo(eventType)) {
+               result.add(subscriber);
+            }
+         }
+         _subscribersForEventType.put(eventType, result);
+      }
+      return result;
+   }
+
+   /* Must be called with the lock held */
+   private boolean submit(InjectionTask task) {
+      final Subscriber subscriber = task._subscriber;
+      if (_stopped) {
+         return false;
+      }
+      if (subscriber._executor == null) {
+         subscriber._executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Event_Injector_Thread_"+(_threadCounter++)+"_"+subscriber._injector.getName());
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      try {
+         subscriber._executor.execute(task);
+         return true;
+      } catch (RejectedExecutionException e) {
+         return false;
+      }
+   }
+
+   /* Returns the events injected in response to the events given */
+   List<NotificationEvent> injectEvents(List<? extends NotificationEvent> events) {
+      List<InjectionTask> tasks = new ArrayList<InjectionTask>();
+      synchronized(this) {
+         Map<Subscriber, InjectionTask> tasksBySubscriber = new HashMap<Subscriber, InjectionTask>();
+         for (NotificationEvent event : events) {
+            for (Subscriber subscriber : getSubscribersForEventType(event.getClass())) {
+               InjectionTask task = tasksBySubscriber.get(subscriber);
+               if (task == null) {
+                  task = new InjectionTask(subscriber);
+                  tasksBySubscriber.put(subscriber, task);
+               }
+               task._events.add(event);
+            }
+         }
+         /* Submit in registration order */
+         for (Subscriber subscriber : _subscribers) {
+            InjectionTask task = tasksBySubscriber.get(subscriber);
+            if ((task != null) && submit(task)) {
+               tasks.add(task);
+            }
+         }
+      }
+      if (tasks.isEmpty()) {
+         return Collections.emptyList();
+      }
+      List<NotificationEvent> result = new ArrayList<NotificationEvent>();
+      long deadline = System.currentTimeMillis() + _maxWaitMillis;
+      for (InjectionTask task : tasks) {
+         if (task.awaitDone(deadline)) {
+            result.addAll(task._injectedEvents);
+         } else {
+            _log.warning("VHM: event injector "+task._subscriber._injector.getName()+" did not complete within "+_maxWaitMillis+"ms");
+         }
+      }
+      return result;
+   }
+
+   synchronized void start() {
+      _stopped = false;
+   }
+
+   /* Injections in progress are allowed to complete */
+   synchronized void stop() {
+      _stopped = true;
+      for (Subscriber subscriber : _subscribers) {
+         if (subscriber._executor != null) {
+            subscriber._executor.shutdown();
+            subscriber._executor = null;
+         }
+      }
+   }
+}
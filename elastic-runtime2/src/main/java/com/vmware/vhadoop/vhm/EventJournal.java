@@ -0,0 +1,568 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterConstantData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterVariableData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMConstantData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VmType;
+import com.vmware.vhadoop.vhm.events.ClusterUpdateEvent;
+import com.vmware.vhadoop.vhm.events.MasterVmUpdateEvent;
+import com.vmware.vhadoop.vhm.events.NewMasterVMEvent;
+import com.vmware.vhadoop.vhm.events.NewVmEvent;
+import com.vmware.vhadoop.vhm.events.VmRemovedFromClusterEvent;
+import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
+
+/* Append-only journal of the ClusterStateChangeEvents accepted by VHM, allowing ClusterMap to be rebuilt on restart
+ * Events are appended to numbered segment files which are rotated once they reach a maximum size. Each record is
+ *   length-prefixed and checksummed, so a record torn by a crash is detected and replay stops there
+ * The journal also keeps a compacted view of its contents: one NewVmEvent for each VM, with all subsequent updates
+ *   folded into it. Every few rotations this is written out as a checkpoint and the segments it covers are deleted,
+ *   so replay only ever reads one checkpoint plus a bounded number of segments
+ * A checkpoint named N contains everything in the segments before N. It is written to a temporary file first and
+ *   renamed, so either the old or the new checkpoint is always complete
+ * Only events that change ClusterMap state are journaled. This class is thread-safe
+ * Scale instructions are not journaled. A SerengetiLimitInstruction that is queued or in progress when VHM stops is lost,
+ *   along with the reply Serengeti is waiting for, and has to be reissued. Replaying one would need its reply channel to
+ *   Serengeti to be rebuilt after restart */
+class EventJournal {
+   private static final Logger _log = Logger.getLogger(EventJournal.class.getName());
+
+   private static final String SEGMENT_PREFIX = "segment-";
+   private static final String SEGMENT_SUFFIX = ".journal";
+   private static final String CHECKPOINT_PREFIX = "checkpoint-";
+   private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+   private static final String TEMP_SUFFIX = ".tmp";
+   private static final int CHECKPOINT_MAGIC = 0x56484d43;
+
+   /* Record types */
+   private static final byte NEW_VM = 1;
+   private static final byte NEW_MASTER_VM = 2;
+   private static final byte VM_UPDATE = 3;
+   private static final byte MASTER_VM_UPDATE = 4;
+   private static final byte CLUSTER_UPDATE = 5;
+   private static final byte VM_REMOVED = 6;
+
+   private final File _directory;
+   private final long _maxSegmentBytes;
+   private final int _segmentsPerCheckpoint;
+
+   /* The compacted state: only ever contains NewVmEvents and NewMasterVMEvents, in the order the VMs were added */
+   private final Map<String, NewVmEvent> _compacted = new LinkedHashMap<String, NewVmEvent>();
+   private long _segmentNumber;
+   private long _checkpointNumber;
+   private DataOutputStream _segmentStream;
+   private FileOutputStream _segmentFile;
+   private long _segmentBytes;
+   private boolean _failed;
+
+   EventJournal(File directory, long maxSegmentBytes, int segmentsPerCheckpoint) {
+      _directory = directory;
+      _maxSegmentBytes = maxSegmentBytes;
+      _segmentsPerCheckpoint = Math.max(1, segmentsPerCheckpoint);
+   }
+
+   /* ClusterScaleEvents, including scale instructions, are deliberately excluded - see above */
+   static boolean isJournaled(Object event) {
+      return (event instanceof ClusterStateChangeEvent);
+   }
+
+   /* Replays the checkpoint and segments into the compacted state, writes a fresh checkpoint and opens a new segment
+    * Returns the events that rebuild ClusterMap, in the order they should be applied */
+   synchronized List<ClusterStateChangeEvent> recover() throws IOException {
+      if (!_directory.isDirectory() && !_directory.mkdirs()) {
+         throw new IOException("Unable to create journal directory "+_directory);
+      }
+      _compacted.clear();
+      TreeMap<Long, File> checkpoints = listFiles(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+      TreeMap<Long, File> segments = listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+      long firstSegment = 0;
+      if (!checkpoints.isEmpty()) {
+         Map.Entry<Long, File> latest = checkpoints.lastEntry();
+         readCheckpoint(latest.getValue());
+         firstSegment = latest.getKey();
+      }
+      int numReplayed = 0;
+      for (Map.Entry<Long, File> segment : segments.tailMap(firstSegment).entrySet()) {
+         numReplayed += replaySegment(segment.getValue());
+      }
+      _log.info("Recovered "+_compacted.size()+" VMs from event journal in "+_directory+" after replaying "+numReplayed+" journaled events");
+
+      long lastSegment = segments.isEmpty() ? firstSegment : Math.max(firstSegment, segments.lastKey() + 1);
+      _segmentNumber = lastSegment;
+      writeCheckpoint();
+      openSegment();
+      return new ArrayList<ClusterStateChangeEvent>(_compacted.values());
+   }
+
+   /* Returns the IDs of the VMs currently known to the journal */
+   synchronized Set<String> getKnownVmIds() {
+      return new HashSet<String>(_compacted.keySet());
+   }
+
+   /* Write-ahead: the event is journaled before it is placed on the event queue. Failure disables the journal
+    *   rather than VHM, since vCenter remains the source of truth */
+   synchronized void append(ClusterStateChangeEvent event) {
+      if (_failed || (_segmentStream == null)) {
+         return;
+      }
+      try {
+         byte[] record = encode(event);
+         if (record == null) {
+            return;
+         }
+         writeRecord(_segmentStream, record);
+         _segmentStream.flush();
+         _segmentBytes += record.length + 12;
+         fold(event);
+         if (_segmentBytes >= _maxSegmentBytes) {
+            rotate();
+         }
+      } catch (IOException e) {
+         _failed = true;
+         _log.log(Level.WARNING, "VHM: unable to write event journal, journaling disabled - "+e.getMessage());
+         closeSegment();
+      }
+   }
+
+   synchronized void close() {
+      closeSegment();
+   }
+
+   private TreeMap<Long, File> listFiles(String prefix, String suffix) {
+      TreeMap<Long, File> result = new TreeMap<Long, File>();
+      File[] files = _directory.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+               try {
+                  result.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+               } catch (NumberFormatException e) {
+                  _log.fine("Ignoring unexpected file in journal directory: "+name);
+               }
+            }
+         }
+      }
+      return result;
+   }
+
+   private File getFile(String prefix, long number, String suffix) {
+      return new File(_directory, prefix+String.format("%010d", number)+suffix);
+   }
+
+   private void rotate() throws IOException {
+      closeSegment();
+      _segmentNumber++;
+      if ((_segmentNumber - _checkpointNumber) >= _segmentsPerCheckpoint) {
+         writeCheckpoint();
+      }
+      openSegment();
+   }
+
+   private void openSegment() throws IOException {
+      _segmentFile = new FileOutputStream(getFile(SEGMENT_PREFIX, _segmentNumber, SEGMENT_SUFFIX), true);
+      _segmentStream = new DataOutputStream(new BufferedOutputStream(_segmentFile));
+      _segmentBytes = 0;
+   }
+
+   private void closeSegment() {
+      if (_segmentStream != null) {
+         try {
+            _segmentStream.flush();
+            _segmentFile.getFD().sync();
+            _segmentStream.close();
+         } catch (IOException e) {
+            _log.fine("Error closing journal segment: "+e.getMessage());
+         }
+         _segmentStream = null;
+         _segmentFile = null;
+      }
+   }
+
+   /* Writes the compacted state as checkpoint N, where N is the current segment, then deletes everything older */
+   private void writeCheckpoint() throws IOException {
+      File checkpoint = getFile(CHECKPOINT_PREFIX, _segmentNumber, CHECKPOINT_SUFFIX);
+      File temp = new File(checkpoint.getPath()+TEMP_SUFFIX);
+      FileOutputStream fileStream = new FileOutputStream(temp);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+      try {
+         out.writeInt(CHECKPOINT_MAGIC);
+         out.writeInt(_compacted.size());
+         for (NewVmEvent event : _compacted.values()) {
+            writeRecord(out, encode(event));
+         }
+         out.flush();
+         fileStream.getFD().sync();
+      } finally {
+         out.close();
+      }
+      if (!temp.renameTo(checkpoint)) {
+         throw new IOException("Unable to rename "+temp+" to "+checkpoint);
+      }
+      _checkpointNumber = _segmentNumber;
+      for (File old : listFiles(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX).headMap(_checkpointNumber).values()) {
+         old.delete();
+      }
+      for (File old : listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(_checkpointNumber).values()) {
+         old.delete();
+      }
+      _log.fine("Wrote event journal checkpoint "+checkpoint.getName()+" containing "+_compacted.size()+" VMs");
+   }
+
+   private void readCheckpoint(File checkpoint) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+      try {
+         if (in.readInt() != CHECKPOINT_MAGIC) {
+            throw new IOException("Invalid checkpoint file "+checkpoint);
+         }
+         int count = in.readInt();
+         for (int i=0; i<count; i++) {
+            byte[] record = readRecord(in);
+            if (record == null) {
+               throw new IOException("Truncated or corrupt checkpoint file "+checkpoint);
+            }
+            fold(decode(record));
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+   /* Returns the number of events replayed. Replay stops at the first incomplete or corrupt record */
+   private int replaySegment(File segment) throws IOException {
+      int result = 0;
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+      try {
+         byte[] record;
+         while ((record = readRecord(in)) != null) {
+            fold(decode(record));
+            result++;
+         }
+      } finally {
+         in.close();
+      }
+      return result;
+   }
+
+   private void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      out.writeInt(record.length);
+      out.writeLong(crc.getValue());
+      out.write(record);
+   }
+
+   /* Returns null at the end of the stream or if the record is torn or corrupt */
+   private byte[] readRecord(DataInputStream in) throws IOException {
+      try {
+         int length = in.readInt();
+         long checksum = in.readLong();
+         if ((length <= 0) || (length > (1 << 24))) {
+            _log.warning("VHM: invalid record length in event journal - ignoring remainder of segment");
+            return null;
+         }
+         byte[] record = new byte[length];
+         in.readFully(record);
+         CRC32 crc = new CRC32();
+         crc.update(record);
+         if (crc.getValue() != checksum) {
+            _log.warning("VHM: checksum mismatch in event journal - ignoring remainder of segment");
+            return null;
+         }
+         return record;
+      } catch (EOFException e) {
+         return null;
+      }
+   }
+
+   /* Applies an event to the compacted state */
+   private void fold(ClusterStateChangeEvent event) {
+      if (event instanceof NewVmEvent) {
+         NewVmEvent newVmEvent = (NewVmEvent)event;
+         _compacted.remove(newVmEvent.getVmId());
+         _compacted.put(newVmEvent.getVmId(), newVmEvent);
+      } else if (event instanceof VmRemovedFromClusterEvent) {
+         _compacted.remove(((VmRemovedFromClusterEvent)event).getVmId());
+      } else if (event instanceof VmUpdateEvent) {
+         VmUpdateEvent update = (VmUpdateEvent)event;
+         NewVmEvent existing = _compacted.get(update.getVmId());
+         if (existing != null) {
+            SerengetiClusterVariableData clusterUpdate = (event instanceof MasterVmUpdateEvent) ?
+                  ((MasterVmUpdateEvent)event).getClusterVariableData() : null;
+            _compacted.put(update.getVmId(), applyUpdate(existing, update.getVariableData(), clusterUpdate));
+         }
+      } else if (event instanceof ClusterUpdateEvent) {
+         ClusterUpdateEvent update = (ClusterUpdateEvent)event;
+         NewVmEvent existing = _compacted.get(update.getVmId());
+         if (existing != null) {
+            _compacted.put(update.getVmId(), applyUpdate(existing, null, update.getClusterVariableData()));
+         }
+      }
+   }
+
+   private NewVmEvent applyUpdate(NewVmEvent existing, VMVariableData vmUpdate, SerengetiClusterVariableData clusterUpdate) {
+      VMVariableData vmData = existing.getVariableData();
+      if (vmUpdate != null) {
+         vmData = (vmData == null) ? vmUpdate : vmData.mergeWith(vmUpdate);
+      }
+      if (existing instanceof NewMasterVMEvent) {
+         NewMasterVMEvent master = (NewMasterVMEvent)existing;
+         SerengetiClusterVariableData clusterData = master.getClusterVariableData();
+         if (clusterUpdate != null) {
+            clusterData = (clusterData == null) ? clusterUpdate : clusterData.mergeWith(clusterUpdate);
+         }
+         return new NewMasterVMEvent(master.getVmId(), master.getClusterId(), master.getConstantData(), vmData,
+               master.getClusterConstantData(), clusterData);
+      }
+      return new NewVmEvent(existing.getVmId(), existing.getClusterId(), existing.getConstantData(), vmData);
+   }
+
+   /* Returns null for events that are not journaled */
+   private byte[] encode(ClusterStateChangeEvent event) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      if (event instanceof NewMasterVMEvent) {
+         NewMasterVMEvent master = (NewMasterVMEvent)event;
+         out.writeByte(NEW_MASTER_VM);
+         writeString(out, master.getVmId());
+         writeString(out, master.getClusterId());
+         writeVmConstantData(out, master.getConstantData());
+         writeVmVariableData(out, master.getVariableData());
+         writeClusterConstantData(out, master.getClusterConstantData());
+         writeClusterVariableData(out, master.getClusterVariableData());
+      } else if (event instanceof NewVmEvent) {
+         NewVmEvent newVm = (NewVmEvent)event;
+         out.writeByte(NEW_VM);
+         writeString(out, newVm.getVmId());
+         writeString(out, newVm.getClusterId());
+         writeVmConstantData(out, newVm.getConstantData());
+         writeVmVariableData(out, newVm.getVariableData());
+      } else if (event instanceof MasterVmUpdateEvent) {
+         MasterVmUpdateEvent update = (MasterVmUpdateEvent)event;
+         out.writeByte(MASTER_VM_UPDATE);
+         writeString(out, update.getVmId());
+         writeVmVariableData(out, update.getVariableData());
+         writeClusterVariableData(out, update.getClusterVariableData());
+      } else if (event instanceof VmUpdateEvent) {
+         VmUpdateEvent update = (VmUpdateEvent)event;
+         out.writeByte(VM_UPDATE);
+         writeString(out, update.getVmId());
+         writeVmVariableData(out, update.getVariableData());
+      } else if (event instanceof ClusterUpdateEvent) {
+         ClusterUpdateEvent update = (ClusterUpdateEvent)event;
+         out.writeByte(CLUSTER_UPDATE);
+         writeString(out, update.getVmId());
+         writeClusterVariableData(out, update.getClusterVariableData());
+      } else if (event instanceof VmRemovedFromClusterEvent) {
+         out.writeByte(VM_REMOVED);
+         writeString(out, ((VmRemovedFromClusterEvent)event).getVmId());
+      } else {
+         return null;
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private ClusterStateChangeEvent decode(byte[] record) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      byte type = in.readByte();
+      switch (type) {
+      case NEW_MASTER_VM:
+         return new NewMasterVMEvent(readString(in), readString(in), readVmConstantData(in), readVmVariableData(in),
+               readClusterConstantData(in), readClusterVariableData(in));
+      case NEW_VM:
+         return new NewVmEvent(readString(in), readString(in), readVmConstantData(in), readVmVariableData(in));
+      case MASTER_VM_UPDATE:
+         return new MasterVmUpdateEvent(readString(in), readVmVariableData(in), readClusterVariableData(in));
+      case VM_UPDATE:
+         return new VmUpdateEvent(readString(in), readVmVariableData(in));
+      case CLUSTER_UPDATE:
+         return new ClusterUpdateEvent(readString(in), readClusterVariableData(in));
+      case VM_REMOVED:
+         return new VmRemovedFromClusterEvent(readString(in));
+      default:
+         throw new IOException("Unknown event journal record type "+type);
+      }
+   }
+
+   private void writeString(DataOutputStream out, String value) throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null) {
+         out.writeUTF(value);
+      }
+   }
+
+   private String readString(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+   }
+
+   private void writeInteger(DataOutputStream out, Integer value) throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null) {
+         out.writeInt(value);
+      }
+   }
+
+   private Integer readInteger(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readInt() : null;
+   }
+
+   /* Null is encoded as -1 */
+   private void writeBoolean(DataOutputStream out, Boolean value) throws IOException {
+      out.writeByte((value == null) ? -1 : (value ? 1 : 0));
+   }
+
+   private Boolean readBoolean(DataInputStream in) throws IOException {
+      byte value = in.readByte();
+      return (value < 0) ? null : (value == 1);
+   }
+
+   private void writeVmConstantData(DataOutputStream out, VMConstantData data) throws IOException {
+      out.writeBoolean(data != null);
+      if (data != null) {
+         writeString(out, (data._vmType == null) ? null : data._vmType.name());
+         writeString(out, data._myUUID);
+      }
+   }
+
+   private VMConstantData readVmConstantData(DataInputStream in) throws IOException {
+      if (!in.readBoolean()) {
+         return null;
+      }
+      VMConstantData result = new VMConstantData();
+      String vmType = readString(in);
+      result._vmType = (vmType == null) ? null : VmType.valueOf(vmType);
+      result._myUUID = readString(in);
+      return result;
+   }
+
+   private void writeVmVariableData(DataOutputStream out, VMVariableData data) throws IOException {
+      out.writeBoolean(data != null);
+      if (data != null) {
+         writeString(out, data._myName);
+         writeInteger(out, data._vCPUs);
+         out.writeInt((data._nicAndIpAddressMap == null) ? -1 : data._nicAndIpAddressMap.size());
+         if (data._nicAndIpAddressMap != null) {
+            for (Map.Entry<String, Set<String>> nic : data._nicAndIpAddressMap.entrySet()) {
+               writeString(out, nic.getKey());
+               Set<String> addresses = (nic.getValue() == null) ? Collections.<String>emptySet() : nic.getValue();
+               out.writeInt(addresses.size());
+               for (String address : addresses) {
+                  writeString(out, address);
+               }
+            }
+         }
+         writeString(out, data._dnsName);
+         writeBoolean(out, data._powerState);
+         writeString(out, data._hostMoRef);
+      }
+   }
+
+   private VMVariableData readVmVariableData(DataInputStream in) throws IOException {
+      if (!in.readBoolean()) {
+         return null;
+      }
+      VMVariableData result = new VMVariableData();
+      result._myName = readString(in);
+      result._vCPUs = readInteger(in);
+      int numNics = in.readInt();
+      if (numNics >= 0) {
+         result._nicAndIpAddressMap = new HashMap<String, Set<String>>();
+         for (int i=0; i<numNics; i++) {
+            String nic = readString(in);
+            int numAddresses = in.readInt();
+            Set<String> addresses = new HashSet<String>();
+            for (int j=0; j<numAddresses; j++) {
+               addresses.add(readString(in));
+            }
+            result._nicAndIpAddressMap.put(nic, addresses);
+         }
+      }
+      result._dnsName = readString(in);
+      result._powerState = readBoolean(in);
+      result._hostMoRef = readString(in);
+      return result;
+   }
+
+   private void writeClusterConstantData(DataOutputStream out, SerengetiClusterConstantData data) throws IOException {
+      out.writeBoolean(data != null);
+      if (data != null) {
+         writeString(out, data._clusterName);
+         writeString(out, data._masterMoRef);
+         writeString(out, data._serengetiFolder);
+      }
+   }
+
+   private SerengetiClusterConstantData readClusterConstantData(DataInputStream in) throws IOException {
+      if (!in.readBoolean()) {
+         return null;
+      }
+      SerengetiClusterConstantData result = new SerengetiClusterConstantData();
+      result._clusterName = readString(in);
+      result._masterMoRef = readString(in);
+      result._serengetiFolder = readString(in);
+      return result;
+   }
+
+   private void writeClusterVariableData(DataOutputStream out, SerengetiClusterVariableData data) throws IOException {
+      out.writeBoolean(data != null);
+      if (data != null) {
+         writeBoolean(out, data._enableAutomation);
+         writeInteger(out, data._minInstances);
+         writeInteger(out, data._maxInstances);
+         writeInteger(out, data._jobTrackerPort);
+      }
+   }
+
+   private SerengetiClusterVariableData readClusterVariableData(DataInputStream in) throws IOException {
+      if (!in.readBoolean()) {
+         return null;
+      }
+      SerengetiClusterVariableData result = new SerengetiClusterVariableData();
+      result._enableAutomation = readBoolean(in);
+      result._minInstances = readInteger(in);
+      result._maxInstances = readInteger(in);
+      result._jobTrackerPort = readInteger(in);
+      return result;
+   }
+}
@@ -0,0 +1,259 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.EventProducer;
+import com.vmware.vhadoop.api.vhm.events.EventProducer.EventProducerStartStopCallback;
+
+/* Starts and stops event producers, blocking until they have signalled that they are ready or stopped
+ * Each start of a producer creates latches which are counted down by the producer's EventProducerStartStopCallback,
+ *   so a caller waiting on a set of producers wakes as soon as the last of them has signalled
+ * A producer may depend on other producers, which must be registered before it. Producers are started in waves:
+ *   every producer whose dependencies have all started is started at the same time and they are then awaited together
+ *   Producers are stopped in the reverse order, so a producer is never running without its dependencies
+ * Threading Requirement:
+ *  - start(), stop(), reset() and register() are blocking atomic operations
+ *  - isAllStopped() never blocks */
+class EventProducerLifecycle {
+   private static final Logger _log = Logger.getLogger(EventProducerLifecycle.class.getName());
+
+   interface ProducerFailureHandler {
+      void producerFailed(EventProducer producer);
+   }
+
+   private class ManagedProducer implements EventProducerStartStopCallback {
+      private final EventProducer _producer;
+      private final List<ManagedProducer> _dependencies;
+      private volatile boolean _started;
+      private volatile CountDownLatch _startedLatch = new CountDownLatch(0);
+      private volatile CountDownLatch _stoppedLatch = new CountDownLatch(0);
+
+      ManagedProducer(EventProducer producer, List<ManagedProducer> dependencies) {
+         _producer = producer;
+         _dependencies = dependencies;
+      }
+
+      private String getName() {
+         return _producer.getClass().getName();
+      }
+
+      private void start() {
+         _startedLatch = new CountDownLatch(1);
+         _stoppedLatch = new CountDownLatch(1);
+         _producer.start(this);
+      }
+
+      private boolean isReadyToStart() {
+         for (ManagedProducer dependency : _dependencies) {
+            if (!dependency._started) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      @Override
+      public void notifyStarted(EventProducer thisProducer) {
+         _started = true;
+         _startedLatch.countDown();
+      }
+
+      @Override
+      public void notifyStopped(EventProducer thisProducer) {
+         _started = false;
+         /* Release anyone still waiting for the producer to start. This must be done before signalling that the
+          * producer has stopped, as a waiter for the stop may then restart the producer with a new latch */
+         _startedLatch.countDown();
+         _stoppedLatch.countDown();
+      }
+
+      @Override
+      public void notifyFailed(EventProducer thisProducer) {
+         _failureHandler.producerFailed(_producer);
+      }
+   }
+
+   private final Map<EventProducer, ManagedProducer> _producers = new LinkedHashMap<EventProducer, ManagedProducer>();    /* Registration order */
+   private final ProducerFailureHandler _failureHandler;
+   private final long _startTimeoutMillis;
+   private final long _stopTimeoutMillis;
+
+   EventProducerLifecycle(ProducerFailureHandler failureHandler, long startTimeoutMillis, long stopTimeoutMillis) {
+      _failureHandler = failureHandler;
+      _startTimeoutMillis = startTimeoutMillis;
+      _stopTimeoutMillis = stopTimeoutMillis;
+   }
+
+   private boolean await(CountDownLatch latch, long deadline) {
+      try {
+         return latch.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+
+   /* Must be called with the lock held */
+   private boolean startAll(Collection<ManagedProducer> producers) {
+      long deadline = System.currentTimeMillis() + _startTimeoutMillis;
+      boolean result = true;
+      Set<ManagedProducer> remaining = new LinkedHashSet<ManagedProducer>();
+      for (ManagedProducer producer : producers) {
+         if (!producer._started) {
+            remaining.add(producer);
+         }
+      }
+      while (!remaining.isEmpty()) {
+         List<ManagedProducer> wave = new ArrayList<ManagedProducer>();
+         for (ManagedProducer producer : remaining) {
+            if (producer.isReadyToStart()) {
+               wave.add(producer);
+            }
+         }
+         if (wave.isEmpty()) {
+            for (ManagedProducer producer : remaining) {
+               _log.warning("VHM: not starting event producer "+producer.getName()+" as its dependencies failed to start");
+            }
+            return false;
+         }
+         for (ManagedProducer producer : wave) {
+            producer.start();
+         }
+         for (ManagedProducer producer : wave) {
+            if (!await(producer._startedLatch, deadline) || !producer._started) {
+               _log.warning("VHM: event producer "+producer.getName()+" failed to start within "+_startTimeoutMillis+"ms");
+               result = false;
+            }
+         }
+         remaining.removeAll(wave);
+      }
+      return result;
+   }
+
+   /* Must be called with the lock held */
+   private boolean isDependedOnByAny(ManagedProducer producer, Collection<ManagedProducer> candidates) {
+      for (ManagedProducer candidate : candidates) {
+         if (candidate._dependencies.contains(producer)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /* Must be called with the lock held */
+   private boolean stopAll(Collection<ManagedProducer> producers) {
+      long deadline = System.currentTimeMillis() + _stopTimeoutMillis;
+      boolean result = true;
+      Set<ManagedProducer> remaining = new LinkedHashSet<ManagedProducer>();
+      for (ManagedProducer producer : producers) {
+         if (producer._started) {
+            remaining.add(producer);
+         }
+      }
+      while (!remaining.isEmpty()) {
+         List<ManagedProducer> wave = new ArrayList<ManagedProducer>();
+         for (ManagedProducer producer : remaining) {
+            if (!isDependedOnByAny(producer, remaining)) {
+               wave.add(producer);
+            }
+         }
+         for (ManagedProducer producer : wave) {
+            producer._producer.stop();
+         }
+         for (ManagedProducer producer : wave) {
+            if (!await(producer._stoppedLatch, deadline)) {
+               _log.warning("VHM: event producer "+producer.getName()+" failed to stop within "+_stopTimeoutMillis+"ms");
+               result = false;
+            }
+         }
+         remaining.removeAll(wave);
+      }
+      return result;
+   }
+
+   /* Block until the event producers have actually started */
+   synchronized boolean start() {
+      boolean result = startAll(_producers.values());
+      _log.fine("Event producers start returning "+result);
+      return result;
+   }
+
+   /* Block until the event producers that were started have actually stopped */
+   synchronized boolean stop() {
+      boolean result = stopAll(_producers.values());
+      _log.fine("Event producers stop returning "+result);
+      return result;
+   }
+
+   /* Block until the event producers have restarted */
+   synchronized boolean reset() {
+      if (stop()) {
+         if (start()) {
+            _log.fine("Event producers successfully restarted");
+            return true;
+         } else {
+            _log.warning("VHM: event producers start failed during reset");
+         }
+      } else {
+         _log.warning("VHM: event producers stop failed during reset");
+      }
+      return false;
+   }
+
+   boolean isAllStopped() {
+      synchronized(_producers) {
+         for (ManagedProducer producer : _producers.values()) {
+            if (producer._started) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+
+   /* Registers the producer and blocks until it has started. Any dependencies must already be registered */
+   synchronized boolean register(EventProducer eventProducer, EventProducer[] dependencies) {
+      List<ManagedProducer> managedDependencies = new ArrayList<ManagedProducer>();
+      for (EventProducer dependency : dependencies) {
+         ManagedProducer managedDependency = _producers.get(dependency);
+         if (managedDependency == null) {
+            _log.warning("VHM: event producer "+eventProducer.getClass().getName()+" depends on unregistered producer "+dependency.getClass().getName());
+            return false;
+         }
+         managedDependencies.add(managedDependency);
+      }
+      ManagedProducer producer = _producers.get(eventProducer);
+      if (producer == null) {
+         producer = new ManagedProducer(eventProducer, managedDependencies);
+         synchronized(_producers) {
+            _producers.put(eventProducer, producer);
+         }
+      }
+      return startAll(Collections.singletonList(producer));
+   }
+}
@@ -0,0 +1,491 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.EventProducer.QueueFullPolicy;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent.EventKey;
+
+/* Blocking event queue that sits between the event producers and the VHM main loop
+ * The consumer is woken as soon as the first event arrives. It then continues to gather events for as long as
+ *   they keep arriving within the quiet period, up to a hard deadline, so that bursts are still handled as a batch
+ * A new event is merged into a pending event with the same key, provided nothing else has been queued for that entity since
+ *   This keeps the ordering of events for each entity intact while collapsing storms of updates into a single delta
+ * Events are queued in prioritized lanes and each batch is filled from the highest priority lane first, up to a maximum
+ *   batch size. To prevent starvation, every lane with pending events is first guaranteed a minimum share of each batch
+ * An event which must follow ordering barriers is held back while a barrier queued before it is still pending in another lane
+ * The queue may be given a capacity, which is enforced against producers according to their QueueFullPolicy
+ *   No event is ever dropped. A blocked producer is admitted regardless once the maximum block time has expired
+ * Any number of threads can add events, but only one thread is expected to take batches */
+class EventQueue {
+   private static final Logger _log = Logger.getLogger(EventQueue.class.getName());
+
+   /* In order of priority */
+   enum Lane {
+      HIGH, NORMAL, BULK
+   }
+
+   interface LaneSelector {
+      Lane getLane(NotificationEvent event);
+
+      /* Events which depend on state established by a barrier queued before them shouldn't overtake it by being in a higher lane */
+      boolean isOrderingBarrier(NotificationEvent event);
+
+      boolean mustFollowOrderingBarriers(NotificationEvent event);
+   }
+
+   /* Allows a pending event to be replaced by a merged event without having to search the queue */
+   private static class PendingEvent {
+      NotificationEvent _event;
+      final long _enqueuedNanos;       /* Not updated by a merge, so wait times are those of the oldest merged event */
+      final long _sequence;            /* Gives the order in which events were queued across lanes */
+
+      PendingEvent(NotificationEvent event, long sequence) {
+         _event = event;
+         _enqueuedNanos = System.nanoTime();
+         _sequence = sequence;
+      }
+   }
+
+   /* Counters for the current statistics interval */
+   private static class Statistics {
+      long _startNanos = System.nanoTime();
+      long _added;
+      long _merged;
+      long _taken;
+      long _totalWaitNanos;
+      long _maxWaitNanos;
+      int _peakSize;
+      long _blocked;
+      long _totalBlockedNanos;
+      long _admittedOverCapacity;
+   }
+
+   private final LaneSelector _laneSelector;
+   private final Map<Lane, LinkedList<PendingEvent>> _lanes = new EnumMap<Lane, LinkedList<PendingEvent>>(Lane.class);
+   private int _size;
+
+   /* The most recently queued event for each entity, which is the only candidate for a merge */
+   private final Map<String, PendingEvent> _lastPendingForEntity = new HashMap<String, PendingEvent>();
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _eventAdded = _lock.newCondition();
+   private final Condition _spaceAvailable = _lock.newCondition();
+   private final long _quietPeriodNanos;
+   private final long _maxBatchDelayNanos;
+   private final int _maxBatchSize;
+   private final int _minLaneShare;
+
+   /* Incremented on every add. Unlike the size of the queue, this is unaffected by events which clear the queue */
+   private long _addCount;
+   private int _mergeCount;
+   private long _nextSequence;
+
+   private int _capacity = Integer.MAX_VALUE;
+   private long _maxBlockNanos;
+   private boolean _saturated;
+   private Statistics _statistics = new Statistics();
+
+   /* A maxBatchSize of zero or less means that every pending event is returned in each batch */
+   EventQueue(long quietPeriodMillis, long maxBatchDelayMillis, int maxBatchSize, int minLaneSharePercent, LaneSelector laneSelector) {
+      _quietPeriodNanos = TimeUnit.MILLISECONDS.toNanos(quietPeriodMillis);
+      _maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+      _maxBatchSize = maxBatchSize;
+      _minLaneShare = Math.max(1, (maxBatchSize * minLaneSharePercent) / 100);
+      _laneSelector = laneSelector;
+      for (Lane lane : Lane.values()) {
+         _lanes.put(lane, new LinkedList<PendingEvent>());
+      }
+   }
+
+   /* Producers with a BLOCK policy will wait for up to maxBlockMillis while the queue holds capacity or more events */
+   void setCapacity(int capacity, long maxBlockMillis) {
+      _lock.lock();
+      try {
+         _capacity = (capacity > 0) ? capacity : Integer.MAX_VALUE;
+         _maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+         _spaceAvailable.signalAll();
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   /* Must be called with the lock held */
+   private void appendToQueue(PendingEvent pending) {
+      Lane lane = _laneSelector.getLane(pending._event);
+      _lanes.get((lane == null) ? Lane.NORMAL : lane).add(pending);
+      _size++;
+      if (_size > _statistics._peakSize) {
+         _statistics._peakSize = _size;
+      }
+      EventKey key = pending._event.getEventKey();
+      if (key != null) {
+         _lastPendingForEntity.put(key.getEntityId(), pending);
+      }
+   }
+
+   /* Must be called with the lock held, once the caller has removed the event from its lane */
+   private NotificationEvent taken(PendingEvent pending) {
+      _size--;
+      long waitNanos = System.nanoTime() - pending._enqueuedNanos;
+      _statistics._taken++;
+      _statistics._totalWaitNanos += waitNanos;
+      if (waitNanos > _statistics._maxWaitNanos) {
+         _statistics._maxWaitNanos = waitNanos;
+      }
+      EventKey key = pending._event.getEventKey();
+      if ((key != null) && (_lastPendingForEntity.get(key.getEntityId()) == pending)) {
+         _lastPendingForEntity.remove(key.getEntityId());
+      }
+      return pending._event;
+   }
+
+   /* Must be called with the lock held */
+   private boolean mergeWithPending(NotificationEvent event) {
+      EventKey key = event.getEventKey();
+      if (key != null) {
+         PendingEvent last = _lastPendingForEntity.get(key.getEntityId());
+         if ((last != null) && key.equals(last._event.getEventKey())) {
+            NotificationEvent merged = last._event.mergeWith(event);
+            if (merged != null) {
+               last._event = merged;
+               _mergeCount++;
+               _statistics._merged++;
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /* Must be called with the lock held */
+   private void addEventToQueue(NotificationEvent event) {
+      if (event.getCanClearQueue()) {
+         /* Only retain the events that have asked not to be cleared, maintaining their order behind the new event */
+         LinkedList<PendingEvent> toKeepQueue = null;
+         for (LinkedList<PendingEvent> lane : _lanes.values()) {
+            for (PendingEvent pending : lane) {
+               if (!pending._event.getCanBeClearedFromQueue()) {
+                  if (toKeepQueue == null) {
+                     toKeepQueue = new LinkedList<PendingEvent>();
+                  }
+                  toKeepQueue.add(pending);
+               }
+            }
+            lane.clear();
+         }
+         _size = 0;
+         _lastPendingForEntity.clear();
+         appendToQueue(new PendingEvent(event, _nextSequence++));
+         if (toKeepQueue != null) {
+            for (PendingEvent pending : toKeepQueue) {
+               appendToQueue(pending);
+            }
+         }
+      } else if (!mergeWithPending(event)) {
+         appendToQueue(new PendingEvent(event, _nextSequence++));
+      }
+      _addCount++;
+      _statistics._added++;
+      if (_size > _capacity) {
+         _statistics._admittedOverCapacity++;
+      }
+   }
+
+   /* Must be called with the lock held. Returns once there is space for at least one event or the maximum block time expires
+    * Events which clear the queue are never blocked as they are likely to make space */
+   private void waitForSpace(NotificationEvent firstEvent) {
+      if ((_size < _capacity) || firstEvent.getCanClearQueue()) {
+         return;
+      }
+      if (!_saturated) {
+         _saturated = true;
+         _log.warning("VHM: event queue has reached its capacity of "+_capacity+" events. Producers will be blocked");
+      }
+      long startTime = System.nanoTime();
+      long nanosLeft = _maxBlockNanos;
+      try {
+         while ((_size >= _capacity) && (nanosLeft > 0)) {
+            nanosLeft = _spaceAvailable.awaitNanos(nanosLeft);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      _statistics._blocked++;
+      _statistics._totalBlockedNanos += System.nanoTime() - startTime;
+      if (_size >= _capacity) {
+         _log.warning("VHM: event queue still full after blocking producer for "+TimeUnit.NANOSECONDS.toMillis(_maxBlockNanos)+"ms. Admitting event regardless");
+      }
+   }
+
+   void add(NotificationEvent event) {
+      add(event, QueueFullPolicy.ADMIT);
+   }
+
+   void add(NotificationEvent event, QueueFullPolicy policy) {
+      _lock.lock();
+      try {
+         /* A merge doesn't grow the queue, so it is always allowed */
+         if ((policy == QueueFullPolicy.BLOCK) && !event.getCanClearQueue() && mergeWithPending(event)) {
+            _addCount++;
+            _statistics._added++;
+         } else {
+            if (policy == QueueFullPolicy.BLOCK) {
+               waitForSpace(event);
+            }
+            addEventToQueue(event);
+         }
+         _eventAdded.signal();
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   void addAll(Collection<? extends NotificationEvent> events) {
+      addAll(events, QueueFullPolicy.ADMIT);
+   }
+
+   /* The events are added atomically, so a blocking producer waits for space before adding any of them */
+   void addAll(Collection<? extends NotificationEvent> events, QueueFullPolicy policy) {
+      _lock.lock();
+      try {
+         boolean waited = (policy != QueueFullPolicy.BLOCK);
+         for (NotificationEvent event : events) {
+            if (event != null) {
+               if (!waited) {
+                  waitForSpace(event);
+                  waited = true;
+               }
+               addEventToQueue(event);
+            }
+         }
+         _eventAdded.signal();
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   int size() {
+      _lock.lock();
+      try {
+         return _size;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   /* Returns the statistics since the previous call and starts a new interval */
+   String getStatistics() {
+      _lock.lock();
+      try {
+         Statistics stats = _statistics;
+         _statistics = new Statistics();
+         _statistics._peakSize = _size;
+         long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stats._startNanos));
+         long averageWaitMicros = (stats._taken == 0) ? 0 : (stats._totalWaitNanos / stats._taken) / 1000;
+         return "depth="+_size+" ("+getLaneSizes()+"), peakDepth="+stats._peakSize+", capacity="+
+               ((_capacity == Integer.MAX_VALUE) ? "unbounded" : Integer.toString(_capacity))+
+               ", added="+stats._added+", merged="+stats._merged+", taken="+stats._taken+
+               ", enqueueRatePerSec="+((stats._added * 1000) / elapsedMillis)+
+               ", averageWaitMicros="+averageWaitMicros+", maxWaitMicros="+(stats._maxWaitNanos / 1000)+
+               ", producersBlocked="+stats._blocked+", blockedMillis="+TimeUnit.NANOSECONDS.toMillis(stats._totalBlockedNanos)+
+               ", admittedOverCapacity="+stats._admittedOverCapacity+", intervalMillis="+elapsedMillis;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   /* Returns the event which would be at the head of the next batch */
+   NotificationEvent peek() {
+      _lock.lock();
+      try {
+         for (LinkedList<PendingEvent> lane : _lanes.values()) {
+            PendingEvent pending = lane.peek();
+            if (pending != null) {
+               return pending._event;
+            }
+         }
+         return null;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   /* Blocks until at least one event is available and then returns the batch in priority order and then in the order queued
+    * The use of a Set ensures that duplicates are eliminated */
+   Set<NotificationEvent> takeBatch() throws InterruptedException {
+      _lock.lock();
+      try {
+         while (_size == 0) {
+            _eventAdded.await();
+         }
+         boolean unlimited = (_maxBatchSize <= 0);
+         /* There is no point gathering a burst if there is already a backlog */
+         if (unlimited || (_size < _maxBatchSize)) {
+            gatherBurst();
+         }
+         Set<NotificationEvent> results = new LinkedHashSet<NotificationEvent>();
+         Map<Lane, Integer> guaranteed = null;
+         int remaining = unlimited ? Integer.MAX_VALUE : _maxBatchSize;
+         if (!unlimited && (_size > _maxBatchSize)) {
+            /* Reserve a minimum share of the batch for each lane so that lower priority lanes are never starved */
+            guaranteed = new EnumMap<Lane, Integer>(Lane.class);
+            for (Lane lane : Lane.values()) {
+               int share = Math.min(_minLaneShare, _lanes.get(lane).size());
+               guaranteed.put(lane, share);
+               remaining -= share;
+            }
+         }
+         Map<Lane, Integer> toTake = new EnumMap<Lane, Integer>(Lane.class);
+         for (Lane lane : Lane.values()) {
+            LinkedList<PendingEvent> laneEvents = _lanes.get(lane);
+            int toTakeFromLane = (guaranteed == null) ? laneEvents.size() : guaranteed.get(lane) + Math.max(0, remaining);
+            toTakeFromLane = Math.min(toTakeFromLane, laneEvents.size());
+            if (guaranteed != null) {
+               remaining -= Math.max(0, toTakeFromLane - guaranteed.get(lane));
+            }
+            toTake.put(lane, toTakeFromLane);
+         }
+         Map<Lane, Long> barriersLeft = getOrderingBarriersLeft(toTake);
+         int numHeld = 0;
+         for (Lane lane : Lane.values()) {
+            Iterator<PendingEvent> laneEvents = _lanes.get(lane).iterator();
+            for (int i=0; i<toTake.get(lane); i++) {
+               PendingEvent pending = laneEvents.next();
+               if (mustBeHeld(lane, pending, barriersLeft)) {
+                  numHeld++;
+               } else {
+                  laneEvents.remove();
+                  results.add(taken(pending));
+               }
+            }
+         }
+         if (numHeld > 0) {
+            _log.fine("Holding back "+numHeld+" events until earlier ordering barriers have been taken");
+         }
+         if (_size < _capacity) {
+            if (_saturated) {
+               _saturated = false;
+               _log.info("VHM: event queue is no longer at capacity");
+            }
+            _spaceAvailable.signalAll();
+         }
+         if (_size == 0) {
+            _lastPendingForEntity.clear();
+         } else if (_log.isLoggable(Level.FINE)) {
+            _log.fine("Returning batch of "+results.size()+" events with "+getLaneSizes()+" still queued");
+         }
+         if (_mergeCount > 0) {
+            _log.fine("Merged "+_mergeCount+" pending events into a batch of "+results.size());
+            _mergeCount = 0;
+         }
+         return results;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   /* Must be called with the lock held. Returns the sequence of the first ordering barrier that will be left in each lane
+    *   once the number of events given for that lane has been taken, or null if nothing to be taken must follow barriers */
+   private Map<Lane, Long> getOrderingBarriersLeft(Map<Lane, Integer> toTake) {
+      boolean mustFollow = false;
+      for (Lane lane : Lane.values()) {
+         Iterator<PendingEvent> laneEvents = _lanes.get(lane).iterator();
+         for (int i=0; !mustFollow && (i<toTake.get(lane)); i++) {
+            mustFollow = _laneSelector.mustFollowOrderingBarriers(laneEvents.next()._event);
+         }
+      }
+      if (!mustFollow) {
+         return null;
+      }
+      Map<Lane, Long> result = new EnumMap<Lane, Long>(Lane.class);
+      for (Lane lane : Lane.values()) {
+         LinkedList<PendingEvent> laneEvents = _lanes.get(lane);
+         for (Iterator<PendingEvent> i = laneEvents.listIterator(toTake.get(lane)); i.hasNext(); ) {
+            PendingEvent pending = i.next();
+            if (_laneSelector.isOrderingBarrier(pending._event)) {
+               result.put(lane, pending._sequence);
+               break;
+            }
+         }
+      }
+      return result;
+   }
+
+   /* Must be called with the lock held */
+   private boolean mustBeHeld(Lane lane, PendingEvent pending, Map<Lane, Long> barriersLeft) {
+      if ((barriersLeft == null) || barriersLeft.isEmpty() || !_laneSelector.mustFollowOrderingBarriers(pending._event)) {
+         return false;
+      }
+      /* A lane is in queue order, so only another lane can hold a barrier that was queued earlier */
+      for (Map.Entry<Lane, Long> barrier : barriersLeft.entrySet()) {
+         if ((barrier.getKey() != lane) && (barrier.getValue() < pending._sequence)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /* Must be called with the lock held */
+   private String getLaneSizes() {
+      StringBuilder result = new StringBuilder();
+      for (Lane lane : Lane.values()) {
+         result.append(lane.name()).append("=").append(_lanes.get(lane).size()).append(" ");
+      }
+      return result.toString().trim();
+   }
+
+   /* Must be called with the lock held. Returns once the quiet period elapses with no new events or the deadline expires */
+   private void gatherBurst() {
+      long deadline = System.nanoTime() + _maxBatchDelayNanos;
+      long lastAddCount = _addCount;
+      int numWaits = 0;
+      try {
+         while (true) {
+            long now = System.nanoTime();
+            long quietDeadline = now + Math.min(_quietPeriodNanos, deadline - now);
+            long nanosLeft;
+            while ((_addCount == lastAddCount) && ((nanosLeft = quietDeadline - System.nanoTime()) > 0)) {
+               _eventAdded.awaitNanos(nanosLeft);
+            }
+            if (_addCount == lastAddCount) {
+               break;
+            }
+            lastAddCount = _addCount;
+            numWaits++;
+         }
+      } catch (InterruptedException e) {
+         /* Process what we have and leave the interrupt to be seen by the next call to takeBatch */
+         Thread.currentThread().interrupt();
+      }
+      if (numWaits > 0) {
+         _log.finest("Gathered burst of "+_size+" events after "+numWaits+" additional wait(s)");
+      }
+   }
+}
@@ -16,21 +16,32 @@
 package com.vmware.vhadoop.vhm;
 
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
-import com.vmware.vhadoop.api.vhm.ClusterMapReader.ClusterMapAccess;
+import com.vmware.vhadoop.util.ExternalizedParameters;
 
-public class MultipleReaderSingleWriterClusterMapAccess implements ClusterMapAccess {
-   private final Set<Thread> _readerThreads = Collections.synchronizedSet(new HashSet<Thread>());
-   private final Object _clusterMapWriteLock = new Object();
+/* Readers share a fair ReentrantReadWriteLock, so a waiting writer is never starved by a stream of new readers
+ * A lock that can't be acquired within CLUSTER_MAP_LOCK_REPORT_MILLIS is waited for indefinitely, but the threads holding it are logged
+ * Locks are reentrant per thread: the writer may write again or read within runCodeInWriteLock. A reader that locks twice is still
+ *   refused, as that indicates a missing unlock */
+public class MultipleReaderSingleWriterClusterMapAccess implements WritableClusterMapAccess {
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock(true);
+   private final Set<Thread> _readerThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+   private volatile Thread _writerThread;
    private final ClusterMap _clusterMap;
    private static MultipleReaderSingleWriterClusterMapAccess _singleton;
 
    private static final Logger _log = Logger.getLogger(MultipleReaderSingleWriterClusterMapAccess.class.getName());
+   private static final long CLUSTER_MAP_LOCK_REPORT_MILLIS = ExternalizedParameters.get().getLong("CLUSTER_MAP_LOCK_REPORT_MILLIS");
+   private static final int MAX_REPORTED_STACK_FRAMES = 8;
 
    /* THREADING: Only accessed by single thread, so no need for synchronization */
    static MultipleReaderSingleWriterClusterMapAccess getClusterMapAccess(ClusterMap clusterMap) {
@@ -49,19 +60,55 @@ public class MultipleReaderSingleWriterClusterMapAccess implements ClusterMapAcc
       _clusterMap = clusterMap;
    }
 
+   private static void appendThread(StringBuilder sb, String role, Thread thread) {
+      sb.append("\n  ").append(role).append(" ").append(thread.getName());
+      StackTraceElement[] stack = thread.getStackTrace();
+      for (int i=0; i<Math.min(stack.length, MAX_REPORTED_STACK_FRAMES); i++) {
+         sb.append("\n    at ").append(stack[i]);
+      }
+   }
+
+   private String describeHolders() {
+      StringBuilder sb = new StringBuilder();
+      Thread writerThread = _writerThread;
+      if (writerThread != null) {
+         appendThread(sb, "writer", writerThread);
+      }
+      for (Thread readerThread : _readerThreads) {
+         appendThread(sb, "reader", readerThread);
+      }
+      return sb.toString();
+   }
+
+   /* Returns false only if interrupted, in which case the thread's interrupt status is restored */
+   private boolean acquire(Lock lock, String purpose) {
+      long start = System.currentTimeMillis();
+      try {
+         while (!lock.tryLock(CLUSTER_MAP_LOCK_REPORT_MILLIS, TimeUnit.MILLISECONDS)) {
+            _log.warning("VHM: "+Thread.currentThread().getName()+" has waited "+(System.currentTimeMillis() - start)+
+                  "ms to "+purpose+" the cluster map. Held by:"+describeHolders());
+         }
+         return true;
+      } catch (InterruptedException e) {
+         _log.warning("VHM: interrupted waiting to "+purpose+" the cluster map");
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+
    @Override
    public ClusterMap lockClusterMap() {
       Thread currentThread = Thread.currentThread();
-      if (!_readerThreads.contains(currentThread)) {
-         /* All readers will be blocked during a ClusterMap write and while ClusterMap waits for the reader count to go to zero */
-         synchronized(_clusterMapWriteLock) {
-            _readerThreads.add(currentThread);
-         }
-         return _clusterMap;
-      } else {
+      if (_readerThreads.contains(currentThread)) {
          _log.severe("VHM: attempt to double-lock the cluster map");
          return null;
       }
+      /* The writer already excludes everyone else, so its read lock is granted immediately */
+      if (!acquire(_lock.readLock(), "read")) {
+         return null;
+      }
+      _readerThreads.add(currentThread);
+      return _clusterMap;
    }
 
    @Override
@@ -71,8 +118,8 @@ public class MultipleReaderSingleWriterClusterMapAccess implements ClusterMapAcc
          return false;
       }
       Thread currentThread = Thread.currentThread();
-      if (_readerThreads.contains(currentThread)) {
-         _readerThreads.remove(currentThread);
+      if (_readerThreads.remove(currentThread)) {
+         _lock.readLock().unlock();
          return true;
       } else {
          _log.severe("VHM: attempt to double-unlock cluster map");
@@ -80,25 +127,32 @@ public class MultipleReaderSingleWriterClusterMapAccess implements ClusterMapAcc
       }
    }
 
-   Object runCodeInWriteLock(Callable<Object> callable) throws Exception {
-      synchronized(_clusterMapWriteLock) {
-         /* Wait for the readers to stop reading. New readers will block on the write lock */
-         long readerTimeout = 1000;
-         long pollSleep = 10;
-         long killCntr = readerTimeout / pollSleep;
-         while (_readerThreads.size() > 0) {
-            try {
-               Thread.sleep(pollSleep);
-               if (--killCntr < 0) {
-                  _log.severe("VHM: reader lock left open, whacking to 0");
-                  _readerThreads.clear();
-                  break;
-               }
-            } catch (InterruptedException e) {
-               _log.warning("VHM: unexpected interruption to sleep in writeLock");
-            }
-         }
+   /* Blocks new readers, then waits for current readers to unlock. A nested call from the writer runs straight away */
+   @Override
+   public Object runCodeInWriteLock(Callable<Object> callable) throws Exception {
+      if (_readerThreads.contains(Thread.currentThread()) && !_lock.isWriteLockedByCurrentThread()) {
+         /* Waiting for the write lock would deadlock on our own read lock */
+         throw new IllegalStateException("Cannot write to the cluster map while holding a read lock on it");
+      }
+      if (!acquire(_lock.writeLock(), "write")) {
+         throw new InterruptedException("Interrupted waiting to write to the cluster map");
+      }
+      Thread previousWriter = _writerThread;
+      _writerThread = Thread.currentThread();
+      List<Runnable> watchListeners = null;
+      try {
          return callable.call();
+      } finally {
+         if ((previousWriter == null) && (_clusterMap instanceof AbstractClusterMap)) {
+            /* Readers will see the changes as soon as the lock is released, so any watches they are waiting on can be completed now
+             * The conditions read the live map, so they are evaluated while it can't change, but the listeners only run once it is unlocked */
+            watchListeners = ((AbstractClusterMap)_clusterMap).evaluateWatches(_clusterMap);
+         }
+         _writerThread = previousWriter;
+         _lock.writeLock().unlock();
+         if (watchListeners != null) {
+            ((AbstractClusterMap)_clusterMap).runWatchListeners(watchListeners);
+         }
       }
    }
 }
@@ -1,9 +1,11 @@
 package com.vmware.vhadoop.vhm;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterView;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 
@@ -49,6 +51,11 @@ public class NullClusterMap implements ClusterMap
       return null;
    }
 
+   @Override
+   public List<ClusterScaleCompletionEvent> getClusterScaleCompletionEventsSince(String clusterId, long timeMillis) {
+      return null;
+   }
+
    @Override
    public Boolean checkPowerStateOfVms(Set<String> vmIds, boolean expectedPowerState) {
       return null;
@@ -139,4 +146,13 @@ public class NullClusterMap implements ClusterMap
       return null;
    }
 
+   @Override
+   public ClusterView getClusterView(String clusterId) {
+      return null;
+   }
+
+   @Override
+   public <T> VMStateWatch<T> watch(VMStateCondition<T> condition) {
+      return null;
+   }
 }
@@ -0,0 +1,91 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+
+/* An alternative to MultipleReaderSingleWriterClusterMapAccess in which readers never wait for the writer or each other
+ * The writer makes its changes to a ClusterMap that only it can see and, at the end of each write, publishes an immutable
+ *   snapshot of it. Entries that haven't changed since the previous snapshot are shared with it rather than copied, but the
+ *   snapshot's maps and indexes are still rebuilt on every publish, so the cost of a publish grows with the size of the map
+ * A reader holds on to the snapshot it locked until it unlocks it, so it has a consistent view for the whole of a decision */
+public class SnapshotClusterMapAccess implements WritableClusterMapAccess {
+   private final AbstractClusterMap _clusterMap;
+   private volatile ClusterMapSnapshot _published;
+   private final ThreadLocal<ClusterMapSnapshot> _lockedSnapshot = new ThreadLocal<ClusterMapSnapshot>();
+
+   private static final Logger _log = Logger.getLogger(SnapshotClusterMapAccess.class.getName());
+
+   SnapshotClusterMapAccess(AbstractClusterMap clusterMap) {
+      _clusterMap = clusterMap;
+      _clusterMap.trackChanges();
+      publish();
+   }
+
+   /* THREADING: Only called by the writer */
+   private void publish() {
+      ClusterMapSnapshot previous = _published;
+      long epoch = (previous == null) ? 0 : previous.getEpoch() + 1;
+      _published = new ClusterMapSnapshot(_clusterMap, previous, epoch);
+      _log.finest("Published ClusterMap snapshot "+epoch);
+   }
+
+   long getPublishedEpoch() {
+      return _published.getEpoch();
+   }
+
+   @Override
+   public ClusterMap lockClusterMap() {
+      if (_lockedSnapshot.get() == null) {
+         ClusterMapSnapshot snapshot = _published;
+         _lockedSnapshot.set(snapshot);
+         return snapshot;
+      } else {
+         _log.severe("VHM: attempt to double-lock the cluster map");
+         return null;
+      }
+   }
+
+   @Override
+   public boolean unlockClusterMap(ClusterMap clusterMap) {
+      if (clusterMap == null) {
+         _log.severe("VHM: unlock cluster map called with null cluster map argument - prior lock probably failed");
+         return false;
+      }
+      if (_lockedSnapshot.get() != null) {
+         _lockedSnapshot.remove();
+         return true;
+      } else {
+         _log.severe("VHM: attempt to double-unlock cluster map");
+         return false;
+      }
+   }
+
+   /* Readers carry on with the previous snapshot while the callable runs. Whatever it changed is published even if it fails
+    * Watches are evaluated against the new snapshot, so a reader woken by one will see the change that completed it */
+   @Override
+   public Object runCodeInWriteLock(Callable<Object> callable) throws Exception {
+      try {
+         return callable.call();
+      } finally {
+         publish();
+         _clusterMap.runWatchListeners(_clusterMap.evaluateWatches(_published));
+      }
+   }
+}
@@ -0,0 +1,60 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/* Canonicalizes the strings that ClusterMap holds many copies of - cluster IDs, host morefs and NIC names - so that each is stored once
+ *   however many VMs refer to it. Every VC update otherwise brings a fresh copy of each of them
+ * Entries are weakly held, so a string is forgotten once nothing in ClusterMap refers to it
+ * THREADING: Only used by the ClusterMap writer. The canonical strings themselves are immutable, so can be read by any thread */
+class SymbolTable {
+   private final Map<String, WeakReference<String>> _symbols = new WeakHashMap<String, WeakReference<String>>();
+
+   String intern(String value) {
+      if (value == null) {
+         return null;
+      }
+      WeakReference<String> reference = _symbols.get(value);
+      String symbol = (reference == null) ? null : reference.get();
+      if (symbol == null) {
+         symbol = value;
+         _symbols.put(symbol, new WeakReference<String>(symbol));
+      }
+      return symbol;
+   }
+
+   /* IP addresses are unique to a VM, so only the NIC names are interned */
+   Map<String, Set<String>> internNicNames(Map<String, Set<String>> nicAndIpAddressMap) {
+      if (nicAndIpAddressMap == null) {
+         return null;
+      }
+      Map<String, Set<String>> result = new LinkedHashMap<String, Set<String>>();
+      for (Entry<String, Set<String>> entry : nicAndIpAddressMap.entrySet()) {
+         result.put(intern(entry.getKey()), entry.getValue());
+      }
+      return result;
+   }
+
+   int size() {
+      return _symbols.size();
+   }
+}
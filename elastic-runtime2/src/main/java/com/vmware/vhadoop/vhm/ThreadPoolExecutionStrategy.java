@@ -17,36 +17,137 @@ package com.vmware.vhadoop.vhm;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
 import com.vmware.vhadoop.api.vhm.ExecutionStrategy;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
 import com.vmware.vhadoop.api.vhm.events.EventConsumer;
 import com.vmware.vhadoop.api.vhm.events.EventProducer;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.ClusterScaleOperation;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategyContext;
+import com.vmware.vhadoop.util.ExternalizedParameters;
 
 public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProducer {
 
+   /* A scale operation that fails or is abandoned produces no completion event, so whatever is waiting for the cluster's
+    *   scaling to complete is told this way instead, once the cluster can be scaled again */
+   public interface NoCompletionEventListener {
+      void scaleCompletedWithoutEvent(String clusterId);
+   }
+
    private class ClusterTaskContext {
       ScaleStrategy _scaleStrategy;
-      Future<ClusterScaleCompletionEvent> _completionEventPending;
+      ClusterScaleTask _completionEventPending;
       ScaleStrategyContext _scaleStrategyContext;
    }
 
+   /* Runs the scale operation one stage at a time. While the operation waits between stages, no thread is held: the task is
+    *   resubmitted to the pool once the watch it is waiting on is done, or the wait times out
+    * Pushes itself onto the completed queue the moment the scale operation returns or fails,
+    *   so the completion listener never has to scan the running tasks */
+   private class ClusterScaleTask implements Runnable {
+      final String _clusterId;
+      final ClusterScaleOperation _operation;
+      final Set<ClusterScaleEvent> _events;
+      private volatile boolean _done;
+      private volatile ClusterScaleCompletionEvent _result;
+
+      ClusterScaleTask(String clusterId, ClusterScaleOperation operation, Set<ClusterScaleEvent> events) {
+         _clusterId = clusterId;
+         _operation = operation;
+         _events = new HashSet<ClusterScaleEvent>(events);
+      }
+
+      boolean isDone() {
+         return _done;
+      }
+
+      @Override
+      public void run() {
+         ClusterScaleCompletionEvent result = _operation.runStage();
+         if (!_operation.isAwaiting() || !resumeWhenReady(_operation.getAwaited(), _operation.getAwaitTimeoutMillis())) {
+            _result = result;
+            _done = true;
+            _completedTasks.add(this);
+         }
+      }
+
+      /* The next stage is run by whichever comes first, the watch being done or the timeout. Returns false if we're stopping */
+      private boolean resumeWhenReady(VMStateWatch<?> awaited, long timeoutMillis) {
+         final AtomicBoolean resumed = new AtomicBoolean(false);
+         final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+               if (resumed.compareAndSet(false, true)) {
+                  try {
+                     _threadPool.execute(ClusterScaleTask.this);
+                  } catch (RejectedExecutionException e) {
+                     _log.warning("<%C"+_clusterId+"%C>: scale operation abandoned as VHM is stopping");
+                  }
+               }
+            }
+         };
+         final ScheduledFuture<?> timeout;
+         try {
+            timeout = _stageTimer.schedule(resume, timeoutMillis, TimeUnit.MILLISECONDS);
+         } catch (RejectedExecutionException e) {
+            awaited.cancel(false);
+            return false;
+         }
+         awaited.whenDone(new Runnable() {
+            @Override
+            public void run() {
+               timeout.cancel(false);
+               resume.run();
+            }
+         });
+         return true;
+      }
+
+      /* A newer exclusive event replaces an older one of the same type, so there's no point in finishing the older one */
+      boolean isSupersededBy(Set<ClusterScaleEvent> newEvents) {
+         if (isDone()) {
+            return false;
+         }
+         for (ClusterScaleEvent newEvent : newEvents) {
+            if (newEvent.isExclusive()) {
+               for (ClusterScaleEvent event : _events) {
+                  if ((event.getClass() == newEvent.getClass()) && (event.getTimestamp() < newEvent.getTimestamp())) {
+                     return true;
+                  }
+               }
+            }
+         }
+         return false;
+      }
+
+   }
+
    private final ExecutorService _threadPool;
+   private final ScheduledExecutorService _stageTimer;
    private final Map<String, ClusterTaskContext> _clusterTaskContexts;
+   private final BlockingQueue<ClusterScaleTask> _completedTasks;
    private static int _threadCounter = 0;
+   private final NoCompletionEventListener _noCompletionEventListener;
    private EventConsumer _consumer;
    private Thread _mainThread;
    private volatile boolean _started;
@@ -64,14 +165,34 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
 
    private static final Logger _log = Logger.getLogger(ThreadPoolExecutionStrategy.class.getName());
 
+   private static final int SCALE_OPERATION_MAX_CONCURRENT = ExternalizedParameters.get().getInt("SCALE_OPERATION_MAX_CONCURRENT");
+
+   /* At most SCALE_OPERATION_MAX_CONCURRENT clusters run a stage of a scale operation at once, so that a burst of instructions
+    *   can't swamp vCenter, the hosts and the job trackers. Stages beyond that wait in FIFO order. As a cluster has at most one
+    *   operation pending, each cluster waiting gets the next free thread in turn. An operation waiting between stages, for VMs
+    *   to power on or off, doesn't count towards the limit, so a few threads can drive the operations of many clusters */
    public ThreadPoolExecutionStrategy() {
-      _threadPool = Executors.newCachedThreadPool(new ThreadFactory() {
+      this(null);
+   }
+
+   public ThreadPoolExecutionStrategy(NoCompletionEventListener noCompletionEventListener) {
+      _noCompletionEventListener = noCompletionEventListener;
+      _threadPool = new ThreadPoolExecutor(SCALE_OPERATION_MAX_CONCURRENT, SCALE_OPERATION_MAX_CONCURRENT,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
          @Override
          public Thread newThread(Runnable r) {
             return new Thread(r, "Cluster_Thread_"+(_threadCounter++));
          }
       });
+      ((ThreadPoolExecutor)_threadPool).allowCoreThreadTimeOut(true);
+      _stageTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            return new Thread(r, "Cluster_Stage_Timer");
+         }
+      });
       _clusterTaskContexts = new HashMap<String, ClusterTaskContext>();
+      _completedTasks = new LinkedBlockingQueue<ClusterScaleTask>();
    }
 
    private void setScaleStrategyAndContext(ScaleStrategy scaleStrategy, ClusterTaskContext toSet) throws Exception {
@@ -99,7 +220,7 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
    }
 
    @Override
-   /* This is only ever invoked by the VHM main thread */
+   /* This is invoked by the VHM cluster triage threads, but never concurrently for the same cluster */
    /* Returns true if the events are being handled, false if this is not possible */
    public boolean handleClusterScaleEvents(String clusterId, ScaleStrategy scaleStrategy, Set<ClusterScaleEvent> events) {
       synchronized(_clusterTaskContexts) {
@@ -108,10 +229,18 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
          try {
             ctc = getClusterTaskContext(clusterId, scaleStrategy);
             if (ctc._completionEventPending != null) {
-               _log.fine("Cluster scale events already being handled for cluster <%C"+clusterId);
+               if (ctc._completionEventPending.isSupersededBy(events)) {
+                  /* The operation stops at its next checkpoint and the new events are handled once it completes */
+                  _log.info("Cancelling superseded scale operation for cluster <%C"+clusterId);
+                  ctc._completionEventPending._operation.requestCancel();
+               } else {
+                  _log.fine("Cluster scale events already being handled for cluster <%C"+clusterId);
+               }
             } else {
-               ctc._completionEventPending =
-                     _threadPool.submit(scaleStrategy.getClusterScaleOperation(clusterId, events, ctc._scaleStrategyContext));
+               ClusterScaleTask task = new ClusterScaleTask(clusterId,
+                     scaleStrategy.getClusterScaleOperation(clusterId, events, ctc._scaleStrategyContext), events);
+               ctc._completionEventPending = task;
+               _threadPool.execute(task);
                result = true;
             }
          } catch (Exception e) {
@@ -133,63 +262,69 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
       _mainThread = new Thread(new Runnable() {
          @Override
          public void run() {
-            List<ClusterScaleCompletionEvent> completedTasks = new ArrayList<ClusterScaleCompletionEvent>();
-            synchronized(_clusterTaskContexts) {
-               try {
-                  _log.info("ThreadPoolExecutionStrategy starting...");
-                  startStopCallback.notifyStarted(ThreadPoolExecutionStrategy.this);
-                  while (_started) {
-                     for (String clusterId : _clusterTaskContexts.keySet()) {
-                        ClusterTaskContext ctc = _clusterTaskContexts.get(clusterId);
-                        if (ctc._completionEventPending != null) {
-                           Future<ClusterScaleCompletionEvent> task = ctc._completionEventPending;
-                           if (task.isDone()) {
-                              try {
-                                 ClusterScaleCompletionEvent completionEvent = task.get();
-                                 if (completionEvent != null) {
-                                    _log.info("Found completed task for cluster <%C"+completionEvent.getClusterId());
-                                    completedTasks.add(completionEvent);
-                                 }
-                              } catch (InterruptedException e) {
-                                 _log.warning("<%C"+clusterId+"%C>: cluster thread interrupted");
-                              } catch (ExecutionException e) {
-                                 _log.log(Level.WARNING, "<%C"+clusterId+"%C>: exception while running scale strategy for cluster - "+ e.getMessage());
-                                 _log.log(Level.INFO, "<%C"+clusterId+"%C>: exception while running scale strategy for cluster", e);
-                              }
-                              ctc._completionEventPending = null;
-                           }
-                        }
-                     }
-                     /* Add the completed tasks in one block, ensuring a single ClusterMap update */
-                     if (completedTasks.size() > 0) {
-                        _consumer.placeEventCollectionOnQueue(completedTasks);
-                        completedTasks.clear();
+            List<ClusterScaleTask> doneTasks = new ArrayList<ClusterScaleTask>();
+            List<ClusterScaleCompletionEvent> completionEvents = new ArrayList<ClusterScaleCompletionEvent>();
+            try {
+               _log.info("ThreadPoolExecutionStrategy starting...");
+               startStopCallback.notifyStarted(ThreadPoolExecutionStrategy.this);
+               while (_started) {
+                  try {
+                     /* Block until a task completes, then take any others that completed alongside it */
+                     doneTasks.add(_completedTasks.take());
+                  } catch (InterruptedException e) {
+                     if (_started) {
+                        /* if we're not stopping then this is unexpected */
+                        _log.warning("VHM: cluster thread wait interrupted");
                      }
-                     try {
-                        _clusterTaskContexts.wait(500);
-                     } catch (InterruptedException e) {
-                        if (_started) {
-                           /* if we're not stopping then this is unexpected */
-                           _log.warning("VHM: cluster thread wait interrupted");
-                        }
+                     continue;
+                  }
+                  _completedTasks.drainTo(doneTasks);
+                  for (ClusterScaleTask task : doneTasks) {
+                     ClusterScaleCompletionEvent completionEvent = getCompletionEvent(task);
+                     if (completionEvent != null) {
+                        _log.info("Found completed task for cluster <%C"+completionEvent.getClusterId());
+                        completionEvents.add(completionEvent);
+                     } else if (_noCompletionEventListener != null) {
+                        _log.info("Found task for cluster <%C"+task._clusterId+"%C> completed without a completion event");
+                        _noCompletionEventListener.scaleCompletedWithoutEvent(task._clusterId);
                      }
                   }
-               } catch (Throwable t) {
-                  _log.log(Level.SEVERE, "VHM: unexpected exception in thread pool execution of scaling strategy - " + t.getMessage());
-                  _log.log(Level.INFO, "VHM: unexpected exception in ThreadPoolExecutionStrategy", t);
-                  startStopCallback.notifyFailed(ThreadPoolExecutionStrategy.this);
-               }
-               _log.info("ThreadPoolExecutionStrategy stopping...");
-               startStopCallback.notifyStopped(ThreadPoolExecutionStrategy.this);
-               if (_threadPool != null) {
-                  _threadPool.shutdownNow();
+                  doneTasks.clear();
+                  /* Add the completed tasks in one block, ensuring a single ClusterMap update */
+                  if (completionEvents.size() > 0) {
+                     _consumer.placeEventCollectionOnQueue(completionEvents);
+                     completionEvents = new ArrayList<ClusterScaleCompletionEvent>();
+                  }
                }
+            } catch (Throwable t) {
+               _log.log(Level.SEVERE, "VHM: unexpected exception in thread pool execution of scaling strategy - " + t.getMessage());
+               _log.log(Level.INFO, "VHM: unexpected exception in ThreadPoolExecutionStrategy", t);
+               startStopCallback.notifyFailed(ThreadPoolExecutionStrategy.this);
+            }
+            _log.info("ThreadPoolExecutionStrategy stopping...");
+            startStopCallback.notifyStopped(ThreadPoolExecutionStrategy.this);
+            if (_threadPool != null) {
+               _threadPool.shutdownNow();
             }
+            _stageTimer.shutdownNow();
          }
       }, "ScaleStrategyCompletionListener");
       _mainThread.start();
    }
 
+   /* Clears the cluster's pending task, so that new scale events can be handled, and returns its result */
+   private ClusterScaleCompletionEvent getCompletionEvent(ClusterScaleTask task) {
+      String clusterId = task._clusterId;
+      synchronized(_clusterTaskContexts) {
+         ClusterTaskContext ctc = _clusterTaskContexts.get(clusterId);
+         if ((ctc != null) && (ctc._completionEventPending == task)) {
+            ctc._completionEventPending = null;
+         }
+      }
+      /* Any exception thrown by the operation has already been logged by it */
+      return task._result;
+   }
+
    @Override
    public void stop() {
       /* TODO: Although this stops the TPES, the scaling threads its managing are possibly still running - should we block? */
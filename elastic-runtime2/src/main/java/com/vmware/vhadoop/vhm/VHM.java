@@ -15,21 +15,22 @@
 
 package com.vmware.vhadoop.vhm;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.vmware.vhadoop.api.vhm.ClusterMap;
 import com.vmware.vhadoop.api.vhm.ClusterMap.ExtraInfoToClusterMapper;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.api.vhm.ExecutionStrategy;
@@ -44,6 +45,8 @@ import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
 import com.vmware.vhadoop.api.vhm.events.EventConsumer;
 import com.vmware.vhadoop.api.vhm.events.EventInjector;
 import com.vmware.vhadoop.api.vhm.events.EventProducer;
+import com.vmware.vhadoop.api.vhm.events.EventProducer.QueueFullPolicy;
+import com.vmware.vhadoop.api.vhm.events.EventProducer.QueueFullPolicyAware;
 import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.VMChooserCallback;
@@ -51,6 +54,7 @@ import com.vmware.vhadoop.api.vhm.strategy.VMChooser;
 import com.vmware.vhadoop.util.ExternalizedParameters;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
 import com.vmware.vhadoop.util.VhmLevel;
+import com.vmware.vhadoop.vhm.DeferredEventQueue.BlockingCondition;
 import com.vmware.vhadoop.vhm.events.AbstractClusterScaleEvent;
 import com.vmware.vhadoop.vhm.events.AbstractNotificationEvent;
 import com.vmware.vhadoop.vhm.events.ClusterScaleDecision;
@@ -63,19 +67,25 @@ import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
 import com.vmware.vhadoop.vhm.strategy.ManualScaleStrategy;
 
 public class VHM implements EventConsumer {
-   private final EventProducerActions _eventProducers;
-   private final Queue<NotificationEvent> _eventQueue;
+   private final EventProducerLifecycle _eventProducers;
+   private final EventQueue _eventQueue;
    private boolean _initialized;
    private final AbstractClusterMap _clusterMap;
    private final ExecutionStrategy _executionStrategy;
    private final VCActions _vcActions;
-   private final MultipleReaderSingleWriterClusterMapAccess _clusterMapAccess;
+   private final WritableClusterMapAccess _clusterMapAccess;
    private final ClusterMapReader _parentClusterMapReader;
    private final Set<VMChooser> _vmChoosers;
-   private final Set<EventInjector> _eventInjectors;
+   private final EventInjectorFanout _eventInjectors;
+   private final EventDispatcher _eventDispatcher;
+   private final Map<String, Set<ClusterScaleEvent>> _clusterScaleEvents;
+   private final ClusterEventMailboxes _clusterMailboxes;
+   private final DeferredEventQueue _deferredEvents;
    private HealthMonitor _healthMonitor;
+   private volatile EventJournal _eventJournal;
    private volatile boolean _running = false;
    private volatile boolean _stopped = true;
+   private long _lastStatisticsTime = System.currentTimeMillis();
 
    private static final Logger _log = Logger.getLogger(VHM.class.getName());
    private static final long CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS = ExternalizedParameters.get().getLong("CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS");
@@ -83,22 +93,101 @@ public class VHM implements EventConsumer {
    private static long EVENT_PRODUCER_START_GRACE_TIME_MILLIS = ExternalizedParameters.get().getLong("EVENT_PRODUCER_START_GRACE_TIME_MILLIS");
    private static long EVENT_PRODUCER_STOP_GRACE_TIME_MILLIS = ExternalizedParameters.get().getLong("EVENT_PRODUCER_STOP_GRACE_TIME_MILLIS");
 
+   private static final long EVENT_QUEUE_BATCH_QUIET_TIME_MILLIS = ExternalizedParameters.get().getLong("EVENT_QUEUE_BATCH_QUIET_TIME_MILLIS");
+   private static final long EVENT_QUEUE_BATCH_MAX_DELAY_MILLIS = ExternalizedParameters.get().getLong("EVENT_QUEUE_BATCH_MAX_DELAY_MILLIS");
+   private static final int EVENT_QUEUE_MAX_BATCH_SIZE = ExternalizedParameters.get().getInt("EVENT_QUEUE_MAX_BATCH_SIZE");
+   private static final int EVENT_QUEUE_MIN_LANE_SHARE_PERCENT = ExternalizedParameters.get().getInt("EVENT_QUEUE_MIN_LANE_SHARE_PERCENT");
+   private static final int EVENT_QUEUE_CAPACITY = ExternalizedParameters.get().getInt("EVENT_QUEUE_CAPACITY");
+   private static final long EVENT_QUEUE_MAX_BLOCK_MILLIS = ExternalizedParameters.get().getLong("EVENT_QUEUE_MAX_BLOCK_MILLIS");
+   private static final long EVENT_QUEUE_STATISTICS_INTERVAL_MILLIS = ExternalizedParameters.get().getLong("EVENT_QUEUE_STATISTICS_INTERVAL_MILLIS");
+   private static final long DEFERRED_EVENT_INITIAL_DELAY_MILLIS = ExternalizedParameters.get().getLong("DEFERRED_EVENT_INITIAL_DELAY_MILLIS");
+   private static final int CLUSTER_TRIAGE_THREADS = ExternalizedParameters.get().getInt("CLUSTER_TRIAGE_THREADS");
+   private static final long EVENT_INJECTOR_MAX_WAIT_MILLIS = ExternalizedParameters.get().getLong("EVENT_INJECTOR_MAX_WAIT_MILLIS");
+   private static final long EVENT_JOURNAL_SEGMENT_BYTES = ExternalizedParameters.get().getLong("EVENT_JOURNAL_SEGMENT_BYTES");
+   private static final int EVENT_JOURNAL_SEGMENTS_PER_CHECKPOINT = ExternalizedParameters.get().getInt("EVENT_JOURNAL_SEGMENTS_PER_CHECKPOINT");
+
    VHM(VCActions vcActions, ScaleStrategy[] scaleStrategies,
          ExtraInfoToClusterMapper strategyMapper, ThreadLocalCompoundStatus threadLocalStatus) {
-      _eventProducers = new EventProducerActions();
-      _eventQueue = new LinkedList<NotificationEvent>();
+      this(vcActions, scaleStrategies, strategyMapper, threadLocalStatus, false, false);
+   }
+
+   /* If publishClusterMapSnapshots is true, readers are given an immutable snapshot of ClusterMap, published once per event batch,
+    * instead of waiting for VHM to finish writing to it
+    * checkClusterMapAccess turns on checks that ClusterMap is only used under a lock and accesses its data correctly. These are for debugging */
+   VHM(VCActions vcActions, ScaleStrategy[] scaleStrategies, ExtraInfoToClusterMapper strategyMapper,
+         ThreadLocalCompoundStatus threadLocalStatus, boolean publishClusterMapSnapshots, boolean checkClusterMapAccess) {
+      _eventProducers = new EventProducerLifecycle(new EventProducerLifecycle.ProducerFailureHandler() {
+         @Override
+         public void producerFailed(EventProducer producer) {
+            _log.severe("VHM: "+producer.getClass().getName()+" - event producer stopped unexpectedly, so resetting event producers");
+            placeEventOnQueue(new EventProducerResetEvent());
+         }
+      }, EVENT_PRODUCER_START_GRACE_TIME_MILLIS, EVENT_PRODUCER_STOP_GRACE_TIME_MILLIS);
+      _eventQueue = new EventQueue(EVENT_QUEUE_BATCH_QUIET_TIME_MILLIS, EVENT_QUEUE_BATCH_MAX_DELAY_MILLIS,
+            EVENT_QUEUE_MAX_BATCH_SIZE, EVENT_QUEUE_MIN_LANE_SHARE_PERCENT, new EventQueue.LaneSelector() {
+         /* User instructions and completions are latency sensitive. VC deltas are numerous and can afford to wait
+          * All ClusterStateChangeEvents must share a lane so that their order is preserved for each entity */
+         @Override
+         public EventQueue.Lane getLane(NotificationEvent event) {
+            if (event.getCanClearQueue() || (event instanceof SerengetiLimitInstruction)
+                  || (event instanceof ClusterScaleCompletionEvent) || (event instanceof EventProducerResetEvent)) {
+               return EventQueue.Lane.HIGH;
+            }
+            if (event instanceof ClusterStateChangeEvent) {
+               return EventQueue.Lane.BULK;
+            }
+            return EventQueue.Lane.NORMAL;
+         }
+
+         /* An instruction can only be resolved to a cluster once the VMs queued before it have been added to ClusterMap */
+         @Override
+         public boolean isOrderingBarrier(NotificationEvent event) {
+            return (event instanceof NewVmEvent);
+         }
+
+         @Override
+         public boolean mustFollowOrderingBarriers(NotificationEvent event) {
+            return (event instanceof SerengetiLimitInstruction);
+         }
+      });
+      _eventQueue.setCapacity(EVENT_QUEUE_CAPACITY, EVENT_QUEUE_MAX_BLOCK_MILLIS);
       _initialized = true;
       _clusterMap = new CachingClusterMapImpl(strategyMapper);
       _vcActions = vcActions;
-      _clusterMapAccess = MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(_clusterMap);
+      if (checkClusterMapAccess) {
+         _clusterMap.enableDataChecks();
+      }
+      WritableClusterMapAccess clusterMapAccess;
+      if (publishClusterMapSnapshots) {
+         clusterMapAccess = new SnapshotClusterMapAccess(_clusterMap);
+      } else {
+         clusterMapAccess = MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(_clusterMap);
+      }
+      _clusterMapAccess = checkClusterMapAccess ? new CheckedClusterMapAccess(clusterMapAccess) : clusterMapAccess;
       _parentClusterMapReader = new AbstractClusterMapReader(_clusterMapAccess, threadLocalStatus) {};
       initScaleStrategies(scaleStrategies);
-      _executionStrategy = new ThreadPoolExecutionStrategy();
+      _executionStrategy = new ThreadPoolExecutionStrategy(new ThreadPoolExecutionStrategy.NoCompletionEventListener() {
+         /* There's no completion event to update ClusterMap with, so there's nothing for events deferred by the scaling to wait for */
+         @Override
+         public void scaleCompletedWithoutEvent(String clusterId) {
+            _deferredEvents.releaseOnScaleCompletion(clusterId);
+         }
+      });
       if ((_executionStrategy instanceof EventProducer) && !registerEventProducer((EventProducer)_executionStrategy)) {
          throw new RuntimeException("Fatal error registering ThreadPoolExecutionStrategy as an event producer");
       }
       _vmChoosers = new HashSet<VMChooser>();
-      _eventInjectors = new HashSet<EventInjector>();
+      _eventInjectors = new EventInjectorFanout(this, EVENT_INJECTOR_MAX_WAIT_MILLIS);
+      _eventDispatcher = new EventDispatcher();
+      _clusterScaleEvents = new HashMap<String, Set<ClusterScaleEvent>>();
+      _deferredEvents = new DeferredEventQueue(this, DEFERRED_EVENT_INITIAL_DELAY_MILLIS, CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS);
+      _clusterMailboxes = new ClusterEventMailboxes(CLUSTER_TRIAGE_THREADS, new ClusterEventMailboxes.ClusterEventHandler() {
+         @Override
+         public void handleClusterScaleEvents(String clusterId, Set<ClusterScaleEvent> events) {
+            triageClusterScaleEvents(clusterId, events);
+         }
+      });
+      initEventDispatcher();
    }
 
    public void registerHealthMonitor(HealthMonitor healthMonitor) {
@@ -110,13 +199,31 @@ public class VHM implements EventConsumer {
          _vmChoosers.add((VMChooser)collaborator);
       }
       if (collaborator instanceof EventInjector) {
-         _eventInjectors.add((EventInjector)collaborator);
+         _eventInjectors.register((EventInjector)collaborator);
       }
       if (collaborator instanceof ClusterMapReader) {
          ((ClusterMapReader)collaborator).initialize(_parentClusterMapReader);
       }
    }
 
+   /* Rebuilds ClusterMap from the event journal in the directory given, then journals all subsequent cluster state changes
+    * The recovered events are queued ahead of anything from vCenter, so ClusterMap is populated as soon as VHM starts
+    * Must be called before any event producers are registered. Returns the IDs of the VMs recovered, or null on failure */
+   public Set<String> openEventJournal(String directory) {
+      EventJournal journal = new EventJournal(new File(directory), EVENT_JOURNAL_SEGMENT_BYTES, EVENT_JOURNAL_SEGMENTS_PER_CHECKPOINT);
+      try {
+         List<ClusterStateChangeEvent> recoveredEvents = journal.recover();
+         _eventQueue.addAll(recoveredEvents);
+         _eventJournal = journal;
+         _log.info("Queued "+recoveredEvents.size()+" events recovered from the event journal");
+         return journal.getKnownVmIds();
+      } catch (IOException e) {
+         _log.log(Level.WARNING, "VHM: unable to recover from event journal in "+directory+" - "+e.getMessage());
+         journal.close();
+         return null;
+      }
+   }
+
    private void initScaleStrategies(ScaleStrategy[] scaleStrategies) {
       for (ScaleStrategy strategy : scaleStrategies) {
          _clusterMap.registerScaleStrategy(strategy);
@@ -145,119 +252,6 @@ public class VHM implements EventConsumer {
       }
    }
 
-   /* Threading Requirement:
-    *  - Protect _eventProducers collection from changing while another thread is iterating over it
-    *  - Treat stop() start() and reset() as blocking atomic operations
-    *  - Allow threads to figure out the state of the event producers without blocking
-    */
-   private class EventProducerActions {
-      private final Set<EventProducer> _eventProducers = new HashSet<EventProducer>();
-      private final Set<EventProducer> _startedProducers = Collections.synchronizedSet(new HashSet<EventProducer>());      /* DO NOT ITERATE */
-      private final EventProducer.EventProducerStartStopCallback _startStopHandler = new EventProducerStartStopHandler();
-
-      private class EventProducerStartStopHandler implements EventProducer.EventProducerStartStopCallback {
-         @Override
-         public void notifyFailed(EventProducer thisProducer) {
-            _log.severe("VHM: "+thisProducer.getClass().getName()+" - event producer stopped unexpectedly, so resetting event producers");
-            placeEventOnQueue(new EventProducerResetEvent());
-         }
-
-         @Override
-         public void notifyStarted(EventProducer thisProducer) {
-            _startedProducers.add(thisProducer);
-            _log.fine("Total started event producers = "+_startedProducers.size());
-         }
-
-         @Override
-         public void notifyStopped(EventProducer thisProducer) {
-            _startedProducers.remove(thisProducer);
-            _log.fine("Total started event producers = "+_startedProducers.size());
-         }
-      }
-
-      /* Block until the event producers to be started have actually stopped */
-      synchronized boolean stop() {
-         boolean result;
-         Set<EventProducer> waitForStop = new HashSet<EventProducer>();
-         for (EventProducer eventProducer : _eventProducers) {
-            if (_startedProducers.contains(eventProducer)) {
-               eventProducer.stop();
-               waitForStop.add(eventProducer);
-            }
-         }
-         result = waitForStateChange(waitForStop, false, EVENT_PRODUCER_STOP_GRACE_TIME_MILLIS);
-         _log.fine("Event producers stop returning "+result);
-         return result;
-      }
-
-      /* Block until the event producers to be started have actually started */
-      synchronized boolean start() {
-         boolean result;
-         Set<EventProducer> waitForStart = new HashSet<EventProducer>();
-         for (EventProducer eventProducer : _eventProducers) {
-            if (!_startedProducers.contains(eventProducer)) {
-               eventProducer.start(_startStopHandler);
-               waitForStart.add(eventProducer);
-            }
-         }
-         result = waitForStateChange(waitForStart, true, EVENT_PRODUCER_START_GRACE_TIME_MILLIS);
-         _log.fine("Event producers start returning "+result);
-         return result;
-      }
-
-      private boolean waitForStateChange(Set<EventProducer> producers, boolean waitForStart, long timeoutMillis) {
-         boolean done;
-         int timeoutCountdown = (int)timeoutMillis;
-         final int sleepTimeMillis = 100;
-         do {
-            done = true;
-            for (EventProducer producer : producers) {
-               if (_startedProducers.contains(producer) != waitForStart) {
-                  done = false;
-                  break;
-               }
-            }
-            try {
-               Thread.sleep(sleepTimeMillis);
-            } catch (InterruptedException e) {}
-         } while (!done && ((timeoutCountdown -= sleepTimeMillis) > 0));
-         return (timeoutCountdown > 0);
-      }
-
-      /* Block until the event producers to be started have restarted */
-      synchronized boolean reset() {
-         if (stop()) {
-            if (start()) {
-               _log.fine("Event producers successfully restarted");
-               return true;
-            } else {
-               _log.warning("VHM: event producers start failed during reset");
-            }
-         } else {
-            _log.warning("VHM: event producers stop failed during reset");
-         }
-         return false;
-      }
-
-      synchronized boolean registerNew(EventProducer eventProducer) {
-         boolean result = true;
-         _eventProducers.add(eventProducer);
-         eventProducer.registerEventConsumer(VHM.this);
-         if (eventProducer instanceof ClusterMapReader) {
-            ((ClusterMapReader)eventProducer).initialize(_parentClusterMapReader);
-         }
-         eventProducer.start(_startStopHandler);
-         Set<EventProducer> singleItemSet = new HashSet<EventProducer>();
-         result = waitForStateChange(singleItemSet, true, EVENT_PRODUCER_START_GRACE_TIME_MILLIS);
-         _log.fine("Event producer "+eventProducer.getClass().getName()+" registerd. Start result = "+result);
-         return result;
-      }
-
-      boolean isAllStopped() {
-         return _startedProducers.isEmpty();
-      }
-   }
-
    private boolean checkForProducerReset(Set<NotificationEvent> events) {
       List<NotificationEvent> toRemove = null;
       for (NotificationEvent notificationEvent : events) {
@@ -276,27 +270,15 @@ public class VHM implements EventConsumer {
       return false;
    }
 
-   public boolean registerEventProducer(EventProducer eventProducer) {
-      return _eventProducers.registerNew(eventProducer);
-   }
-
-   private void addEventToQueue(NotificationEvent event) {
-      Queue<NotificationEvent> toKeepQueue = null;
-      if (event.getCanClearQueue()) {
-         for (NotificationEvent e : _eventQueue) {
-            if (!e.getCanBeClearedFromQueue()) {
-               if (toKeepQueue == null) {
-                  toKeepQueue = new LinkedList<NotificationEvent>();
-               }
-               toKeepQueue.add(e);
-            }
-         }
-         _eventQueue.clear();
-      }
-      _eventQueue.add(event);
-      if (toKeepQueue != null) {
-         _eventQueue.addAll(toKeepQueue);
+   /* Blocks until the producer has started. A producer is only started once the producers it depends on have started */
+   public boolean registerEventProducer(EventProducer eventProducer, EventProducer... dependencies) {
+      eventProducer.registerEventConsumer(new ProducerEventConsumer(eventProducer));
+      if (eventProducer instanceof ClusterMapReader) {
+         ((ClusterMapReader)eventProducer).initialize(_parentClusterMapReader);
       }
+      boolean result = _eventProducers.register(eventProducer, dependencies);
+      _log.fine("Event producer "+eventProducer.getClass().getName()+" registered. Start result = "+result);
+      return result;
    }
 
    /* This can be called by multiple threads */
@@ -306,9 +288,45 @@ public class VHM implements EventConsumer {
          return;
       }
       if (event != null) {
-         synchronized(_eventQueue) {
-            addEventToQueue(event);
-            _eventQueue.notify();
+         _eventQueue.add(event);
+      }
+   }
+
+   /* Each event producer is given its own EventConsumer so that the queue can apply the producer's QueueFullPolicy */
+   private class ProducerEventConsumer implements EventConsumer {
+      private final QueueFullPolicy _queueFullPolicy;
+
+      ProducerEventConsumer(EventProducer eventProducer) {
+         QueueFullPolicy policy = null;
+         if (eventProducer instanceof QueueFullPolicyAware) {
+            policy = ((QueueFullPolicyAware)eventProducer).getQueueFullPolicy();
+         }
+         _queueFullPolicy = (policy == null) ? QueueFullPolicy.ADMIT : policy;
+      }
+
+      /* Cluster state changes are journaled before they are queued, so nothing the queue has accepted can be lost */
+      private void journal(NotificationEvent event) {
+         EventJournal journal = _eventJournal;
+         if ((journal != null) && EventJournal.isJournaled(event)) {
+            journal.append((ClusterStateChangeEvent)event);
+         }
+      }
+
+      @Override
+      public void placeEventOnQueue(NotificationEvent event) {
+         if (_initialized && (event != null)) {
+            journal(event);
+            _eventQueue.add(event, _queueFullPolicy);
+         }
+      }
+
+      @Override
+      public void placeEventCollectionOnQueue(List<? extends NotificationEvent> events) {
+         if (_initialized) {
+            for (NotificationEvent event : events) {
+               journal(event);
+            }
+            _eventQueue.addAll(events, _queueFullPolicy);
          }
       }
    }
@@ -318,12 +336,7 @@ public class VHM implements EventConsumer {
       if (!_initialized) {
          return;
       }
-      synchronized(_eventQueue) {
-         for (NotificationEvent event : events) {
-            addEventToQueue(event);
-         }
-         _eventQueue.notify();
-      }
+      _eventQueue.addAll(events);
    }
 
    @Override
@@ -331,40 +344,36 @@ public class VHM implements EventConsumer {
       if (!_initialized) {
          return;
       }
-      synchronized(_eventQueue) {
-         for (NotificationEvent event : events) {
-            addEventToQueue(event);
-         }
-         _eventQueue.notify();
-      }
+      _eventQueue.addAll(events);
    }
 
+   /* Blocks until there is at least one event and then returns the burst of events that arrived with it
+    * Events with the same event key will already have been merged by the queue */
    public Set<NotificationEvent> pollForEvents() {
-      Set<NotificationEvent> results = null;
-      synchronized(_eventQueue) {
-         while (_eventQueue.peek() == null) {
-            try {
-               _eventQueue.wait();
-            } catch (InterruptedException e) {
-               _log.warning("VHM: interrupted unexpectedly while waiting for event");
-            }
-         }
-         results = new LinkedHashSet<NotificationEvent>();
-         while (_eventQueue.peek() != null) {
-            /* Use of a Set ensured duplicates are eliminated */
-            /* TODO: add an event key to do event consolidation. At the moment events use the default equality so this has little effect */
-            results.add(_eventQueue.poll());
+      while (true) {
+         try {
+            Set<NotificationEvent> result = _eventQueue.takeBatch();
+            logStatistics();
+            return result;
+         } catch (InterruptedException e) {
+            _log.warning("VHM: interrupted unexpectedly while waiting for event");
          }
       }
-      return results;
    }
 
-   public NotificationEvent getEventPending() {
-      synchronized(_eventQueue) {
-         return _eventQueue.peek();
+   private void logStatistics() {
+      long now = System.currentTimeMillis();
+      if ((EVENT_QUEUE_STATISTICS_INTERVAL_MILLIS > 0) && ((now - _lastStatisticsTime) >= EVENT_QUEUE_STATISTICS_INTERVAL_MILLIS)) {
+         _lastStatisticsTime = now;
+         _log.info("Event queue statistics: "+_eventQueue.getStatistics());
+         _log.info("Event dispatch statistics: "+_eventDispatcher.getStageStatistics());
       }
    }
 
+   public NotificationEvent getEventPending() {
+      return _eventQueue.peek();
+   }
+
    /* TODO: Note that currently, this method cannot deal with a clusterScaleEvent with just a hostId
     * We should be able to deal with this at some point - ie: general host contention impacts multiple clusters */
    private String completeClusterScaleEventDetails(AbstractClusterScaleEvent event) {
@@ -415,67 +424,25 @@ public class VHM implements EventConsumer {
       clusterScaleEvents.add(newEvent);
    }
 
-   /* The method takes all new events polled from the event queue, pulls out any ClsuterScaleEvents and organizes them by Cluster */
-   private void getQueuedScaleEventsForCluster(Set<NotificationEvent> events, Map<String, Set<ClusterScaleEvent>> clusterScaleEventMap) {
+   /* The method takes all new ClusterScaleEvents polled from the event queue or injected, and organizes them by Cluster */
+   private void getQueuedScaleEventsForCluster(List<AbstractClusterScaleEvent> events, Map<String, Set<ClusterScaleEvent>> clusterScaleEventMap) {
       if (clusterScaleEventMap != null) {
-         for (NotificationEvent event : events) {
-            if (event instanceof AbstractClusterScaleEvent) {
-               /* Derive the cluster ID and other details if the event does not already have it */
-               String clusterId = completeClusterScaleEventDetails((AbstractClusterScaleEvent)event);
-               if (clusterId != null) {
-                  updateOrCreateClusterScaleEventSet(clusterId, (ClusterScaleEvent)event, clusterScaleEventMap);
-               } else if (event instanceof SerengetiLimitInstruction) {
-                  try {
-                     ((SerengetiLimitInstruction) event).reportError("Unable to resolve cluster ID from vCenter");
-                  } catch (CannotConnectException e) {
-                     _log.warning("Failed to report error back on rabbit queue: "+e.getCause().getMessage());
-                  }
+         for (AbstractClusterScaleEvent event : events) {
+            /* Derive the cluster ID and other details if the event does not already have it */
+            String clusterId = completeClusterScaleEventDetails(event);
+            if (clusterId != null) {
+               updateOrCreateClusterScaleEventSet(clusterId, event, clusterScaleEventMap);
+            } else if (event instanceof SerengetiLimitInstruction) {
+               try {
+                  ((SerengetiLimitInstruction) event).reportError("Unable to resolve cluster ID from vCenter");
+               } catch (CannotConnectException e) {
+                  _log.warning("Failed to report error back on rabbit queue: "+e.getCause().getMessage());
                }
             }
          }
       }
    }
 
-   private Set<ClusterStateChangeEvent> getClusterAddRemoveEvents(Set<NotificationEvent> events) {
-      Set<ClusterStateChangeEvent> results = new LinkedHashSet<ClusterStateChangeEvent>();      /* Preserve order */
-      for (NotificationEvent event : events) {
-         if ((event instanceof NewVmEvent) || (event instanceof VmRemovedFromClusterEvent)) {
-            results.add((ClusterStateChangeEvent)event);
-         }
-      }
-      return results;
-   }
-
-   private Set<ClusterStateChangeEvent> getClusterUpdateEvents(Set<NotificationEvent> events) {
-      Set<ClusterStateChangeEvent> results = new LinkedHashSet<ClusterStateChangeEvent>();      /* Preserve order */
-      for (NotificationEvent event : events) {
-         if ((event instanceof VmUpdateEvent) || (event instanceof ClusterUpdateEvent)) {
-            results.add((ClusterStateChangeEvent)event);
-         }
-      }
-      return results;
-   }
-
-   private Set<ClusterScaleCompletionEvent> getClusterScaleCompletionEvents(Set<NotificationEvent> events) {
-      Set<ClusterScaleCompletionEvent> results = new LinkedHashSet<ClusterScaleCompletionEvent>();      /* Preserve order */
-      for (NotificationEvent event : events) {
-         if (event instanceof ClusterScaleCompletionEvent) {
-            results.add((ClusterScaleCompletionEvent)event);
-         }
-      }
-      return results;
-   }
-
-   private Set<ClusterHealthEvent> getClusterHealthEvents(Set<NotificationEvent> events) {
-      Set<ClusterHealthEvent> results = new LinkedHashSet<ClusterHealthEvent>();      /* Preserve order */
-      for (NotificationEvent event : events) {
-         if (event instanceof ClusterHealthEvent) {
-            results.add((ClusterHealthEvent)event);
-         }
-      }
-      return results;
-   }
-
    private void doRemove(Set<ClusterScaleEvent> scaleEventsForCluster, Set<ClusterScaleEvent> toRemove, String method) {
       if (toRemove != null) {
          int beforeSize = scaleEventsForCluster.size();
@@ -557,7 +524,7 @@ public class VHM implements EventConsumer {
 
    /* Process new cluster state change events received from the ClusterStateChangeListener
     * The impliedScaleEventsMap allows any clusterScaleEvents implied by cluster state changes to be added */
-   private void handleClusterStateChangeEvents(Set<ClusterStateChangeEvent> eventsToProcess,
+   private void handleClusterStateChangeEvents(List<ClusterStateChangeEvent> eventsToProcess,
          Map<String, Set<ClusterScaleEvent>> impliedScaleEventsMap) {
       Set<ClusterScaleEvent> impliedScaleEventsForCluster = new LinkedHashSet<ClusterScaleEvent>();    /* Preserve order */
 
@@ -567,6 +534,12 @@ public class VHM implements EventConsumer {
          /* ClusterMap will process the event and may add an implied scale event (see ExtraInfoToClusterMapper) */
          String clusterId = _clusterMap.handleClusterEvent(event, impliedScaleEventsForCluster);
          if (clusterId != null) {
+            /* Any events deferred because of the state of this cluster get another chance */
+            if (_clusterMap.getCluster(clusterId) == null) {
+               _deferredEvents.releaseOnClusterRemoval(clusterId);
+            } else {
+               _deferredEvents.releaseOnClusterStateChange(clusterId);
+            }
 
             /* If there are new scale events, create or update the Set in the impliedScaleEventsMap */
             if (impliedScaleEventsForCluster.size() > 0) {
@@ -582,150 +555,227 @@ public class VHM implements EventConsumer {
       }
    }
 
-   /* When events are polled, this is the first method that gets the opportunity to triage them */
-   private void handleEvents(Set<NotificationEvent> events) {
-      final Set<NotificationEvent> newRequeuedAndInjectedEvents = new LinkedHashSet<NotificationEvent>(events);
-
+   /* Events are classified once into the buffers below and then passed through the stages in registration order:
+    *  - ClusterMap is updated by VHM based on events that come in from the ClusterStateChangeListener
+    *    This is done first to ensure that the latest state is reflected ASAP. Note that clusterScaleEvents can be implied
+    *    by cluster state changes and completion events may ask for events to be requeued, so new events can be added here
+    *  - Event injection happens immediately after ClusterMap has been updated and allows collaborators to inject derived events
+    *  - Events that indicate a change in health status for a cluster are passed to the health monitor
+    *  - Any scale events are organized by cluster and passed to the scale strategy for each cluster */
+   private void initEventDispatcher() {
       /* addRemoveEvents are events that affect the shape of a cluster */
-      final Set<ClusterStateChangeEvent> addRemoveEvents = getClusterAddRemoveEvents(events);
+      final EventDispatcher.EventBuffer<ClusterStateChangeEvent> addRemoveEvents =
+            _eventDispatcher.registerBuffer(ClusterStateChangeEvent.class, NewVmEvent.class, VmRemovedFromClusterEvent.class);
 
       /* updateEvents are events that change the state of a cluster */
-      final Set<ClusterStateChangeEvent> updateEvents = getClusterUpdateEvents(events);
+      final EventDispatcher.EventBuffer<ClusterStateChangeEvent> updateEvents =
+            _eventDispatcher.registerBuffer(ClusterStateChangeEvent.class, VmUpdateEvent.class, ClusterUpdateEvent.class);
 
       /* completionEvents are received when a cluster scale thread has finished executing */
-      final Set<ClusterScaleCompletionEvent> completionEvents = getClusterScaleCompletionEvents(events);
+      final EventDispatcher.EventBuffer<ClusterScaleCompletionEvent> completionEvents =
+            _eventDispatcher.registerBuffer(ClusterScaleCompletionEvent.class, ClusterScaleCompletionEvent.class);
+
+      /* All new, requeued and injected events */
+      final EventDispatcher.EventBuffer<NotificationEvent> allEvents =
+            _eventDispatcher.registerBuffer(NotificationEvent.class, NotificationEvent.class);
+
+      /* healthEvents indicate a change in health status for a cluster */
+      final EventDispatcher.EventBuffer<ClusterHealthEvent> healthEvents =
+            _eventDispatcher.registerBuffer(ClusterHealthEvent.class, ClusterHealthEvent.class);
 
       /* clusterScaleEvents are events suggesting the scaling up or down of a cluster */
-      /* (we really want to ensure that no null clusterIds get added to clusterScaleEvents in the event of an error) */
-      final Map<String, Set<ClusterScaleEvent>> clusterScaleEvents = new HashMap<String, Set<ClusterScaleEvent>>();
+      final EventDispatcher.EventBuffer<AbstractClusterScaleEvent> scaleEvents =
+            _eventDispatcher.registerBuffer(AbstractClusterScaleEvent.class, AbstractClusterScaleEvent.class);
 
-      /* ClusterMap is updated by VHM based on events that come in from the ClusterStateChangeListener
-       * The first thing we do here is update ClusterMap to ensure that the latest state is reflected ASAP
-       * Note that clusterScaleEvents can be implied by cluster state changes, so new clusterScaleEvents can be added here */
-      if ((addRemoveEvents.size() + updateEvents.size() + completionEvents.size()) > 0) {
-         try {
-            _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
-               @Override
-               public Object call() throws Exception {
-   
-                  /* Add/remove events are handled first as these will have the most significant impact */
-                  handleClusterStateChangeEvents(addRemoveEvents, clusterScaleEvents);
-   
-                  /* Note that the scale strategy key may be updated here so any subsequent call to getScaleStrategyForCluster will reflect the change */
-                  handleClusterStateChangeEvents(updateEvents, clusterScaleEvents);
-                  for (ClusterScaleCompletionEvent event : completionEvents) {
-                     _log.info("ClusterScaleCompletionEvent received: "+event.getClass().getName());
-                     if (event instanceof ClusterScaleDecision) {
-                        /* The option exists for a scaleStrategy to ask for an event to be re-queued, causing it to be re-invoked */
-                        List<NotificationEvent> eventsToRequeue = ((ClusterScaleDecision)event).getEventsToRequeue();
-                        if (eventsToRequeue != null) {
-                           _log.info("Requeuing event(s) from ClusterScaleCompletionEvent: "+eventsToRequeue);
-                           newRequeuedAndInjectedEvents.addAll(eventsToRequeue);
+      _eventDispatcher.registerStage("clusterMapUpdate", new EventDispatcher.EventStage() {
+         @Override
+         public void handleEvents(EventDispatcher dispatcher) {
+            if ((addRemoveEvents.size() + updateEvents.size() + completionEvents.size()) == 0) {
+               return;
+            }
+            final List<NotificationEvent> requeuedEvents = new ArrayList<NotificationEvent>();
+            try {
+               _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+                  @Override
+                  public Object call() throws Exception {
+
+                     /* Add/remove events are handled first as these will have the most significant impact */
+                     handleClusterStateChangeEvents(addRemoveEvents.getEvents(), _clusterScaleEvents);
+
+                     /* Note that the scale strategy key may be updated here so any subsequent call to getScaleStrategyForCluster will reflect the change */
+                     handleClusterStateChangeEvents(updateEvents.getEvents(), _clusterScaleEvents);
+                     for (ClusterScaleCompletionEvent event : completionEvents.getEvents()) {
+                        _log.info("ClusterScaleCompletionEvent received: "+event.getClass().getName());
+                        if (event instanceof ClusterScaleDecision) {
+                           /* The option exists for a scaleStrategy to ask for an event to be re-queued, causing it to be re-invoked */
+                           List<NotificationEvent> eventsToRequeue = ((ClusterScaleDecision)event).getEventsToRequeue();
+                           if (eventsToRequeue != null) {
+                              _log.info("Requeuing event(s) from ClusterScaleCompletionEvent: "+eventsToRequeue);
+                              requeuedEvents.addAll(eventsToRequeue);
+                           }
                         }
+                        _clusterMap.handleCompletionEvent(event);
+                        _deferredEvents.releaseOnScaleCompletion(event.getClusterId());
                      }
-                     _clusterMap.handleCompletionEvent(event);
+                     return null;
                   }
-                  return null;
-               }
-            });
-         } catch (Exception e) {
-            _log.severe("Exception updating ClusterMap: "+e);
+               });
+            } catch (Exception e) {
+               _log.severe("Exception updating ClusterMap: "+e);
+            }
+            dispatcher.classifyAll(requeuedEvents);
          }
-      }
+      });
 
-      /* Event injection happens immediately after ClusterMap has been updated and allows collaborators to inject derived events to be processed */
-      Set<NotificationEvent> allInjectedEvents = new LinkedHashSet<NotificationEvent>();
-      for (NotificationEvent event : newRequeuedAndInjectedEvents) {
-         for (EventInjector eventInjector : _eventInjectors) {
-            Set<? extends NotificationEvent> newEvents = eventInjector.processEvent(event);
-            if (newEvents != null) {
-               for (NotificationEvent injectedEvent : newEvents) {
-                  _log.info(eventInjector.getName()+" injecting new event "+injectedEvent+" in response to event "+event);
-               }
-               allInjectedEvents.addAll(newEvents);
+      _eventDispatcher.registerStage("eventInjection", new EventDispatcher.EventStage() {
+         @Override
+         public void handleEvents(EventDispatcher dispatcher) {
+            if (_eventInjectors.isEmpty()) {
+               return;
+            }
+            dispatcher.classifyAll(_eventInjectors.injectEvents(allEvents.getEvents()));
+         }
+      });
+
+      _eventDispatcher.registerStage("clusterHealth", new EventDispatcher.EventStage() {
+         @Override
+         public void handleEvents(EventDispatcher dispatcher) {
+            if (_healthMonitor != null) {
+               Set<ClusterHealthEvent> healthEventSet = (healthEvents.size() == 0) ? Collections.<ClusterHealthEvent>emptySet() :
+                  new LinkedHashSet<ClusterHealthEvent>(healthEvents.getEvents());
+               _healthMonitor.handleHealthEvents(_vcActions, healthEventSet);
             }
          }
+      });
+
+      _eventDispatcher.registerStage("clusterScale", new EventDispatcher.EventStage() {
+         @Override
+         public void handleEvents(EventDispatcher dispatcher) {
+            getQueuedScaleEventsForCluster(scaleEvents.getEvents(), _clusterScaleEvents);
+            handleClusterScaleEvents(_clusterScaleEvents);
+         }
+      });
+   }
+
+   /* If there are scale events to handle, we need to invoke the scale strategies for each cluster
+    * The events for each cluster are posted to that cluster's mailbox and triaged concurrently with other clusters */
+   private void handleClusterScaleEvents(Map<String, Set<ClusterScaleEvent>> clusterScaleEvents) {
+      for (String clusterId : clusterScaleEvents.keySet()) {
+         if (clusterId == null) {
+            /* This should not happen - defensive coding */
+            continue;
+         }
+         Set<ClusterScaleEvent> unconsolidatedEvents = clusterScaleEvents.get(clusterId);
+         if ((unconsolidatedEvents == null) || (unconsolidatedEvents.size() == 0)) {
+            continue;
+         }
+         _clusterMailboxes.post(clusterId, unconsolidatedEvents);
       }
-      newRequeuedAndInjectedEvents.addAll(allInjectedEvents);
+   }
 
-      /* events that indicate a change in health status for a cluster */
-      Set<ClusterHealthEvent> healthEvents = getClusterHealthEvents(newRequeuedAndInjectedEvents);
-      if ((_healthMonitor != null) && (healthEvents != null)) {
-         _healthMonitor.handleHealthEvents(_vcActions, healthEvents);
+   /* Invoked by the cluster mailbox threads. Triage for any one cluster is never run concurrently
+    * ClusterMap is only ever modified by the VHM main thread, so it is read-locked here while state is gathered
+    * The locked ClusterMap must be used rather than _clusterMap, as it may be a snapshot */
+   private void triageClusterScaleEvents(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents) {
+      Boolean clusterCompleteness;
+      ScaleStrategy scaleStrategy;
+      String scaleStrategyKey;
+      /* Must be read before any of the conditions which may cause events to be deferred are tested */
+      long releaseSequence = _deferredEvents.getReleaseSequence(clusterId);
+
+      /* Events already deferred for this cluster are handled along with the new ones, ahead of them */
+      List<ClusterScaleEvent> deferredEvents = _deferredEvents.takeDeferred(clusterId);
+      if (deferredEvents != null) {
+         Set<ClusterScaleEvent> allEvents = new LinkedHashSet<ClusterScaleEvent>(deferredEvents);
+         allEvents.addAll(unconsolidatedEvents);
+         unconsolidatedEvents = allEvents;
+      }
+      ClusterMap clusterMap = _clusterMapAccess.lockClusterMap();
+      if (clusterMap == null) {
+         _log.severe("<%C"+clusterId+"%C>: unable to lock ClusterMap. Putting event collection back on queue");
+         requeueExistingEvents(new ArrayList<ClusterScaleEvent>(unconsolidatedEvents));
+         return;
+      }
+      try {
+         AbstractClusterMap lockedClusterMap = (AbstractClusterMap)CheckedClusterMapAccess.unwrap(clusterMap);
+         clusterCompleteness = lockedClusterMap.isClusterComplete(clusterId);
+
+         /* Note that any update to the scale strategy will already have been processed in handleClusterStateChangeEvents */
+         scaleStrategy = lockedClusterMap.getScaleStrategyForCluster(clusterId);
+         scaleStrategyKey = lockedClusterMap.getScaleStrategyKey(clusterId);
+      } finally {
+         _clusterMapAccess.unlockClusterMap(clusterMap);
       }
 
-      getQueuedScaleEventsForCluster(newRequeuedAndInjectedEvents, clusterScaleEvents);
-      /* If there are scale events to handle, we need to invoke the scale strategies for each cluster
-       * The ordering in which we process the clusters doesn't matter as they will be done concurrently */
-      if (clusterScaleEvents.size() > 0) {
-         for (String clusterId : clusterScaleEvents.keySet()) {
-            if (clusterId == null) {
-               /* This should not happen - defensive coding */
-               continue;
-            }
-            Set<ClusterScaleEvent> unconsolidatedEvents = clusterScaleEvents.get(clusterId);
-            if (unconsolidatedEvents == null) {
-               continue;
-            }
-            /* If ClusterMap has not yet been fully updated with information about a cluster, defer this operation */
-            Boolean clusterCompleteness = _clusterMap.validateClusterCompleteness(clusterId, CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS);
-            if (clusterCompleteness != null) {
-               if (!clusterCompleteness) {
-                  if (unconsolidatedEvents.size() > 0) {
-                     _log.info("ClusterInfo not yet complete. Putting event collection back on queue for cluster <%C"+clusterId);
-                     requeueExistingEvents(new ArrayList<ClusterScaleEvent>(unconsolidatedEvents));
-                  }
-                  continue;
-               }
-            } else {
-               _log.warning("<%C"+clusterId+"%C>: cluster has been incomplete for longer than the grace period of "
-                                                      +CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS+"ms. Dumping queued events for it");
-               continue;
-            }
+      /* If ClusterMap has not yet been fully updated with information about a cluster, defer this operation */
+      if ((clusterCompleteness == null) || !clusterCompleteness) {
+         if ((clusterCompleteness != null) && _deferredEvents.isWithinIncompleteGracePeriod(clusterId, CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS)) {
+            _log.info("ClusterInfo not yet complete. Deferring event collection for cluster <%C"+clusterId);
+            _deferredEvents.defer(clusterId, BlockingCondition.CLUSTER_INCOMPLETE, unconsolidatedEvents, releaseSequence);
+         } else {
+            _log.warning("<%C"+clusterId+"%C>: cluster has been incomplete for longer than the grace period of "
+                                                +CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS+"ms. Dumping queued events for it");
+         }
+         return;
+      }
+      _deferredEvents.resetIncompleteTime(clusterId);
 
-            /* Note that any update to the scale strategy will already have been processed above in handleClusterStateChangeEvents */
-            ScaleStrategy scaleStrategy = _clusterMap.getScaleStrategyForCluster(clusterId);
-            if (scaleStrategy == null) {
-               _log.severe("<%C"+clusterId+"%C>: there is no scaleStrategy set for cluster");
-               continue;
-            }
+      if (scaleStrategy == null) {
+         _log.severe("<%C"+clusterId+"%C>: there is no scaleStrategy set for cluster");
+         return;
+      }
 
-            _log.finer("Using "+scaleStrategy.getKey()+" scale strategy to filter events for cluster <%C"+clusterId);
-
-            /* UnconsolidatedEvents guaranteed to be non-null and consolidatedEvents should be a trimmed down version of the same collection */
-            Set<ClusterScaleEvent> consolidatedEvents = consolidateClusterEvents(scaleStrategy, unconsolidatedEvents);
-            if (consolidatedEvents.size() > 0) {
-               /* If there is an instruction from Serengeti to switch to manual, strip out that one event and dump the others */
-               SerengetiLimitInstruction switchToManualEvent = pendingBlockingSwitchToManual(consolidatedEvents);
-               if (switchToManualEvent != null) {
-                  /* If Serengeti has made the necessary change to extraInfo AND any other scaling has completed, inform completion */
-                  boolean extraInfoChanged = _clusterMap.getScaleStrategyKey(clusterId).equals(ManualScaleStrategy.MANUAL_SCALE_STRATEGY_KEY);
-                  boolean scalingCompleted = !_executionStrategy.isClusterScaleInProgress(clusterId);
-                  try {
-                     if (extraInfoChanged && scalingCompleted) {
-                        _log.info("Switch to manual scale strategy for cluster <%C"+clusterId+"%C> is now complete. Reporting back to Serengeti");
-                        switchToManualEvent.reportCompletion();
-                     } else {
-                        /* Continue to block Serengeti CLI by putting the event back on the queue */
-                        switchToManualEvent.reportProgress(0, "waiting for current scaling operation to complete");
-                        requeueExistingEvents(Arrays.asList(new ClusterScaleEvent[]{switchToManualEvent}));
-                     }
-                  } catch (CannotConnectException e) {
-                     _log.warning("Failed to report progress back on rabbit queue: "+e.getCause().getMessage());
-                  }
-               /* Call out to the execution strategy to handle the scale events for the cluster - non blocking */
-               } else if (!_executionStrategy.handleClusterScaleEvents(clusterId, scaleStrategy, consolidatedEvents)) {
-                  /* If we couldn't schedule handling of the events, put them back on the queue in their un-consolidated form */
-                  _log.finest("Putting event collection back onto VHM queue - size="+unconsolidatedEvents.size());
-                  requeueExistingEvents(new ArrayList<ClusterScaleEvent>(unconsolidatedEvents));
+      _log.finer("Using "+scaleStrategy.getKey()+" scale strategy to filter events for cluster <%C"+clusterId);
+
+      /* UnconsolidatedEvents guaranteed to be non-null and consolidatedEvents should be a trimmed down version of the same collection */
+      Set<ClusterScaleEvent> consolidatedEvents = consolidateClusterEvents(scaleStrategy, unconsolidatedEvents);
+      if (consolidatedEvents.size() > 0) {
+         /* If there is an instruction from Serengeti to switch to manual, strip out that one event and dump the others */
+         SerengetiLimitInstruction switchToManualEvent = pendingBlockingSwitchToManual(consolidatedEvents);
+         if (switchToManualEvent != null) {
+            /* If Serengeti has made the necessary change to extraInfo AND any other scaling has completed, inform completion */
+            boolean extraInfoChanged = ManualScaleStrategy.MANUAL_SCALE_STRATEGY_KEY.equals(scaleStrategyKey);
+            boolean scalingCompleted = !_executionStrategy.isClusterScaleInProgress(clusterId);
+            try {
+               if (extraInfoChanged && scalingCompleted) {
+                  _log.info("Switch to manual scale strategy for cluster <%C"+clusterId+"%C> is now complete. Reporting back to Serengeti");
+                  switchToManualEvent.reportCompletion();
+                  _deferredEvents.resetBackoff(clusterId);
+               } else {
+                  /* Continue to block Serengeti CLI by deferring the event until the extraInfo changes or scaling completes */
+                  switchToManualEvent.reportProgress(0, "waiting for current scaling operation to complete");
+                  _deferredEvents.defer(clusterId, BlockingCondition.WAITING_FOR_MANUAL,
+                        Arrays.asList(new ClusterScaleEvent[]{switchToManualEvent}), releaseSequence);
                }
+            } catch (CannotConnectException e) {
+               _log.warning("Failed to report progress back on rabbit queue: "+e.getCause().getMessage());
             }
+         /* Call out to the execution strategy to handle the scale events for the cluster - non blocking */
+         } else if (_executionStrategy.handleClusterScaleEvents(clusterId, scaleStrategy, consolidatedEvents)) {
+            _deferredEvents.resetBackoff(clusterId);
+         } else {
+            /* If we couldn't schedule handling of the events, defer them in their un-consolidated form until the current scaling completes */
+            _log.finest("Deferring event collection - size="+unconsolidatedEvents.size());
+            _deferredEvents.defer(clusterId, BlockingCondition.SCALE_IN_PROGRESS, unconsolidatedEvents, releaseSequence);
          }
       }
    }
 
+   /* When events are polled, this is the first method that gets the opportunity to triage them */
+   private void handleEvents(Set<NotificationEvent> events) {
+      try {
+         _eventDispatcher.dispatch(events);
+      } finally {
+         /* (we really want to ensure that no null clusterIds get added to clusterScaleEvents in the event of an error) */
+         _clusterScaleEvents.clear();
+      }
+   }
+
    public Thread start() {
       _stopped = false;
+      _clusterMailboxes.start();
+      _deferredEvents.start();
+      _eventInjectors.start();
       Thread t = new Thread(new Runnable() {
          @Override
          public void run() {
@@ -740,13 +790,18 @@ public class VHM implements EventConsumer {
                      }
                   }
                   handleEvents(events);
-                  Thread.sleep(500);
                }
             } catch (Throwable e) {
                _log.log(Level.WARNING, "VHM: stopping due to exception - "+e.getMessage());
                _log.log(Level.INFO, "VHM: stopping due to exception in VHM main loop", e);
             }
             _log.info("VHM stopping...");
+            _clusterMailboxes.stop();
+            _deferredEvents.stop();
+            _eventInjectors.stop();
+            if (_eventJournal != null) {
+               _eventJournal.close();
+            }
             _stopped = true;
          }}, "VHM_Main_Thread");
       t.start();
@@ -0,0 +1,26 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.concurrent.Callable;
+
+import com.vmware.vhadoop.api.vhm.ClusterMapReader.ClusterMapAccess;
+
+/* The ClusterMapAccess used by the single ClusterMap writer, VHM, to make changes that readers can't see until they're complete */
+interface WritableClusterMapAccess extends ClusterMapAccess {
+
+   Object runCodeInWriteLock(Callable<Object> callable) throws Exception;
+}
@@ -61,4 +61,14 @@ public abstract class AbstractNotificationEvent implements NotificationEvent {
    public long getTimestamp() {
       return _timestampCreated;
    }
+
+   @Override
+   public EventKey getEventKey() {
+      return null;
+   }
+
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent newerEvent) {
+      return null;
+   }
 }
@@ -18,6 +18,7 @@ package com.vmware.vhadoop.vhm.events;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
 import com.vmware.vhadoop.util.LogFormatter;
 
 public class ClusterUpdateEvent extends AbstractNotificationEvent implements ClusterStateChangeEvent {
@@ -38,6 +39,23 @@ public class ClusterUpdateEvent extends AbstractNotificationEvent implements Clu
       return _clusterVariableData;
    }
 
+   @Override
+   public EventKey getEventKey() {
+      return new EventKey(_vmId, getClass());
+   }
+
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent newerEvent) {
+      if (!isSameEventTypeAs(newerEvent) || (_clusterVariableData == null)) {
+         return null;
+      }
+      ClusterUpdateEvent newer = (ClusterUpdateEvent)newerEvent;
+      if (newer._clusterVariableData == null) {
+         return null;
+      }
+      return new ClusterUpdateEvent(_vmId, _clusterVariableData.mergeWith(newer._clusterVariableData));
+   }
+
    String getParamListString(Logger logger) {
       String basic = "vmId=<%V"+_vmId+"%V>";
       String detail = LogFormatter.isDetailLogging(logger) ? ", ClusterVariableData="+_clusterVariableData : "";
@@ -15,6 +15,8 @@
 
 package com.vmware.vhadoop.vhm.events;
 
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+
 public class MasterVmUpdateEvent extends VmUpdateEvent {
    private final SerengetiClusterVariableData _clusterVariableData;
    
@@ -26,4 +28,17 @@ public class MasterVmUpdateEvent extends VmUpdateEvent {
    public SerengetiClusterVariableData getClusterVariableData() {
       return _clusterVariableData;
    }
+
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent newerEvent) {
+      if (!isSameEventTypeAs(newerEvent) || (getVariableData() == null) || (_clusterVariableData == null)) {
+         return null;
+      }
+      MasterVmUpdateEvent newer = (MasterVmUpdateEvent)newerEvent;
+      if ((newer.getVariableData() == null) || (newer._clusterVariableData == null)) {
+         return null;
+      }
+      return new MasterVmUpdateEvent(getVmId(), getVariableData().mergeWith(newer.getVariableData()),
+            _clusterVariableData.mergeWith(newer._clusterVariableData));
+   }
 }
@@ -56,6 +56,12 @@ public class NewVmEvent extends AbstractNotificationEvent implements ClusterStat
       return basic+detail;
    }
 
+   /* Keyed so that the event queue does not merge updates for this VM across this event */
+   @Override
+   public EventKey getEventKey() {
+      return new EventKey(_vmId, getClass());
+   }
+
    @Override
    public String toString(Logger logger) {
       return "NewVmEvent{"+getParamListString(logger)+"}";
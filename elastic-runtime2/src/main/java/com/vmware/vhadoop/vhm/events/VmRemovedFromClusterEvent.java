@@ -31,6 +31,12 @@ public class VmRemovedFromClusterEvent extends AbstractNotificationEvent impleme
       return _vmId;
    }
 
+   /* Keyed so that the event queue does not merge updates for this VM across this event */
+   @Override
+   public EventKey getEventKey() {
+      return new EventKey(_vmId, getClass());
+   }
+
    @Override
    public String toString(Logger logger) {
       return "VmRemovedFromClusterEvent{vmId="+_vmId+"}";
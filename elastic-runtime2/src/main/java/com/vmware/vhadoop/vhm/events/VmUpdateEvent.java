@@ -18,6 +18,7 @@ package com.vmware.vhadoop.vhm.events;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
 import com.vmware.vhadoop.util.LogFormatter;
 
 public class VmUpdateEvent extends AbstractNotificationEvent implements ClusterStateChangeEvent {
@@ -44,6 +45,23 @@ public class VmUpdateEvent extends AbstractNotificationEvent implements ClusterS
       return basic+detail;
    }
 
+   @Override
+   public EventKey getEventKey() {
+      return new EventKey(_vmId, getClass());
+   }
+
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent newerEvent) {
+      if (!isSameEventTypeAs(newerEvent) || (_variableData == null)) {
+         return null;
+      }
+      VmUpdateEvent newer = (VmUpdateEvent)newerEvent;
+      if (newer._variableData == null) {
+         return null;
+      }
+      return new VmUpdateEvent(_vmId, _variableData.mergeWith(newer._variableData));
+   }
+
    @Override
    public String toString(Logger logger) {
       return "VmUpdateEvent{"+getParamListString(logger)+"}";
@@ -38,6 +38,7 @@ import com.rabbitmq.client.ShutdownSignalException;
 import com.vmware.vhadoop.api.vhm.MQClient;
 import com.vmware.vhadoop.api.vhm.QueueClient;
 import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.EventProducer;
 import com.vmware.vhadoop.util.ExternalizedParameters;
 import com.vmware.vhadoop.util.VhmLevel;
 import com.vmware.vhadoop.vhm.events.SerengetiLimitInstruction;
@@ -47,7 +48,7 @@ import com.vmware.vhadoop.vhm.rabbit.RabbitConnection.RabbitCredentials;
  * Message queue client implementation for RabbitMQ
  *
  */
-public class RabbitAdaptor implements MQClient {
+public class RabbitAdaptor implements MQClient, EventProducer.QueueFullPolicyAware {
    private final RabbitConnection _connection;
    private EventConsumer _eventConsumer;
    private volatile boolean _started;
@@ -101,6 +102,12 @@ public class RabbitAdaptor implements MQClient {
       _eventConsumer = eventConsumer;
    }
 
+   /* Serengeti instructions are user-facing and must never be dropped or held back */
+   @Override
+   public QueueFullPolicy getQueueFullPolicy() {
+      return QueueFullPolicy.ADMIT;
+   }
+
    @Override
    public void start(final EventProducerStartStopCallback startStopCallback) {
       _started = true;
@@ -155,22 +162,12 @@ public class RabbitAdaptor implements MQClient {
                }
             }
             _log.info("RabbitAdaptor stopping...");
-            waitForConnectionShutdown(CONNECTION_SHUTDOWN_TIMEOUT_MILLIS);
+            _connection.waitForShutdown(CONNECTION_SHUTDOWN_TIMEOUT_MILLIS);
             startStopCallback.notifyStopped(RabbitAdaptor.this);
          }}, "MQClientImpl");
       _mainThread.start();
    }
 
-   private void waitForConnectionShutdown(long timeoutMillis) {
-      int timeoutCountdown = (int)timeoutMillis;
-      final int sleepTimeMillis = 100;
-      do {
-         try {
-            Thread.sleep(sleepTimeMillis);
-         } catch (InterruptedException e) {}
-      } while (!_connection.isShutdown() && ((timeoutCountdown -= sleepTimeMillis) > 0));
-   }
-
    @Override
    public void stop() {
       _started = false;
@@ -67,6 +67,7 @@ public class RabbitConnection {
    private QueueingConsumer _consumer = null;
    private Object _consumerLock = new Object();
    private volatile boolean _started = false;
+   private final Object _shutdownLock = new Object();
    
    /* For testing only */
    protected RabbitConnection() {
@@ -93,7 +94,7 @@ public class RabbitConnection {
                      _channel = null;
                      _queueName = null;
                   }
-                  _started = false;
+                  markShutdown();
                }
             });
             _started = true;
@@ -120,7 +121,7 @@ public class RabbitConnection {
                      _channel = null;
                      _queueName = null;
                   }
-                  _started = false;
+                  markShutdown();
                }
             });
          }
@@ -209,4 +210,28 @@ public class RabbitConnection {
    public boolean isShutdown() {
       return (_started == false);
    }
+
+   private void markShutdown() {
+      synchronized(_shutdownLock) {
+         _started = false;
+         _shutdownLock.notifyAll();
+      }
+   }
+
+   /* Returns true if the connection shut down before the timeout expired */
+   public boolean waitForShutdown(long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized(_shutdownLock) {
+         long timeLeft;
+         while (!isShutdown() && ((timeLeft = deadline - System.currentTimeMillis()) > 0)) {
+            try {
+               _shutdownLock.wait(timeLeft);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+         return isShutdown();
+      }
+   }
 }
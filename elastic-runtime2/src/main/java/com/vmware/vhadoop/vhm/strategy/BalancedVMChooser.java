@@ -28,6 +28,8 @@ import java.util.Set;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.ClusterView.VMView;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.api.vhm.strategy.VMChooser;
 import com.vmware.vhadoop.vhm.AbstractClusterMapReader;
@@ -76,32 +78,36 @@ public class BalancedVMChooser extends AbstractClusterMapReader implements VMCho
       }
 
       ClusterMap clusterMap = null;
+      ClusterView clusterView = null;
       try {
          clusterMap = getAndReadLockClusterMap();
-         for (String vmId : candidateVmIds) {
-            String hostId = clusterMap.getHostIdForVm(vmId);
-            if (hostId != null) {
-               HostInfo hostInfo = hostMap.get(hostId);
-               if (hostInfo == null) {
-                  hostInfo = new HostInfo(hostId);
-                  hostMap.put(hostId, hostInfo);
-               }
-               hostInfo._candidates.add(vmId);
+         clusterView = clusterMap.getClusterView(clusterId);
+      } finally {
+         unlockClusterMap(clusterMap);
+      }
+      if (clusterView == null) {
+         return null;
+      }
+
+      for (String vmId : candidateVmIds) {
+         VMView vm = clusterView.getComputeVM(vmId);
+         String hostId = (vm == null) ? null : vm.getHostId();
+         if (hostId != null) {
+            HostInfo hostInfo = hostMap.get(hostId);
+            if (hostInfo == null) {
+               hostInfo = new HostInfo(hostId);
+               hostMap.put(hostId, hostInfo);
             }
+            hostInfo._candidates.add(vmId);
          }
-         for (Entry<String, HostInfo> entry : hostMap.entrySet()) {
-            Set<String> allVmsOnHostInPowerState = clusterMap.listComputeVMsForClusterHostAndPowerState(clusterId, entry.getKey(), true);
-            if (allVmsOnHostInPowerState != null) {
-               entry.getValue()._on = allVmsOnHostInPowerState.size();
-            }
-            Set<String> candidateVMs = entry.getValue()._candidates;
-            _log.info("found "+candidateVMs.size()+" candidate VMs on host "+entry.getKey());
-            for (String id : candidateVMs) {
-               _log.info("candidate VM on "+entry.getKey()+": <%V"+id);
-            }
+      }
+      for (Entry<String, HostInfo> entry : hostMap.entrySet()) {
+         entry.getValue()._on = clusterView.listComputeVMsForHostAndPowerState(entry.getKey(), true).size();
+         Set<String> candidateVMs = entry.getValue()._candidates;
+         _log.info("found "+candidateVMs.size()+" candidate VMs on host "+entry.getKey());
+         for (String id : candidateVMs) {
+            _log.info("candidate VM on "+entry.getKey()+": <%V"+id);
          }
-      } finally {
-         unlockClusterMap(clusterMap);
       }
       
       return hostMap;
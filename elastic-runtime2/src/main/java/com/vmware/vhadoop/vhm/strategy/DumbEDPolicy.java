@@ -19,6 +19,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
 import com.vmware.vhadoop.api.vhm.VCActions;
 import com.vmware.vhadoop.api.vhm.strategy.EDPolicy;
 import com.vmware.vhadoop.util.VhmLevel;
@@ -69,4 +70,20 @@ public class DumbEDPolicy extends AbstractClusterMapReader implements EDPolicy {
       return disableTTs(toDisable.keySet(), totalTargetEnabled, clusterId);
    }
 
+   @Override
+   public VMStateWatch<?> beginEnableTTs(Set<String> toEnable, int totalTargetEnabled, String clusterId) throws Exception {
+      enableTTs(toEnable, totalTargetEnabled, clusterId);
+      return null;         /* Nothing to verify, so nothing to wait for */
+   }
+
+   @Override
+   public Set<String> completeEnableTTs(Set<String> toEnable, int totalTargetEnabled, String clusterId, VMStateWatch<?> awaited, long timeoutMillis) throws Exception {
+      return toEnable;
+   }
+
+   @Override
+   public long getEnableTimeoutMillis() {
+      return 0;
+   }
+
 }
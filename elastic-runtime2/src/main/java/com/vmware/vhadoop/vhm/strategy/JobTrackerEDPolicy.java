@@ -15,12 +15,20 @@
 
 package com.vmware.vhadoop.vhm.strategy;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.ClusterView.VMView;
 import com.vmware.vhadoop.api.vhm.HadoopActions;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.VCActions;
@@ -55,49 +63,102 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
     */
    @Override
    public Set<String> enableTTs(Set<String> ttVmIds, int totalTargetEnabled, String clusterId) throws Exception {
+      long initTime = System.currentTimeMillis();
+      if (!startEnableTTs(ttVmIds, clusterId)) {
+         return null;
+      }
+      Set<String> newDnsNames = blockAndGetDnsNamesForVmIdsWithoutCachedDns(clusterId, ttVmIds, MAX_DNS_WAIT_TIME_MILLIS);
+      if (newDnsNames != null) {
+         _log.info("TIMING: Power on to DNS resolution in "+(System.currentTimeMillis()-initTime)+"ms");
+      }
+      return verifyEnabledTTs(ttVmIds, totalTargetEnabled, clusterId, newDnsNames);
+   }
+
+   /* The staged counterpart to enableTTs. The watch returned completes once VC has reported a DNS name for every VM */
+   @Override
+   public VMStateWatch<?> beginEnableTTs(Set<String> ttVmIds, int totalTargetEnabled, String clusterId) throws Exception {
+      if (!startEnableTTs(ttVmIds, clusterId)) {
+         return null;
+      }
+      VMStateWatch<?> result = watchDnsNames(ttVmIds);
+      if (result == null) {
+         getCompoundStatus().registerTaskFailed(false, "hostnames published by task trackers could not be obtained");
+      }
+      return result;
+   }
+
+   /* If the wait for DNS names timed out or was abandoned, the names that have been reported are verified. Otherwise, as resolution
+    *   of a new name can lag behind VC reporting it, this may still block for the rest of the timeout until the names can be validated */
+   @Override
+   public Set<String> completeEnableTTs(Set<String> ttVmIds, int totalTargetEnabled, String clusterId, VMStateWatch<?> awaited, long timeoutMillis) throws Exception {
+      if (awaited == null) {
+         return null;            /* beginEnableTTs failed and has already registered why */
+      }
+      Set<String> newDnsNames = null;
+      if (awaited.isDone() && !awaited.isCancelled()) {
+         newDnsNames = blockAndGetDnsNamesForVmIdsWithoutCachedDns(clusterId, ttVmIds, timeoutMillis);
+      } else {
+         newDnsNames = getCurrentDnsNames(clusterId, ttVmIds);
+      }
+      return verifyEnabledTTs(ttVmIds, totalTargetEnabled, clusterId, newDnsNames);
+   }
+
+   @Override
+   public long getEnableTimeoutMillis() {
+      return MAX_DNS_WAIT_TIME_MILLIS;
+   }
+
+   /* Recommissions the TTs and starts powering them on. Returns false if there's no job tracker, or if the power on could not be started */
+   private boolean startEnableTTs(Set<String> ttVmIds, String clusterId) throws Exception {
       HadoopClusterInfo hadoopCluster = null;
-      Set<String> successfulIds = null;
 
-      ClusterMap clusterMap = null;
-      try {
-         clusterMap = getAndReadLockClusterMap();
-         hadoopCluster = clusterMap.getHadoopInfoForCluster(clusterId);
-      } finally {
-         unlockClusterMap(clusterMap);
+      ClusterView clusterView = getClusterView(clusterId);
+      if (clusterView != null) {
+         hadoopCluster = clusterView.getHadoopClusterInfo();
       }
 
       if ((hadoopCluster != null) && (hadoopCluster.getJobTrackerDnsName() != null)) {
          CompoundStatus status = getCompoundStatus();
-         long initTime = System.currentTimeMillis();
 
          _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: "+constructUserLogMessage(ttVmIds, null, false));
 
          /* pass ttVMids in here for now - this is currently bogus but harmless - all this does currently is delete any exclude list */
          _hadoopActions.recommissionTTs(ttVmIds, hadoopCluster);
 
-         if (_vcActions.changeVMPowerState(ttVmIds, true) == null) {
+         if (_vcActions.changeVMPowerState(getHostIdsForVMs(clusterView, ttVmIds), true) == null) {
             status.registerTaskFailed(false, "failed to change VM power state in vCenter");
             _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: failed to power on task trackers");
+         } else if (status.screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_ON_STATUS_KEY})) {
+            return true;
          } else {
-            if (status.screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_ON_STATUS_KEY})) {
-               Set<String> newDnsNames = blockAndGetDnsNamesForVmIdsWithoutCachedDns(ttVmIds, MAX_DNS_WAIT_TIME_MILLIS);
-               if (newDnsNames != null) {
-                  /* Returns only successfully enabled VMs from the input set */
-                  long checkTime = System.currentTimeMillis();
-                  Set<String> activeDnsNames = _hadoopActions.checkTargetTTsSuccess("Recommission", newDnsNames, totalTargetEnabled, hadoopCluster);
-                  Set<String> activeVmIds = getActiveVmIds(activeDnsNames);
-                  if (activeVmIds != null) {
-                     successfulIds = new HashSet<String>(ttVmIds);
-                     successfulIds.retainAll(activeVmIds);
-                  }
-                  _log.info("TIMING: Power on to DNS resolution in "+(checkTime-initTime)+"ms; TT verification in "+(System.currentTimeMillis()-checkTime)+"ms");
-               } else {
-                  status.registerTaskFailed(false, "hostnames published by task trackers could not be obtained");
-               }
-            } else {
-               _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: unexpected vCenter error powering on task trackers");
+            _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: unexpected vCenter error powering on task trackers");
+         }
+      }
+      return false;
+   }
+
+   /* Returns the subset of TTs that have registered with the JT, given the DNS names they have been found to have */
+   private Set<String> verifyEnabledTTs(Set<String> ttVmIds, int totalTargetEnabled, String clusterId, Set<String> newDnsNames) {
+      Set<String> successfulIds = null;
+      if (newDnsNames != null) {
+         HadoopClusterInfo hadoopCluster = null;
+         ClusterView clusterView = getClusterView(clusterId);
+         if (clusterView != null) {
+            hadoopCluster = clusterView.getHadoopClusterInfo();
+         }
+         if (hadoopCluster != null) {
+            /* Returns only successfully enabled VMs from the input set */
+            long checkTime = System.currentTimeMillis();
+            Set<String> activeDnsNames = _hadoopActions.checkTargetTTsSuccess("Recommission", newDnsNames, totalTargetEnabled, hadoopCluster);
+            Set<String> activeVmIds = getActiveVmIds(clusterId, activeDnsNames);
+            if (activeVmIds != null) {
+               successfulIds = new HashSet<String>(ttVmIds);
+               successfulIds.retainAll(activeVmIds);
             }
+            _log.info("TIMING: TT verification in "+(System.currentTimeMillis()-checkTime)+"ms");
          }
+      } else {
+         getCompoundStatus().registerTaskFailed(false, "hostnames published by task trackers could not be obtained");
       }
       return successfulIds;
    }
@@ -116,13 +177,13 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
       HadoopClusterInfo hadoopCluster = null;
       Set<String> successfulIds = null;
 
-      ClusterMap clusterMap = null;
-      try {
-         clusterMap = getAndReadLockClusterMap();
-         hadoopCluster = clusterMap.getHadoopInfoForCluster(clusterId);
-         dnsNameMap = clusterMap.getDnsNamesForVMs(ttVmIds);
-      } finally {
-         unlockClusterMap(clusterMap);
+      ClusterView clusterView = getClusterView(clusterId);
+      if (clusterView != null) {
+         hadoopCluster = clusterView.getHadoopClusterInfo();
+         dnsNameMap = clusterView.getDnsNamesForVMs(ttVmIds);
+         if (dnsNameMap.isEmpty()) {
+            dnsNameMap = null;
+         }
       }
 
       if ((dnsNameMap != null) && (hadoopCluster != null) && (hadoopCluster.getJobTrackerDnsName() != null)) {
@@ -146,7 +207,7 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
             /* Returns enabled TTs in this cluster */
             Set<String> activeDnsNames = _hadoopActions.checkTargetTTsSuccess("Decommission", validDnsNames, newTargetEnabled, hadoopCluster);
             /* This is the list of what we successfully de-commissioned */
-            successfulIds = getVmIdSubset(ttVmIds, getActiveVmIds(activeDnsNames));
+            successfulIds = getVmIdSubset(ttVmIds, getActiveVmIds(clusterId, activeDnsNames));
             Set<String> unsuccessfulIds = getVmIdSubset(ttVmIds, successfulIds);
             if (!unsuccessfulIds.isEmpty()) {
                _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: the following task trackers failed to decommission cleanly: "+LogFormatter.constructListOfLoggableVms(unsuccessfulIds));
@@ -155,7 +216,7 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
             }
          }
          /* Power off all the VMs, decommissioned or not - note this does not block */
-         if (_vcActions.changeVMPowerState(ttVmIds, false) == null) {
+         if (_vcActions.changeVMPowerState(getHostIdsForVMs(clusterView, ttVmIds), false) == null) {
             status.registerTaskFailed(false, "Failed to change VM power state in vCenter");
             _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: unexpected vCenter error powering off task trackers");
          }
@@ -181,41 +242,87 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
       return _hadoopActions.validateTtHostNames(dnsNames);
    }
 
-   private Set<String> blockAndGetDnsNamesForVmIdsWithoutCachedDns(Set<String> vmIdsWithInvalidDns, long timeoutMillis) {
+   /* Takes a single consistent view of the cluster, so that the decisions made here don't need to keep going back to ClusterMap */
+   private ClusterView getClusterView(String clusterId) {
+      ClusterMap clusterMap = null;
+      try {
+         clusterMap = getAndReadLockClusterMap();
+         return clusterMap.getClusterView(clusterId);
+      } finally {
+         unlockClusterMap(clusterMap);
+      }
+   }
+
+   /* Hosts are passed with power state changes so that VC can limit the transitions in flight on each host. Unknown hosts are null */
+   private Map<String, String> getHostIdsForVMs(ClusterView clusterView, Set<String> vmIds) {
+      Map<String, String> result = new HashMap<String, String>();
+      for (String vmId : vmIds) {
+         VMView vm = clusterView.getComputeVM(vmId);
+         result.put(vmId, (vm == null) ? null : vm.getHostId());
+      }
+      return result;
+   }
+
+   /* Waits on a ClusterMap watch, so wakes as soon as VC reports a DNS name for every VM. If the names can't yet be validated,
+    *   the wait is retried with a backoff, as resolution of a new name can lag behind VC reporting it
+    * The VMs are already powering on, so neither wait is abandoned if the scale operation is superseded */
+   private Set<String> blockAndGetDnsNamesForVmIdsWithoutCachedDns(String clusterId, Set<String> vmIdsWithInvalidDns, long timeoutMillis) {
       long endTime = System.currentTimeMillis() + timeoutMillis;
       Set<String> result = null;
       int retryTimes = 0;
       if (vmIdsWithInvalidDns != null) {
          do {
-            ClusterMap clusterMap = null;
+            Future<Map<String, String>> watch = watchDnsNames(vmIdsWithInvalidDns);
+            if (watch == null) {
+               return null;
+            }
             Map<String, String> newDnsNameMap = null;
             try {
-               clusterMap = getAndReadLockClusterMap();
-               newDnsNameMap = clusterMap.getDnsNamesForVMs(vmIdsWithInvalidDns);
-               if (newDnsNameMap == null) {
-                  return null;         /* This would mean that our vmIds themselves have become invalid, which would only occur if vms are deleted */
-               }
-               result = new HashSet<String>(newDnsNameMap.values());
-               if (!result.contains(null) && !result.contains("") && validateDnsNames(result)) {
-                  _log.info("Found valid hostnames for all VMs");
-                  return result;
-               }
+               newDnsNameMap = watch.get(Math.max(endTime - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+               break;
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
+            } catch (ExecutionException e) {
+               _log.warning("VHM: <%C"+clusterId+"%C>: unexpected error waiting for hostnames - "+e.getCause());
+               break;
             } finally {
-               unlockClusterMap(clusterMap);
+               watch.cancel(false);
+            }
+            if (newDnsNameMap.isEmpty()) {
+               return null;         /* This would mean that our vmIds themselves have become invalid, which would only occur if vms are deleted */
+            }
+            result = new HashSet<String>(newDnsNameMap.values());
+            /* Validation may do name lookups, so is done outside of the ClusterMap lock */
+            if (validateDnsNames(result)) {
+               _log.info("Found valid hostnames for all VMs");
+               return result;
             }
-            _log.info("Looking for valid hostname reported by "+LogFormatter.constructListOfLoggableVms(getVmIdsWithInvalidDnsNames(newDnsNameMap)));
+            _log.info("Waiting for hostnames reported by "+LogFormatter.constructListOfLoggableVms(vmIdsWithInvalidDns)+" to become valid");
             try {
                /* Try faster initially */
                Thread.sleep(Math.min((1000 * ++retryTimes), MAX_DNS_WAIT_SLEEP_TIME_MILLIS));
-            } catch (InterruptedException e) {}
-         } while (System.currentTimeMillis() <= endTime);
-         /* If we fell out of the loop, it's likely we didn't find everything we were looking for */
-         if (result != null) {
-            result.remove(null);
-            result.remove("");
-            if (result.isEmpty()) {
-               result = null;
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
             }
+         } while (System.currentTimeMillis() <= endTime);
+         /* If we fell out of the loop, it's likely we didn't find everything we were looking for, so return what we have */
+         result = getCurrentDnsNames(clusterId, vmIdsWithInvalidDns);
+      }
+      return result;
+   }
+
+   /* Returns whichever DNS names the VMs currently have, or null if none of them has one */
+   private Set<String> getCurrentDnsNames(String clusterId, Set<String> vmIds) {
+      Set<String> result = null;
+      ClusterView clusterView = getClusterView(clusterId);
+      if (clusterView != null) {
+         result = new HashSet<String>(clusterView.getDnsNamesForVMs(vmIds).values());
+         result.remove(null);
+         if (result.isEmpty()) {
+            result = null;
          }
       }
       return result;
@@ -231,22 +338,18 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
       return decommissionMsg + powerOffMsg;
    }
 
-   private Set<String> getActiveVmIds(Set<String> activeDnsNames) {
+   private Set<String> getActiveVmIds(String clusterId, Set<String> activeDnsNames) {
       if (activeDnsNames == null) {
          return null;
       }
-      ClusterMap clusterMap = null;
-      Set<String> result = null;
-      try {
-         clusterMap = getAndReadLockClusterMap();
-         Map<String, String> dnsNameMap = clusterMap.getVmIdsForDnsNames(activeDnsNames);
-         if (dnsNameMap != null) {
-            result = new HashSet<String>(dnsNameMap.values());
+      ClusterView clusterView = getClusterView(clusterId);
+      if (clusterView != null) {
+         Set<String> result = clusterView.getVmIdsForDnsNames(activeDnsNames);
+         if (!result.isEmpty()) {
+            return result;
          }
-      } finally {
-         unlockClusterMap(clusterMap);
       }
-      return result;
+      return null;
    }
 
    private Set<String> getValidDnsNames(Map<String, String> hostNames) {
@@ -274,12 +377,9 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
    public Set<String> getActiveTTs(String clusterId) throws Exception {
       HadoopClusterInfo hadoopCluster = null;
 
-      ClusterMap clusterMap = null;
-      try {
-         clusterMap = getAndReadLockClusterMap();
-         hadoopCluster = clusterMap.getHadoopInfoForCluster(clusterId);
-      } finally {
-         unlockClusterMap(clusterMap);
+      ClusterView clusterView = getClusterView(clusterId);
+      if (clusterView != null) {
+         hadoopCluster = clusterView.getHadoopClusterInfo();
       }
 
       if ((hadoopCluster != null) && (hadoopCluster.getJobTrackerDnsName() != null)) {
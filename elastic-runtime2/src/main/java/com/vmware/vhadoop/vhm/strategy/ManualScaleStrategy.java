@@ -20,7 +20,9 @@ import java.util.Set;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
+import com.vmware.vhadoop.api.vhm.ClusterView;
 import com.vmware.vhadoop.api.vhm.VCActions;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
@@ -44,6 +46,8 @@ public class ManualScaleStrategy extends AbstractClusterMapReader implements Sca
 
    public static final String MANUAL_SCALE_STRATEGY_KEY = "manual";
 
+   private static final long POWER_STATE_CHANGE_TIMEOUT_MILLIS = 120000;
+
    public ManualScaleStrategy(EDPolicy edPolicy) {
       _enableDisablePolicy = edPolicy;
    }
@@ -79,9 +83,20 @@ public class ManualScaleStrategy extends AbstractClusterMapReader implements Sca
       return RankedVM.selectLowestRankedIds(combination, Math.abs(delta));
    }
 
+   /* Runs in stages, so that the thread is free while VMs power on and off:
+    *   choose VMs and start enabling or disabling them -> [DNS names reported] -> verify enabled TTs -> [VMs powered on or off] -> report */
    class CallableStrategy extends ClusterScaleOperation {
       final Set<ClusterScaleEvent> _events;
 
+      /* State carried between stages */
+      SerengetiLimitInstruction _limitEvent;
+      String _clusterId;
+      int _targetSize;
+      Set<String> _vmsToED;
+      long _enableStartTime;
+      ClusterScaleDecision _returnEvent;
+      Set<String> _unresponsiveVmIds;
+
       public CallableStrategy(Set<ClusterScaleEvent> events) {
          _events = events;
          initialize(ManualScaleStrategy.this);
@@ -90,112 +105,167 @@ public class ManualScaleStrategy extends AbstractClusterMapReader implements Sca
       @Override
       public ClusterScaleCompletionEvent localCall() throws Exception {
          CompoundStatus tlStatus = getCompoundStatus();
-         ClusterScaleDecision returnEvent = null;
          if (_events.size() != 1) {
             throw new RuntimeException("Manual scale strategy should only have one SerengetiLimitInstruction");
          }
          ClusterScaleEvent event = _events.iterator().next();
          if (event instanceof SerengetiLimitInstruction) {
-            SerengetiLimitInstruction limitEvent = (SerengetiLimitInstruction)event;
-            int targetSize = 0;
+            _limitEvent = (SerengetiLimitInstruction)event;
+            _targetSize = 0;
+            _clusterId = null;
+            _returnEvent = null;
+            _unresponsiveVmIds = null;
             int delta = 0;
-            String clusterId = null;
-            Set<String> vmsToED;
             ClusterMap clusterMap = null;
+            ClusterView clusterView = null;
             Set<String> poweredOffVmIds = null;
             Set<String> poweredOnVmIds = null;
             int numPoweredOff = 0;
             int numPoweredOn = 0;
+            String clusterName = _limitEvent.getClusterName();
             try {
                clusterMap = getAndReadLockClusterMap();
-               String clusterName = limitEvent.getClusterName();
-               clusterId = clusterMap.getClusterIdForName(clusterName);
-               if (clusterId != null) {
-                  poweredOffVmIds = clusterMap.listComputeVMsForClusterAndPowerState(clusterId, false);
-                  numPoweredOff = (poweredOffVmIds == null) ? 0 : poweredOffVmIds.size();
-                  poweredOnVmIds = clusterMap.listComputeVMsForClusterAndPowerState(clusterId, true);
-                  numPoweredOn = (poweredOnVmIds == null) ? 0 : poweredOnVmIds.size();
-                  if (limitEvent.getAction().equals(SerengetiLimitAction.actionUnlimit)) {
-                     targetSize = numPoweredOn + numPoweredOff;
-                     delta = numPoweredOff;
-                  } else {
-                     targetSize = limitEvent.getToSize();
-                     delta = targetSize - numPoweredOn;
-                  }
-                  _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: handling manual elasticity command from Serengeti to set number of enabled compute nodes to " + targetSize);
-                  returnEvent = new ClusterScaleDecision(clusterId);
-               } else {
-                  tlStatus.registerTaskFailed(false, "Unknown clusterId for Cluster "+clusterName);
-                  /* delta == 0, so don't do anything */
+               _clusterId = clusterMap.getClusterIdForName(clusterName);
+               if (_clusterId != null) {
+                  clusterView = clusterMap.getClusterView(_clusterId);
                }
             } finally {
                unlockClusterMap(clusterMap);
             }
-            Set<String> unresponsiveVmIds = null;
+            if (clusterView != null) {
+               poweredOffVmIds = clusterView.listComputeVMsForPowerState(false);
+               numPoweredOff = poweredOffVmIds.size();
+               poweredOnVmIds = clusterView.listComputeVMsForPowerState(true);
+               numPoweredOn = poweredOnVmIds.size();
+               if (_limitEvent.getAction().equals(SerengetiLimitAction.actionUnlimit)) {
+                  _targetSize = numPoweredOn + numPoweredOff;
+                  delta = numPoweredOff;
+               } else {
+                  _targetSize = _limitEvent.getToSize();
+                  delta = _targetSize - numPoweredOn;
+               }
+               _log.log(VhmLevel.USER, "<%C"+_clusterId+"%C>: handling manual elasticity command from Serengeti to set number of enabled compute nodes to " + _targetSize);
+               _returnEvent = new ClusterScaleDecision(_clusterId);
+            } else {
+               tlStatus.registerTaskFailed(false, "Unknown clusterId for Cluster "+clusterName);
+               /* delta == 0, so don't do anything */
+            }
+            /* Nothing has been changed yet, so if a newer instruction has superseded this one, there's nothing to undo
+             * Otherwise the change is seen through even if this instruction is superseded, as the newer one needs to be handled
+             *   against the power states the change leaves the VMs in */
+            if ((delta != 0) && !beginChanges()) {
+               delta = 0;
+            }
             if (delta > 0) {
-               vmsToED = chooseVMsForTargetPowerState(clusterId, delta, poweredOffVmIds, true);
-               limitEvent.reportProgress(10, null);
-               if ((vmsToED != null) && !vmsToED.isEmpty()) {
-                  /* Note that this returns successfully enabled VM IDs from the input set of VMs*/
-                  Set<String> enabledTTs = _enableDisablePolicy.enableTTs(vmsToED, targetSize, clusterId);
-                  if (enabledTTs != null) {
-                     _log.fine("Enabled TTs: "+enabledTTs);
-                     unresponsiveVmIds = diffIds(vmsToED, enabledTTs);
-                     limitEvent.reportProgress(30, null);
-                     returnEvent.addDecision(enabledTTs, ClusterScaleCompletionEvent.ENABLE);
-                     if (tlStatus.screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_ON_STATUS_KEY})) {
-                        blockOnPowerStateChange(enabledTTs, true, 120000);
+               _vmsToED = chooseVMsForTargetPowerState(_clusterId, delta, poweredOffVmIds, true);
+               _limitEvent.reportProgress(10, null);
+               if ((_vmsToED != null) && !_vmsToED.isEmpty()) {
+                  VMStateWatch<?> enabling = _enableDisablePolicy.beginEnableTTs(_vmsToED, _targetSize, _clusterId);
+                  _enableStartTime = System.currentTimeMillis();
+                  awaitThen("task trackers to report hostnames", enabling, _enableDisablePolicy.getEnableTimeoutMillis(), new Stage() {
+                     @Override
+                     public ClusterScaleCompletionEvent run(VMStateWatch<?> awaited) throws Exception {
+                        return verifyEnabledTTs(awaited);
                      }
-                     limitEvent.reportProgress(90, null);
-                  } else {
-                     unresponsiveVmIds = vmsToED;
-                     tlStatus.registerTaskFailed(false, "no task trackers were enabled successfully");
-                  }
+                  });
+                  return null;
                }
             } else if (delta < 0) {
-               vmsToED = chooseVMsForTargetPowerState(clusterId, delta, poweredOnVmIds, false);
-               limitEvent.reportProgress(10, null);
-               if ((vmsToED != null) && !vmsToED.isEmpty()) {
+               _vmsToED = chooseVMsForTargetPowerState(_clusterId, delta, poweredOnVmIds, false);
+               _limitEvent.reportProgress(10, null);
+               if ((_vmsToED != null) && !_vmsToED.isEmpty()) {
                   /* Note that this returns disabled VM IDs for the cluster */
-                  Set<String> disabledTTs = _enableDisablePolicy.disableTTs(vmsToED, targetSize, clusterId);
+                  Set<String> disabledTTs = _enableDisablePolicy.disableTTs(_vmsToED, _targetSize, _clusterId);
                   if (disabledTTs != null) {
                      _log.fine("Disabled TTs: "+disabledTTs);
-                     unresponsiveVmIds = diffIds(vmsToED, disabledTTs);
-                     limitEvent.reportProgress(30, null);
-                     returnEvent.addDecision(disabledTTs, ClusterScaleCompletionEvent.DISABLE);
+                     _unresponsiveVmIds = diffIds(_vmsToED, disabledTTs);
+                     _limitEvent.reportProgress(30, null);
+                     _returnEvent.addDecision(disabledTTs, ClusterScaleCompletionEvent.DISABLE);
                      if (tlStatus.screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_OFF_STATUS_KEY})) {
-                        blockOnPowerStateChange(disabledTTs, false, 120000);
+                        awaitPowerStateChange(disabledTTs, false);
+                        return null;
                      }
-                     limitEvent.reportProgress(90, null);
+                     _limitEvent.reportProgress(90, null);
                   } else {
-                     unresponsiveVmIds = vmsToED;
+                     _unresponsiveVmIds = _vmsToED;
                      tlStatus.registerTaskFailed(false, "no task trackers were disabled successfully");
                   }
                }
             }
-            if (tlStatus.getFailedTaskCount() == 0) {
-               limitEvent.reportCompletion();
-            } else {
-               if (unresponsiveVmIds != null) {
-                  for (String uninitializedVmId : unresponsiveVmIds) {
-                     _log.warning("<%C"+event.getClusterId()+"%C>: <%V"+uninitializedVmId+"%V> - did not successfully respond in a reasonable time");
-                  }
-               }
-               TaskStatus firstGeneralError = tlStatus.getFirstFailure();
-               if (firstGeneralError != null) {
-                  if (tlStatus.screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_ON_STATUS_KEY,
-                     VCActions.VC_POWER_OFF_STATUS_KEY,
-                     ClusterMapReader.POWER_STATE_CHANGE_STATUS_KEY})) {
-                     limitEvent.reportError(firstGeneralError.getMessage() + " however, powering on/off VMs succeeded");
-                  } else {
-                     limitEvent.reportError(firstGeneralError.getMessage());
-                  }
+            return report();
+         } else {
+            throw new RuntimeException("Manual scale strategy event should be of type SerengetiLimitInstruction");
+         }
+      }
+
+      private ClusterScaleCompletionEvent verifyEnabledTTs(VMStateWatch<?> enabling) throws Exception {
+         /* Note that this returns successfully enabled VM IDs from the input set of VMs*/
+         long timeLeft = Math.max(_enableDisablePolicy.getEnableTimeoutMillis() - (System.currentTimeMillis() - _enableStartTime), 0);
+         Set<String> enabledTTs = _enableDisablePolicy.completeEnableTTs(_vmsToED, _targetSize, _clusterId, enabling, timeLeft);
+         if (enabledTTs != null) {
+            _log.fine("Enabled TTs: "+enabledTTs);
+            _unresponsiveVmIds = diffIds(_vmsToED, enabledTTs);
+            _limitEvent.reportProgress(30, null);
+            _returnEvent.addDecision(enabledTTs, ClusterScaleCompletionEvent.ENABLE);
+            if (getCompoundStatus().screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_ON_STATUS_KEY})) {
+               awaitPowerStateChange(enabledTTs, true);
+               return null;
+            }
+            _limitEvent.reportProgress(90, null);
+         } else {
+            _unresponsiveVmIds = _vmsToED;
+            getCompoundStatus().registerTaskFailed(false, "no task trackers were enabled successfully");
+         }
+         return report();
+      }
+
+      private void awaitPowerStateChange(Set<String> vmIds, boolean expectedPowerState) {
+         VMStateWatch<?> powerStateChange = null;
+         if (!vmIds.isEmpty()) {
+            powerStateChange = watchPowerState(vmIds, expectedPowerState);
+            if (powerStateChange == null) {
+               recordPowerStateChange(null);
+            }
+         }
+         awaitThen("task trackers to power "+(expectedPowerState ? "on" : "off"), powerStateChange, POWER_STATE_CHANGE_TIMEOUT_MILLIS, new Stage() {
+            @Override
+            public ClusterScaleCompletionEvent run(VMStateWatch<?> awaited) throws Exception {
+               if (awaited != null) {
+                  recordPowerStateChange(awaited);
                }
+               _limitEvent.reportProgress(90, null);
+               return report();
             }
+         });
+      }
+
+      private ClusterScaleCompletionEvent report() throws Exception {
+         CompoundStatus tlStatus = getCompoundStatus();
+         /* An instruction is only superseded if it hadn't started to change anything. Any change that was started has been seen
+          *   through to the point where the VMs have changed power state, or the wait for them has timed out */
+         if (isCancelRequested()) {
+            _log.log(VhmLevel.USER, "<%C"+_clusterId+"%C>: stopped handling instruction to "+_limitEvent+" as it has been superseded");
+            _limitEvent.reportError("superseded by a newer instruction");
+         } else if (tlStatus.getFailedTaskCount() == 0) {
+            _limitEvent.reportCompletion();
          } else {
-            throw new RuntimeException("Manual scale strategy event should be of type SerengetiLimitInstruction");
+            if (_unresponsiveVmIds != null) {
+               for (String uninitializedVmId : _unresponsiveVmIds) {
+                  _log.warning("<%C"+_limitEvent.getClusterId()+"%C>: <%V"+uninitializedVmId+"%V> - did not successfully respond in a reasonable time");
+               }
+            }
+            TaskStatus firstGeneralError = tlStatus.getFirstFailure();
+            if (firstGeneralError != null) {
+               if (tlStatus.screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_ON_STATUS_KEY,
+                  VCActions.VC_POWER_OFF_STATUS_KEY,
+                  ClusterMapReader.POWER_STATE_CHANGE_STATUS_KEY})) {
+                  _limitEvent.reportError(firstGeneralError.getMessage() + " however, powering on/off VMs succeeded");
+               } else {
+                  _limitEvent.reportError(firstGeneralError.getMessage());
+               }
+            }
          }
-         return returnEvent;
+         return _returnEvent;
       }
 
       private Set<String> diffIds(Set<String> vmIdsInstructed, Set<String> vmIdsInitialized) {
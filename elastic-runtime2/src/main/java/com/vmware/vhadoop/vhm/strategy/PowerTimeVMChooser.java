@@ -19,6 +19,8 @@ import java.util.Set;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.ClusterView.VMView;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.api.vhm.strategy.VMChooser;
 import com.vmware.vhadoop.util.LogFormatter;
@@ -43,9 +45,11 @@ public class PowerTimeVMChooser extends AbstractClusterMapReader implements VMCh
    }
    
    private abstract class PowerTimeExtractor<T> {
+      String _clusterId = null;
       Set<String> _candidateVmIds = null;
 
-      PowerTimeExtractor(Set<String> candidateVmIds) {
+      PowerTimeExtractor(String clusterId, Set<String> candidateVmIds) {
+         _clusterId = clusterId;
          _candidateVmIds = candidateVmIds;
       }
       
@@ -53,12 +57,22 @@ public class PowerTimeVMChooser extends AbstractClusterMapReader implements VMCh
          Set<T> result = new HashSet<T>();
          if (_candidateVmIds != null) {
             ClusterMap clusterMap = null;
-            long currentTimeMillis = System.currentTimeMillis();
+            ClusterView clusterView = null;
             try {
                clusterMap = getAndReadLockClusterMap();
+               clusterView = clusterMap.getClusterView(_clusterId);
+            } finally {
+               unlockClusterMap(clusterMap);
+            }
+            if (clusterView != null) {
+               long currentTimeMillis = System.currentTimeMillis();
                for (String vmId : _candidateVmIds) {
-                  Long powerOnTime = clusterMap.getPowerOnTimeForVm(vmId);
-                  Long powerOffTime = clusterMap.getPowerOffTimeForVm(vmId);
+                  VMView vm = clusterView.getComputeVM(vmId);
+                  if (vm == null) {
+                     continue;
+                  }
+                  Long powerOnTime = vm.getPowerOnTime();
+                  Long powerOffTime = vm.getPowerOffTime();
                   if ((powerOnTime != null) || (powerOffTime != null)) {
                      T testResult = testVM(vmId, currentTimeMillis, powerOnTime, powerOffTime);
                      if (testResult != null) {
@@ -66,8 +80,6 @@ public class PowerTimeVMChooser extends AbstractClusterMapReader implements VMCh
                      }
                   }
                }
-            } finally {
-               unlockClusterMap(clusterMap);
             }
          }
          return result;
@@ -82,7 +94,7 @@ public class PowerTimeVMChooser extends AbstractClusterMapReader implements VMCh
       if (_powerOffTimeThresholdMillis == null) {
          return null;
       }
-      PowerTimeExtractor<String> extractor = new PowerTimeExtractor<String>(candidateVmIds) {
+      PowerTimeExtractor<String> extractor = new PowerTimeExtractor<String>(clusterId, candidateVmIds) {
          @Override
          String testVM(String vmId, long currentTimeMillis, Long powerOnTime, Long powerOffTime) {
             if (powerOffTime == null) {
@@ -104,7 +116,7 @@ public class PowerTimeVMChooser extends AbstractClusterMapReader implements VMCh
       if (_powerOnTimeThresholdMillis == null) {
          return null;
       }
-      PowerTimeExtractor<String> extractor = new PowerTimeExtractor<String>(candidateVmIds) {
+      PowerTimeExtractor<String> extractor = new PowerTimeExtractor<String>(clusterId, candidateVmIds) {
          @Override
          String testVM(String vmId, long currentTimeMillis, Long powerOnTime, Long powerOffTime) {
             if (powerOnTime == null) {
@@ -123,7 +135,7 @@ public class PowerTimeVMChooser extends AbstractClusterMapReader implements VMCh
 
    @Override
    public Set<RankedVM> rankVMsToEnable(String clusterId, Set<String> candidateVmIds) {
-      PowerTimeExtractor<RankedVM> extractor = new PowerTimeExtractor<RankedVM>(candidateVmIds) {
+      PowerTimeExtractor<RankedVM> extractor = new PowerTimeExtractor<RankedVM>(clusterId, candidateVmIds) {
          @Override
          RankedVM testVM(String vmId, long currentTimeMillis, Long powerOnTime, Long powerOffTime) {
             if (powerOffTime == null) {
@@ -143,7 +155,7 @@ public class PowerTimeVMChooser extends AbstractClusterMapReader implements VMCh
 
    @Override
    public Set<RankedVM> rankVMsToDisable(String clusterId, Set<String> candidateVmIds) {
-      PowerTimeExtractor<RankedVM> extractor = new PowerTimeExtractor<RankedVM>(candidateVmIds) {
+      PowerTimeExtractor<RankedVM> extractor = new PowerTimeExtractor<RankedVM>(clusterId, candidateVmIds) {
          @Override
          RankedVM testVM(String vmId, long currentTimeMillis, Long powerOnTime, Long powerOffTime) {
             if (powerOnTime == null) {
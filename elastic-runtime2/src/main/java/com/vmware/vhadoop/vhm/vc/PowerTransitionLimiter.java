@@ -0,0 +1,130 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm.vc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/* Limits the number of VM power transitions in flight at once, both across the vCenter and on each ESX host
+ * A permit is taken before a power task is issued and given back once the task has completed
+ * Permits are fair, so cluster threads asking at the same time take turns rather than one cluster taking every slot
+ * The host permit is always taken first and is held while waiting for a vCenter permit. Since vCenter permits are
+ *   only ever returned by task completion, this ordering can't deadlock */
+class PowerTransitionLimiter {
+   private static final Logger _log = Logger.getLogger(PowerTransitionLimiter.class.getName());
+
+   private final Semaphore _vcPermits;
+   private final int _permitsPerHost;
+   private final Map<String, Semaphore> _hostPermits;
+
+   /* Starts and waits for the power task of a single VM */
+   interface PowerTaskIssuer<T> {
+      /* Returns null if no task was started */
+      T issue(String vmMoRef);
+
+      Boolean waitFor(T task);
+   }
+
+   PowerTransitionLimiter(int permitsPerVc, int permitsPerHost) {
+      _vcPermits = new Semaphore(permitsPerVc, true);
+      _permitsPerHost = permitsPerHost;
+      _hostPermits = new HashMap<String, Semaphore>();
+   }
+
+   /* hostId may be null if the host of the VM isn't known, in which case only the vCenter limit applies */
+   private Semaphore getHostPermits(String hostId) {
+      if (hostId == null) {
+         return null;
+      }
+      synchronized(_hostPermits) {
+         Semaphore result = _hostPermits.get(hostId);
+         if (result == null) {
+            result = new Semaphore(_permitsPerHost, true);
+            _hostPermits.put(hostId, result);
+         }
+         return result;
+      }
+   }
+
+   /* Blocks until a power transition on hostId may be started */
+   void acquire(String hostId) throws InterruptedException {
+      Semaphore hostPermits = getHostPermits(hostId);
+      if (hostPermits != null) {
+         hostPermits.acquire();
+      }
+      try {
+         _vcPermits.acquire();
+      } catch (InterruptedException e) {
+         if (hostPermits != null) {
+            hostPermits.release();
+         }
+         throw e;
+      }
+   }
+
+   /* Must be called once for each successful acquire, when the power transition has completed or failed to start */
+   void release(String hostId) {
+      _vcPermits.release();
+      Semaphore hostPermits = getHostPermits(hostId);
+      if (hostPermits != null) {
+         hostPermits.release();
+      }
+   }
+
+   /* Issues a power task for each VM once its host and the vCenter have room for it, and waits for each task on taskMonitors
+    * The permits are returned when the task completes, or straight away if no task was started
+    * If interrupted while waiting for permits, the remaining VMs are left alone and only the tasks already issued are returned */
+   <T> Map<String, Future<Boolean>> issue(Map<String, String> vmMoRefsToHostIds, final PowerTaskIssuer<T> issuer, ExecutorService taskMonitors) {
+      Map<String, Future<Boolean>> result = new HashMap<String, Future<Boolean>>();
+      for (String moRef : vmMoRefsToHostIds.keySet()) {
+         final String hostId = vmMoRefsToHostIds.get(moRef);
+         try {
+            acquire(hostId);
+         } catch (InterruptedException e) {
+            _log.info("Interrupted waiting to change power state of VMs. "+result.size()+" of "+vmMoRefsToHostIds.size()+" power tasks issued");
+            Thread.currentThread().interrupt();
+            break;
+         }
+         T issued = null;
+         try {
+            issued = issuer.issue(moRef);
+         } finally {
+            if (issued == null) {
+               release(hostId);
+            }
+         }
+         if (issued != null) {
+            final T task = issued;
+            result.put(moRef, taskMonitors.submit(new Callable<Boolean>() {
+               @Override
+               public Boolean call() {
+                  try {
+                     return issuer.waitFor(task);
+                  } finally {
+                     release(hostId);
+                  }
+               }
+            }));
+         }
+      }
+      return result;
+   }
+}
@@ -16,14 +16,17 @@
 package com.vmware.vhadoop.vhm.vc;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +34,7 @@ import com.vmware.vhadoop.api.vhm.VCActions;
 import com.vmware.vhadoop.util.CompoundStatus;
 import com.vmware.vhadoop.util.ExternalizedParameters;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+import com.vmware.vhadoop.vhm.vc.PowerTransitionLimiter.PowerTaskIssuer;
 import com.vmware.vhadoop.vhm.vc.VcClientFactory.VcClientKey;
 import com.vmware.vim.binding.vim.PerformanceManager;
 import com.vmware.vim.binding.vim.Task;
@@ -42,10 +46,15 @@ public class VcAdapter implements VCActions {
 
    private final long SLEEP_RETRY_LOOKING_FOR_VALID_CLUSTERS = ExternalizedParameters.get().getLong("SLEEP_RETRY_LOOKING_FOR_VALID_CLUSTERS");   /* If no clusters are installed, we should be pretty much dormant */
    private final Long CUSTOM_RESET_CLIENT_TIMEOUT = 10000L;
+   private final int VC_MAX_CONCURRENT_POWER_TRANSITIONS = ExternalizedParameters.get().getInt("VC_MAX_CONCURRENT_POWER_TRANSITIONS");
+   private final int HOST_MAX_CONCURRENT_POWER_TRANSITIONS = ExternalizedParameters.get().getInt("HOST_MAX_CONCURRENT_POWER_TRANSITIONS");
    
    private final VcClientFactory _clientFactory;      /* THREADING: Thread-safe lazy access to VC clients */
    private final VcVlsi _vcVlsi;                      /* THREADING: Thread-safe singleton */
    private final String _rootFolderName;   // root folder for this VHM instance
+   private final PowerTransitionLimiter _powerTransitionLimiter;  /* THREADING: Thread-safe */
+   private final ThreadPoolExecutor _powerTaskMonitors;           /* Waits for power tasks to complete so their permits can be returned */
+   private final AtomicInteger _powerTaskMonitorCounter = new AtomicInteger();
 
    private ThreadLocalCompoundStatus _threadLocalStatus;
 
@@ -70,55 +79,57 @@ public class VcAdapter implements VCActions {
       _rootFolderName = rootFolderName;
       _vcVlsi = new VcVlsi();
       _clientFactory = new VcClientFactory(_vcVlsi, vcCreds);
+      _powerTransitionLimiter = new PowerTransitionLimiter(VC_MAX_CONCURRENT_POWER_TRANSITIONS, HOST_MAX_CONCURRENT_POWER_TRANSITIONS);
+      /* There can never be more tasks to monitor than there are vCenter permits */
+      _powerTaskMonitors = new ThreadPoolExecutor(VC_MAX_CONCURRENT_POWER_TRANSITIONS, VC_MAX_CONCURRENT_POWER_TRANSITIONS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Power_Task_Monitor_"+_powerTaskMonitorCounter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      _powerTaskMonitors.allowCoreThreadTimeOut(true);
    }
 
    /* THREADING: Can be called by multiple threads */
    @Override
    public Map<String, Future<Boolean>> changeVMPowerState(Set<String> vmMoRefs, boolean powerOn) {
-      Client client = _clientFactory.getAndValidateClient(VcClientKey.CONTROL_CLIENT);
-      if (client == null) {
-         return null;
+      Map<String, String> vmMoRefsToHostIds = new HashMap<String, String>();
+      for (String vmMoRef : vmMoRefs) {
+         vmMoRefsToHostIds.put(vmMoRef, null);
       }
-      Map<String, Task> taskList = null;
-      if (powerOn) {
-         taskList = _vcVlsi.powerOnVMs(client, vmMoRefs);
-      } else {
-         taskList = _vcVlsi.powerOffVMs(client, vmMoRefs);
-      }
-      return convertTaskListToFutures(client, taskList);
+      return changeVMPowerState(vmMoRefsToHostIds, powerOn);
    }
 
-   private Map<String, Future<Boolean>> convertTaskListToFutures(final Client client, Map<String, Task> taskList) {
-      Map<String, Future<Boolean>> result = new HashMap<String, Future<Boolean>>();
-      for (String moRef : taskList.keySet()) {
-         final Task task = taskList.get(moRef);
-         result.put(moRef, new Future<Boolean>() {
-            @Override
-            public boolean cancel(boolean arg0) {
-               return false;
-            }
-
-            @Override
-            public Boolean get() throws InterruptedException, ExecutionException {
-               return _vcVlsi.waitForTask(client, task);
-            }
-
-            @Override
-            public Boolean get(long arg0, TimeUnit arg1) throws InterruptedException, ExecutionException, TimeoutException {
-               return null;
-            }
-
-            @Override
-            public boolean isCancelled() {
-               return false;
+   /* THREADING: Can be called by multiple threads
+    * Each power task is only issued once the vCenter and its host have room for another power transition, so a
+    *   cluster thread may block here while other clusters' VMs are powering on or off. If interrupted while blocked,
+    *   VMs not yet admitted are left alone and only the tasks already issued are returned */
+   @Override
+   public Map<String, Future<Boolean>> changeVMPowerState(Map<String, String> vmMoRefsToHostIds, final boolean powerOn) {
+      final Client client = _clientFactory.getAndValidateClient(VcClientKey.CONTROL_CLIENT);
+      if (client == null) {
+         return null;
+      }
+      return _powerTransitionLimiter.issue(vmMoRefsToHostIds, new PowerTaskIssuer<Task>() {
+         @Override
+         public Task issue(String vmMoRef) {
+            Map<String, Task> taskList;
+            if (powerOn) {
+               taskList = _vcVlsi.powerOnVMs(client, Collections.singleton(vmMoRef));
+            } else {
+               taskList = _vcVlsi.powerOffVMs(client, Collections.singleton(vmMoRef));
             }
+            return (taskList == null) ? null : taskList.get(vmMoRef);
+         }
 
-            @Override
-            public boolean isDone() {
-               return false;
-            }});
-      }
-      return result;
+         @Override
+         public Boolean waitFor(Task task) {
+            return _vcVlsi.waitForTask(client, task);
+         }
+      }, _powerTaskMonitors);
    }
 
    /* THREADING: Single-threaded. This is only ever called by the ClusterStateChangeListener thread */
@@ -129,6 +140,7 @@ public class VcAdapter implements VCActions {
          return null;
       }
       List<VMEventData> result = new ArrayList<VMEventData>();
+      boolean succeeded = false;
       for (int i=0; i<2; i++) {
          String waitForUpdatesVersion = _clientFactory.getWaitForUpdatesVersion();
          String versionStatus = _vcVlsi.waitForUpdates(client, folderName, waitForUpdatesVersion, result);
@@ -164,7 +176,12 @@ public class VcAdapter implements VCActions {
             _log.fine("Updating waitForUpdates version to "+versionStatus);
             _clientFactory.updateWaitForUpdatesVersion(versionStatus);
          }
+         succeeded = true;
          break;
+      }
+      if (!succeeded) {
+         /* An empty result would be taken to mean that there are no VMs */
+         return null;
       }
       _log.finest("Returning result "+result);
       return result;
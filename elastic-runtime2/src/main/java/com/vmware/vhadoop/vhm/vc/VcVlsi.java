@@ -155,6 +155,14 @@ public class VcVlsi {
    private Alarm _alarmSingleton;
    private Object _alarmLock = new Object();
 
+   /* THREADING: Only the ClusterStateChangeListener thread calls waitForUpdates, so these need no locking
+    * The base folder and the filter on the VMs in it are kept across calls, saving several round trips to VC per call
+    * They are only discarded on error, or if the client or base folder name changes */
+   private Client _waitForUpdatesClient;
+   private String _waitForUpdatesFolderName;
+   private Folder _waitForUpdatesFolder;
+   private PropertyFilter _waitForUpdatesFilter;
+
    static {
       VmodlContext.initContext(new String[] { "com.vmware.vim.binding.vim" });
    }
@@ -520,9 +528,32 @@ public class VcVlsi {
       return updateSet;
    }
 
-   /* TODO: Why is this not called anywhere? */
-   private void cleanupWaitForUpdates(PropertyFilter propFilter) {
-      propFilter.cleanup();
+   /* Returns the base folder, looking it up only if it isn't cached for this client and folder name */
+   private Folder getWaitForUpdatesFolder(Client vcClient, String baseFolderName) throws InvalidProperty {
+      if ((vcClient != _waitForUpdatesClient) || !baseFolderName.equals(_waitForUpdatesFolderName)) {
+         cleanupWaitForUpdates();
+      }
+      if (_waitForUpdatesFolder == null) {
+         _waitForUpdatesFolder = getFolderForName(vcClient, null, baseFolderName);
+         _waitForUpdatesClient = vcClient;
+         _waitForUpdatesFolderName = baseFolderName;
+      }
+      return _waitForUpdatesFolder;
+   }
+
+   /* Destroys the filter and its view in VC and forgets the cached folder. If the session has gone, so have they, so errors are ignored */
+   private void cleanupWaitForUpdates() {
+      if (_waitForUpdatesFilter != null) {
+         try {
+            _waitForUpdatesFilter.cleanup();
+         } catch (Exception e) {
+            _log.fine("Unable to clean up waitForUpdates filter - "+e);
+         }
+      }
+      _waitForUpdatesFilter = null;
+      _waitForUpdatesFolder = null;
+      _waitForUpdatesFolderName = null;
+      _waitForUpdatesClient = null;
    }
 
    private static Map<String, Set<String>> getNicInfo(NicInfo[] nicInfoArray) {
@@ -624,13 +655,14 @@ public class VcVlsi {
       if (version == null) {
          version = "";
       }
-      if (version.equals("")) {
+      /* The filter stays in place on the session, so it's only created once. A version from before it was created means nothing to it */
+      if (_waitForUpdatesFilter == null) {
          String [] props = {VC_PROP_VM_NAME, VC_PROP_VM_EXTRA_CONFIG, VC_PROP_VM_UUID, VC_PROP_VM_NUM_CPU,
                VC_PROP_VM_POWER_STATE, VC_PROP_VM_HOST, VC_PROP_VM_GUEST_NIC_INFO, VC_PROP_VM_GUEST_HOSTNAME};
-         setupWaitForUpdates(vcClient, folder, typeVM, props);
+         _waitForUpdatesFilter = setupWaitForUpdates(vcClient, folder, typeVM, props);
+         version = "";
       }
-      ServiceInstanceContent sic = getServiceInstanceContent(vcClient);
-      PropertyCollector propertyCollector = vcClient.createStub(PropertyCollector.class, sic.getPropertyCollector());
+      PropertyCollector propertyCollector = _waitForUpdatesFilter.getPropertyCollector();
 
       UpdateSet updateSet = null;
       try {
@@ -734,8 +766,9 @@ public class VcVlsi {
       if (newVersion == null) {
          newVersion = "";
       }
+      boolean keepCache = false;
       try {
-         Folder f = getFolderForName(client, null, baseFolderName);
+         Folder f = getWaitForUpdatesFolder(client, baseFolderName);
          if (f == null) {
             // This is normal state when user hasn't created any hadoop clusters yet
             _log.log(Level.INFO, "No found clusters for hadoop UUID " + baseFolderName);
@@ -744,9 +777,11 @@ public class VcVlsi {
             newVersion = pcVMsInFolder(client, f, version, vmDataList);
          }
          status.registerTaskSucceeded();
+         keepCache = true;
       } catch (RequestCanceled e) {
          _log.info("waitForUpdates request has been canceled");
          newVersion = WAIT_FOR_UPDATES_CANCELED_STATUS;
+         keepCache = true;
       } catch (InvalidCollectorVersion e) {
          _log.info("propertyCollector version has become stale");
          newVersion = WAIT_FOR_UPDATES_INVALID_COLLECTOR_VERSION_STATUS;
@@ -759,6 +794,10 @@ public class VcVlsi {
          reportException("Error connecting to vCenter: "+e.getMessage(), status);
       } catch (Exception e) {
          reportException("Unexpected exception waiting for updates", e, status);
+      } finally {
+         if (!keepCache) {
+            cleanupWaitForUpdates();
+         }
       }
       getCompoundStatus().addStatus(status);
       return newVersion;
@@ -59,7 +59,7 @@ public abstract class AbstractJUnitTest {
       MultipleReaderSingleWriterClusterMapAccess.destroy();
       MultipleReaderSingleWriterClusterMapAccess cma = 
             MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(clusterMap);
-      return new AbstractClusterMapReader(cma, null) {};
+      return new AbstractClusterMapReader(new CheckedClusterMapAccess(cma), null) {};
    }
    
    VMEventData createEventData(String clusterName, String vmName, boolean isMaster, 
@@ -0,0 +1,111 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap.ExtraInfoToClusterMapper;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
+import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
+
+/* Runs all of the ClusterMap tests against the caching implementation, which must give the same answers */
+public class CachingClusterMapImplTest extends ClusterMapTest {
+
+   @Override
+   AbstractClusterMap createClusterMap(ExtraInfoToClusterMapper mapper) {
+      return new CachingClusterMapImpl(mapper);
+   }
+
+   @Test
+   public void cachedResultsReused() {
+      populateSimpleClusterMap(3, 4, false);
+      String clusterId = getClusterIdForMasterVmName(_masterVmNames.iterator().next());
+      Set<String> vms = _clusterMap.listComputeVMsForCluster(clusterId);
+      assertNotNull(vms);
+      assertSame(vms, _clusterMap.listComputeVMsForCluster(clusterId));
+      assertSame(_clusterMap.listComputeVMsForClusterAndPowerState(clusterId, false),
+            _clusterMap.listComputeVMsForClusterAndPowerState(clusterId, false));
+   }
+
+   private void moveVmToHost(String vmName, String hostId) {
+      VMVariableData variableData = new VMVariableData();
+      variableData._hostMoRef = hostId;
+      _clusterMap.handleClusterEvent(new VmUpdateEvent(getVmIdFromVmName(vmName), variableData), null);
+   }
+
+   @Test
+   public void onlyDependentResultsEvicted() {
+      populateSimpleClusterMap(2, 4, false);
+      Set<String> cluster0Vms = new HashSet<String>();
+      cluster0Vms.add(getVmIdFromVmName(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1"));
+      cluster0Vms.add(getVmIdFromVmName(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"2"));
+      String cluster0Id = getClusterIdForMasterVmName(getMasterVmNameForCluster(CLUSTER_NAME_PREFIX+"0"));
+      Map<String, String> hostIds = _clusterMap.getHostIdsForVMs(cluster0Vms);
+      String masterVmId = _clusterMap.getMasterVmIdForCluster(cluster0Id);
+
+      /* A change to a VM in another cluster doesn't affect results that never read it */
+      moveVmToHost(CLUSTER_NAME_PREFIX+"1_"+VM_NAME_PREFIX+"1", "OTHER_HOST");
+      assertSame(hostIds, _clusterMap.getHostIdsForVMs(cluster0Vms));
+      assertSame(masterVmId, _clusterMap.getMasterVmIdForCluster(cluster0Id));
+
+      /* A change to a VM that was read evicts the result */
+      moveVmToHost(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"2", "OTHER_HOST");
+      Map<String, String> newHostIds = _clusterMap.getHostIdsForVMs(cluster0Vms);
+      assertNotSame(hostIds, newHostIds);
+      assertEquals("OTHER_HOST", newHostIds.get(getVmIdFromVmName(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"2")));
+   }
+
+   @Test
+   public void indexedResultsOnlyEvictedByChangesToTheirKeys() {
+      populateSimpleClusterMap(2, 4, false);
+      String cluster0Id = getClusterIdForMasterVmName(getMasterVmNameForCluster(CLUSTER_NAME_PREFIX+"0"));
+      String cluster1Id = getClusterIdForMasterVmName(getMasterVmNameForCluster(CLUSTER_NAME_PREFIX+"1"));
+      Set<String> cluster0Vms = _clusterMap.listComputeVMsForCluster(cluster0Id);
+      Set<String> cluster1Vms = _clusterMap.listComputeVMsForCluster(cluster1Id);
+
+      /* Moving a VM between hosts doesn't change which cluster it's in */
+      moveVmToHost(CLUSTER_NAME_PREFIX+"1_"+VM_NAME_PREFIX+"1", "OTHER_HOST");
+      assertSame(cluster0Vms, _clusterMap.listComputeVMsForCluster(cluster0Id));
+      assertSame(cluster1Vms, _clusterMap.listComputeVMsForCluster(cluster1Id));
+
+      String movedVmId = getVmIdFromVmName(CLUSTER_NAME_PREFIX+"1_"+VM_NAME_PREFIX+"1");
+      Set<String> onOtherHost = _clusterMap.listComputeVMsForClusterHostAndPowerState(cluster1Id, "OTHER_HOST", false);
+      assertEquals(1, onOtherHost.size());
+      assertTrue(onOtherHost.contains(movedVmId));
+
+      /* A power change moves the VM between power state index entries */
+      Set<String> cluster0PoweredOff = _clusterMap.listComputeVMsForClusterAndPowerState(cluster0Id, false);
+      VMVariableData variableData = new VMVariableData();
+      variableData._powerState = true;
+      _clusterMap.handleClusterEvent(new VmUpdateEvent(movedVmId, variableData), null);
+      assertSame(cluster0PoweredOff, _clusterMap.listComputeVMsForClusterAndPowerState(cluster0Id, false));
+      Set<String> cluster1PoweredOn = _clusterMap.listComputeVMsForClusterAndPowerState(cluster1Id, true);
+      assertEquals(1, cluster1PoweredOn.size());
+      assertTrue(cluster1PoweredOn.contains(movedVmId));
+      assertFalse(_clusterMap.listComputeVMsForClusterAndPowerState(cluster1Id, false).contains(movedVmId));
+   }
+}
@@ -0,0 +1,210 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+
+public class ClusterEventMailboxesTest {
+   private static final long TIMEOUT_MILLIS = 5000;
+
+   private ClusterEventMailboxes _mailboxes;
+
+   /* Records the batches handled for each cluster and checks that no cluster is ever handled by two threads at once */
+   class RecordingHandler implements ClusterEventMailboxes.ClusterEventHandler {
+      final Map<String, List<List<ClusterScaleEvent>>> _batches = new HashMap<String, List<List<ClusterScaleEvent>>>();
+      final Map<String, Integer> _active = new HashMap<String, Integer>();
+      int _numEvents;
+      boolean _overlapped;
+
+      @Override
+      public void handleClusterScaleEvents(String clusterId, Set<ClusterScaleEvent> events) {
+         synchronized(this) {
+            Integer active = _active.get(clusterId);
+            if ((active != null) && (active > 0)) {
+               _overlapped = true;
+            }
+            _active.put(clusterId, 1);
+         }
+         handle(clusterId, events);
+         synchronized(this) {
+            _active.put(clusterId, 0);
+            List<List<ClusterScaleEvent>> batches = _batches.get(clusterId);
+            if (batches == null) {
+               batches = new ArrayList<List<ClusterScaleEvent>>();
+               _batches.put(clusterId, batches);
+            }
+            batches.add(new ArrayList<ClusterScaleEvent>(events));
+            _numEvents += events.size();
+            notifyAll();
+         }
+      }
+
+      /* Overridden to hold up a batch */
+      void handle(String clusterId, Set<ClusterScaleEvent> events) {
+         Thread.yield();
+      }
+
+      synchronized void waitForEvents(int numEvents) throws InterruptedException {
+         long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+         while (_numEvents < numEvents) {
+            long remaining = deadline - System.currentTimeMillis();
+            assertTrue("Only "+_numEvents+" of "+numEvents+" events handled", remaining > 0);
+            wait(remaining);
+         }
+      }
+
+      synchronized List<ClusterScaleEvent> getEvents(String clusterId) {
+         List<ClusterScaleEvent> result = new ArrayList<ClusterScaleEvent>();
+         for (List<ClusterScaleEvent> batch : _batches.get(clusterId)) {
+            result.addAll(batch);
+         }
+         return result;
+      }
+   }
+
+   @After
+   public void stopMailboxes() {
+      if (_mailboxes != null) {
+         _mailboxes.stop();
+      }
+   }
+
+   /* Each event is for a different VM, as events for the same VM are equal and a batch is a set */
+   private void post(String clusterId, List<ClusterScaleEvent> posted) {
+      ClusterScaleEvent event = new TrivialClusterScaleEvent(clusterId+"_vm"+posted.size(), null, clusterId, null, null, false);
+      posted.add(event);
+      _mailboxes.post(clusterId, Collections.singleton(event));
+   }
+
+   @Test
+   public void testEventsForOneClusterInOrder() throws InterruptedException {
+      RecordingHandler handler = new RecordingHandler();
+      _mailboxes = new ClusterEventMailboxes(4, handler);
+      _mailboxes.start();
+      List<ClusterScaleEvent> posted = new ArrayList<ClusterScaleEvent>();
+      for (int i=0; i<200; i++) {
+         post("cluster1", posted);
+      }
+      handler.waitForEvents(posted.size());
+      assertEquals(posted, handler.getEvents("cluster1"));
+      assertFalse(handler._overlapped);
+   }
+
+   @Test
+   public void testEventsPostedDuringBatchAreBatchedTogether() throws InterruptedException {
+      final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+      final CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+      RecordingHandler handler = new RecordingHandler() {
+         @Override
+         void handle(String clusterId, Set<ClusterScaleEvent> events) {
+            if (firstBatchStarted.getCount() > 0) {
+               firstBatchStarted.countDown();
+               try {
+                  releaseFirstBatch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+               } catch (InterruptedException e) {}
+            }
+         }
+      };
+      _mailboxes = new ClusterEventMailboxes(4, handler);
+      _mailboxes.start();
+      List<ClusterScaleEvent> posted = new ArrayList<ClusterScaleEvent>();
+      post("cluster1", posted);
+      assertTrue(firstBatchStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+      post("cluster1", posted);
+      post("cluster1", posted);
+      post("cluster1", posted);
+      releaseFirstBatch.countDown();
+
+      handler.waitForEvents(posted.size());
+      List<List<ClusterScaleEvent>> batches = handler._batches.get("cluster1");
+      assertEquals(2, batches.size());
+      assertEquals(posted.subList(0, 1), batches.get(0));
+      assertEquals(posted.subList(1, 4), batches.get(1));
+      assertFalse(handler._overlapped);
+   }
+
+   @Test
+   public void testClustersHandledConcurrently() throws InterruptedException {
+      /* Each cluster's first batch waits for the other's to start, which can only complete if they run at the same time */
+      final Map<String, CountDownLatch> started = new HashMap<String, CountDownLatch>();
+      started.put("cluster1", new CountDownLatch(1));
+      started.put("cluster2", new CountDownLatch(1));
+      final List<String> timedOut = Collections.synchronizedList(new ArrayList<String>());
+      RecordingHandler handler = new RecordingHandler() {
+         @Override
+         void handle(String clusterId, Set<ClusterScaleEvent> events) {
+            String otherClusterId = clusterId.equals("cluster1") ? "cluster2" : "cluster1";
+            started.get(clusterId).countDown();
+            try {
+               if (!started.get(otherClusterId).await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                  timedOut.add(clusterId);
+               }
+            } catch (InterruptedException e) {}
+         }
+      };
+      _mailboxes = new ClusterEventMailboxes(2, handler);
+      _mailboxes.start();
+      List<ClusterScaleEvent> posted = new ArrayList<ClusterScaleEvent>();
+      post("cluster1", posted);
+      post("cluster2", posted);
+      handler.waitForEvents(posted.size());
+      assertTrue("Clusters were not handled concurrently: "+timedOut, timedOut.isEmpty());
+   }
+
+   @Test
+   public void testBusyClusterDoesNotDelayOthers() throws InterruptedException {
+      final CountDownLatch releaseBusy = new CountDownLatch(1);
+      RecordingHandler handler = new RecordingHandler() {
+         @Override
+         void handle(String clusterId, Set<ClusterScaleEvent> events) {
+            if (clusterId.equals("busy")) {
+               try {
+                  releaseBusy.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+               } catch (InterruptedException e) {}
+            }
+         }
+      };
+      _mailboxes = new ClusterEventMailboxes(2, handler);
+      _mailboxes.start();
+      List<ClusterScaleEvent> busyPosted = new ArrayList<ClusterScaleEvent>();
+      List<ClusterScaleEvent> quietPosted = new ArrayList<ClusterScaleEvent>();
+      post("busy", busyPosted);
+      post("busy", busyPosted);
+      for (int i=0; i<10; i++) {
+         post("quiet", quietPosted);
+      }
+      /* The busy cluster only ever occupies one of the two threads */
+      handler.waitForEvents(quietPosted.size());
+      assertEquals(quietPosted, handler.getEvents("quiet"));
+      releaseBusy.countDown();
+      handler.waitForEvents(quietPosted.size() + busyPosted.size());
+      assertEquals(busyPosted, handler.getEvents("busy"));
+   }
+}
@@ -34,13 +34,13 @@ import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 
 public class ClusterMapAccessTest {
    StandaloneSimpleClusterMap _clusterMap;
-   MultipleReaderSingleWriterClusterMapAccess _clusterMapAccess;
+   WritableClusterMapAccess _clusterMapAccess;
    List<Thread> _liveThreads = new ArrayList<Thread>();
    
    @Before
    public void initialize() {
       _clusterMap = new StandaloneSimpleClusterMap(false);
-      _clusterMapAccess = MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(_clusterMap);
+      _clusterMapAccess = new CheckedClusterMapAccess(MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(_clusterMap));
    }
    
    @After
@@ -67,6 +67,53 @@ public class ClusterMapAccessTest {
       assertFalse(result);
    }
    
+   @Test
+   public void checkedClusterMapOnlyValidWhileLocked() {
+      CheckedClusterMapAccess clusterMapAccess = (CheckedClusterMapAccess)_clusterMapAccess;
+      CheckedClusterMap cm = (CheckedClusterMap)clusterMapAccess.lockClusterMap();
+      assertSame(_clusterMap, cm.getClusterMap());
+      assertTrue(clusterMapAccess.isLockedByCurrentThread(cm));
+      assertTrue(clusterMapAccess.unlockClusterMap(cm));
+      assertFalse(clusterMapAccess.isLockedByCurrentThread(cm));
+   }
+
+   @Test
+   public void writerIsReentrant() throws Exception {
+      Object result = _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            /* The writer can read what it has written and write again without deadlocking */
+            ClusterMap cm = _clusterMapAccess.lockClusterMap();
+            assertNotNull(cm);
+            assertTrue(_clusterMapAccess.unlockClusterMap(cm));
+            return _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+               @Override
+               public Object call() throws Exception {
+                  return true;
+               }
+            });
+         }
+      });
+      assertEquals(true, result);
+   }
+
+   @Test
+   public void readerCannotUpgrade() throws Exception {
+      ClusterMap cm = _clusterMapAccess.lockClusterMap();
+      try {
+         _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+               return null;
+            }
+         });
+         fail("Write lock granted to a reader");
+      } catch (IllegalStateException e) {
+      } finally {
+         assertTrue(_clusterMapAccess.unlockClusterMap(cm));
+      }
+   }
+
    class TestClusterMapReader extends AbstractClusterMapReader {
       public int getNumPoweredOffVMs(long delayMillis) {
          ClusterMap cm = null;
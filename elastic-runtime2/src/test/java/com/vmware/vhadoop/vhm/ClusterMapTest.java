@@ -19,6 +19,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -33,6 +34,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap.ExtraInfoToClusterMapper;
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.ClusterView.VMView;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.VCActions.VMEventData;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
@@ -85,11 +88,15 @@ public class ClusterMapTest extends AbstractJUnitTest {
       }
    }
 
+   AbstractClusterMap createClusterMap(ExtraInfoToClusterMapper mapper) {
+      return new ClusterMapImpl(mapper);
+   }
+
    @Before
    public void initialize() {
       _isNewClusterResult = new ArrayList<Boolean>();
       _isClusterViableResult = new ArrayList<Boolean>();
-      _clusterMap = new ClusterMapImpl(new ExtraInfoToClusterMapper() {
+      _clusterMap = createClusterMap(new ExtraInfoToClusterMapper() {
          @Override
          public String getStrategyKey(SerengetiClusterVariableData scvd, String clusterId) {
             if ((scvd != null) && (scvd._enableAutomation)) {
@@ -127,6 +134,7 @@ public class ClusterMapTest extends AbstractJUnitTest {
             return null;
          }
       });
+      _clusterMap.enableDataChecks();
    }
 
    @Test
@@ -246,6 +254,45 @@ public class ClusterMapTest extends AbstractJUnitTest {
       assertNull(_clusterMap.getHadoopInfoForCluster(null));
    }
 
+   @Test
+   public void getClusterView() {
+      String clusterName = CLUSTER_NAME_PREFIX+0;
+      populateClusterSameHost(clusterName, "DEFAULT_HOST", 4, true, false, 0, null);
+      String clusterId = deriveClusterIdFromClusterName(clusterName);
+
+      ClusterView view = _clusterMap.getClusterView(clusterId);
+      assertNotNull(view);
+      assertEquals(clusterId, view.getClusterId());
+      assertEquals(clusterName, view.getClusterName());
+      assertEquals(_clusterMap.getHadoopInfoForCluster(clusterId), view.getHadoopClusterInfo());
+      assertEquals(_clusterMap.getMasterVmIdForCluster(clusterId), view.getMaster().getVmId());
+
+      /* Note 3 compute VMs, since 1 of the 4 is the master */
+      assertEquals(_clusterMap.listComputeVMsForCluster(clusterId), view.getComputeVMIds());
+      assertEquals(3, view.getComputeVMIds().size());
+      assertEquals(_clusterMap.listComputeVMsForClusterAndPowerState(clusterId, true), view.listComputeVMsForPowerState(true));
+      assertTrue(view.listComputeVMsForPowerState(false).isEmpty());
+      for (String vmId : view.getComputeVMIds()) {
+         VMView vm = view.getComputeVM(vmId);
+         assertEquals(_clusterMap.getHostIdForVm(vmId), vm.getHostId());
+         assertEquals(_clusterMap.getDnsNameForVM(vmId), vm.getDnsName());
+         assertEquals(_clusterMap.getPowerOnTimeForVm(vmId), vm.getPowerOnTime());
+         assertEquals(_clusterMap.getNicAndIpAddressesForVm(vmId), vm.getNicAndIpAddressMap());
+         assertTrue(vm.isPoweredOn());
+      }
+      Map<String, String> dnsNames = view.getDnsNamesForVMs(view.getComputeVMIds());
+      assertEquals(view.getComputeVMIds(), view.getVmIdsForDnsNames(new HashSet<String>(dnsNames.values())));
+
+      /* A view is unaffected by later changes to the cluster */
+      changeMasterVmPowerStateForClusterName(clusterName, false);
+      assertNotNull(view.getHadoopClusterInfo());
+      assertNull(_clusterMap.getClusterView(clusterId).getHadoopClusterInfo());
+
+      /* Negative tests */
+      assertNull(_clusterMap.getClusterView("bogus"));
+      assertNull(_clusterMap.getClusterView(null));
+   }
+
    @Test
    public void getHostIdForVM() {
       int numClusterIds = 3;
@@ -261,6 +308,17 @@ public class ClusterMapTest extends AbstractJUnitTest {
       assertNull(_clusterMap.getHostIdForVm(null));
    }
 
+   @Test
+   public void repeatedStringsStoredOnce() {
+      populateClusterPerHost(2, 3, false);
+      String vmId0 = getVmIdFromVmName(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1");
+      String vmId1 = getVmIdFromVmName(CLUSTER_NAME_PREFIX+"1_"+VM_NAME_PREFIX+"1");
+      VMVariableData variableData = new VMVariableData();
+      variableData._hostMoRef = new String(_clusterMap.getHostIdForVm(vmId0));
+      _clusterMap.handleClusterEvent(new VmUpdateEvent(vmId1, variableData), null);
+      assertSame(_clusterMap.getHostIdForVm(vmId0), _clusterMap.getHostIdForVm(vmId1));
+   }
+
    @Test
    public void getHostIdsForVMs() {
       int numClusterIds = 3;
@@ -296,9 +354,16 @@ public class ClusterMapTest extends AbstractJUnitTest {
          ClusterScaleCompletionEvent cse2 = new ClusterScaleDecision(clusterId);
          _clusterMap.handleCompletionEvent(cse2);
          assertEquals(cse2, _clusterMap.getLastClusterScaleCompletionEvent(clusterId));
+
+         List<ClusterScaleCompletionEvent> history = _clusterMap.getClusterScaleCompletionEventsSince(clusterId, 0);
+         assertEquals(2, history.size());
+         assertEquals(cse2, history.get(0));
+         assertEquals(cse, history.get(1));
+         assertTrue(_clusterMap.getClusterScaleCompletionEventsSince(clusterId, System.currentTimeMillis() + 1000).isEmpty());
       }
 
       /* Negative tests */
+      assertNull(_clusterMap.getClusterScaleCompletionEventsSince("bogus", 0));
       assertNull(_clusterMap.getLastClusterScaleCompletionEvent(null));
       assertNull(_clusterMap.getLastClusterScaleCompletionEvent("bogus"));
    }
@@ -0,0 +1,99 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+import com.vmware.vhadoop.api.vhm.events.CompletionEventHistory;
+import com.vmware.vhadoop.vhm.events.ClusterScaleDecision;
+
+public class CompletionEventHistoryTest {
+
+   private ClusterScaleCompletionEvent[] addEvents(CompletionEventHistory history, int number, long startTime, long interval) {
+      ClusterScaleCompletionEvent[] result = new ClusterScaleCompletionEvent[number];
+      for (int i=0; i<number; i++) {
+         result[i] = new ClusterScaleDecision("cluster");
+         history.add(result[i], startTime + (i * interval));
+      }
+      return result;
+   }
+
+   @Test
+   public void oldestDroppedWhenFull() {
+      CompletionEventHistory history = new CompletionEventHistory(4, 0);
+      assertNull(history.getLatest());
+      assertTrue(history.getSince(0).isEmpty());
+
+      ClusterScaleCompletionEvent[] events = addEvents(history, 10, 1000, 10);
+      assertEquals(4, history.size());
+      assertSame(events[9], history.getLatest());
+      List<ClusterScaleCompletionEvent> all = history.getSince(0);
+      assertEquals(4, all.size());
+      for (int i=0; i<4; i++) {
+         assertSame(events[9-i], all.get(i));
+      }
+   }
+
+   @Test
+   public void sinceQueries() {
+      CompletionEventHistory history = new CompletionEventHistory(8, 0);
+      ClusterScaleCompletionEvent[] events = addEvents(history, 11, 1000, 10);
+      /* Events 3 to 10 are held, recorded at 1030 to 1100 */
+      assertEquals(8, history.getSince(1030).size());
+      assertEquals(3, history.getSince(1075).size());
+      assertSame(events[8], history.getSince(1080).get(2));
+      assertEquals(1, history.getSince(1100).size());
+      assertTrue(history.getSince(1101).isEmpty());
+
+      /* Times are kept in order, even if the clock goes backwards */
+      ClusterScaleCompletionEvent late = new ClusterScaleDecision("cluster");
+      history.add(late, 500);
+      assertSame(late, history.getSince(1100).get(0));
+   }
+
+   @Test
+   public void expiredEventsDroppedButLatestKept() {
+      CompletionEventHistory history = new CompletionEventHistory(8, 100);
+      addEvents(history, 5, 1000, 10);
+      assertEquals(5, history.size());
+
+      ClusterScaleCompletionEvent recent = new ClusterScaleDecision("cluster");
+      history.add(recent, 1125);
+      /* Only those recorded at 1025 or later are kept - 1030, 1040 and 1125 */
+      assertEquals(3, history.size());
+
+      ClusterScaleCompletionEvent latest = new ClusterScaleDecision("cluster");
+      history.add(latest, 5000);
+      assertEquals(1, history.size());
+      assertSame(latest, history.getLatest());
+   }
+
+   @Test
+   public void copyIsIndependent() {
+      CompletionEventHistory history = new CompletionEventHistory(4, 0);
+      ClusterScaleCompletionEvent[] events = addEvents(history, 3, 1000, 10);
+      CompletionEventHistory copy = history.copy();
+      addEvents(history, 3, 2000, 10);
+      assertEquals(3, copy.size());
+      assertSame(events[2], copy.getLatest());
+      assertEquals(4, history.size());
+   }
+}
@@ -0,0 +1,266 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.util.ExternalizedParameters;
+import com.vmware.vhadoop.vhm.DeferredEventQueue.BlockingCondition;
+
+public class DeferredEventQueueTest {
+   private static final long TIMEOUT_MILLIS = 5000;
+
+   /* The values VHM constructs its queue with */
+   private static final long INITIAL_DELAY_MILLIS = ExternalizedParameters.get().getLong("DEFERRED_EVENT_INITIAL_DELAY_MILLIS");
+   private static final long MAX_DELAY_MILLIS = ExternalizedParameters.get().getLong("CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS");
+
+   private DeferredEventQueue _queue;
+   private int _numEvents;
+
+   /* Records each collection of events put back on the queue, along with when it arrived */
+   class RecordingConsumer implements EventConsumer {
+      final List<List<NotificationEvent>> _released = new ArrayList<List<NotificationEvent>>();
+      final List<Long> _releaseTimes = new ArrayList<Long>();
+
+      @Override
+      public synchronized void placeEventOnQueue(NotificationEvent event) {
+         placeEventCollectionOnQueue(Arrays.asList(event));
+      }
+
+      @Override
+      public synchronized void placeEventCollectionOnQueue(List<? extends NotificationEvent> events) {
+         _released.add(new ArrayList<NotificationEvent>(events));
+         _releaseTimes.add(System.currentTimeMillis());
+         notifyAll();
+      }
+
+      synchronized void waitForReleases(int numReleases) throws InterruptedException {
+         long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+         while (_released.size() < numReleases) {
+            long remaining = deadline - System.currentTimeMillis();
+            assertTrue("Only "+_released.size()+" of "+numReleases+" batches released", remaining > 0);
+            wait(remaining);
+         }
+      }
+
+      synchronized int getNumReleases() {
+         return _released.size();
+      }
+   }
+
+   @After
+   public void stopQueue() {
+      if (_queue != null) {
+         _queue.stop();
+      }
+   }
+
+   /* Each event is for a different VM, as events for the same VM are equal and a batch is a set */
+   private List<ClusterScaleEvent> events(String clusterId, int numEvents) {
+      List<ClusterScaleEvent> result = new ArrayList<ClusterScaleEvent>();
+      for (int i=0; i<numEvents; i++) {
+         result.add(new TrivialClusterScaleEvent(clusterId+"_vm"+(_numEvents++), null, clusterId, null, null, false));
+      }
+      return result;
+   }
+
+   private void defer(String clusterId, BlockingCondition condition, List<ClusterScaleEvent> events) {
+      _queue.defer(clusterId, condition, events, _queue.getReleaseSequence(clusterId));
+   }
+
+   @Test
+   public void testBackoffDoublesUpToGraceTime() {
+      _queue = new DeferredEventQueue(new RecordingConsumer(), INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS);
+      assertTrue(INITIAL_DELAY_MILLIS < MAX_DELAY_MILLIS);
+      assertEquals(INITIAL_DELAY_MILLIS, _queue.getNextDelayMillis("cluster1"));
+
+      long expectedDelay = INITIAL_DELAY_MILLIS;
+      while (expectedDelay < MAX_DELAY_MILLIS) {
+         defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, events("cluster1", 1));
+         expectedDelay = Math.min(expectedDelay * 2, MAX_DELAY_MILLIS);
+         assertEquals(expectedDelay, _queue.getNextDelayMillis("cluster1"));
+
+         /* Further events join the batch already deferred, rather than backing off again */
+         defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, events("cluster1", 1));
+         assertEquals(expectedDelay, _queue.getNextDelayMillis("cluster1"));
+         assertNotNull(_queue.takeDeferred("cluster1"));
+      }
+
+      /* Capped at the grace time */
+      defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, events("cluster1", 1));
+      assertEquals(MAX_DELAY_MILLIS, _queue.getNextDelayMillis("cluster1"));
+      assertNotNull(_queue.takeDeferred("cluster1"));
+
+      /* Other clusters are unaffected, and handling the cluster's events starts it afresh */
+      assertEquals(INITIAL_DELAY_MILLIS, _queue.getNextDelayMillis("cluster2"));
+      _queue.resetBackoff("cluster1");
+      assertEquals(INITIAL_DELAY_MILLIS, _queue.getNextDelayMillis("cluster1"));
+   }
+
+   @Test
+   public void testReleasedAfterDelay() throws InterruptedException {
+      RecordingConsumer consumer = new RecordingConsumer();
+      _queue = new DeferredEventQueue(consumer, 200, 800);
+      _queue.start();
+
+      List<Long> deferTimes = new ArrayList<Long>();
+      for (int i=0; i<4; i++) {
+         deferTimes.add(System.currentTimeMillis());
+         defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, events("cluster1", 1));
+         consumer.waitForReleases(i+1);
+      }
+      /* A batch is never released before its delay has expired */
+      long[] expectedDelays = new long[] {200, 400, 800, 800};
+      for (int i=0; i<expectedDelays.length; i++) {
+         long waited = consumer._releaseTimes.get(i) - deferTimes.get(i);
+         assertTrue("Batch "+i+" released after "+waited+"ms", waited >= expectedDelays[i]);
+      }
+   }
+
+   @Test
+   public void testEarlyReleaseOnClusterStateChange() throws InterruptedException {
+      RecordingConsumer consumer = new RecordingConsumer();
+      _queue = new DeferredEventQueue(consumer, MAX_DELAY_MILLIS, MAX_DELAY_MILLIS);
+      _queue.start();
+
+      List<ClusterScaleEvent> incomplete = events("cluster1", 2);
+      List<ClusterScaleEvent> scaling = events("cluster2", 2);
+      defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, incomplete);
+      defer("cluster2", BlockingCondition.SCALE_IN_PROGRESS, scaling);
+
+      /* A state change only releases events waiting on the cluster state */
+      _queue.releaseOnClusterStateChange("cluster2");
+      _queue.releaseOnClusterStateChange("cluster1");
+      consumer.waitForReleases(1);
+      assertEquals(incomplete, consumer._released.get(0));
+      assertNull(_queue.takeDeferred("cluster1"));
+
+      _queue.releaseOnScaleCompletion("cluster2");
+      consumer.waitForReleases(2);
+      assertEquals(scaling, consumer._released.get(1));
+      assertEquals(2, consumer.getNumReleases());
+   }
+
+   @Test
+   public void testReleaseRacingWithDeferral() {
+      RecordingConsumer consumer = new RecordingConsumer();
+      _queue = new DeferredEventQueue(consumer, MAX_DELAY_MILLIS, MAX_DELAY_MILLIS);
+
+      /* The cluster changes between testing the blocking condition and deferring, so the events go straight back */
+      long releaseSequence = _queue.getReleaseSequence("cluster1");
+      _queue.releaseOnClusterStateChange("cluster1");
+      List<ClusterScaleEvent> events = events("cluster1", 2);
+      _queue.defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, events, releaseSequence);
+      assertEquals(1, consumer.getNumReleases());
+      assertEquals(events, consumer._released.get(0));
+      assertNull(_queue.takeDeferred("cluster1"));
+   }
+
+   @Test
+   public void testIncompleteGracePeriod() throws InterruptedException {
+      _queue = new DeferredEventQueue(new RecordingConsumer(), INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS);
+
+      /* The grace period starts when the cluster is first found incomplete and isn't extended by finding it incomplete again */
+      assertTrue(_queue.isWithinIncompleteGracePeriod("cluster1", 200));
+      assertTrue(_queue.isWithinIncompleteGracePeriod("cluster1", 200));
+      Thread.sleep(100);
+      assertTrue(_queue.isWithinIncompleteGracePeriod("cluster2", 200));
+      Thread.sleep(150);
+      assertFalse(_queue.isWithinIncompleteGracePeriod("cluster1", 200));
+      assertTrue(_queue.isWithinIncompleteGracePeriod("cluster2", 200));
+
+      /* Once the cluster is found complete, the next time it is found incomplete starts a new grace period */
+      _queue.resetIncompleteTime("cluster1");
+      assertTrue(_queue.isWithinIncompleteGracePeriod("cluster1", 200));
+   }
+
+   @Test
+   public void testIdleClusterStatesRemoved() {
+      RecordingConsumer consumer = new RecordingConsumer();
+      _queue = new DeferredEventQueue(consumer, MAX_DELAY_MILLIS, MAX_DELAY_MILLIS);
+
+      /* Releases and resets for clusters with nothing deferred don't leave anything behind */
+      _queue.releaseOnClusterStateChange("cluster1");
+      _queue.releaseOnScaleCompletion("cluster1");
+      _queue.resetBackoff("cluster1");
+      _queue.resetIncompleteTime("cluster1");
+      assertEquals(0, _queue.getNumClusterStates());
+
+      /* A cluster's state goes once its events have been released and it is no longer incomplete */
+      defer("cluster1", BlockingCondition.SCALE_IN_PROGRESS, events("cluster1", 2));
+      assertTrue(_queue.isWithinIncompleteGracePeriod("cluster2", MAX_DELAY_MILLIS));
+      assertEquals(2, _queue.getNumClusterStates());
+      _queue.releaseOnScaleCompletion("cluster1");
+      assertEquals(1, consumer.getNumReleases());
+      assertEquals(1, _queue.getNumClusterStates());
+      _queue.resetIncompleteTime("cluster2");
+      assertEquals(0, _queue.getNumClusterStates());
+
+      /* A release for a cluster with no state is still seen by a deferral that tested its blocking condition beforehand */
+      long releaseSequence = _queue.getReleaseSequence("cluster1");
+      _queue.releaseOnClusterStateChange("cluster1");
+      assertEquals(0, _queue.getNumClusterStates());
+      _queue.defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, events("cluster1", 1), releaseSequence);
+      assertEquals(2, consumer.getNumReleases());
+      assertEquals(0, _queue.getNumClusterStates());
+
+      /* Removing a cluster puts anything still deferred back on the queue and forgets the cluster */
+      List<ClusterScaleEvent> waiting = events("cluster3", 2);
+      defer("cluster3", BlockingCondition.WAITING_FOR_MANUAL, waiting);
+      assertTrue(_queue.isWithinIncompleteGracePeriod("cluster3", MAX_DELAY_MILLIS));
+      _queue.releaseOnClusterRemoval("cluster3");
+      assertEquals(3, consumer.getNumReleases());
+      assertEquals(waiting, consumer._released.get(2));
+      assertEquals(0, _queue.getNumClusterStates());
+   }
+
+   @Test
+   public void testFifoReleaseOrder() throws InterruptedException {
+      RecordingConsumer consumer = new RecordingConsumer();
+      _queue = new DeferredEventQueue(consumer, 100, MAX_DELAY_MILLIS);
+      _queue.start();
+
+      /* Events deferred for a cluster over several attempts are released in the order they were deferred */
+      List<ClusterScaleEvent> cluster1Events = new ArrayList<ClusterScaleEvent>();
+      for (int i=0; i<5; i++) {
+         List<ClusterScaleEvent> events = events("cluster1", 3);
+         defer("cluster1", BlockingCondition.CLUSTER_INCOMPLETE, events);
+         cluster1Events.addAll(events);
+      }
+      /* Batches for different clusters are released in the order they expire */
+      List<ClusterScaleEvent> cluster2Events = events("cluster2", 2);
+      List<ClusterScaleEvent> cluster3Events = events("cluster3", 2);
+      Thread.sleep(20);
+      defer("cluster2", BlockingCondition.SCALE_IN_PROGRESS, cluster2Events);
+      Thread.sleep(20);
+      defer("cluster3", BlockingCondition.WAITING_FOR_MANUAL, cluster3Events);
+
+      consumer.waitForReleases(3);
+      assertEquals(cluster1Events, consumer._released.get(0));
+      assertEquals(cluster2Events, consumer._released.get(1));
+      assertEquals(cluster3Events, consumer._released.get(2));
+   }
+}
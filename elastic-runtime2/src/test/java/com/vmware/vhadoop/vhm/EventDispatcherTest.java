@@ -0,0 +1,143 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.vhm.events.AbstractNotificationEvent;
+
+public class EventDispatcherTest {
+
+   class TestEvent extends AbstractNotificationEvent {
+      TestEvent() {
+         super(false, true);
+      }
+   }
+
+   class SubEvent extends TestEvent {}
+
+   class OtherEvent extends AbstractNotificationEvent {
+      OtherEvent() {
+         super(false, true);
+      }
+   }
+
+   /* Records its name when run, along with the number of events in the buffer it watches */
+   class RecordingStage implements EventDispatcher.EventStage {
+      final String _name;
+      final List<String> _record;
+      final EventDispatcher.EventBuffer<?> _buffer;
+
+      RecordingStage(String name, List<String> record, EventDispatcher.EventBuffer<?> buffer) {
+         _name = name;
+         _record = record;
+         _buffer = buffer;
+      }
+
+      @Override
+      public void handleEvents(EventDispatcher dispatcher) {
+         _record.add(_name+"="+_buffer.size());
+      }
+   }
+
+   private List<NotificationEvent> events(NotificationEvent... events) {
+      return Arrays.asList(events);
+   }
+
+   @Test
+   public void testStagesRunInRegistrationOrder() {
+      EventDispatcher dispatcher = new EventDispatcher();
+      final EventDispatcher.EventBuffer<NotificationEvent> all = dispatcher.registerBuffer(NotificationEvent.class, NotificationEvent.class);
+      List<String> record = new ArrayList<String>();
+      dispatcher.registerStage("first", new RecordingStage("first", record, all));
+      /* Events classified by a stage are visible to the stages after it */
+      dispatcher.registerStage("inject", new EventDispatcher.EventStage() {
+         @Override
+         public void handleEvents(EventDispatcher dispatcher) {
+            dispatcher.classify(new TestEvent());
+         }
+      });
+      dispatcher.registerStage("second", new RecordingStage("second", record, all));
+      dispatcher.registerStage("third", new RecordingStage("third", record, all));
+
+      dispatcher.dispatch(events(new TestEvent()));
+      assertEquals(Arrays.asList("first=1", "second=2", "third=2"), record);
+      assertEquals(0, all.size());
+   }
+
+   @Test
+   public void testTypedRouting() {
+      EventDispatcher dispatcher = new EventDispatcher();
+      final EventDispatcher.EventBuffer<TestEvent> subEvents = dispatcher.registerBuffer(TestEvent.class, SubEvent.class);
+      final EventDispatcher.EventBuffer<TestEvent> testEvents = dispatcher.registerBuffer(TestEvent.class, TestEvent.class);
+      final EventDispatcher.EventBuffer<NotificationEvent> otherEvents = dispatcher.registerBuffer(NotificationEvent.class, OtherEvent.class);
+      final NotificationEvent sub = new SubEvent();
+      final NotificationEvent test = new TestEvent();
+      final NotificationEvent other = new OtherEvent();
+      final List<List<?>> seen = new ArrayList<List<?>>();
+      dispatcher.registerStage("check", new EventDispatcher.EventStage() {
+         @Override
+         public void handleEvents(EventDispatcher dispatcher) {
+            seen.add(new ArrayList<TestEvent>(subEvents.getEvents()));
+            seen.add(new ArrayList<TestEvent>(testEvents.getEvents()));
+            seen.add(new ArrayList<NotificationEvent>(otherEvents.getEvents()));
+            /* Already classified in this batch, so ignored */
+            assertFalse(dispatcher.classify(sub));
+         }
+      });
+
+      dispatcher.dispatch(events(sub, test, other, sub));
+      assertEquals(Arrays.asList(sub), seen.get(0));
+      assertEquals(Arrays.asList(sub, test), seen.get(1));
+      assertEquals(Arrays.asList(other), seen.get(2));
+   }
+
+   @Test(expected=IllegalArgumentException.class)
+   public void testBufferRejectsIncompatibleType() {
+      new EventDispatcher().registerBuffer(TestEvent.class, OtherEvent.class);
+   }
+
+   @Test
+   public void testExceptionInStageIsolated() {
+      EventDispatcher dispatcher = new EventDispatcher();
+      final EventDispatcher.EventBuffer<NotificationEvent> all = dispatcher.registerBuffer(NotificationEvent.class, NotificationEvent.class);
+      List<String> record = new ArrayList<String>();
+      dispatcher.registerStage("before", new RecordingStage("before", record, all));
+      dispatcher.registerStage("faulty", new EventDispatcher.EventStage() {
+         @Override
+         public void handleEvents(EventDispatcher dispatcher) {
+            throw new IllegalStateException("Faulty stage");
+         }
+      });
+      dispatcher.registerStage("after", new RecordingStage("after", record, all));
+
+      dispatcher.dispatch(events(new TestEvent()));
+      assertEquals(Arrays.asList("before=1", "after=1"), record);
+
+      /* The failed batch has been cleared, so the next one starts afresh */
+      record.clear();
+      dispatcher.dispatch(events(new TestEvent(), new TestEvent()));
+      assertEquals(Arrays.asList("before=2", "after=2"), record);
+      assertTrue(dispatcher.getStageStatistics().contains("faulty{invocations=2"));
+   }
+}
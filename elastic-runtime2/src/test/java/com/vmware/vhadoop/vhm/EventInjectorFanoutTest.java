@@ -0,0 +1,170 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.EventInjector;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.events.SubscribingEventInjector;
+import com.vmware.vhadoop.vhm.events.AbstractNotificationEvent;
+
+public class EventInjectorFanoutTest {
+
+   class EventA extends AbstractNotificationEvent {
+      EventA() {
+         super(false, true);
+      }
+   }
+
+   class EventB extends AbstractNotificationEvent {
+      EventB() {
+         super(false, true);
+      }
+   }
+
+   class TestInjector implements SubscribingEventInjector {
+      final Set<Class<? extends NotificationEvent>> _subscribedTypes;
+      final long _delayMillis;
+      final List<NotificationEvent> _seen = Collections.synchronizedList(new ArrayList<NotificationEvent>());
+      final String _name;
+
+      TestInjector(String name, long delayMillis, Class<? extends NotificationEvent> subscribedType) {
+         _name = name;
+         _delayMillis = delayMillis;
+         if (subscribedType == null) {
+            _subscribedTypes = null;
+         } else {
+            _subscribedTypes = new HashSet<Class<? extends NotificationEvent>>();
+            _subscribedTypes.add(subscribedType);
+         }
+      }
+
+      @Override
+      public Set<? extends NotificationEvent> processEvent(NotificationEvent event) {
+         _seen.add(event);
+         try {
+            Thread.sleep(_delayMillis);
+         } catch (InterruptedException e) {}
+         Set<NotificationEvent> result = new HashSet<NotificationEvent>();
+         result.add(new EventB());
+         return result;
+      }
+
+      @Override
+      public Set<Class<? extends NotificationEvent>> getSubscribedEventTypes() {
+         return _subscribedTypes;
+      }
+
+      @Override
+      public String getName() {
+         return _name;
+      }
+   }
+
+   class CollectingConsumer implements EventConsumer {
+      final List<NotificationEvent> _events = Collections.synchronizedList(new ArrayList<NotificationEvent>());
+
+      @Override
+      public void placeEventOnQueue(NotificationEvent event) {
+         _events.add(event);
+      }
+
+      @Override
+      public void placeEventCollectionOnQueue(List<? extends NotificationEvent> events) {
+         _events.addAll(events);
+      }
+   }
+
+   @Test
+   public void testOnlySubscribedEventsDispatched() {
+      EventInjectorFanout fanout = new EventInjectorFanout(new CollectingConsumer(), 5000);
+      TestInjector onlyA = new TestInjector("onlyA", 0, EventA.class);
+      TestInjector all = new TestInjector("all", 0, null);
+      fanout.register(onlyA);
+      fanout.register(all);
+      NotificationEvent a = new EventA();
+      NotificationEvent b = new EventB();
+      List<NotificationEvent> injected = fanout.injectEvents(Arrays.asList(new NotificationEvent[]{a, b}));
+      assertEquals(3, injected.size());
+      assertEquals(Arrays.asList(new NotificationEvent[]{a}), onlyA._seen);
+      assertEquals(Arrays.asList(new NotificationEvent[]{a, b}), all._seen);
+      fanout.stop();
+   }
+
+   /* An injector that doesn't declare any subscriptions is shown every event */
+   @Test
+   public void testPlainInjectorSeesAllEvents() {
+      EventInjectorFanout fanout = new EventInjectorFanout(new CollectingConsumer(), 5000);
+      final List<NotificationEvent> seen = Collections.synchronizedList(new ArrayList<NotificationEvent>());
+      fanout.register(new EventInjector() {
+         @Override
+         public Set<? extends NotificationEvent> processEvent(NotificationEvent event) {
+            seen.add(event);
+            return null;
+         }
+
+         @Override
+         public String getName() {
+            return "plain";
+         }
+      });
+      NotificationEvent a = new EventA();
+      NotificationEvent b = new EventB();
+      List<NotificationEvent> injected = fanout.injectEvents(Arrays.asList(new NotificationEvent[]{a, b}));
+      assertEquals(0, injected.size());
+      assertEquals(Arrays.asList(new NotificationEvent[]{a, b}), seen);
+      fanout.stop();
+   }
+
+   @Test
+   public void testInjectorsRunConcurrently() {
+      EventInjectorFanout fanout = new EventInjectorFanout(new CollectingConsumer(), 5000);
+      for (int i=0; i<4; i++) {
+         fanout.register(new TestInjector("slow"+i, 300, null));
+      }
+      long startTime = System.currentTimeMillis();
+      List<NotificationEvent> injected = fanout.injectEvents(Arrays.asList(new NotificationEvent[]{new EventA()}));
+      long elapsed = System.currentTimeMillis() - startTime;
+      assertEquals(4, injected.size());
+      assertTrue("Took "+elapsed+"ms", elapsed < 1000);
+      fanout.stop();
+   }
+
+   @Test
+   public void testLateInjectorEventsQueued() throws InterruptedException {
+      CollectingConsumer consumer = new CollectingConsumer();
+      EventInjectorFanout fanout = new EventInjectorFanout(consumer, 100);
+      fanout.register(new TestInjector("fast", 0, null));
+      fanout.register(new TestInjector("slow", 500, null));
+      List<NotificationEvent> injected = fanout.injectEvents(Arrays.asList(new NotificationEvent[]{new EventA()}));
+      assertEquals(1, injected.size());
+      assertTrue(consumer._events.isEmpty());
+      Thread.sleep(1000);
+      assertEquals(1, consumer._events.size());
+      fanout.stop();
+   }
+}
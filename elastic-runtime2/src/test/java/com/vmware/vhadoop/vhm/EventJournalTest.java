@@ -0,0 +1,256 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.VCActions.VMEventData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterConstantData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterVariableData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMConstantData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VmType;
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.vhm.events.ClusterUpdateEvent;
+import com.vmware.vhadoop.vhm.events.NewMasterVMEvent;
+import com.vmware.vhadoop.vhm.events.NewVmEvent;
+import com.vmware.vhadoop.vhm.events.VmRemovedFromClusterEvent;
+import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
+
+public class EventJournalTest {
+   File _directory;
+
+   @Before
+   public void createDirectory() throws IOException {
+      _directory = File.createTempFile("vhm-journal", "");
+      _directory.delete();
+      _directory.mkdirs();
+   }
+
+   @After
+   public void deleteDirectory() {
+      File[] files = _directory.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      _directory.delete();
+   }
+
+   private NewVmEvent newComputeVm(String vmId, String clusterId, boolean powerState) {
+      VMConstantData constantData = new VMConstantData();
+      constantData._vmType = VmType.COMPUTE;
+      constantData._myUUID = vmId+"_uuid";
+      VMVariableData variableData = new VMVariableData();
+      variableData._myName = vmId+"_name";
+      variableData._powerState = powerState;
+      variableData._hostMoRef = "host1";
+      variableData._nicAndIpAddressMap = new HashMap<String, Set<String>>();
+      Set<String> addresses = new HashSet<String>();
+      addresses.add("10.0.0.1");
+      variableData._nicAndIpAddressMap.put("nic0", addresses);
+      return new NewVmEvent(vmId, clusterId, constantData, variableData);
+   }
+
+   private NewMasterVMEvent newMasterVm(String vmId, String clusterId) {
+      VMConstantData constantData = new VMConstantData();
+      constantData._vmType = VmType.MASTER;
+      constantData._myUUID = vmId+"_uuid";
+      VMVariableData variableData = new VMVariableData();
+      variableData._powerState = true;
+      SerengetiClusterConstantData clusterConstantData = new SerengetiClusterConstantData();
+      clusterConstantData._clusterName = clusterId+"_name";
+      clusterConstantData._masterMoRef = vmId;
+      clusterConstantData._serengetiFolder = "folder";
+      SerengetiClusterVariableData clusterVariableData = new SerengetiClusterVariableData();
+      clusterVariableData._enableAutomation = false;
+      clusterVariableData._minInstances = 1;
+      clusterVariableData._maxInstances = -1;
+      clusterVariableData._jobTrackerPort = 8021;
+      return new NewMasterVMEvent(vmId, clusterId, constantData, variableData, clusterConstantData, clusterVariableData);
+   }
+
+   private NewVmEvent findEvent(List<ClusterStateChangeEvent> events, String vmId) {
+      for (ClusterStateChangeEvent event : events) {
+         if (((NewVmEvent)event).getVmId().equals(vmId)) {
+            return (NewVmEvent)event;
+         }
+      }
+      return null;
+   }
+
+   @Test
+   public void testReplayFoldsUpdates() throws IOException {
+      EventJournal journal = new EventJournal(_directory, 1 << 20, 4);
+      assertTrue(journal.recover().isEmpty());
+      journal.append(newMasterVm("master", "cluster"));
+      journal.append(newComputeVm("vm1", "cluster", false));
+      journal.append(newComputeVm("vm2", "cluster", false));
+      VMVariableData powerOn = new VMVariableData();
+      powerOn._powerState = true;
+      journal.append(new VmUpdateEvent("vm1", powerOn));
+      SerengetiClusterVariableData automation = new SerengetiClusterVariableData();
+      automation._enableAutomation = true;
+      journal.append(new ClusterUpdateEvent("master", automation));
+      journal.append(new VmRemovedFromClusterEvent("vm2"));
+      journal.close();
+
+      List<ClusterStateChangeEvent> recovered = new EventJournal(_directory, 1 << 20, 4).recover();
+      assertEquals(2, recovered.size());
+      assertTrue(recovered.get(0) instanceof NewMasterVMEvent);
+      NewMasterVMEvent master = (NewMasterVMEvent)recovered.get(0);
+      assertTrue(master.getClusterVariableData()._enableAutomation);
+      assertEquals(Integer.valueOf(8021), master.getClusterVariableData()._jobTrackerPort);
+      assertEquals("cluster_name", master.getClusterConstantData()._clusterName);
+      NewVmEvent vm1 = findEvent(recovered, "vm1");
+      assertTrue(vm1.getVariableData()._powerState);
+      assertEquals("host1", vm1.getVariableData()._hostMoRef);
+      assertEquals(VmType.COMPUTE, vm1.getConstantData()._vmType);
+      assertTrue(vm1.getVariableData()._nicAndIpAddressMap.get("nic0").contains("10.0.0.1"));
+      assertNull(vm1.getVariableData()._dnsName);
+   }
+
+   @Test
+   public void testRotationAndCheckpointBoundFiles() throws IOException {
+      EventJournal journal = new EventJournal(_directory, 512, 2);
+      journal.recover();
+      for (int i=0; i<20; i++) {
+         journal.append(newComputeVm("vm"+i, "cluster", false));
+      }
+      VMVariableData powerOn = new VMVariableData();
+      powerOn._powerState = true;
+      for (int i=0; i<200; i++) {
+         journal.append(new VmUpdateEvent("vm"+(i % 20), powerOn));
+      }
+      journal.close();
+      /* Never more than one checkpoint, plus the segments written since */
+      assertTrue(_directory.listFiles().length <= 4);
+
+      List<ClusterStateChangeEvent> recovered = new EventJournal(_directory, 512, 2).recover();
+      assertEquals(20, recovered.size());
+      for (ClusterStateChangeEvent event : recovered) {
+         assertTrue(((NewVmEvent)event).getVariableData()._powerState);
+      }
+   }
+
+   @Test
+   public void testTornRecordIgnored() throws IOException {
+      EventJournal journal = new EventJournal(_directory, 1 << 20, 4);
+      journal.recover();
+      journal.append(newComputeVm("vm1", "cluster", false));
+      journal.append(newComputeVm("vm2", "cluster", false));
+      journal.close();
+
+      File segment = null;
+      for (File file : _directory.listFiles()) {
+         if (file.getName().endsWith(".journal") && (file.length() > 0)) {
+            segment = file;
+         }
+      }
+      RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+      raf.setLength(raf.length() - 3);
+      raf.close();
+
+      journal = new EventJournal(_directory, 1 << 20, 4);
+      List<ClusterStateChangeEvent> recovered = journal.recover();
+      assertEquals(1, recovered.size());
+      assertEquals(1, journal.getKnownVmIds().size());
+      assertTrue(journal.getKnownVmIds().contains("vm1"));
+
+      /* The journal carries on from the recovered state */
+      journal.append(newComputeVm("vm3", "cluster", false));
+      journal.close();
+      assertEquals(2, new EventJournal(_directory, 1 << 20, 4).recover().size());
+   }
+
+   /* Records the IDs of the VMs removed by the events the listener queues */
+   class RemovedVmRecorder implements EventConsumer {
+      final Set<String> _removedVmIds = new HashSet<String>();
+
+      @Override
+      public void placeEventOnQueue(NotificationEvent event) {
+         if (event instanceof VmRemovedFromClusterEvent) {
+            _removedVmIds.add(((VmRemovedFromClusterEvent)event).getVmId());
+         }
+      }
+
+      @Override
+      public void placeEventCollectionOnQueue(List<? extends NotificationEvent> events) {
+         for (NotificationEvent event : events) {
+            placeEventOnQueue(event);
+         }
+      }
+
+      Set<String> takeRemovedVmIds() {
+         Set<String> result = new HashSet<String>(_removedVmIds);
+         _removedVmIds.clear();
+         return result;
+      }
+   }
+
+   private ClusterStateChangeListenerImpl createListener(RemovedVmRecorder recorder, String... recoveredVmIds) {
+      ClusterStateChangeListenerImpl cscl = new ClusterStateChangeListenerImpl(new StandaloneSimpleVCActions(), null);
+      cscl.registerEventConsumer(recorder);
+      cscl.seedRecoveredVms(new HashSet<String>(Arrays.asList(recoveredVmIds)));
+      return cscl;
+   }
+
+   @Test
+   public void testRecoveredVmsReconciledWithFirstUpdate() {
+      RemovedVmRecorder recorder = new RemovedVmRecorder();
+      ClusterStateChangeListenerImpl cscl = createListener(recorder, "vm1", "vm2", "vm3");
+      VMEventData vmData = new VMEventData();
+      vmData._vmMoRef = "vm2";
+      vmData._isLeaving = false;
+      cscl.processRawVCUpdates(Arrays.asList(vmData));
+      assertEquals(new HashSet<String>(Arrays.asList("vm1", "vm3")), recorder.takeRemovedVmIds());
+   }
+
+   @Test
+   public void testRecoveredVmsReconciledWithEmptyFirstUpdate() {
+      RemovedVmRecorder recorder = new RemovedVmRecorder();
+      ClusterStateChangeListenerImpl cscl = createListener(recorder, "vm1", "vm2");
+
+      /* Failing to get an update from vCenter says nothing about which VMs exist */
+      cscl.processRawVCUpdates(null);
+      assertTrue(recorder.takeRemovedVmIds().isEmpty());
+
+      /* The folder is empty or there isn't one, so none of the VMs exist any more */
+      cscl.processRawVCUpdates(new ArrayList<VMEventData>());
+      assertEquals(new HashSet<String>(Arrays.asList("vm1", "vm2")), recorder.takeRemovedVmIds());
+
+      /* Later updates only contain changes */
+      cscl.processRawVCUpdates(new ArrayList<VMEventData>());
+      assertTrue(recorder.takeRemovedVmIds().isEmpty());
+   }
+}
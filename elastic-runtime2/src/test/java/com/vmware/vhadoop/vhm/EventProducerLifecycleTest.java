@@ -0,0 +1,137 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.EventProducer;
+
+public class EventProducerLifecycleTest {
+   final List<String> _transitions = Collections.synchronizedList(new ArrayList<String>());
+
+   /* Signals start and stop from its own thread after a delay. A negative delay means it never signals */
+   class DelayedProducer implements EventProducer {
+      final String _name;
+      final long _delayMillis;
+      volatile boolean _stopped = true;
+
+      DelayedProducer(String name, long delayMillis) {
+         _name = name;
+         _delayMillis = delayMillis;
+      }
+
+      private void signalLater(final EventProducerStartStopCallback callback, final boolean started) {
+         if (_delayMillis < 0) {
+            return;
+         }
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  Thread.sleep(_delayMillis);
+               } catch (InterruptedException e) {}
+               _stopped = !started;
+               _transitions.add(_name+(started ? " started" : " stopped"));
+               if (started) {
+                  callback.notifyStarted(DelayedProducer.this);
+               } else {
+                  callback.notifyStopped(DelayedProducer.this);
+               }
+            }
+         }).start();
+      }
+
+      EventProducerStartStopCallback _callback;
+
+      @Override
+      public void registerEventConsumer(EventConsumer vhm) {}
+
+      @Override
+      public void start(EventProducerStartStopCallback callback) {
+         _callback = callback;
+         signalLater(callback, true);
+      }
+
+      @Override
+      public void stop() {
+         signalLater(_callback, false);
+      }
+
+      @Override
+      public boolean isStopped() {
+         return _stopped;
+      }
+   }
+
+   private EventProducerLifecycle createLifecycle(long timeoutMillis) {
+      return new EventProducerLifecycle(new EventProducerLifecycle.ProducerFailureHandler() {
+         @Override
+         public void producerFailed(EventProducer producer) {}
+      }, timeoutMillis, timeoutMillis);
+   }
+
+   @Test
+   public void testRegisterWaitsForStart() {
+      EventProducerLifecycle lifecycle = createLifecycle(5000);
+      DelayedProducer producer = new DelayedProducer("a", 200);
+      long startTime = System.currentTimeMillis();
+      assertTrue(lifecycle.register(producer, new EventProducer[0]));
+      assertTrue(System.currentTimeMillis() - startTime >= 190);
+      assertFalse(producer.isStopped());
+      assertFalse(lifecycle.isAllStopped());
+   }
+
+   @Test
+   public void testRegisterFailsIfNeverStarted() {
+      EventProducerLifecycle lifecycle = createLifecycle(200);
+      assertFalse(lifecycle.register(new DelayedProducer("a", -1), new EventProducer[0]));
+      assertTrue(lifecycle.isAllStopped());
+   }
+
+   @Test
+   public void testParallelStartAndDependencyOrder() {
+      EventProducerLifecycle lifecycle = createLifecycle(5000);
+      DelayedProducer a = new DelayedProducer("a", 0);
+      DelayedProducer b = new DelayedProducer("b", 0);
+      DelayedProducer c = new DelayedProducer("c", 0);
+      assertTrue(lifecycle.register(a, new EventProducer[0]));
+      assertTrue(lifecycle.register(b, new EventProducer[0]));
+      assertTrue(lifecycle.register(c, new EventProducer[]{a}));
+      assertTrue(lifecycle.stop());
+      assertTrue(lifecycle.isAllStopped());
+
+      /* c depends on a, so must stop before it and start after it */
+      assertTrue(_transitions.indexOf("c stopped") < _transitions.indexOf("a stopped"));
+      _transitions.clear();
+      long startTime = System.currentTimeMillis();
+      assertTrue(lifecycle.start());
+      assertTrue(System.currentTimeMillis() - startTime < 1000);
+      assertTrue(_transitions.indexOf("a started") < _transitions.indexOf("c started"));
+   }
+
+   @Test
+   public void testUnregisteredDependency() {
+      EventProducerLifecycle lifecycle = createLifecycle(5000);
+      assertFalse(lifecycle.register(new DelayedProducer("a", 0), new EventProducer[]{new DelayedProducer("b", 0)}));
+   }
+}
@@ -0,0 +1,317 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
+import com.vmware.vhadoop.api.vhm.events.EventProducer.QueueFullPolicy;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.vhm.events.AbstractNotificationEvent;
+import com.vmware.vhadoop.vhm.events.VmRemovedFromClusterEvent;
+import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
+
+public class EventQueueTest {
+
+   class TestEvent extends AbstractNotificationEvent {
+      TestEvent(boolean canClearQueue, boolean canBeClearedFromQueue) {
+         super(canClearQueue, canBeClearedFromQueue);
+      }
+   }
+
+   /* Events with a non-null lane field go in that lane, everything else in NORMAL */
+   class LaneEvent extends TestEvent {
+      final EventQueue.Lane _lane;
+
+      LaneEvent(EventQueue.Lane lane) {
+         super(false, true);
+         _lane = lane;
+      }
+   }
+
+   /* A barrier, or an event which must follow barriers, in the given lane */
+   class OrderedEvent extends LaneEvent {
+      final boolean _isBarrier;
+
+      OrderedEvent(EventQueue.Lane lane, boolean isBarrier) {
+         super(lane);
+         _isBarrier = isBarrier;
+      }
+   }
+
+   private EventQueue createQueue(long quietPeriodMillis, long maxBatchDelayMillis, int maxBatchSize) {
+      return new EventQueue(quietPeriodMillis, maxBatchDelayMillis, maxBatchSize, 20, new EventQueue.LaneSelector() {
+         @Override
+         public EventQueue.Lane getLane(NotificationEvent event) {
+            return (event instanceof LaneEvent) ? ((LaneEvent)event)._lane : EventQueue.Lane.NORMAL;
+         }
+
+         @Override
+         public boolean isOrderingBarrier(NotificationEvent event) {
+            return (event instanceof OrderedEvent) && ((OrderedEvent)event)._isBarrier;
+         }
+
+         @Override
+         public boolean mustFollowOrderingBarriers(NotificationEvent event) {
+            return (event instanceof OrderedEvent) && !((OrderedEvent)event)._isBarrier;
+         }
+      });
+   }
+
+   private Thread addLater(final EventQueue queue, final NotificationEvent event, final long delayMillis) {
+      Thread t = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {}
+            queue.add(event);
+         }
+      });
+      t.start();
+      return t;
+   }
+
+   @Test
+   public void testWakesOnFirstEvent() throws InterruptedException {
+      EventQueue queue = createQueue(5, 100, 0);
+      addLater(queue, new TestEvent(false, true), 200);
+      long startTime = System.currentTimeMillis();
+      Set<NotificationEvent> batch = queue.takeBatch();
+      long elapsed = System.currentTimeMillis() - startTime;
+      assertEquals(1, batch.size());
+      /* The quiet period is the only delay that should be added to the arrival of the event */
+      assertTrue("Took "+elapsed+"ms", elapsed < 300);
+      assertNull(queue.peek());
+   }
+
+   @Test
+   public void testGathersBurst() throws InterruptedException {
+      EventQueue queue = createQueue(50, 1000, 0);
+      queue.add(new TestEvent(false, true));
+      addLater(queue, new TestEvent(false, true), 20);
+      Set<NotificationEvent> batch = queue.takeBatch();
+      assertEquals(2, batch.size());
+   }
+
+   @Test
+   public void testBatchDeadline() throws InterruptedException {
+      EventQueue queue = createQueue(50, 100, 0);
+      queue.add(new TestEvent(false, true));
+      /* Keep the burst going beyond the deadline */
+      for (int i=1; i<10; i++) {
+         addLater(queue, new TestEvent(false, true), i * 30);
+      }
+      long startTime = System.currentTimeMillis();
+      Set<NotificationEvent> first = queue.takeBatch();
+      long elapsed = System.currentTimeMillis() - startTime;
+      assertTrue("Took "+elapsed+"ms", elapsed < 250);
+      assertTrue(first.size() < 10);
+      Set<NotificationEvent> second = queue.takeBatch();
+      assertTrue(second.size() > 0);
+   }
+
+   @Test
+   public void testClearQueue() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 0);
+      NotificationEvent clearable = new TestEvent(false, true);
+      NotificationEvent notClearable = new TestEvent(false, false);
+      NotificationEvent clearing = new TestEvent(true, false);
+      queue.addAll(Arrays.asList(new NotificationEvent[]{clearable, notClearable}));
+      queue.add(clearing);
+      Set<NotificationEvent> batch = queue.takeBatch();
+      assertEquals(2, batch.size());
+      Iterator<NotificationEvent> i = batch.iterator();
+      assertTrue(i.next() == clearing);
+      assertTrue(i.next() == notClearable);
+   }
+
+   private VmUpdateEvent createVmUpdateEvent(String vmId, Boolean powerState, String dnsName) {
+      VMVariableData variableData = new VMVariableData();
+      variableData._powerState = powerState;
+      variableData._dnsName = dnsName;
+      return new VmUpdateEvent(vmId, variableData);
+   }
+
+   @Test
+   public void testMergeUpdatesForSameVm() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 0);
+      queue.add(createVmUpdateEvent("vm1", true, null));
+      queue.add(createVmUpdateEvent("vm2", false, null));
+      queue.add(createVmUpdateEvent("vm1", null, "vm1.dns"));
+      queue.add(createVmUpdateEvent("vm1", false, null));
+      Set<NotificationEvent> batch = queue.takeBatch();
+      assertEquals(2, batch.size());
+      VmUpdateEvent merged = (VmUpdateEvent)batch.iterator().next();
+      assertEquals("vm1", merged.getVmId());
+      assertEquals(false, merged.getVariableData()._powerState);
+      assertEquals("vm1.dns", merged.getVariableData()._dnsName);
+   }
+
+   @Test
+   public void testNoMergeAcrossOtherEventsForSameVm() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 0);
+      queue.add(createVmUpdateEvent("vm1", true, null));
+      queue.add(new VmRemovedFromClusterEvent("vm1"));
+      queue.add(createVmUpdateEvent("vm1", false, null));
+      Set<NotificationEvent> batch = queue.takeBatch();
+      assertEquals(3, batch.size());
+   }
+
+   @Test
+   public void testHigherLanesFirst() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 0);
+      NotificationEvent bulk = new LaneEvent(EventQueue.Lane.BULK);
+      NotificationEvent normal = new LaneEvent(EventQueue.Lane.NORMAL);
+      NotificationEvent high = new LaneEvent(EventQueue.Lane.HIGH);
+      queue.addAll(Arrays.asList(new NotificationEvent[]{bulk, normal, high}));
+      assertTrue(queue.peek() == high);
+      Iterator<NotificationEvent> i = queue.takeBatch().iterator();
+      assertTrue(i.next() == high);
+      assertTrue(i.next() == normal);
+      assertTrue(i.next() == bulk);
+   }
+
+   @Test
+   public void testLowerLanesNotStarved() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 10);
+      for (int i=0; i<20; i++) {
+         queue.add(new LaneEvent(EventQueue.Lane.BULK));
+      }
+      for (int i=0; i<20; i++) {
+         queue.add(new LaneEvent(EventQueue.Lane.HIGH));
+      }
+      Set<NotificationEvent> batch = queue.takeBatch();
+      assertEquals(10, batch.size());
+      int numHigh = 0, numBulk = 0;
+      for (NotificationEvent event : batch) {
+         if (((LaneEvent)event)._lane == EventQueue.Lane.HIGH) {
+            numHigh++;
+         } else {
+            numBulk++;
+         }
+      }
+      /* 20% of the batch is guaranteed to the bulk lane, the rest goes to the high lane */
+      assertEquals(8, numHigh);
+      assertEquals(2, numBulk);
+
+      /* The remainder is not lost */
+      int total = batch.size();
+      while (queue.peek() != null) {
+         total += queue.takeBatch().size();
+      }
+      assertEquals(40, total);
+   }
+
+   /* Models an instruction queued behind the creation of its cluster, when there is a backlog of VC updates */
+   @Test
+   public void testNotTakenAheadOfEarlierBarrier() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 10);
+      for (int i=0; i<20; i++) {
+         queue.add(new LaneEvent(EventQueue.Lane.BULK));
+      }
+      /* Queued before the barrier, so free to overtake it */
+      NotificationEvent earlyFollower = new OrderedEvent(EventQueue.Lane.HIGH, false);
+      queue.add(earlyFollower);
+      NotificationEvent barrier = new OrderedEvent(EventQueue.Lane.BULK, true);
+      queue.add(barrier);
+      NotificationEvent follower = new OrderedEvent(EventQueue.Lane.HIGH, false);
+      queue.add(follower);
+      NotificationEvent unordered = new LaneEvent(EventQueue.Lane.HIGH);
+      queue.add(unordered);
+
+      Set<NotificationEvent> batch = queue.takeBatch();
+      assertTrue(batch.contains(unordered));
+      assertTrue(batch.contains(earlyFollower));
+      assertFalse(batch.contains(follower));
+
+      int numBatches = 1;
+      while (!batch.contains(barrier)) {
+         assertFalse(batch.contains(follower));
+         batch = queue.takeBatch();
+         numBatches++;
+      }
+      /* VHM applies cluster state changes in a batch before it handles the instructions */
+      assertTrue(batch.contains(follower));
+      assertTrue(numBatches > 1);
+   }
+
+   private Thread addInThread(final EventQueue queue, final NotificationEvent event, final QueueFullPolicy policy) {
+      Thread t = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            queue.add(event, policy);
+         }
+      });
+      t.start();
+      return t;
+   }
+
+   @Test
+   public void testBlockingProducerWaitsForSpace() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 0);
+      queue.setCapacity(2, 10000);
+      queue.add(new TestEvent(false, true), QueueFullPolicy.BLOCK);
+      queue.add(new TestEvent(false, true), QueueFullPolicy.BLOCK);
+      Thread blocked = addInThread(queue, new TestEvent(false, true), QueueFullPolicy.BLOCK);
+      blocked.join(200);
+      assertTrue(blocked.isAlive());
+      assertEquals(2, queue.size());
+
+      /* An admitted producer is never held back */
+      Thread admitted = addInThread(queue, new TestEvent(false, true), QueueFullPolicy.ADMIT);
+      admitted.join(1000);
+      assertFalse(admitted.isAlive());
+      assertEquals(3, queue.size());
+
+      assertEquals(3, queue.takeBatch().size());
+      blocked.join(1000);
+      assertFalse(blocked.isAlive());
+      assertEquals(1, queue.size());
+   }
+
+   @Test
+   public void testBlockingProducerCanMergeWhenFull() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 0);
+      queue.setCapacity(1, 10000);
+      queue.add(createVmUpdateEvent("vm1", true, null), QueueFullPolicy.BLOCK);
+      Thread merging = addInThread(queue, createVmUpdateEvent("vm1", null, "vm1.dns"), QueueFullPolicy.BLOCK);
+      merging.join(1000);
+      assertFalse(merging.isAlive());
+      assertEquals(1, queue.size());
+   }
+
+   @Test
+   public void testBlockingProducerAdmittedAfterMaxBlockTime() throws InterruptedException {
+      EventQueue queue = createQueue(0, 0, 0);
+      queue.setCapacity(1, 100);
+      queue.add(new TestEvent(false, true), QueueFullPolicy.BLOCK);
+      long startTime = System.currentTimeMillis();
+      queue.add(new TestEvent(false, true), QueueFullPolicy.BLOCK);
+      assertTrue(System.currentTimeMillis() - startTime >= 90);
+      assertEquals(2, queue.size());
+      String statistics = queue.getStatistics();
+      assertTrue(statistics, statistics.contains("producersBlocked=1"));
+      assertTrue(statistics, statistics.contains("admittedOverCapacity=1"));
+      assertTrue(statistics, statistics.contains("peakDepth=2"));
+   }
+}
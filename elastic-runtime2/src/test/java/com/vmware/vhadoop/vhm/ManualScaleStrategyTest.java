@@ -0,0 +1,368 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap.ExtraInfoToClusterMapper;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
+import com.vmware.vhadoop.api.vhm.VCActions.VMEventData;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterVariableData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.EventProducer;
+import com.vmware.vhadoop.api.vhm.events.EventProducer.EventProducerStartStopCallback;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.strategy.EDPolicy;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.ClusterScaleOperation;
+import com.vmware.vhadoop.api.vhm.strategy.VMChooser;
+import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+import com.vmware.vhadoop.vhm.events.ClusterScaleDecision;
+import com.vmware.vhadoop.vhm.events.SerengetiLimitInstruction;
+import com.vmware.vhadoop.vhm.events.SerengetiLimitInstruction.SerengetiLimitAction;
+import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
+import com.vmware.vhadoop.vhm.strategy.DumbVMChooser;
+import com.vmware.vhadoop.vhm.strategy.ManualScaleStrategy;
+
+/* Drives the stages of a real ManualScaleStrategy operation by hand, against a ClusterMap published through SnapshotClusterMapAccess
+ * The EDPolicy only records what it is asked to do. Power state changes are made by the test, as VC would */
+public class ManualScaleStrategyTest extends AbstractJUnitTest {
+   AbstractClusterMap _clusterMap;
+   SnapshotClusterMapAccess _clusterMapAccess;
+   ClusterStateChangeListenerImpl cscl = new ClusterStateChangeListenerImpl(new StandaloneSimpleVCActions(), null);
+   RecordingEDPolicy _edPolicy;
+   ManualScaleStrategy _strategy;
+
+   class RecordingEDPolicy extends AbstractClusterMapReader implements EDPolicy {
+      final List<Set<String>> _enabling = new ArrayList<Set<String>>();
+      final List<Set<String>> _disabling = new ArrayList<Set<String>>();
+      final List<Long> _completeTimeouts = new ArrayList<Long>();
+      Exception _beginEnableFailure;
+
+      @Override
+      public VMStateWatch<?> beginEnableTTs(Set<String> toEnable, int totalTargetEnabled, String clusterId) throws Exception {
+         if (_beginEnableFailure != null) {
+            throw _beginEnableFailure;
+         }
+         _enabling.add(new HashSet<String>(toEnable));
+         return watchPowerState(toEnable, true);
+      }
+
+      @Override
+      public Set<String> completeEnableTTs(Set<String> toEnable, int totalTargetEnabled, String clusterId, VMStateWatch<?> awaited, long timeoutMillis) throws Exception {
+         _completeTimeouts.add(timeoutMillis);
+         return (awaited.isDone() && !awaited.isCancelled()) ? new HashSet<String>(toEnable) : null;
+      }
+
+      @Override
+      public long getEnableTimeoutMillis() {
+         return 10000;
+      }
+
+      @Override
+      public Set<String> disableTTs(Set<String> toDisable, int totalTargetEnabled, String clusterId) throws Exception {
+         _disabling.add(new HashSet<String>(toDisable));
+         return new HashSet<String>(toDisable);
+      }
+
+      @Override
+      public Set<String> enableTTs(Set<String> toEnable, int totalTargetEnabled, String clusterId) throws Exception {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Set<String> enableTTs(Map<String, Object> toEnable, int totalTargetEnabled, String clusterId) throws Exception {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Set<String> disableTTs(Map<String, Object> toDisable, int totalTargetEnabled, String clusterId) throws Exception {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Set<String> getActiveTTs(String clusterId) throws Exception {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   @Before
+   public void initialize() {
+      _clusterMap = new CachingClusterMapImpl(new ExtraInfoToClusterMapper() {
+         @Override
+         public String getStrategyKey(SerengetiClusterVariableData clusterData, String clusterId) {
+            return DEFAULT_SCALE_STRATEGY_KEY;
+         }
+
+         @Override
+         public Map<String, String> parseExtraInfo(SerengetiClusterVariableData clusterData, String clusterId) {
+            return null;
+         }
+
+         @Override
+         public Set<ClusterScaleEvent> getImpliedScaleEventsForUpdate(SerengetiClusterVariableData clusterData, String clusterId, boolean isNewCluster, boolean isClusterViable) {
+            return null;
+         }
+      });
+      _clusterMapAccess = new SnapshotClusterMapAccess(_clusterMap);
+      _edPolicy = new RecordingEDPolicy();
+      _strategy = new ManualScaleStrategy(_edPolicy);
+      _strategy.initialize(new AbstractClusterMapReader(_clusterMapAccess, new ThreadLocalCompoundStatus()) {});
+      _strategy.setVMChooserCallback(new ScaleStrategy.VMChooserCallback() {
+         @Override
+         public Set<VMChooser> getVMChoosers() {
+            return Collections.<VMChooser>singleton(new DumbVMChooser());
+         }
+
+         @Override
+         public VMChooser getVMChooserForType(Class<? extends VMChooser> vmChooser) {
+            return null;
+         }
+      });
+   }
+
+   private void write(final ClusterStateChangeEvent event) {
+      try {
+         _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+               return _clusterMap.handleClusterEvent(event, null);
+            }
+         });
+      } catch (Exception e) {
+         fail("Error updating ClusterMap: "+e);
+      }
+   }
+
+   @Override
+   void processNewEventData(VMEventData eventData, String expectedClusterId, Set<ClusterScaleEvent> impliedScaleEvents) {
+      write(cscl.translateVMEventData(eventData));
+   }
+
+   @Override
+   void registerScaleStrategy(ScaleStrategy scaleStrategy) {
+      _clusterMap.registerScaleStrategy(scaleStrategy);
+   }
+
+   private void setPowerState(Set<String> vmIds, boolean powerState) {
+      for (String vmId : vmIds) {
+         VMVariableData variableData = new VMVariableData();
+         variableData._powerState = powerState;
+         write(new VmUpdateEvent(vmId, variableData));
+      }
+   }
+
+   private String getClusterId() {
+      return deriveClusterIdFromClusterName(CLUSTER_NAME_PREFIX+"0");
+   }
+
+   private Set<ClusterScaleEvent> getInstruction(int toSize) {
+      return Collections.<ClusterScaleEvent>singleton(
+            new SerengetiLimitInstruction(CLUSTER_NAME_PREFIX+"0", SerengetiLimitAction.actionSetTarget, toSize, null));
+   }
+
+   private ClusterScaleOperation getOperation(int toSize) {
+      return _strategy.getClusterScaleOperation(getClusterId(), getInstruction(toSize), null);
+   }
+
+   @Test
+   /* Once VMs have been told to power off, a newer instruction is only handled once they have done so */
+   public void testSupersededAfterPowerOffIssued() throws Exception {
+      populateSimpleClusterMap(1, 4, true);
+      ClusterScaleOperation operation = getOperation(1);
+
+      assertNull(operation.runStage());
+      assertEquals(1, _edPolicy._disabling.size());
+      Set<String> disabled = _edPolicy._disabling.get(0);
+      assertEquals(2, disabled.size());
+      assertTrue(operation.isAwaiting());
+
+      operation.requestCancel();
+      assertFalse(operation.isCancelRequested());
+      assertTrue(operation.isAwaiting());
+      assertFalse(operation.getAwaited().isDone());
+
+      setPowerState(disabled, false);
+      assertTrue(operation.getAwaited().isDone());
+      assertFalse(operation.getAwaited().isCancelled());
+      ClusterScaleCompletionEvent result = operation.runStage();
+      assertFalse(operation.isAwaiting());
+      assertEquals(disabled, ((ClusterScaleDecision)result).getVMsForDecision(ClusterScaleCompletionEvent.DISABLE));
+   }
+
+   @Test
+   /* Once VMs have been told to power on, the operation waits for them to come up and then to be verified, whether or not it is superseded */
+   public void testSupersededAfterPowerOnIssued() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      ClusterScaleOperation operation = getOperation(2);
+
+      assertNull(operation.runStage());
+      assertEquals(1, _edPolicy._enabling.size());
+      Set<String> enabled = _edPolicy._enabling.get(0);
+      assertEquals(2, enabled.size());
+      assertTrue(operation.isAwaiting());
+
+      operation.requestCancel();
+      assertFalse(operation.isCancelRequested());
+      assertFalse(operation.getAwaited().isDone());
+
+      setPowerState(enabled, true);
+      assertTrue(operation.getAwaited().isDone());
+      assertFalse(operation.getAwaited().isCancelled());
+      assertNull(operation.runStage());
+
+      /* Now waiting for the power state change of the VMs that were verified, which has already happened */
+      assertTrue(operation.isAwaiting());
+      assertTrue(operation.getAwaited().isDone());
+      ClusterScaleCompletionEvent result = operation.runStage();
+      assertFalse(operation.isAwaiting());
+      assertEquals(enabled, ((ClusterScaleDecision)result).getVMsForDecision(ClusterScaleCompletionEvent.ENABLE));
+
+      /* Verification may only block for what's left of the enable timeout */
+      assertEquals(1, _edPolicy._completeTimeouts.size());
+      long timeLeft = _edPolicy._completeTimeouts.get(0);
+      assertTrue("Time left "+timeLeft+"ms", (timeLeft > 0) && (timeLeft <= _edPolicy.getEnableTimeoutMillis()));
+   }
+
+   @Test
+   /* A stage is run once the wait for it times out, even though what it was waiting for hasn't happened */
+   public void testEnableTimesOut() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      ClusterScaleOperation operation = getOperation(2);
+
+      assertNull(operation.runStage());
+      assertTrue(operation.isAwaiting());
+      assertEquals(_edPolicy.getEnableTimeoutMillis(), operation.getAwaitTimeoutMillis());
+      VMStateWatch<?> awaited = operation.getAwaited();
+
+      /* As if the timeout had expired. The watch is no longer needed */
+      ClusterScaleCompletionEvent result = operation.runStage();
+      assertFalse(operation.isAwaiting());
+      assertTrue(awaited.isCancelled());
+      assertEquals(1, _edPolicy._completeTimeouts.size());
+      assertNull(((ClusterScaleDecision)result).getVMsForDecision(ClusterScaleCompletionEvent.ENABLE));
+   }
+
+   @Test
+   /* Disabled VMs that don't power off in time are still reported as disabled */
+   public void testPowerOffTimesOut() throws Exception {
+      populateSimpleClusterMap(1, 4, true);
+      ClusterScaleOperation operation = getOperation(1);
+
+      assertNull(operation.runStage());
+      assertTrue(operation.isAwaiting());
+      Set<String> disabled = _edPolicy._disabling.get(0);
+      VMStateWatch<?> awaited = operation.getAwaited();
+
+      ClusterScaleCompletionEvent result = operation.runStage();
+      assertFalse(operation.isAwaiting());
+      assertTrue(awaited.isCancelled());
+      assertEquals(disabled, ((ClusterScaleDecision)result).getVMsForDecision(ClusterScaleCompletionEvent.DISABLE));
+   }
+
+   @Test
+   /* An exception from a stage ends the operation without a completion event */
+   public void testStageException() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      _edPolicy._beginEnableFailure = new RuntimeException("Deliberate failure");
+      ClusterScaleOperation operation = getOperation(2);
+
+      assertNull(operation.runStage());
+      assertFalse(operation.isAwaiting());
+      assertTrue(_edPolicy._completeTimeouts.isEmpty());
+   }
+
+   @Test
+   /* The cluster can be scaled again straight away after an operation fails, and whoever is waiting for that is told */
+   public void testStageExceptionReleasesCluster() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      _edPolicy._beginEnableFailure = new RuntimeException("Deliberate failure");
+      final List<String> released = new ArrayList<String>();
+      final CountDownLatch releasedLatch = new CountDownLatch(1);
+      final List<NotificationEvent> completionEvents = new ArrayList<NotificationEvent>();
+
+      ThreadPoolExecutionStrategy executionStrategy = new ThreadPoolExecutionStrategy(new ThreadPoolExecutionStrategy.NoCompletionEventListener() {
+         @Override
+         public void scaleCompletedWithoutEvent(String clusterId) {
+            released.add(clusterId);
+            releasedLatch.countDown();
+         }
+      });
+      executionStrategy.registerEventConsumer(new EventConsumer() {
+         @Override
+         public void placeEventOnQueue(NotificationEvent event) {
+            completionEvents.add(event);
+         }
+
+         @Override
+         public void placeEventCollectionOnQueue(List<? extends NotificationEvent> events) {
+            completionEvents.addAll(events);
+         }
+      });
+      executionStrategy.start(new EventProducerStartStopCallback() {
+         @Override
+         public void notifyFailed(EventProducer thisProducer) {}
+
+         @Override
+         public void notifyStopped(EventProducer thisProducer) {}
+
+         @Override
+         public void notifyStarted(EventProducer thisProducer) {}
+      });
+      try {
+         assertTrue(executionStrategy.handleClusterScaleEvents(getClusterId(), _strategy, getInstruction(2)));
+         assertTrue(releasedLatch.await(5000, TimeUnit.MILLISECONDS));
+         assertEquals(Collections.singletonList(getClusterId()), released);
+         assertFalse(executionStrategy.isClusterScaleInProgress(getClusterId()));
+         assertTrue(completionEvents.isEmpty());
+      } finally {
+         executionStrategy.stop();
+      }
+   }
+
+   @Test
+   /* An instruction superseded before it has changed anything is dropped */
+   public void testSupersededBeforeChange() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      ClusterScaleOperation operation = getOperation(2);
+
+      operation.requestCancel();
+      ClusterScaleCompletionEvent result = operation.runStage();
+      assertFalse(operation.isAwaiting());
+      assertTrue(_edPolicy._enabling.isEmpty());
+      assertNull(((ClusterScaleDecision)result).getVMsForDecision(ClusterScaleCompletionEvent.ENABLE));
+
+      /* A cancellation only applies to the invocation it was requested for */
+      assertFalse(operation.isCancelRequested());
+   }
+}
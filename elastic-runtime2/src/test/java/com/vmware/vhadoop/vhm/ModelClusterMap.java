@@ -23,6 +23,8 @@ import java.util.Map;
 import java.util.Set;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.ClusterView.VMView;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 
@@ -310,4 +312,28 @@ public class ModelClusterMap implements ClusterMap
       // TODO Auto-generated method stub
       return null;
    }
+
+   @Override
+   public ClusterView getClusterView(String clusterId) {
+      List<VMView> computeVMs = new LinkedList<VMView>();
+      for (VM vm : vms) {
+         if (vm.cluster.equals(clusterId)) {
+            computeVMs.add(new VMView(vm.id, vm.host, vm.power, null, null, null, null, null));
+         }
+      }
+
+      return computeVMs.isEmpty() ? null : new ClusterView(clusterId, clusterId, null, null, null, computeVMs);
+   }
+
+   @Override
+   public <T> VMStateWatch<T> watch(VMStateCondition<T> condition) {
+      // TODO Auto-generated method stub
+      return null;
+   }
+
+   @Override
+   public List<ClusterScaleCompletionEvent> getClusterScaleCompletionEventsSince(String clusterId, long timeMillis) {
+      // TODO Auto-generated method stub
+      return null;
+   }
 }
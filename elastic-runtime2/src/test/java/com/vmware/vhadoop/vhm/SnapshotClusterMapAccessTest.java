@@ -0,0 +1,288 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterMap.ExtraInfoToClusterMapper;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateCondition;
+import com.vmware.vhadoop.api.vhm.ClusterMap.VMStateWatch;
+import com.vmware.vhadoop.api.vhm.VCActions.VMEventData;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterVariableData;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.ClusterScaleOperation;
+import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
+
+public class SnapshotClusterMapAccessTest extends AbstractJUnitTest {
+   AbstractClusterMap _clusterMap;
+   SnapshotClusterMapAccess _clusterMapAccess;
+   ClusterStateChangeListenerImpl cscl = new ClusterStateChangeListenerImpl(new StandaloneSimpleVCActions(), null);
+
+   @Before
+   public void initialize() {
+      _clusterMap = new CachingClusterMapImpl(new ExtraInfoToClusterMapper() {
+         @Override
+         public String getStrategyKey(SerengetiClusterVariableData clusterData, String clusterId) {
+            return DEFAULT_SCALE_STRATEGY_KEY;
+         }
+
+         @Override
+         public Map<String, String> parseExtraInfo(SerengetiClusterVariableData clusterData, String clusterId) {
+            return null;
+         }
+
+         @Override
+         public Set<ClusterScaleEvent> getImpliedScaleEventsForUpdate(SerengetiClusterVariableData clusterData, String clusterId, boolean isNewCluster, boolean isClusterViable) {
+            return null;
+         }
+      });
+      _clusterMapAccess = new SnapshotClusterMapAccess(_clusterMap);
+   }
+
+   private void write(final ClusterStateChangeEvent event) {
+      try {
+         _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+               return _clusterMap.handleClusterEvent(event, null);
+            }
+         });
+      } catch (Exception e) {
+         fail("Error updating ClusterMap: "+e);
+      }
+   }
+
+   @Override
+   void processNewEventData(VMEventData eventData, String expectedClusterId, Set<ClusterScaleEvent> impliedScaleEvents) {
+      write(cscl.translateVMEventData(eventData));
+   }
+
+   @Override
+   void registerScaleStrategy(ScaleStrategy scaleStrategy) {
+      _clusterMap.registerScaleStrategy(scaleStrategy);
+   }
+
+   private void powerOn(String vmName) {
+      VMVariableData variableData = new VMVariableData();
+      variableData._powerState = true;
+      write(new VmUpdateEvent(getVmIdFromVmName(vmName), variableData));
+   }
+
+   @Test
+   public void lockedSnapshotUnaffectedByWrites() {
+      populateSimpleClusterMap(2, 4, false);
+      String clusterId = deriveClusterIdFromClusterName(CLUSTER_NAME_PREFIX+"0");
+      long epoch = _clusterMapAccess.getPublishedEpoch();
+
+      ClusterMap locked = _clusterMapAccess.lockClusterMap();
+      assertEquals(3, locked.listComputeVMsForClusterAndPowerState(clusterId, false).size());
+      powerOn(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1");
+      assertEquals(epoch+1, _clusterMapAccess.getPublishedEpoch());
+
+      /* The reader's view doesn't change until it unlocks and locks again */
+      assertEquals(3, locked.listComputeVMsForClusterAndPowerState(clusterId, false).size());
+      assertNull(locked.listComputeVMsForClusterAndPowerState(clusterId, true));
+      assertTrue(_clusterMapAccess.unlockClusterMap(locked));
+
+      locked = _clusterMapAccess.lockClusterMap();
+      assertEquals(2, locked.listComputeVMsForClusterAndPowerState(clusterId, false).size());
+      assertEquals(1, locked.listComputeVMsForClusterAndPowerState(clusterId, true).size());
+      assertEquals(3, locked.listComputeVMsForCluster(deriveClusterIdFromClusterName(CLUSTER_NAME_PREFIX+"1")).size());
+      assertEquals(DEFAULT_SCALE_STRATEGY_KEY, locked.getScaleStrategyKey(clusterId));
+      assertTrue(_clusterMapAccess.unlockClusterMap(locked));
+   }
+
+   @Test
+   public void unchangedEntriesShared() {
+      populateSimpleClusterMap(2, 4, false);
+      String clusterId = deriveClusterIdFromClusterName(CLUSTER_NAME_PREFIX+"0");
+      String changedVmId = getVmIdFromVmName(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1");
+      String unchangedVmId = getVmIdFromVmName(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"2");
+
+      ClusterMapSnapshot before = (ClusterMapSnapshot)_clusterMapAccess.lockClusterMap();
+      _clusterMapAccess.unlockClusterMap(before);
+      powerOn(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1");
+      ClusterMapSnapshot after = (ClusterMapSnapshot)_clusterMapAccess.lockClusterMap();
+      _clusterMapAccess.unlockClusterMap(after);
+
+      assertTrue(before.vmInfoMapHasData());
+      Map<String, ClusterMap.VMInfo> vmsBefore = before.getVMInfoMap();
+      assertTrue(after.vmInfoMapHasData());
+      Map<String, ClusterMap.VMInfo> vmsAfter = after.getVMInfoMap();
+      assertSame(vmsBefore.get(unchangedVmId), vmsAfter.get(unchangedVmId));
+      assertNotSame(vmsBefore.get(changedVmId), vmsAfter.get(changedVmId));
+      assertFalse(vmsBefore.get(changedVmId).getPowerState());
+      assertTrue(vmsAfter.get(changedVmId).getPowerState());
+
+      /* Nothing in the writer's map is shared with a snapshot */
+      assertTrue(_clusterMap.vmInfoMapHasData());
+      assertNotSame(_clusterMap.getVMInfoMap().get(unchangedVmId), vmsAfter.get(unchangedVmId));
+      assertTrue(after.clusterInfoMapHasData());
+      assertEquals(clusterId, after.getClusterInfoMap().get(clusterId).getClusterId());
+   }
+
+   @Test
+   public void snapshotsCannotBeChanged() {
+      populateSimpleClusterMap(1, 2, false);
+      AbstractClusterMap locked = (AbstractClusterMap)_clusterMapAccess.lockClusterMap();
+      try {
+         locked.handleClusterEvent(new VmUpdateEvent(getVmIdFromVmName(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1"), new VMVariableData()), null);
+         fail("Snapshot accepted a change");
+      } catch (UnsupportedOperationException e) {
+      } finally {
+         _clusterMapAccess.unlockClusterMap(locked);
+      }
+   }
+
+   private Future<Boolean> watchPowerState(final String vmId, final boolean expectedPowerState) {
+      ClusterMap locked = _clusterMapAccess.lockClusterMap();
+      try {
+         return locked.watch(new VMStateCondition<Boolean>() {
+            @Override
+            public Set<String> getVmIds() {
+               return Collections.singleton(vmId);
+            }
+
+            @Override
+            public Boolean evaluate(ClusterMap clusterMap) {
+               return clusterMap.checkPowerStateOfVm(vmId, expectedPowerState) ? true : null;
+            }
+         });
+      } finally {
+         _clusterMapAccess.unlockClusterMap(locked);
+      }
+   }
+
+   @Test
+   public void watchCompletedWhenChangeIsPublished() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      String vmName = CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1";
+      String vmId = getVmIdFromVmName(vmName);
+
+      assertTrue(watchPowerState(vmId, false).get(0, TimeUnit.MILLISECONDS));
+      Future<Boolean> watch = watchPowerState(vmId, true);
+      Future<Boolean> cancelled = watchPowerState(vmId, true);
+      assertFalse(watch.isDone());
+      assertTrue(cancelled.cancel(false));
+
+      /* A change to another VM doesn't complete it */
+      powerOn(CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"2");
+      assertFalse(watch.isDone());
+
+      powerOn(vmName);
+      assertTrue(watch.get(0, TimeUnit.MILLISECONDS));
+      assertTrue(cancelled.isCancelled());
+
+      /* The change is visible as soon as the watch completes */
+      ClusterMap locked = _clusterMapAccess.lockClusterMap();
+      assertTrue(locked.checkPowerStateOfVm(vmId, true));
+      _clusterMapAccess.unlockClusterMap(locked);
+   }
+
+   @Test
+   public void blockOnPowerStateChangeWakesOnUpdate() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      final String vmName = CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1";
+      AbstractClusterMapReader reader = new AbstractClusterMapReader(_clusterMapAccess, null) {};
+      Thread writer = new Thread() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep(100);
+            } catch (InterruptedException e) {}
+            powerOn(vmName);
+         }
+      };
+      long startTime = System.currentTimeMillis();
+      writer.start();
+      reader.blockOnPowerStateChange(Collections.singleton(getVmIdFromVmName(vmName)), true, 10000);
+      assertTrue(System.currentTimeMillis() - startTime < 10000);
+      writer.join();
+   }
+
+   @Test
+   /* A staged operation holds no thread while it waits, and its next stage can run as soon as the watch calls back */
+   public void stagedOperationResumesWhenWatchIsDone() throws Exception {
+      populateSimpleClusterMap(1, 4, false);
+      final String vmName = CLUSTER_NAME_PREFIX+"0_"+VM_NAME_PREFIX+"1";
+      final AbstractClusterMapReader parent = new AbstractClusterMapReader(_clusterMapAccess, new ThreadLocalCompoundStatus()) {};
+      final List<String> stagesRun = new ArrayList<String>();
+      ClusterScaleOperation operation = new ClusterScaleOperation() {
+         {
+            initialize(parent);
+         }
+
+         @Override
+         public ClusterScaleCompletionEvent localCall() throws Exception {
+            stagesRun.add("first");
+            awaitThen("power on", watchPowerState(Collections.singleton(getVmIdFromVmName(vmName)), true), 10000, new Stage() {
+               @Override
+               public ClusterScaleCompletionEvent run(VMStateWatch<?> awaited) throws Exception {
+                  stagesRun.add(awaited.isDone() ? "powered on" : "timed out");
+                  return null;
+               }
+            });
+            return null;
+         }
+      };
+
+      operation.runStage();
+      assertTrue(operation.isAwaiting());
+      final CountDownLatch resumable = new CountDownLatch(1);
+      operation.getAwaited().whenDone(new Runnable() {
+         @Override
+         public void run() {
+            resumable.countDown();
+         }
+      });
+      assertEquals(1, resumable.getCount());
+
+      powerOn(vmName);
+      assertTrue(resumable.await(0, TimeUnit.MILLISECONDS));
+      operation.runStage();
+      assertFalse(operation.isAwaiting());
+      assertEquals(Arrays.asList("first", "powered on"), stagesRun);
+   }
+
+   @Test
+   public void doubleLockAndUnlock() {
+      ClusterMap cm = _clusterMapAccess.lockClusterMap();
+      assertNotNull(cm);
+      assertNull(_clusterMapAccess.lockClusterMap());
+      assertTrue(_clusterMapAccess.unlockClusterMap(cm));
+      assertFalse(_clusterMapAccess.unlockClusterMap(cm));
+   }
+}
@@ -23,6 +23,8 @@ import java.util.Map;
 import java.util.Set;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterView;
+import com.vmware.vhadoop.api.vhm.ClusterView.VMView;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 
@@ -375,4 +377,30 @@ public class StandaloneSimpleClusterMap implements ClusterMap
       // TODO Auto-generated method stub
       return null;
    }
+
+   @SuppressWarnings({ "unchecked" })
+   @Override
+   public ClusterView getClusterView(String clusterId) {
+      List<VMView> computeVMs = new LinkedList<VMView>();
+      for (VM vm : vms) {
+         if (vm.cluster.equals(clusterId)) {
+            computeVMs.add(new VMView(vm.id, vm.host, vm.power, (Long)vm.get("POWER_ON_TIME"), (Long)vm.get("POWER_OFF_TIME"),
+                  (String)vm.get("DNS_NAME"), null, (Map<String, Set<String>>)vm.get("NIC_TO_IPADDRESSES_MAP")));
+         }
+      }
+
+      return computeVMs.isEmpty() ? null : new ClusterView(clusterId, clusterId, null, null, null, computeVMs);
+   }
+
+   @Override
+   public <T> VMStateWatch<T> watch(VMStateCondition<T> condition) {
+      // TODO Auto-generated method stub
+      return null;
+   }
+
+   @Override
+   public List<ClusterScaleCompletionEvent> getClusterScaleCompletionEventsSince(String clusterId, long timeMillis) {
+      // TODO Auto-generated method stub
+      return null;
+   }
 }
@@ -43,6 +43,11 @@ public class StandaloneSimpleVCActions implements VCActions {
       return null;
    }
 
+   @Override
+   public Map<String, Future<Boolean>> changeVMPowerState(Map<String, String> vmMoRefsToHostIds, boolean b) {
+      return changeVMPowerState(vmMoRefsToHostIds.keySet(), b);
+   }
+
    @Override
    public List<VMEventData> waitForPropertyChange(String folderName) throws InterruptedException {
       _latestArgs.put("waitForPropertyChange", new Object[]{folderName});
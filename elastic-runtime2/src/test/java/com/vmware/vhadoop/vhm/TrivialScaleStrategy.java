@@ -18,6 +18,7 @@ package com.vmware.vhadoop.vhm;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
@@ -40,6 +41,10 @@ public class TrivialScaleStrategy extends AbstractClusterMapReader implements Sc
       ScaleStrategyContext _context;
       long _scalePauseMillis = 0;
       int _requeueEventTimes = 0;
+      int _cancelledCount = 0;
+      int _invocationCount = 0;
+      int _gatedFromInvocation = 0;
+      CountDownLatch _gate;
       
       public TrivialClusterScaleOperation() {
          initialize(TrivialScaleStrategy.this);
@@ -78,10 +83,62 @@ public class TrivialScaleStrategy extends AbstractClusterMapReader implements Sc
          return _context;
       }
 
+      public synchronized int getCancelledCount() {
+         return _cancelledCount;
+      }
+
+      /* Invocations from the given one onwards wait for the gate to be opened before they start scaling */
+      synchronized void setGate(int fromInvocation, CountDownLatch gate) {
+         _gatedFromInvocation = fromInvocation;
+         _gate = gate;
+      }
+
+      public synchronized int getInvocationCount() {
+         return _invocationCount;
+      }
+
+      synchronized boolean waitForInvocationCount(int invocationCount, long timeoutMillis) throws InterruptedException {
+         long deadline = System.currentTimeMillis() + timeoutMillis;
+         while (_invocationCount < invocationCount) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+               return false;
+            }
+            wait(remaining);
+         }
+         return true;
+      }
+
       @Override
       public ClusterScaleCompletionEvent localCall() throws Exception {
+         CountDownLatch gate = null;
+         synchronized(this) {
+            int invocation = ++_invocationCount;
+            if ((_gate != null) && (invocation >= _gatedFromInvocation)) {
+               gate = _gate;
+            }
+            notifyAll();
+         }
+         if (gate != null) {
+            gate.await();
+         }
          _log.info("About to scale cluster "+_clusterId);
-         Thread.sleep(_scalePauseMillis);
+         try {
+            if (beginCancellableWait()) {
+               Thread.sleep(_scalePauseMillis);
+            }
+         } catch (InterruptedException e) {
+            if (!isCancelRequested()) {
+               throw e;
+            }
+         } finally {
+            if (endCancellableWait()) {
+               _log.info("Scaling cancelled for cluster "+_clusterId);
+               synchronized(this) {
+                  _cancelledCount++;
+               }
+            }
+         }
          _log.info("Done scaling cluster "+_clusterId);
          TrivialClusterScaleEvent tcse = (TrivialClusterScaleEvent)_events.iterator().next();
          tcse.ReportBack();
@@ -30,6 +30,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 import org.junit.Before;
@@ -69,6 +70,7 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
 
    /* EventProducer fields */
    EventConsumer _eventConsumer;
+   EventProducerStartStopCallback _startStopCallback;
 
    /* ClusterMapReader fields */
    ClusterMapAccess _clusterMapAccess;
@@ -148,7 +150,7 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
       _trivialScaleStrategy = new TrivialScaleStrategy(STRATEGY_KEY);
       ManualScaleStrategy manualScaleStrategy = new ManualScaleStrategy(new DumbEDPolicy(_vcActions));
       _vhm = new VHM(_vcActions, new ScaleStrategy[]{_trivialScaleStrategy, manualScaleStrategy},
-            _strategyMapper, new ThreadLocalCompoundStatus());
+            _strategyMapper, new ThreadLocalCompoundStatus(), false, true);
       assertTrue(_vhm.registerEventProducer(_clusterStateChangeListener));
       assertTrue(_vhm.registerEventProducer(this));
       _vhm.registerCollaborator(new DumbVMChooser());
@@ -235,7 +237,20 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
          try {
             clusterMap = getAndReadLockClusterMap();
             assertNotNull(clusterMap);
-            toWaitFor = clusterMap.getLastClusterScaleCompletionEvent(clusterId);
+            if (thatsNotInSet == null) {
+               toWaitFor = clusterMap.getLastClusterScaleCompletionEvent(clusterId);
+            } else {
+               /* Completions are no longer delayed, so several may land between polls - find the oldest not yet seen */
+               toWaitFor = null;
+               List<ClusterScaleCompletionEvent> history = clusterMap.getClusterScaleCompletionEventsSince(clusterId, 0);
+               if (history != null) {
+                  for (ClusterScaleCompletionEvent event : history) {
+                     if (!thatsNotInSet.contains(event)) {
+                        toWaitFor = event;
+                     }
+                  }
+               }
+            }
             nullOrInSet = (toWaitFor == null) || ((thatsNotInSet != null) && (thatsNotInSet.contains(toWaitFor)));
          } finally {
             unlockClusterMap(clusterMap);
@@ -531,6 +546,11 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
       final Set<ClusterScaleCompletionEvent> completionEventsFromInit = waitForClusterScaleCompletionEvents(clusterId, 1, 1000);
       assertNotNull(completionEventsFromInit);
 
+      /* Hold the second scale until the test is ready for it, rather than relying on timing to catch it still in progress */
+      int invocationsFromInit = tcso.getInvocationCount();
+      CountDownLatch secondScaleGate = new CountDownLatch(1);
+      tcso.setGate(invocationsFromInit + 2, secondScaleGate);
+
       _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, false));
       Thread.sleep(1000);
       _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, false));
@@ -540,13 +560,54 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
       /* Expectation here is that 1st event will trigger a scale. The second one arrives and third one arrives and are both queued back up */
       /* Then, the second and third ones are processed together in a single invocation */
 
-      /* This call should time out - there should only be one that's been processed so far... */
-      Set<ClusterScaleCompletionEvent> results1 = waitForClusterScaleCompletionEvents(clusterId, 2, 4000, completionEventsFromInit);
+      try {
+         Set<ClusterScaleCompletionEvent> results1 = waitForClusterScaleCompletionEvents(clusterId, 1, delayMillis + 2000, completionEventsFromInit);
+         assertEquals(1, results1.size());
+         assertTrue(tcso.waitForInvocationCount(invocationsFromInit + 2, 2000));
+
+         /* This call should time out - the second scale can't complete while it's held, and no other may start alongside it */
+         Set<ClusterScaleCompletionEvent> heldResults = waitForClusterScaleCompletionEvents(clusterId, 2, 1000, completionEventsFromInit);
+         assertEquals(1, heldResults.size());
+         assertEquals(invocationsFromInit + 2, tcso.getInvocationCount());
+      } finally {
+         /* Let the second scale go, even if the test has failed */
+         secondScaleGate.countDown();
+      }
+
+      /* The two extra events should have been picked up in a single consolidated invocation. This should not time out. */
+      Set<ClusterScaleCompletionEvent> results2 = waitForClusterScaleCompletionEvents(clusterId, 2, delayMillis + 2000, completionEventsFromInit);
+      assertEquals(2, results2.size());
+      assertEquals(invocationsFromInit + 2, tcso.getInvocationCount());
+   }
+
+   @Test
+   /* A newer exclusive event should cut short the operation handling an older one, rather than wait for it to finish */
+   public void testSupersededOperationCancelled() throws InterruptedException {
+      int numClusters = 3;
+      populateSimpleClusterMap(numClusters, 4, false);    /* Blocks until CSCL has generated all events */
+      assertTrue(waitForTargetClusterCount(3, 1000));
+
+      String clusterId = deriveClusterIdFromClusterName(_clusterNames.iterator().next());
+      final Set<ClusterScaleCompletionEvent> completionEventsFromInit = waitForClusterScaleCompletionEvents(clusterId, 1, 1000);
+      assertNotNull(completionEventsFromInit);
+
+      int delayMillis = 5000;
+      TrivialClusterScaleOperation tcso = _trivialScaleStrategy.new TrivialClusterScaleOperation(delayMillis);
+      _trivialScaleStrategy.setClusterScaleOperation(clusterId, tcso);
+
+      _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, true));
+      Thread.sleep(1000);
+      _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, true));
+
+      /* The first operation should complete well before its delay is up */
+      Set<ClusterScaleCompletionEvent> results1 = waitForClusterScaleCompletionEvents(clusterId, 1, 2000, completionEventsFromInit);
       assertEquals(1, results1.size());
+      assertEquals(1, tcso.getCancelledCount());
 
-      /* The two extra events should have been picked up and should result in a second consolidated invocation. This should not time out. */
-      Set<ClusterScaleCompletionEvent> results2 = waitForClusterScaleCompletionEvents(clusterId, 2, 4000, completionEventsFromInit);
+      /* The newer event is then handled in full */
+      Set<ClusterScaleCompletionEvent> results2 = waitForClusterScaleCompletionEvents(clusterId, 2, delayMillis + 2000, completionEventsFromInit);
       assertEquals(2, results2.size());
+      assertEquals(1, tcso.getCancelledCount());
    }
 
    private class ReportResult {
@@ -843,7 +904,9 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
 
    @Override
    public void stop() {
-      /* No-op */
+      if (_startStopCallback != null) {
+         _startStopCallback.notifyStopped(this);
+      }
    }
 
    @Override
@@ -859,7 +922,8 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
 
    @Override
    public void start(EventProducerStartStopCallback callback) {
-      /* No-op */
+      _startStopCallback = callback;
+      callback.notifyStarted(this);
    }
 
    @Override
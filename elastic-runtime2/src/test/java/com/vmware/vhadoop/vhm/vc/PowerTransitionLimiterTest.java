@@ -0,0 +1,327 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm.vc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.vhm.vc.PowerTransitionLimiter.PowerTaskIssuer;
+
+public class PowerTransitionLimiterTest {
+   private static final long SETTLE_MILLIS = 200;
+   private static final long TIMEOUT_MILLIS = 5000;
+
+   private ExecutorService _taskMonitors;
+
+   /* Each task completes when its latch is counted down. Tracks how many tasks are running, overall and per host */
+   class TestIssuer implements PowerTaskIssuer<CountDownLatch> {
+      final Map<String, String> _vmHosts;
+      final Map<String, CountDownLatch> _issued = new LinkedHashMap<String, CountDownLatch>();
+      final Map<String, Integer> _runningPerHost = new HashMap<String, Integer>();
+      final Map<String, Integer> _maxRunningPerHost = new HashMap<String, Integer>();
+      int _running;
+      int _maxRunning;
+      boolean _completeImmediately;
+
+      TestIssuer(Map<String, String> vmHosts) {
+         _vmHosts = vmHosts;
+      }
+
+      @Override
+      public CountDownLatch issue(String vmMoRef) {
+         CountDownLatch task = new CountDownLatch(_completeImmediately ? 0 : 1);
+         String hostId = _vmHosts.get(vmMoRef);
+         synchronized(this) {
+            _issued.put(vmMoRef, task);
+            _maxRunning = Math.max(_maxRunning, ++_running);
+            Integer onHost = _runningPerHost.get(hostId);
+            onHost = (onHost == null) ? 1 : onHost + 1;
+            _runningPerHost.put(hostId, onHost);
+            Integer maxOnHost = _maxRunningPerHost.get(hostId);
+            _maxRunningPerHost.put(hostId, (maxOnHost == null) ? onHost : Math.max(maxOnHost, onHost));
+            notifyAll();
+         }
+         return task;
+      }
+
+      @Override
+      public Boolean waitFor(CountDownLatch task) {
+         String hostId = null;
+         synchronized(this) {
+            for (Map.Entry<String, CountDownLatch> entry : _issued.entrySet()) {
+               if (entry.getValue() == task) {
+                  hostId = _vmHosts.get(entry.getKey());
+               }
+            }
+         }
+         try {
+            task.await();
+         } catch (InterruptedException e) {
+            return false;
+         }
+         synchronized(this) {
+            /* Updated before the task returns, and so before its permits are given back */
+            _running--;
+            _runningPerHost.put(hostId, _runningPerHost.get(hostId) - 1);
+         }
+         return true;
+      }
+
+      synchronized int getIssuedCount() {
+         return _issued.size();
+      }
+
+      synchronized void waitForIssued(int count) throws InterruptedException {
+         long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+         while (_issued.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            assertTrue("Only "+_issued.size()+" of "+count+" tasks issued", remaining > 0);
+            wait(remaining);
+         }
+      }
+
+      synchronized void complete(String vmMoRef) {
+         _issued.get(vmMoRef).countDown();
+      }
+   }
+
+   /* Issues power tasks on a thread of its own, so that the test can see it block and interrupt it */
+   class Caller extends Thread {
+      final PowerTransitionLimiter _limiter;
+      final Map<String, String> _vmHosts;
+      final PowerTaskIssuer<CountDownLatch> _issuer;
+      final AtomicReference<Map<String, Future<Boolean>>> _result = new AtomicReference<Map<String, Future<Boolean>>>();
+      volatile RuntimeException _failure;
+      volatile boolean _interruptedOnReturn;
+
+      Caller(PowerTransitionLimiter limiter, Map<String, String> vmHosts, PowerTaskIssuer<CountDownLatch> issuer) {
+         _limiter = limiter;
+         _vmHosts = vmHosts;
+         _issuer = issuer;
+         /* A caller left blocked by a failed test mustn't keep the JVM alive */
+         setDaemon(true);
+      }
+
+      @Override
+      public void run() {
+         try {
+            _result.set(_limiter.issue(_vmHosts, _issuer, _taskMonitors));
+         } catch (RuntimeException e) {
+            _failure = e;
+         }
+         _interruptedOnReturn = Thread.currentThread().isInterrupted();
+      }
+
+      Map<String, Future<Boolean>> getResult() throws InterruptedException {
+         join(TIMEOUT_MILLIS);
+         assertFalse("Caller is still blocked", isAlive());
+         return _result.get();
+      }
+   }
+
+   @Before
+   public void createTaskMonitors() {
+      _taskMonitors = Executors.newCachedThreadPool();
+   }
+
+   @After
+   public void destroyTaskMonitors() {
+      _taskMonitors.shutdownNow();
+   }
+
+   private Map<String, String> vmsOnHosts(String vmPrefix, int numVms, int numHosts) {
+      Map<String, String> result = new LinkedHashMap<String, String>();
+      for (int i=0; i<numVms; i++) {
+         result.put(vmPrefix+i, "host"+(i % numHosts));
+      }
+      return result;
+   }
+
+   @Test
+   public void testHostLimit() throws Exception {
+      PowerTransitionLimiter limiter = new PowerTransitionLimiter(10, 2);
+      Map<String, String> vmHosts = vmsOnHosts("vm", 3, 1);
+      TestIssuer issuer = new TestIssuer(vmHosts);
+      Caller caller = new Caller(limiter, vmHosts, issuer);
+      caller.start();
+
+      issuer.waitForIssued(2);
+      Thread.sleep(SETTLE_MILLIS);
+      assertEquals(2, issuer.getIssuedCount());
+
+      /* A transition on another host isn't held up by the busy one */
+      Map<String, String> otherHost = new HashMap<String, String>();
+      otherHost.put("other", "host1");
+      TestIssuer otherIssuer = new TestIssuer(otherHost);
+      otherIssuer._completeImmediately = true;
+      Caller otherCaller = new Caller(limiter, otherHost, otherIssuer);
+      otherCaller.start();
+      assertEquals(1, otherCaller.getResult().size());
+
+      issuer.complete("vm0");
+      issuer.waitForIssued(3);
+      issuer.complete("vm1");
+      issuer.complete("vm2");
+      Map<String, Future<Boolean>> result = caller.getResult();
+      assertEquals(3, result.size());
+      for (Future<Boolean> future : result.values()) {
+         assertTrue(future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+      }
+      assertEquals(2, (int)issuer._maxRunningPerHost.get("host0"));
+   }
+
+   @Test
+   public void testVcLimit() throws Exception {
+      PowerTransitionLimiter limiter = new PowerTransitionLimiter(2, 10);
+      Map<String, String> vmHosts = vmsOnHosts("vm", 3, 3);
+      TestIssuer issuer = new TestIssuer(vmHosts);
+      Caller caller = new Caller(limiter, vmHosts, issuer);
+      caller.start();
+
+      issuer.waitForIssued(2);
+      Thread.sleep(SETTLE_MILLIS);
+      assertEquals(2, issuer.getIssuedCount());
+
+      issuer.complete("vm1");
+      issuer.waitForIssued(3);
+      issuer.complete("vm0");
+      issuer.complete("vm2");
+      assertEquals(3, caller.getResult().size());
+      assertEquals(2, issuer._maxRunning);
+   }
+
+   @Test
+   public void testNoPermitLostWhenNoTaskIssued() throws Exception {
+      PowerTransitionLimiter limiter = new PowerTransitionLimiter(1, 1);
+      final List<String> attempted = new ArrayList<String>();
+      PowerTaskIssuer<CountDownLatch> failing = new PowerTaskIssuer<CountDownLatch>() {
+         @Override
+         public CountDownLatch issue(String vmMoRef) {
+            attempted.add(vmMoRef);
+            if (vmMoRef.startsWith("throws")) {
+               throw new RuntimeException("Failed to start power task");
+            }
+            return null;
+         }
+
+         @Override
+         public Boolean waitFor(CountDownLatch task) {
+            fail("No task was issued");
+            return false;
+         }
+      };
+
+      /* With only a single permit for the vCenter and host, each of these would block if a previous failure had kept it */
+      Caller none = new Caller(limiter, vmsOnHosts("none", 3, 1), failing);
+      none.start();
+      assertTrue(none.getResult().isEmpty());
+      assertEquals(3, attempted.size());
+
+      Caller throwing = new Caller(limiter, vmsOnHosts("throws", 1, 1), failing);
+      throwing.start();
+      throwing.getResult();
+      assertNotNull(throwing._failure);
+
+      Map<String, String> working = vmsOnHosts("vm", 2, 1);
+      TestIssuer issuer = new TestIssuer(working);
+      issuer._completeImmediately = true;
+      Caller caller = new Caller(limiter, working, issuer);
+      caller.start();
+      assertEquals(2, caller.getResult().size());
+   }
+
+   @Test
+   public void testNoDeadlockWhenHostsContendForVc() throws Exception {
+      final int numCallers = 8;
+      final int vmsPerCaller = 20;
+      PowerTransitionLimiter limiter = new PowerTransitionLimiter(2, 1);
+      Map<String, String> allVms = new HashMap<String, String>();
+      List<Map<String, String>> callerVms = new ArrayList<Map<String, String>>();
+      for (int i=0; i<numCallers; i++) {
+         /* Every caller has VMs on every host, so all of them compete for both kinds of permit */
+         Map<String, String> vmHosts = vmsOnHosts("caller"+i+"_vm", vmsPerCaller, 4);
+         callerVms.add(vmHosts);
+         allVms.putAll(vmHosts);
+      }
+      TestIssuer issuer = new TestIssuer(allVms);
+      issuer._completeImmediately = true;
+      List<Caller> callers = new ArrayList<Caller>();
+      for (Map<String, String> vmHosts : callerVms) {
+         Caller caller = new Caller(limiter, vmHosts, issuer);
+         callers.add(caller);
+         caller.start();
+      }
+      for (Caller caller : callers) {
+         for (Future<Boolean> future : caller.getResult().values()) {
+            assertTrue(future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+         }
+      }
+      assertEquals(numCallers * vmsPerCaller, issuer.getIssuedCount());
+      assertTrue(issuer._maxRunning <= 2);
+      for (Integer maxOnHost : issuer._maxRunningPerHost.values()) {
+         assertEquals(1, (int)maxOnHost);
+      }
+   }
+
+   @Test
+   public void testInterruptedCallerGetsIssuedTasksOnly() throws Exception {
+      PowerTransitionLimiter limiter = new PowerTransitionLimiter(2, 10);
+      Map<String, String> busyVms = vmsOnHosts("busy", 1, 1);
+      TestIssuer busyIssuer = new TestIssuer(busyVms);
+      Caller busy = new Caller(limiter, busyVms, busyIssuer);
+      busy.start();
+      busyIssuer.waitForIssued(1);
+
+      /* Only one of these can be admitted while the busy VM holds the other vCenter permit */
+      Map<String, String> vmHosts = vmsOnHosts("vm", 3, 3);
+      TestIssuer issuer = new TestIssuer(vmHosts);
+      Caller caller = new Caller(limiter, vmHosts, issuer);
+      caller.start();
+      issuer.waitForIssued(1);
+      Thread.sleep(SETTLE_MILLIS);
+      caller.interrupt();
+
+      Map<String, Future<Boolean>> result = caller.getResult();
+      assertTrue(caller._interruptedOnReturn);
+      assertEquals(1, issuer.getIssuedCount());
+      assertEquals(issuer._issued.keySet(), result.keySet());
+
+      /* The VMs that weren't admitted haven't taken any permits with them */
+      issuer.complete(result.keySet().iterator().next());
+      busyIssuer.complete("busy0");
+      Map<String, String> laterVms = vmsOnHosts("later", 2, 1);
+      TestIssuer laterIssuer = new TestIssuer(laterVms);
+      laterIssuer._completeImmediately = true;
+      Caller later = new Caller(limiter, laterVms, laterIssuer);
+      later.start();
+      assertEquals(2, later.getResult().size());
+   }
+}